@@ -18,6 +18,7 @@ import com.microsoft.appcenter.Constants;
 import com.microsoft.appcenter.Flags;
 import com.microsoft.appcenter.analytics.channel.AnalyticsListener;
 import com.microsoft.appcenter.analytics.channel.AnalyticsValidator;
+import com.microsoft.appcenter.analytics.channel.EventSampler;
 import com.microsoft.appcenter.analytics.channel.SessionTracker;
 import com.microsoft.appcenter.analytics.ingestion.models.EventLog;
 import com.microsoft.appcenter.analytics.ingestion.models.PageLog;
@@ -28,6 +29,7 @@ import com.microsoft.appcenter.analytics.ingestion.models.json.StartSessionLogFa
 import com.microsoft.appcenter.analytics.ingestion.models.one.CommonSchemaEventLog;
 import com.microsoft.appcenter.analytics.ingestion.models.one.json.CommonSchemaEventLogFactory;
 import com.microsoft.appcenter.channel.Channel;
+import com.microsoft.appcenter.channel.OverflowPolicy;
 import com.microsoft.appcenter.ingestion.models.Log;
 import com.microsoft.appcenter.ingestion.models.json.LogFactory;
 import com.microsoft.appcenter.ingestion.models.properties.StringTypedProperty;
@@ -94,6 +96,12 @@ public class Analytics extends AbstractAppCenterService {
     @VisibleForTesting
     static final int MAXIMUM_TRANSMISSION_INTERVAL_IN_SECONDS = 24 * 60 * 60;
 
+    /**
+     * Number of events tracked from any thread that can wait for the App Center thread without posting a message each.
+     */
+    @VisibleForTesting
+    static final int ENQUEUE_RING_BUFFER_CAPACITY = 1024;
+
     /**
      * Log factories managed by this service.
      */
@@ -125,6 +133,11 @@ public class Analytics extends AbstractAppCenterService {
      */
     private boolean mStartedFromApp;
 
+    /**
+     * Channel events can be enqueued to from the caller thread, null when events must go through the background thread.
+     */
+    private volatile Channel mEventChannel;
+
     /**
      * Session tracker.
      */
@@ -135,6 +148,11 @@ public class Analytics extends AbstractAppCenterService {
      */
     private AnalyticsValidator mAnalyticsValidator;
 
+    /**
+     * Sampler of events only needed statistically.
+     */
+    private final EventSampler mEventSampler;
+
     /**
      * Channel listener used by transmission targets to decorate logs.
      */
@@ -171,6 +189,7 @@ public class Analytics extends AbstractAppCenterService {
         mFactories.put(EventLog.TYPE, new EventLogFactory());
         mFactories.put(CommonSchemaEventLog.TYPE, new CommonSchemaEventLogFactory());
         mTransmissionTargets = new HashMap<>();
+        mEventSampler = new EventSampler();
         mTransmissionInterval = TimeUnit.SECONDS.toMillis(MINIMUM_TRANSMISSION_INTERVAL_IN_SECONDS);
     }
 
@@ -225,6 +244,29 @@ public class Analytics extends AbstractAppCenterService {
         return getInstance().setInstanceTransmissionInterval(seconds);
     }
 
+    /**
+     * Set the share of events or pages with the given name to keep, for events only needed statistically.
+     * Whether an install keeps them is decided from its install ID, so the same installs keep sending them.
+     * The rate is recorded in One Collector logs so that the backend can re-weight them.
+     *
+     * @param name       event or page name.
+     * @param sampleRate share of logs to keep between 0 (none) and 1 (all, the default).
+     */
+    public static void setEventSampleRate(@NonNull String name, double sampleRate) {
+        getInstance().mEventSampler.setNameSampleRate(name, sampleRate);
+    }
+
+    /**
+     * Set the share of logs of the given type to keep, such as {@link EventLog#TYPE} or {@link PageLog#TYPE}.
+     * A rate set with {@link #setEventSampleRate(String, double)} takes precedence for a given name.
+     *
+     * @param logType    log type.
+     * @param sampleRate share of logs to keep between 0 (none) and 1 (all, the default).
+     */
+    public static void setLogTypeSampleRate(@NonNull String logType, double sampleRate) {
+        getInstance().mEventSampler.setLogTypeSampleRate(logType, sampleRate);
+    }
+
     /**
      * Pauses log transmission. This API cannot be used if the service is disabled.
      * Transmission is resumed:
@@ -732,6 +774,7 @@ public class Analytics extends AbstractAppCenterService {
             /* Cleanup resources. */
             if (mAnalyticsValidator != null) {
                 mChannel.removeListener(mAnalyticsValidator);
+                mChannel.removeListener(mEventSampler);
                 mAnalyticsValidator = null;
             }
             if (mSessionTracker != null) {
@@ -744,6 +787,18 @@ public class Analytics extends AbstractAppCenterService {
                 mAnalyticsTransmissionTargetListener = null;
             }
         }
+        updateEventChannel(enabled);
+    }
+
+    /**
+     * Update the channel events can be enqueued to without going through the background thread.
+     * This is only possible for app level events without a default transmission target.
+     *
+     * @param enabled current state.
+     */
+    @WorkerThread
+    private void updateEventChannel(boolean enabled) {
+        mEventChannel = enabled && mStartedFromApp && mDefaultTransmissionTarget == null ? mChannel : null;
     }
 
     /**
@@ -755,10 +810,16 @@ public class Analytics extends AbstractAppCenterService {
         /* Share the started from app check between all calls. */
         if (mStartedFromApp) {
 
+            /* Let events reach the channel in batches instead of posting a message for each. */
+            mChannel.setEnqueueRingBuffer(ENQUEUE_RING_BUFFER_CAPACITY, OverflowPolicy.BLOCK);
+
             /* Enable filtering logs. */
             mAnalyticsValidator = new AnalyticsValidator();
             mChannel.addListener(mAnalyticsValidator);
 
+            /* Sample events after validation, so that the rate applies to final names. */
+            mChannel.addListener(mEventSampler);
+
             /* Start session tracker. */
             mSessionTracker = new SessionTracker(mChannel, ANALYTICS_GROUP);
             if (isManualSessionTrackerEnabled) {
@@ -846,7 +907,21 @@ public class Analytics extends AbstractAppCenterService {
      * @param transmissionTarget optional target.
      * @param flags              optional flags.
      */
-    private synchronized void trackEventAsync(final String name, final List<TypedProperty> properties, final AnalyticsTransmissionTarget transmissionTarget, final int flags) {
+    private void trackEventAsync(final String name, final List<TypedProperty> properties, final AnalyticsTransmissionTarget transmissionTarget, final int flags) {
+
+        /* App level events without a default target are built here and handed over to the channel directly. */
+        Channel eventChannel = mEventChannel;
+        if (transmissionTarget == null && eventChannel != null) {
+            EventLog eventLog = new EventLog();
+            eventLog.setId(UUID.randomUUID());
+            eventLog.setName(name);
+            eventLog.setTypedProperties(properties);
+
+            /* Filter and validate flags. For now we support only persistence. */
+            int filteredFlags = Flags.getPersistenceFlag(flags, true);
+            eventChannel.enqueueAsync(eventLog, filteredFlags == Flags.CRITICAL ? ANALYTICS_CRITICAL_GROUP : ANALYTICS_GROUP, filteredFlags);
+            return;
+        }
         final String userId = UserIdContext.getInstance().getUserId();
         post(new Runnable() {
 
@@ -940,6 +1015,7 @@ public class Analytics extends AbstractAppCenterService {
         mStartedFromApp = startedFromApp;
         super.onStarted(context, channel, appSecret, transmissionTargetToken, startedFromApp);
         setDefaultTransmissionTarget(transmissionTargetToken);
+        updateEventChannel(isInstanceEnabled());
     }
 
     @Override
@@ -947,6 +1023,7 @@ public class Analytics extends AbstractAppCenterService {
         mStartedFromApp = true;
         startAppLevelFeatures();
         setDefaultTransmissionTarget(transmissionTargetToken);
+        updateEventChannel(isInstanceEnabled());
     }
 
     /**
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.analytics.channel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.microsoft.appcenter.analytics.ingestion.models.LogWithNameAndProperties;
+import com.microsoft.appcenter.channel.AbstractChannelListener;
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.ingestion.models.one.CommonSchemaLog;
+import com.microsoft.appcenter.utils.AppCenterLog;
+import com.microsoft.appcenter.utils.IdHelper;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.microsoft.appcenter.analytics.Analytics.LOG_TAG;
+
+/**
+ * Filters out logs that are only needed statistically, before they are persisted.
+ * Rates are configured per event or page name and per log type, a name rate taking precedence.
+ * The decision is made from a hash of the install ID, so that a given install either keeps or drops
+ * all logs of a rate, and installs keeping logs at a low rate also keep them at higher rates.
+ * Kept Common Schema logs have their sample rate recorded in their {@code popSample} field.
+ */
+public class EventSampler extends AbstractChannelListener {
+
+    /**
+     * Sample rates by event or page name.
+     */
+    private final Map<String, Double> mNameSampleRates = new ConcurrentHashMap<>();
+
+    /**
+     * Sample rates by log type.
+     */
+    private final Map<String, Double> mTypeSampleRates = new ConcurrentHashMap<>();
+
+    /**
+     * Position of this install in [0, 1), computed from the install ID, null until first needed.
+     */
+    private Double mInstallSample;
+
+    /**
+     * Init.
+     */
+    public EventSampler() {
+    }
+
+    /**
+     * Init with a known install ID.
+     *
+     * @param installId install ID.
+     */
+    @VisibleForTesting
+    EventSampler(@NonNull UUID installId) {
+        mInstallSample = getSample(installId);
+    }
+
+    /**
+     * Set the share of logs to keep for an event or page name.
+     *
+     * @param name       event or page name.
+     * @param sampleRate share of logs to keep between 0 and 1.
+     */
+    public void setNameSampleRate(@NonNull String name, double sampleRate) {
+        setSampleRate(mNameSampleRates, name, sampleRate);
+    }
+
+    /**
+     * Set the share of logs to keep for a log type.
+     *
+     * @param logType    log type.
+     * @param sampleRate share of logs to keep between 0 and 1.
+     */
+    public void setLogTypeSampleRate(@NonNull String logType, double sampleRate) {
+        setSampleRate(mTypeSampleRates, logType, sampleRate);
+    }
+
+    @Override
+    public boolean shouldFilter(@NonNull Log log) {
+        if (mNameSampleRates.isEmpty() && mTypeSampleRates.isEmpty()) {
+            return false;
+        }
+        Double sampleRate = null;
+        String name = getName(log);
+        if (name != null) {
+            sampleRate = mNameSampleRates.get(name);
+        }
+        if (sampleRate == null) {
+            sampleRate = mTypeSampleRates.get(log.getType());
+        }
+        if (sampleRate == null || sampleRate >= 1) {
+            return false;
+        }
+        if (mInstallSample == null) {
+            mInstallSample = getSample(IdHelper.getInstallId());
+        }
+        if (mInstallSample >= sampleRate) {
+            AppCenterLog.verbose(LOG_TAG, "Log of type '" + log.getType() + "' was sampled out.");
+            return true;
+        }
+
+        /* Let the backend re-weight what it receives, Common Schema expects a percentage. */
+        if (log instanceof CommonSchemaLog) {
+            ((CommonSchemaLog) log).setPopSample(sampleRate * 100);
+        }
+        return false;
+    }
+
+    /**
+     * Validate and store a sample rate.
+     *
+     * @param sampleRates rates to update.
+     * @param key         name or type.
+     * @param sampleRate  share of logs to keep between 0 and 1.
+     */
+    private static void setSampleRate(@NonNull Map<String, Double> sampleRates, @NonNull String key, double sampleRate) {
+        if (sampleRate >= 0 && sampleRate <= 1) {
+            sampleRates.put(key, sampleRate);
+        } else {
+            AppCenterLog.error(LOG_TAG, "Sample rate of '" + key + "' must be between 0 and 1, was " + sampleRate);
+        }
+    }
+
+    /**
+     * Get the event or page name of a log.
+     *
+     * @param log log.
+     * @return name, null if the log has no name.
+     */
+    @Nullable
+    private static String getName(@NonNull Log log) {
+        if (log instanceof LogWithNameAndProperties) {
+            return ((LogWithNameAndProperties) log).getName();
+        }
+        if (log instanceof CommonSchemaLog) {
+            return ((CommonSchemaLog) log).getName();
+        }
+        return null;
+    }
+
+    /**
+     * Map an install ID to a uniformly distributed value.
+     *
+     * @param installId install ID.
+     * @return value in [0, 1).
+     */
+    @VisibleForTesting
+    static double getSample(@NonNull UUID installId) {
+
+        /* Mix the bits (MurmurHash3 finalizer) as install IDs may not be random in every bit. */
+        long hash = installId.getMostSignificantBits() ^ Long.rotateLeft(installId.getLeastSignificantBits(), 32);
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (hash >>> 11) * 0x1.0p-53;
+    }
+}
@@ -9,6 +9,8 @@ import android.os.SystemClock;
 
 import com.microsoft.appcenter.AppCenter;
 import com.microsoft.appcenter.AppCenterHandler;
+import com.microsoft.appcenter.channel.Channel;
+import com.microsoft.appcenter.ingestion.models.Log;
 import com.microsoft.appcenter.utils.AppCenterLog;
 import com.microsoft.appcenter.utils.HandlerUtils;
 import com.microsoft.appcenter.utils.PrefStorageConstants;
@@ -26,8 +28,10 @@ import org.powermock.modules.junit4.PowerMockRunner;
 import static org.junit.Assert.assertFalse;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.doAnswer;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
@@ -94,4 +98,21 @@ abstract class AbstractAnalyticsTest {
         assertFalse(Analytics.isAutoPageTrackingEnabled());
         Analytics.setAutoPageTrackingEnabled(true);
     }
+
+    /**
+     * Mock a channel that enqueues logs added from any thread right away, like the App Center thread would.
+     */
+    static Channel mockChannel() {
+        final Channel channel = mock(Channel.class);
+        when(channel.enqueueAsync(any(Log.class), anyString(), anyInt())).thenAnswer(new Answer<Boolean>() {
+
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                Object[] arguments = invocation.getArguments();
+                channel.enqueue((Log) arguments[0], (String) arguments[1], (Integer) arguments[2]);
+                return true;
+            }
+        });
+        return channel;
+    }
 }
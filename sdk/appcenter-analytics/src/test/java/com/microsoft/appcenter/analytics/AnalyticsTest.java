@@ -10,6 +10,7 @@ import static com.microsoft.appcenter.Flags.DEFAULTS;
 import static com.microsoft.appcenter.Flags.NORMAL;
 import static com.microsoft.appcenter.analytics.Analytics.ANALYTICS_CRITICAL_GROUP;
 import static com.microsoft.appcenter.analytics.Analytics.ANALYTICS_GROUP;
+import static com.microsoft.appcenter.analytics.Analytics.ENQUEUE_RING_BUFFER_CAPACITY;
 import static com.microsoft.appcenter.analytics.Analytics.MAXIMUM_TRANSMISSION_INTERVAL_IN_SECONDS;
 import static com.microsoft.appcenter.analytics.Analytics.MINIMUM_TRANSMISSION_INTERVAL_IN_SECONDS;
 import static com.microsoft.appcenter.analytics.LogNameMatcher.logName;
@@ -27,6 +28,7 @@ import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isA;
 import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.ArgumentMatchers.notNull;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -42,6 +44,7 @@ import com.microsoft.appcenter.AppCenter;
 import com.microsoft.appcenter.Flags;
 import com.microsoft.appcenter.analytics.channel.AnalyticsListener;
 import com.microsoft.appcenter.analytics.channel.AnalyticsValidator;
+import com.microsoft.appcenter.analytics.channel.EventSampler;
 import com.microsoft.appcenter.analytics.channel.SessionTracker;
 import com.microsoft.appcenter.analytics.ingestion.models.EventLog;
 import com.microsoft.appcenter.analytics.ingestion.models.PageLog;
@@ -52,6 +55,7 @@ import com.microsoft.appcenter.analytics.ingestion.models.json.StartSessionLogFa
 import com.microsoft.appcenter.analytics.ingestion.models.one.CommonSchemaEventLog;
 import com.microsoft.appcenter.analytics.ingestion.models.one.json.CommonSchemaEventLogFactory;
 import com.microsoft.appcenter.channel.Channel;
+import com.microsoft.appcenter.channel.OverflowPolicy;
 import com.microsoft.appcenter.ingestion.models.Log;
 import com.microsoft.appcenter.ingestion.models.json.LogFactory;
 import com.microsoft.appcenter.ingestion.models.properties.BooleanTypedProperty;
@@ -143,7 +147,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
         AppCenterLog.error(anyString(), anyString());
 
         /* Start. */
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
 
@@ -174,7 +178,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
         assertTrue(Analytics.isAutoPageTrackingEnabled());
         Analytics.setAutoPageTrackingEnabled(false);
         assertFalse(Analytics.isAutoPageTrackingEnabled());
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
         analytics.onActivityResumed(new MyActivity());
@@ -189,7 +193,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
     @Test
     public void trackEventFromAppWithoutProperties() {
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         ArgumentCaptor<EventLog> argumentCaptor = ArgumentCaptor.forClass(EventLog.class);
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
@@ -205,7 +209,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
     @Test
     public void trackEventFromAppWithNullMapProperty() {
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         ArgumentCaptor<EventLog> argumentCaptor = ArgumentCaptor.forClass(EventLog.class);
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
@@ -221,7 +225,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
     @Test
     public void trackEventFromAppWithEmptyMapProperty() {
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         ArgumentCaptor<EventLog> argumentCaptor = ArgumentCaptor.forClass(EventLog.class);
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
@@ -237,7 +241,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
     @Test
     public void trackEventFromAppWithMapProperties() {
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         ArgumentCaptor<EventLog> argumentCaptor = ArgumentCaptor.forClass(EventLog.class);
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
@@ -258,7 +262,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
     @Test
     public void trackEventFromAppWithEmptyEventProperties() {
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         ArgumentCaptor<EventLog> argumentCaptor = ArgumentCaptor.forClass(EventLog.class);
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
@@ -274,7 +278,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
     @Test
     public void trackEventFromAppWithEventProperties() {
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         ArgumentCaptor<EventLog> argumentCaptor = ArgumentCaptor.forClass(EventLog.class);
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
@@ -318,7 +322,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
     @Test
     public void trackEventWithNormalPersistenceFlag() {
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
         Analytics.trackEvent("eventName1", (Map<String, String>) null, NORMAL);
@@ -329,7 +333,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
     @Test
     public void trackEventWithNormalCriticalPersistenceFlag() {
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
         Analytics.trackEvent("eventName1", (Map<String, String>) null, CRITICAL);
@@ -340,7 +344,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
     @Test
     public void trackEventWithInvalidFlags() {
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
         Analytics.trackEvent("eventName1", (Map<String, String>) null, 0x03);
@@ -350,11 +354,54 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
         AppCenterLog.warn(eq(AppCenter.LOG_TAG), anyString());
     }
 
+    @Test
+    public void trackEventFromAppIsEnqueuedFromCallerThread() {
+        Analytics analytics = Analytics.getInstance();
+        Channel channel = mockChannel();
+        analytics.onStarting(mAppCenterHandler);
+        analytics.onStarted(mock(Context.class), channel, "", null, true);
+        clearInvocations(mAppCenterHandler);
+
+        /* The channel batches events added from any thread. */
+        verify(channel).setEnqueueRingBuffer(ENQUEUE_RING_BUFFER_CAPACITY, OverflowPolicy.BLOCK);
+
+        /* Events skip the background thread of the service. */
+        Analytics.trackEvent("eventName1");
+        Analytics.trackEvent("eventName2", (Map<String, String>) null, CRITICAL);
+        verify(mAppCenterHandler, never()).post(any(Runnable.class), any());
+        verify(channel).enqueueAsync(logName(EventLog.class, "eventName1"), eq(ANALYTICS_GROUP), eq(DEFAULTS));
+        verify(channel).enqueueAsync(logName(EventLog.class, "eventName2"), eq(ANALYTICS_CRITICAL_GROUP), eq(CRITICAL));
+
+        /* Disabling goes back to the background thread, which drops events. */
+        Analytics.setEnabled(false);
+        Analytics.trackEvent("eventName3");
+        verify(channel, never()).enqueueAsync(logName(EventLog.class, "eventName3"), anyString(), anyInt());
+        verify(channel, never()).enqueue(logName(EventLog.class, "eventName3"), anyString(), anyInt());
+
+        /* Enabling again restores the direct path. */
+        Analytics.setEnabled(true);
+        Analytics.trackEvent("eventName4");
+        verify(channel).enqueueAsync(logName(EventLog.class, "eventName4"), eq(ANALYTICS_GROUP), eq(DEFAULTS));
+    }
+
+    @Test
+    public void trackEventWithDefaultTargetIsEnqueuedInBackground() {
+        Analytics analytics = Analytics.getInstance();
+        Channel channel = mockChannel();
+        analytics.onStarting(mAppCenterHandler);
+        analytics.onStarted(mock(Context.class), channel, null, "target", true);
+
+        /* The default target is resolved in background. */
+        Analytics.trackEvent("eventName");
+        verify(channel, never()).enqueueAsync(any(Log.class), anyString(), anyInt());
+        verify(channel).enqueue(logName(EventLog.class, "eventName"), eq(ANALYTICS_GROUP), eq(DEFAULTS));
+    }
+
     @Test
     public void trackEventWithUserIdWhenConfiguredForTarget() {
         UserIdContext.getInstance().setUserId("c:alice");
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, null, "target", true);
         Analytics.trackEvent("eventName1");
@@ -367,7 +414,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
     public void trackEventWithoutUserIdWhenConfiguredForAppSecretOnly() {
         UserIdContext.getInstance().setUserId("alice");
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "appSecret", null, true);
         Analytics.trackEvent("eventName1");
@@ -380,7 +427,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
     public void trackEventWithoutUserIdWhenConfiguredForBothSecrets() {
         UserIdContext.getInstance().setUserId("c:alice");
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "appSecret", "target", true);
         Analytics.trackEvent("eventName1");
@@ -392,13 +439,14 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
     @Test
     public void trackEventFromLibrary() {
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, null, null, false);
 
         /* Static track call forbidden if app didn't start Analytics. */
         Analytics.trackEvent("eventName");
         verify(channel, never()).enqueue(isA(EventLog.class), anyString(), anyInt());
+        verify(channel, never()).setEnqueueRingBuffer(anyInt(), anyInt());
 
         /* It works from a target. */
         AnalyticsTransmissionTarget target = Analytics.getTransmissionTarget("t");
@@ -413,7 +461,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
     @Test
     public void trackPageFromApp() {
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
         Analytics.trackPage("pageName");
@@ -423,7 +471,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
     @Test
     public void trackPageFromLibrary() {
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, false);
 
@@ -434,7 +482,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
 
     @Test
     public void setEnabled() throws InterruptedException {
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
 
         /* Before start it does not work to change state, it's disabled. */
         Analytics analytics = Analytics.getInstance();
@@ -451,6 +499,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
         verify(channel).addGroup(eq(ANALYTICS_GROUP), anyInt(), anyLong(), anyInt(), isNull(), any(Channel.GroupListener.class));
         verify(channel).addListener(isA(SessionTracker.class));
         verify(channel).addListener(isA(AnalyticsValidator.class));
+        verify(channel).addListener(isA(EventSampler.class));
         verify(channel).addListener(isA(AnalyticsTransmissionTarget.getChannelListener().getClass()));
 
         /* Now we can see the service enabled. */
@@ -461,6 +510,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
         assertFalse(Analytics.isEnabled().get());
         verify(channel).removeListener(isA(SessionTracker.class));
         verify(channel).removeListener(isA(AnalyticsValidator.class));
+        verify(channel).removeListener(isA(EventSampler.class));
         verify(channel).removeListener(isA(AnalyticsTransmissionTarget.getChannelListener().getClass()));
         verify(channel).removeGroup(eq(ANALYTICS_CRITICAL_GROUP));
         verify(channel, times(2)).removeGroup(eq(ANALYTICS_GROUP));
@@ -516,7 +566,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
         Analytics analytics = Analytics.getInstance();
 
         /* Start. */
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
         verify(channel, never()).removeListener(any(Channel.Listener.class));
@@ -530,7 +580,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
         Analytics analytics = Analytics.getInstance();
 
         /* Start. */
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
         verify(channel).addGroup(eq(analytics.getGroupName()), anyInt(), anyLong(), anyInt(), isNull(), any(Channel.GroupListener.class));
@@ -572,7 +622,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
         Analytics analytics = Analytics.getInstance();
 
        /* Prepare channel. */
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
 
@@ -594,7 +644,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
         Analytics analytics = Analytics.getInstance();
 
         /* Prepare channel. */
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
         analytics.onActivityResumed(mock(Activity.class));
@@ -624,7 +674,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
         Analytics analytics = Analytics.getInstance();
 
         /* Start. */
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
         verify(channel).addGroup(eq(analytics.getGroupName()), anyInt(), anyLong(), anyInt(), isNull(), any(Channel.GroupListener.class));
@@ -665,7 +715,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
          * simulating the opt-in use case.
          */
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
         Analytics.setEnabled(false);
@@ -698,7 +748,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
          * simulating the opt-in use case.
          */
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
         Analytics.setEnabled(false);
@@ -718,7 +768,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
         AnalyticsListener listener = mock(AnalyticsListener.class);
         Analytics.setListener(listener);
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
         final ArgumentCaptor<Channel.GroupListener> captor = ArgumentCaptor.forClass(Channel.GroupListener.class);
@@ -744,7 +794,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
         AnalyticsListener listener = mock(AnalyticsListener.class);
         Analytics.setListener(listener);
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
         verify(channel).addGroup(eq(ANALYTICS_CRITICAL_GROUP), anyInt(), anyLong(), anyInt(), isNull(), any(Channel.GroupListener.class));
@@ -758,7 +808,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
         AnalyticsListener listener = mock(AnalyticsListener.class);
         Analytics.setListener(listener);
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, "", null, true);
         verify(channel).addGroup(eq(ANALYTICS_CRITICAL_GROUP), anyInt(), anyLong(), anyInt(), isNull(), any(Channel.GroupListener.class));
@@ -802,7 +852,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
 
         /* Start from library. */
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, null, null, false);
 
@@ -888,7 +938,7 @@ public class AnalyticsTest extends AbstractAnalyticsTest {
     @Test
     public void unableToSetTransmissionIntervalAfterStart() {
         Analytics analytics = Analytics.getInstance();
-        Channel channel = mock(Channel.class);
+        Channel channel = mockChannel();
         analytics.onStarting(mAppCenterHandler);
         analytics.onStarted(mock(Context.class), channel, null, null, false);
         boolean result = Analytics.setTransmissionInterval(MINIMUM_TRANSMISSION_INTERVAL_IN_SECONDS + 1);
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.analytics.channel;
+
+import com.microsoft.appcenter.analytics.ingestion.models.EventLog;
+import com.microsoft.appcenter.analytics.ingestion.models.PageLog;
+import com.microsoft.appcenter.analytics.ingestion.models.StartSessionLog;
+import com.microsoft.appcenter.analytics.ingestion.models.one.CommonSchemaEventLog;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventSamplerTest {
+
+    private static final UUID INSTALL_ID = UUID.fromString("5f1b5a5e-3c4b-4f7a-9d1e-2a8b6c7d9e0f");
+
+    private static final double INSTALL_SAMPLE = EventSampler.getSample(INSTALL_ID);
+
+    private static EventLog eventLog(String name) {
+        EventLog log = new EventLog();
+        log.setName(name);
+        return log;
+    }
+
+    @Test
+    public void keepsEverythingByDefault() {
+        EventSampler sampler = new EventSampler(INSTALL_ID);
+        assertFalse(sampler.shouldFilter(eventLog("chatty")));
+        sampler.setNameSampleRate("other", 0);
+        assertFalse(sampler.shouldFilter(eventLog("chatty")));
+    }
+
+    @Test
+    public void sampleByName() {
+        EventSampler sampler = new EventSampler(INSTALL_ID);
+
+        /* Install is in the kept share. */
+        double keptRate = Math.min(1, INSTALL_SAMPLE + 0.01);
+        sampler.setNameSampleRate("chatty", keptRate);
+        assertFalse(sampler.shouldFilter(eventLog("chatty")));
+        CommonSchemaEventLog commonSchemaLog = new CommonSchemaEventLog();
+        commonSchemaLog.setName("chatty");
+        assertFalse(sampler.shouldFilter(commonSchemaLog));
+        assertEquals(keptRate * 100, commonSchemaLog.getPopSample(), 0);
+
+        /* Install is out of the kept share. */
+        sampler.setNameSampleRate("chatty", INSTALL_SAMPLE);
+        assertTrue(sampler.shouldFilter(eventLog("chatty")));
+        commonSchemaLog = new CommonSchemaEventLog();
+        commonSchemaLog.setName("chatty");
+        assertTrue(sampler.shouldFilter(commonSchemaLog));
+        assertNull(commonSchemaLog.getPopSample());
+
+        /* The decision does not change between calls. */
+        for (int i = 0; i < 10; i++) {
+            assertTrue(sampler.shouldFilter(eventLog("chatty")));
+        }
+    }
+
+    @Test
+    public void sampleByType() {
+        EventSampler sampler = new EventSampler(INSTALL_ID);
+        sampler.setLogTypeSampleRate(PageLog.TYPE, 0);
+        PageLog pageLog = new PageLog();
+        pageLog.setName("page");
+        assertTrue(sampler.shouldFilter(pageLog));
+        assertFalse(sampler.shouldFilter(eventLog("page")));
+
+        /* Name rate takes precedence. */
+        sampler.setLogTypeSampleRate(EventLog.TYPE, 0);
+        sampler.setNameSampleRate("important", 1);
+        assertFalse(sampler.shouldFilter(eventLog("important")));
+        assertTrue(sampler.shouldFilter(eventLog("chatty")));
+    }
+
+    @Test
+    public void invalidRatesIgnored() {
+        EventSampler sampler = new EventSampler(INSTALL_ID);
+        sampler.setNameSampleRate("chatty", -0.1);
+        sampler.setNameSampleRate("chatty", 1.1);
+        sampler.setLogTypeSampleRate(EventLog.TYPE, Double.NaN);
+        assertFalse(sampler.shouldFilter(eventLog("chatty")));
+    }
+
+    @Test
+    public void installSamplesAreUniform() {
+        int count = 10000;
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            double sample = EventSampler.getSample(UUID.randomUUID());
+            assertTrue(sample >= 0 && sample < 1);
+            if (sample < 0.1) {
+                kept++;
+            }
+        }
+        assertEquals(0.1, (double) kept / count, 0.02);
+
+        /* Sequential IDs are spread too. */
+        kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (EventSampler.getSample(new UUID(0, i)) < 0.1) {
+                kept++;
+            }
+        }
+        assertEquals(0.1, (double) kept / count, 0.02);
+    }
+
+    @Test
+    public void logsWithoutName() {
+        EventSampler sampler = new EventSampler(INSTALL_ID);
+        sampler.setNameSampleRate("chatty", 0);
+        assertFalse(sampler.shouldFilter(new StartSessionLog()));
+    }
+}
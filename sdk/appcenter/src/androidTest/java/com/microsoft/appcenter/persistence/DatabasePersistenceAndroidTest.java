@@ -11,6 +11,7 @@ import static com.microsoft.appcenter.ingestion.models.json.MockLog.MOCK_LOG_TYP
 import static com.microsoft.appcenter.persistence.DatabasePersistence.CREATE_LOGS_SQL;
 import static com.microsoft.appcenter.persistence.DatabasePersistence.SCHEMA;
 import static com.microsoft.appcenter.test.TestUtils.generateString;
+import static com.microsoft.appcenter.utils.storage.DatabaseManager.PRIMARY_KEY;
 import static org.hamcrest.CoreMatchers.hasItems;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.assertEquals;
@@ -24,6 +25,8 @@ import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import android.annotation.SuppressLint;
 import android.content.ContentValues;
@@ -40,6 +43,7 @@ import com.microsoft.appcenter.AndroidTestUtils;
 import com.microsoft.appcenter.AppCenter;
 import com.microsoft.appcenter.Constants;
 import com.microsoft.appcenter.Flags;
+import com.microsoft.appcenter.ingestion.models.Device;
 import com.microsoft.appcenter.ingestion.models.Log;
 import com.microsoft.appcenter.ingestion.models.LogWithProperties;
 import com.microsoft.appcenter.ingestion.models.json.DefaultLogSerializer;
@@ -58,6 +62,7 @@ import com.microsoft.appcenter.utils.storage.SQLiteUtils;
 import com.microsoft.appcenter.utils.storage.SharedPreferencesManager;
 
 import org.json.JSONException;
+import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -173,6 +178,143 @@ public class DatabasePersistenceAndroidTest {
         putLog(Flags.CRITICAL | 0x0300, Flags.CRITICAL);
     }
 
+    @Test
+    public void putLogsInSingleTransaction() throws PersistenceException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        try {
+
+            /* Generate logs and persist them together. */
+            List<Log> logs = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                logs.add(AndroidTestUtils.generateMockLog());
+            }
+            Map<Log, PersistenceException> failures = persistence.putLogs(logs, "test-p1", NORMAL);
+            assertTrue(failures.isEmpty());
+            assertEquals(5, persistence.countLogs("test-p1"));
+
+            /* Get logs back in the same order. */
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test-p1", Collections.emptyList(), 5, outputLogs);
+            assertEquals(logs, outputLogs);
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void releaseLogs() throws PersistenceException, JSONException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        try {
+
+            /* Persist logs and get them as a pending batch. */
+            for (int i = 0; i < 2; i++) {
+                persistence.putLog(AndroidTestUtils.generateMockLog(), "test-p1", NORMAL);
+            }
+            List<Log> outputLogs = new ArrayList<>();
+            String batchId = persistence.getLogs("test-p1", Collections.emptyList(), 2, outputLogs);
+            assertNotNull(batchId);
+            assertNull(persistence.getLogs("test-p1", Collections.emptyList(), 2, new ArrayList<Log>()));
+            long expectedByteSize = 0;
+            for (Log log : outputLogs) {
+                expectedByteSize += logSerializer.serializeLog(log).length();
+            }
+            assertEquals(expectedByteSize, persistence.getBatchByteSize("test-p1", batchId));
+
+            /* Release the batch: logs are still stored and returned again. */
+            persistence.releaseLogs("test-p1", batchId);
+            assertEquals(-1, persistence.getBatchByteSize("test-p1", batchId));
+            assertEquals(2, persistence.countLogs("test-p1"));
+            List<Log> releasedLogs = new ArrayList<>();
+            assertNotNull(persistence.getLogs("test-p1", Collections.emptyList(), 2, releasedLogs));
+            assertEquals(outputLogs, releasedLogs);
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void deleteOldestLogs() throws PersistenceException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+        Persistence.Listener listener = mock(Persistence.Listener.class);
+        persistence.setListener(listener);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        try {
+
+            /* Persist normal logs, the oldest one being sent, then a critical log. */
+            List<Log> logs = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                Log log = AndroidTestUtils.generateMockLog();
+                logs.add(log);
+                persistence.putLog(log, "test-p1", NORMAL);
+            }
+            String batchId = persistence.getLogs("test-p1", Collections.emptyList(), 1, new ArrayList<Log>());
+            assertNotNull(batchId);
+            Log criticalLog = AndroidTestUtils.generateMockLog();
+            persistence.putLog(criticalLog, "test-p1", CRITICAL);
+
+            /* Evict: the pending log is skipped. */
+            assertEquals(2, persistence.deleteOldestLogs("test-p1", 2));
+            assertEquals(4, persistence.countLogs("test-p1"));
+            verify(listener).onLogsEvicted("test-p1", 2);
+
+            /* Check what remains. */
+            persistence.releaseLogs("test-p1", batchId);
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test-p1", Collections.emptyList(), 10, outputLogs);
+            assertEquals(Arrays.asList(criticalLog, logs.get(0), logs.get(3), logs.get(4)), outputLogs);
+
+            /* Nothing to evict in another group. */
+            assertEquals(0, persistence.deleteOldestLogs("test-p2", 2));
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void putLogsReportsFailuresAndStoresOthers() throws PersistenceException, JSONException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+
+        /* Set a log serializer that fails for one specific log. */
+        final Log invalidLog = AndroidTestUtils.generateMockLog();
+        LogSerializer logSerializer = spy(new DefaultLogSerializer());
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        doThrow(new JSONException("JSON exception")).when(logSerializer).serializeLog(invalidLog);
+        persistence.setLogSerializer(logSerializer);
+        try {
+
+            /* Persist a batch containing the invalid log. */
+            List<Log> logs = Arrays.asList(AndroidTestUtils.generateMockLog(), invalidLog, AndroidTestUtils.generateMockLog());
+            Map<Log, PersistenceException> failures = persistence.putLogs(logs, "test-p1", NORMAL);
+            assertEquals(1, failures.size());
+            assertNotNull(failures.get(invalidLog));
+            assertEquals(2, persistence.countLogs("test-p1"));
+        } finally {
+            persistence.close();
+        }
+    }
+
     @Test
     public void putLargeLogAndDeleteAll() throws PersistenceException {
 
@@ -1054,6 +1196,43 @@ public class DatabasePersistenceAndroidTest {
         }
     }
 
+    @Test
+    public void getLogsReadsAnotherPageWhenLogsCannotBeDeserialized() throws PersistenceException, JSONException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+
+        /* Fail to deserialize the first 2 logs. */
+        LogSerializer logSerializer = spy(new DefaultLogSerializer());
+        doThrow(new JSONException("JSON exception"))
+                .doThrow(new JSONException("JSON exception"))
+                .doReturn(AndroidTestUtils.generateMockLog())
+                .when(logSerializer).deserializeLog(anyString(), anyString());
+        persistence.setLogSerializer(logSerializer);
+        try {
+
+            /* Put. */
+            for (int i = 0; i < 6; i++) {
+                persistence.putLog(AndroidTestUtils.generateMockLog(), "test", NORMAL);
+            }
+
+            /* Get a full batch even though the first page had unusable logs. */
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test", Collections.emptyList(), 3, outputLogs);
+            assertEquals(3, outputLogs.size());
+            verify(logSerializer, times(5)).deserializeLog(anyString(), anyString());
+            assertEquals(4, persistence.mDatabaseManager.getRowCount());
+
+            /* Only the log that is not pending is read next. */
+            outputLogs.clear();
+            persistence.getLogs("test", Collections.emptyList(), 3, outputLogs);
+            assertEquals(1, outputLogs.size());
+            verify(logSerializer, times(6)).deserializeLog(anyString(), anyString());
+        } finally {
+            persistence.close();
+        }
+    }
+
     @Test
     public void getLogsWithNullDate() throws PersistenceException {
 
@@ -1180,4 +1359,199 @@ public class DatabasePersistenceAndroidTest {
             persistence.close();
         }
     }
+
+    @Test
+    public void putAndGetCompressedLogs() throws PersistenceException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        List<Log> logs = new ArrayList<>();
+        try {
+
+            /* Store a log as text then logs compressed. */
+            logs.add(AndroidTestUtils.generateMockLog());
+            persistence.putLog(logs.get(0), "test-p1", NORMAL);
+            persistence.setPayloadCompressionEnabled(true);
+            for (int i = 0; i < 2; i++) {
+                Log log = AndroidTestUtils.generateMockLog();
+                logs.add(log);
+                persistence.putLog(log, "test-p1", NORMAL);
+            }
+
+            /* Check how payloads are stored. */
+            SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
+            Cursor cursor = persistence.mDatabaseManager.getCursor(builder, new String[]{DatabasePersistence.COLUMN_PAYLOAD_ENCODING, "typeof(" + DatabasePersistence.COLUMN_LOG + ")"}, null, PRIMARY_KEY);
+            try {
+                assertTrue(cursor.moveToNext());
+                assertEquals(DatabasePersistence.PAYLOAD_ENCODING_JSON, cursor.getInt(0));
+                assertEquals("text", cursor.getString(1));
+                while (cursor.moveToNext()) {
+                    assertEquals(DatabasePersistence.PAYLOAD_ENCODING_DEFLATE, cursor.getInt(0));
+                    assertEquals("blob", cursor.getString(1));
+                }
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            persistence.close();
+        }
+
+        /* All logs can be read after restart, even with compression disabled. */
+        persistence = new DatabasePersistence(sContext);
+        persistence.setLogSerializer(logSerializer);
+        try {
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test-p1", Collections.emptyList(), 3, outputLogs);
+            assertEquals(logs, outputLogs);
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void upgradeFromVersion6to7() throws PersistenceException, JSONException {
+
+        /* Initialize database with the schema before payload encoding. */
+        String createLogsSql = "CREATE TABLE IF NOT EXISTS `logs`" +
+                "(`oid` INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "`target_token` TEXT," +
+                "`type` TEXT," +
+                "`priority` INTEGER," +
+                "`log` TEXT," +
+                "`persistence_group` TEXT," +
+                "`target_key` TEXT);";
+        DatabaseManager databaseManager = new DatabaseManager(sContext, DatabasePersistence.DATABASE, DatabasePersistence.TABLE, DatabasePersistence.VERSION_PAYLOAD_ENCODING_COLUMN - 1, new ContentValues(), createLogsSql, mock(DatabaseManager.Listener.class));
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+
+        /* Insert data before upgrade. */
+        Log oldLog = AndroidTestUtils.generateMockLog();
+        try {
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(DatabasePersistence.COLUMN_GROUP, "test");
+            contentValues.put(DatabasePersistence.COLUMN_LOG, logSerializer.serializeLog(oldLog));
+            contentValues.put(DatabasePersistence.COLUMN_PRIORITY, NORMAL);
+            contentValues.put("type", oldLog.getType());
+            databaseManager.put(contentValues);
+        } finally {
+            databaseManager.close();
+        }
+
+        /* Upgrade keeps the log and it can be read along new compressed logs. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+        persistence.setLogSerializer(logSerializer);
+        persistence.setPayloadCompressionEnabled(true);
+        try {
+            Log newLog = AndroidTestUtils.generateMockLog();
+            persistence.putLog(newLog, "test", NORMAL);
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test", Collections.emptyList(), 2, outputLogs);
+            assertEquals(Arrays.asList(oldLog, newLog), outputLogs);
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void deleteExpiredLogs() throws PersistenceException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        try {
+
+            /* Store a log created a day ago and a recent one, in 2 groups. */
+            long now = System.currentTimeMillis();
+            for (String group : Arrays.asList("test-p1", "test-p2")) {
+                Log oldLog = AndroidTestUtils.generateMockLog();
+                oldLog.setTimestamp(new Date(now - 24 * 60 * 60 * 1000));
+                persistence.putLog(oldLog, group, NORMAL);
+                Log newLog = AndroidTestUtils.generateMockLog();
+                newLog.setTimestamp(new Date(now));
+                persistence.putLog(newLog, group, NORMAL);
+            }
+
+            /* Only the old log of the group with a time to live expires. */
+            persistence.setTimeToLive("test-p1", 60 * 60 * 1000);
+            assertEquals(1, persistence.deleteExpiredLogs());
+            assertEquals(1, persistence.countLogs("test-p1"));
+            assertEquals(2, persistence.countLogs("test-p2"));
+            assertEquals(0, persistence.deleteExpiredLogs());
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void putAndGetLogsWithSharedDevice() throws PersistenceException, JSONException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        List<Log> logs = new ArrayList<>();
+        try {
+
+            /* Store logs of 2 devices, the first one being shared. */
+            Device device = AndroidTestUtils.generateMockLog().getDevice();
+            for (int i = 0; i < 3; i++) {
+                Log log = AndroidTestUtils.generateMockLog();
+                log.setDevice(device);
+                logs.add(log);
+                persistence.putLog(log, "test-p1", NORMAL);
+            }
+            Log otherLog = AndroidTestUtils.generateMockLog();
+            logs.add(otherLog);
+            persistence.putLog(otherLog, "test-p1", NORMAL);
+
+            /* The stored log is not changed. */
+            assertEquals(device, logs.get(0).getDevice());
+
+            /* Each device is stored once and payloads do not include it. */
+            assertEquals(2, countRows(persistence, DatabasePersistence.DEVICES_TABLE));
+            Cursor cursor = persistence.mDatabaseManager.getCursor(SQLiteUtils.newSQLiteQueryBuilder(), new String[]{DatabasePersistence.COLUMN_LOG, DatabasePersistence.COLUMN_DEVICE_ID}, null, PRIMARY_KEY);
+            try {
+                while (cursor.moveToNext()) {
+                    assertFalse(new JSONObject(cursor.getString(0)).has(DatabasePersistence.COLUMN_DEVICE));
+                    assertFalse(cursor.isNull(1));
+                }
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            persistence.close();
+        }
+
+        /* Logs are read back with their device after restart. */
+        persistence = new DatabasePersistence(sContext);
+        persistence.setLogSerializer(logSerializer);
+        try {
+            List<Log> outputLogs = new ArrayList<>();
+            String batchId = persistence.getLogs("test-p1", Collections.emptyList(), 4, outputLogs);
+            assertEquals(logs, outputLogs);
+
+            /* Devices no longer used are deleted when a new device is stored. */
+            persistence.deleteLogs("test-p1", batchId);
+            persistence.putLog(AndroidTestUtils.generateMockLog(), "test-p1", NORMAL);
+            assertEquals(1, countRows(persistence, DatabasePersistence.DEVICES_TABLE));
+        } finally {
+            persistence.close();
+        }
+    }
+
+    private static int countRows(DatabasePersistence persistence, String table) {
+        Cursor cursor = persistence.mDatabaseManager.getCursor(table, SQLiteUtils.newSQLiteQueryBuilder(), new String[]{"COUNT(*)"}, null, null);
+        try {
+            assertTrue(cursor.moveToNext());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
 }
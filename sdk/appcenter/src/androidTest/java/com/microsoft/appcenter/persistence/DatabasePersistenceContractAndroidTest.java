@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import androidx.annotation.NonNull;
+import androidx.test.filters.MediumTest;
+import androidx.test.internal.runner.junit4.AndroidJUnit4ClassRunner;
+
+import org.junit.runner.RunWith;
+
+@MediumTest
+@RunWith(AndroidJUnit4ClassRunner.class)
+public class DatabasePersistenceContractAndroidTest extends PersistenceContractAndroidTest {
+
+    @Override
+    void clearStorage() {
+        sContext.deleteDatabase(DatabasePersistence.DATABASE);
+    }
+
+    @NonNull
+    @Override
+    Persistence createPersistence() {
+        return new DatabasePersistence(sContext);
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import static com.microsoft.appcenter.Flags.CRITICAL;
+import static com.microsoft.appcenter.Flags.NORMAL;
+import static com.microsoft.appcenter.ingestion.models.json.MockLog.MOCK_LOG_TYPE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.microsoft.appcenter.AndroidTestUtils;
+import com.microsoft.appcenter.AppCenter;
+import com.microsoft.appcenter.Constants;
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.ingestion.models.json.DefaultLogSerializer;
+import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
+import com.microsoft.appcenter.ingestion.models.json.MockLogFactory;
+import com.microsoft.appcenter.ingestion.models.one.CommonSchemaLog;
+import com.microsoft.appcenter.ingestion.models.one.MockCommonSchemaLog;
+import com.microsoft.appcenter.ingestion.models.one.MockCommonSchemaLogFactory;
+import com.microsoft.appcenter.ingestion.models.one.PartAUtils;
+import com.microsoft.appcenter.persistence.Persistence.PersistenceException;
+import com.microsoft.appcenter.utils.storage.FileManager;
+import com.microsoft.appcenter.utils.storage.SharedPreferencesManager;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Behavior expected from every {@link Persistence} implementation, run once per implementation by subclasses.
+ */
+@SuppressWarnings("TryFinallyCanBeTryWithResources")
+public abstract class PersistenceContractAndroidTest {
+
+    /**
+     * Context instance.
+     */
+    @SuppressLint("StaticFieldLeak")
+    static Context sContext;
+
+    @BeforeClass
+    public static void setUpClass() {
+        AppCenter.setLogLevel(android.util.Log.VERBOSE);
+        sContext = InstrumentationRegistry.getInstrumentation().getContext();
+        FileManager.initialize(sContext);
+        SharedPreferencesManager.initialize(sContext);
+        Constants.loadFromContext(sContext);
+    }
+
+    @Before
+    public void setUp() {
+        clearStorage();
+    }
+
+    /**
+     * Delete any log stored by previous tests.
+     */
+    abstract void clearStorage();
+
+    /**
+     * Create the persistence under test, on the storage cleared by {@link #clearStorage()}.
+     *
+     * @return new persistence.
+     */
+    @NonNull
+    abstract Persistence createPersistence();
+
+    @NonNull
+    private Persistence createPersistenceWithSerializer() {
+        Persistence persistence = createPersistence();
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        logSerializer.addLogFactory(MockCommonSchemaLog.TYPE, new MockCommonSchemaLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        return persistence;
+    }
+
+    @NonNull
+    private static CommonSchemaLog generateCsLog(String iKey) {
+        CommonSchemaLog log = new MockCommonSchemaLog();
+        log.setVer("3.0");
+        log.setName("test");
+        log.setTimestamp(new Date());
+        log.setIKey(iKey);
+        log.addTransmissionTarget(iKey + "-token");
+        return log;
+    }
+
+    @Test
+    public void putCountAndGetLogs() throws PersistenceException {
+        Persistence persistence = createPersistenceWithSerializer();
+        try {
+            assertEquals(0, persistence.countLogs("test"));
+            Log log = AndroidTestUtils.generateMockLog();
+            persistence.putLog(log, "test", NORMAL);
+            assertEquals(1, persistence.countLogs("test"));
+            assertEquals(0, persistence.countLogs("other"));
+            List<Log> outputLogs = new ArrayList<>();
+            assertNotNull(persistence.getLogs("test", Collections.<String>emptyList(), 10, outputLogs));
+            assertEquals(Collections.singletonList(log), outputLogs);
+            assertNull(persistence.getLogs("other", Collections.<String>emptyList(), 10, new ArrayList<Log>()));
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void getLogsByPriorityThenOldestFirst() throws PersistenceException {
+        Persistence persistence = createPersistenceWithSerializer();
+        try {
+            Log normal1 = AndroidTestUtils.generateMockLog();
+            Log critical1 = AndroidTestUtils.generateMockLog();
+            Log normal2 = AndroidTestUtils.generateMockLog();
+            Log critical2 = AndroidTestUtils.generateMockLog();
+            persistence.putLog(normal1, "test", NORMAL);
+            persistence.putLog(critical1, "test", CRITICAL);
+            persistence.putLog(normal2, "test", NORMAL);
+            persistence.putLog(critical2, "test", CRITICAL);
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test", Collections.<String>emptyList(), 3, outputLogs);
+            List<Log> expected = new ArrayList<>();
+            expected.add(critical1);
+            expected.add(critical2);
+            expected.add(normal1);
+            assertEquals(expected, outputLogs);
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void pendingLogsAreExcludedUntilReleased() throws PersistenceException {
+        Persistence persistence = createPersistenceWithSerializer();
+        try {
+            for (int i = 0; i < 3; i++) {
+                persistence.putLog(AndroidTestUtils.generateMockLog(), "test", NORMAL);
+            }
+            List<Log> outputLogs = new ArrayList<>();
+            String batchId = persistence.getLogs("test", Collections.<String>emptyList(), 2, outputLogs);
+            assertNotNull(batchId);
+            assertEquals(2, outputLogs.size());
+            assertTrue(persistence.getBatchByteSize("test", batchId) > 0);
+
+            /* Only the remaining log is returned while the batch is pending. */
+            outputLogs.clear();
+            String otherBatchId = persistence.getLogs("test", Collections.<String>emptyList(), 10, outputLogs);
+            assertEquals(1, outputLogs.size());
+            assertNull(persistence.getLogs("test", Collections.<String>emptyList(), 10, new ArrayList<Log>()));
+
+            /* Released logs are returned again. */
+            persistence.releaseLogs("test", batchId);
+            assertEquals(-1, persistence.getBatchByteSize("test", batchId));
+            outputLogs.clear();
+            persistence.getLogs("test", Collections.<String>emptyList(), 10, outputLogs);
+            assertEquals(2, outputLogs.size());
+
+            /* Clearing pending state makes all logs available. */
+            persistence.clearPendingLogState();
+            assertEquals(-1, persistence.getBatchByteSize("test", otherBatchId));
+            outputLogs.clear();
+            persistence.getLogs("test", Collections.<String>emptyList(), 10, outputLogs);
+            assertEquals(3, outputLogs.size());
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void deleteLogsByBatchAndGroup() throws PersistenceException {
+        Persistence persistence = createPersistenceWithSerializer();
+        try {
+            for (int i = 0; i < 3; i++) {
+                persistence.putLog(AndroidTestUtils.generateMockLog(), "test", NORMAL);
+                persistence.putLog(AndroidTestUtils.generateMockLog(), "other", NORMAL);
+            }
+            List<Log> outputLogs = new ArrayList<>();
+            String batchId = persistence.getLogs("test", Collections.<String>emptyList(), 2, outputLogs);
+            assertNotNull(batchId);
+            persistence.deleteLogs("test", batchId);
+            assertEquals(1, persistence.countLogs("test"));
+            assertEquals(3, persistence.countLogs("other"));
+            persistence.deleteLogs("other");
+            assertEquals(0, persistence.countLogs("other"));
+            assertEquals(1, persistence.countLogs("test"));
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void logsStoredAfterDeletingPendingLogsAreSent() throws PersistenceException {
+        Persistence persistence = createPersistenceWithSerializer();
+        try {
+
+            /* Disabling reads pending logs then deletes the group. */
+            for (int i = 0; i < 3; i++) {
+                persistence.putLog(AndroidTestUtils.generateMockLog(), "test", NORMAL);
+            }
+            assertNotNull(persistence.getLogs("test", Collections.<String>emptyList(), 3, new ArrayList<Log>()));
+            persistence.deleteLogs("test");
+            assertEquals(0, persistence.countLogs("test"));
+
+            /* Logs stored once enabled again can be sent. */
+            List<Log> logs = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                Log log = AndroidTestUtils.generateMockLog();
+                persistence.putLog(log, "test", NORMAL);
+                logs.add(log);
+            }
+            assertEquals(3, persistence.countLogs("test"));
+            List<Log> outputLogs = new ArrayList<>();
+            String batchId = persistence.getLogs("test", Collections.<String>emptyList(), 3, outputLogs);
+            assertNotNull(batchId);
+            assertEquals(logs, outputLogs);
+            persistence.deleteLogs("test", batchId);
+            assertEquals(0, persistence.countLogs("test"));
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void deleteOldestLogsLowestPriorityFirst() throws PersistenceException {
+        Persistence persistence = createPersistenceWithSerializer();
+        try {
+            Log critical = AndroidTestUtils.generateMockLog();
+            Log normal1 = AndroidTestUtils.generateMockLog();
+            Log normal2 = AndroidTestUtils.generateMockLog();
+            persistence.putLog(critical, "test", CRITICAL);
+            persistence.putLog(normal1, "test", NORMAL);
+            persistence.putLog(normal2, "test", NORMAL);
+            assertEquals(2, persistence.deleteOldestLogs("test", 2));
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test", Collections.<String>emptyList(), 10, outputLogs);
+            assertEquals(Collections.singletonList(critical), outputLogs);
+            assertEquals(0, persistence.deleteOldestLogs("other", 1));
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void pausedTargetKeysAreFilteredAndCounted() throws PersistenceException {
+        Persistence persistence = createPersistenceWithSerializer();
+        try {
+            persistence.putLog(generateCsLog("iKey1"), "test", NORMAL);
+            persistence.putLog(generateCsLog("iKey1"), "test", NORMAL);
+            persistence.putLog(generateCsLog("iKey2"), "test", NORMAL);
+            String targetKey1 = PartAUtils.getTargetKey("iKey1-token");
+            assertEquals(3, persistence.countLogs("test"));
+            assertEquals(1, persistence.countLogs("test", Collections.singletonList(targetKey1)));
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test", Collections.singletonList(targetKey1), 10, outputLogs);
+            assertEquals(1, outputLogs.size());
+            assertEquals(Collections.singleton("iKey2-token"), outputLogs.get(0).getTransmissionTargetTokens());
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void logsSurviveReopening() throws PersistenceException {
+        Persistence persistence = createPersistenceWithSerializer();
+        Log log1 = AndroidTestUtils.generateMockLog();
+        Log log2 = AndroidTestUtils.generateMockLog();
+        try {
+            persistence.putLog(log1, "test", NORMAL);
+            persistence.putLog(AndroidTestUtils.generateMockLog(), "test", NORMAL);
+            persistence.putLog(log2, "test", NORMAL);
+            List<Log> outputLogs = new ArrayList<>();
+            String batchId = persistence.getLogs("test", Collections.<String>emptyList(), 1, outputLogs);
+            assertNotNull(batchId);
+            persistence.deleteLogs("test", batchId);
+
+            /* Make the middle log pending, it must not be deleted. */
+            persistence.getLogs("test", Collections.<String>emptyList(), 1, new ArrayList<Log>());
+        } finally {
+            persistence.close();
+        }
+        persistence = createPersistenceWithSerializer();
+        try {
+            assertEquals(2, persistence.countLogs("test"));
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test", Collections.<String>emptyList(), 10, outputLogs);
+            assertEquals(2, outputLogs.size());
+            assertEquals(log2, outputLogs.get(1));
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void oneCollectorGroupIsIndependentOfItsParentGroup() throws PersistenceException {
+        Persistence persistence = createPersistenceWithSerializer();
+        try {
+            persistence.putLog(AndroidTestUtils.generateMockLog(), "test", NORMAL);
+            persistence.putLog(AndroidTestUtils.generateMockLog(), "test/one", NORMAL);
+            persistence.putLog(AndroidTestUtils.generateMockLog(), "test/one", NORMAL);
+        } finally {
+            persistence.close();
+        }
+        persistence = createPersistenceWithSerializer();
+        try {
+
+            /* Logs of both groups are found after reopening. */
+            assertEquals(1, persistence.countLogs("test"));
+            assertEquals(2, persistence.countLogs("test/one"));
+            persistence.putLog(AndroidTestUtils.generateMockLog(), "test/one", NORMAL);
+            List<Log> outputLogs = new ArrayList<>();
+            assertNotNull(persistence.getLogs("test/one", Collections.<String>emptyList(), 10, outputLogs));
+            assertEquals(3, outputLogs.size());
+
+            /* Deleting the parent group keeps the logs of the One Collector group. */
+            persistence.deleteLogs("test");
+            assertEquals(0, persistence.countLogs("test"));
+            assertEquals(3, persistence.countLogs("test/one"));
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void compressedPayloadsAreReadBack() throws PersistenceException {
+        Persistence persistence = createPersistenceWithSerializer();
+        try {
+            persistence.setPayloadCompressionEnabled(true);
+            Log log = AndroidTestUtils.generateMockLog();
+            persistence.putLog(log, "test", NORMAL);
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test", Collections.<String>emptyList(), 10, outputLogs);
+            assertEquals(Collections.singletonList(log), outputLogs);
+        } finally {
+            persistence.close();
+        }
+    }
+}
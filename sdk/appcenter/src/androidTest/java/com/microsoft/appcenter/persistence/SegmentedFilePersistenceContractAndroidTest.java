@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import androidx.annotation.NonNull;
+import androidx.test.filters.MediumTest;
+import androidx.test.internal.runner.junit4.AndroidJUnit4ClassRunner;
+
+import com.microsoft.appcenter.utils.storage.FileManager;
+
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+@MediumTest
+@RunWith(AndroidJUnit4ClassRunner.class)
+public class SegmentedFilePersistenceContractAndroidTest extends PersistenceContractAndroidTest {
+
+    /**
+     * Directory of segments used by tests.
+     */
+    private File mDirectory;
+
+    @Override
+    void clearStorage() {
+        mDirectory = new File(sContext.getCacheDir(), "test-log-segments");
+        FileManager.deleteDirectory(mDirectory);
+    }
+
+    @NonNull
+    @Override
+    Persistence createPersistence() {
+        return new SegmentedFilePersistence(sContext, mDirectory);
+    }
+}
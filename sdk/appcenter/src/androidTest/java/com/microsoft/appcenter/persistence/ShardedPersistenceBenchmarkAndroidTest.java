@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import static com.microsoft.appcenter.Flags.NORMAL;
+import static com.microsoft.appcenter.ingestion.models.json.MockLog.MOCK_LOG_TYPE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.internal.runner.junit4.AndroidJUnit4ClassRunner;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.microsoft.appcenter.AndroidTestUtils;
+import com.microsoft.appcenter.Constants;
+import com.microsoft.appcenter.ingestion.models.json.DefaultLogSerializer;
+import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
+import com.microsoft.appcenter.ingestion.models.json.MockLogFactory;
+import com.microsoft.appcenter.persistence.Persistence.PersistenceException;
+import com.microsoft.appcenter.utils.storage.FileManager;
+import com.microsoft.appcenter.utils.storage.SharedPreferencesManager;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compare a single database with a database per group when one group has a large backlog.
+ * Results are printed to logcat with the BENCHMARK tag, they depend on the device storage.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4ClassRunner.class)
+public class ShardedPersistenceBenchmarkAndroidTest {
+
+    /**
+     * Logcat tag of results.
+     */
+    private static final String TAG = "BENCHMARK";
+
+    /**
+     * Group with a large backlog, like analytics after a long time offline.
+     */
+    private static final String BACKLOG_GROUP = "group_analytics";
+
+    /**
+     * Groups sending their logs as they come.
+     */
+    private static final String[] OTHER_GROUPS = {"group_analytics_critical", "groupErrors", "group_analytics/one"};
+
+    /**
+     * Number of logs stored in the backlog group.
+     */
+    private static final int BACKLOG_LOG_COUNT = 10000;
+
+    /**
+     * Number of store, read and delete cycles per other group.
+     */
+    private static final int CYCLE_COUNT = 200;
+
+    /**
+     * Number of logs per batch, same as the channel default.
+     */
+    private static final int BATCH_SIZE = 50;
+
+    /**
+     * Context instance.
+     */
+    @SuppressLint("StaticFieldLeak")
+    private static Context sContext;
+
+    @BeforeClass
+    public static void setUpClass() {
+        sContext = InstrumentationRegistry.getInstrumentation().getContext();
+        FileManager.initialize(sContext);
+        SharedPreferencesManager.initialize(sContext);
+        Constants.loadFromContext(sContext);
+    }
+
+    @After
+    public void tearDown() {
+        deleteDatabases();
+    }
+
+    @Test
+    public void backlogOfOneGroup() throws PersistenceException {
+        long[] single = run(false);
+        long[] sharded = run(true);
+        Log.i(TAG, String.format("Store, read and delete cycles of other groups with a backlog of %d logs: single database %d ms, database per group %d ms",
+                BACKLOG_LOG_COUNT, single[0], sharded[0]));
+        Log.i(TAG, String.format("Delete the backlog group: single database %d ms, database per group %d ms", single[1], sharded[1]));
+    }
+
+    /**
+     * Store a backlog in a group, then store, read and delete logs of the other groups, then delete the backlog.
+     *
+     * @param sharded true to use a database per group.
+     * @return time in ms of the cycles of the other groups, then time in ms to delete the backlog.
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private static long[] run(boolean sharded) throws PersistenceException {
+        deleteDatabases();
+        Persistence persistence = sharded ? new ShardedPersistence(sContext) : new DatabasePersistence(sContext);
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        try {
+            List<com.microsoft.appcenter.ingestion.models.Log> backlog = new ArrayList<>();
+            for (int i = 0; i < BACKLOG_LOG_COUNT; i++) {
+                backlog.add(AndroidTestUtils.generateMockLog());
+                if (backlog.size() == BATCH_SIZE) {
+                    persistence.putLogs(backlog, BACKLOG_GROUP, NORMAL);
+                    backlog.clear();
+                }
+            }
+            long startTime = System.nanoTime();
+            for (int i = 0; i < CYCLE_COUNT; i++) {
+                for (String group : OTHER_GROUPS) {
+                    persistence.putLog(AndroidTestUtils.generateMockLog(), group, NORMAL);
+                    assertEquals(1, persistence.countLogs(group));
+                    List<com.microsoft.appcenter.ingestion.models.Log> logs = new ArrayList<>();
+                    String batchId = persistence.getLogs(group, Collections.<String>emptyList(), BATCH_SIZE, logs);
+                    assertNotNull(batchId);
+                    persistence.deleteLogs(group, batchId);
+                }
+            }
+            long cyclesTime = (System.nanoTime() - startTime) / 1000000;
+            startTime = System.nanoTime();
+            persistence.deleteLogs(BACKLOG_GROUP);
+            long deleteTime = (System.nanoTime() - startTime) / 1000000;
+            assertEquals(0, persistence.countLogs(BACKLOG_GROUP));
+            return new long[]{cyclesTime, deleteTime};
+        } finally {
+            persistence.close();
+        }
+    }
+
+    /**
+     * Delete the single database and the databases of every group.
+     */
+    private static void deleteDatabases() {
+        sContext.deleteDatabase(DatabasePersistence.DATABASE);
+        sContext.deleteDatabase(DatabasePersistence.DATABASE + "." + DatabasePersistence.getShardName(BACKLOG_GROUP));
+        for (String group : OTHER_GROUPS) {
+            sContext.deleteDatabase(DatabasePersistence.DATABASE + "." + DatabasePersistence.getShardName(group));
+        }
+    }
+}
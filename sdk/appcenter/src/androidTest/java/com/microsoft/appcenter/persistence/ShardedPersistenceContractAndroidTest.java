@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import androidx.annotation.NonNull;
+import androidx.test.filters.MediumTest;
+import androidx.test.internal.runner.junit4.AndroidJUnit4ClassRunner;
+
+import org.junit.runner.RunWith;
+
+@MediumTest
+@RunWith(AndroidJUnit4ClassRunner.class)
+public class ShardedPersistenceContractAndroidTest extends PersistenceContractAndroidTest {
+
+    @Override
+    void clearStorage() {
+        for (String group : new String[]{"test", "other", "test/one"}) {
+            sContext.deleteDatabase(DatabasePersistence.DATABASE + "." + DatabasePersistence.getShardName(group));
+        }
+    }
+
+    @NonNull
+    @Override
+    Persistence createPersistence() {
+        return new ShardedPersistence(sContext);
+    }
+}
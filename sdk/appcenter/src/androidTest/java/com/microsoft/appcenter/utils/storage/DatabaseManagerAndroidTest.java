@@ -8,6 +8,7 @@ package com.microsoft.appcenter.utils.storage;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -19,6 +20,7 @@ import android.annotation.SuppressLint;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 
@@ -31,6 +33,9 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 @SuppressWarnings("unused")
@@ -248,6 +253,170 @@ public class DatabaseManagerAndroidTest {
         verify(listener).onCreate(any(SQLiteDatabase.class));
     }
 
+    @Test
+    public void deleteIdentifiers() {
+
+        /* Get instance to access database. */
+        DatabaseManager databaseManager = new DatabaseManager(sContext, DATABASE_NAME, "databaseManager", 1, mSchema, CREATE_TEST_SQL, mock(DatabaseManager.Listener.class));
+
+        //noinspection TryFinallyCanBeTryWithResources (try with resources statement is API >= 19)
+        try {
+
+            /* Put 6 rows. */
+            long[] ids = new long[6];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = databaseManager.put(generateContentValues());
+            }
+
+            /* Delete a range and a single row in one call. */
+            assertEquals(4, databaseManager.delete(Arrays.asList(ids[0], ids[1], ids[2], ids[4])));
+            assertEquals(2, databaseManager.getRowCount());
+            assertNull(get(databaseManager, ids[2]));
+            assertNotNull(get(databaseManager, ids[3]));
+            assertNull(get(databaseManager, ids[4]));
+            assertNotNull(get(databaseManager, ids[5]));
+        } finally {
+
+            /* Close. */
+            databaseManager.close();
+        }
+    }
+
+    @Test
+    public void usedSize() {
+
+        /* Get instance to access database. */
+        DatabaseManager databaseManager = new DatabaseManager(sContext, DATABASE_NAME, "databaseManager", 1, mSchema, CREATE_TEST_SQL, mock(DatabaseManager.Listener.class));
+
+        //noinspection TryFinallyCanBeTryWithResources (try with resources statement is API >= 19)
+        try {
+
+            /* Used size is counted in pages. */
+            long emptySize = databaseManager.getUsedSize();
+            assertTrue(emptySize > 0);
+            assertEquals(0, emptySize % 4096);
+
+            /* Put enough rows to use more pages. */
+            List<Long> ids = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                ids.add(databaseManager.put(generateContentValues()));
+            }
+            long filledSize = databaseManager.getUsedSize();
+            assertTrue(filledSize > emptySize);
+
+            /* Pages freed by deletions are not counted even though the file does not shrink. */
+            databaseManager.delete(ids);
+            assertTrue(databaseManager.getUsedSize() < filledSize);
+            assertTrue(databaseManager.getCurrentSize() >= filledSize);
+        } finally {
+
+            /* Close. */
+            databaseManager.close();
+        }
+    }
+
+    @Test
+    public void deleteDatabase() {
+
+        /* Get instance to access database. */
+        DatabaseManager databaseManager = new DatabaseManager(sContext, DATABASE_NAME, "databaseManager", 1, mSchema, CREATE_TEST_SQL, mock(DatabaseManager.Listener.class));
+
+        //noinspection TryFinallyCanBeTryWithResources (try with resources statement is API >= 19)
+        try {
+
+            /* Put a row then delete the file. */
+            databaseManager.put(generateContentValues());
+            assertEquals(1, databaseManager.getRowCount());
+            assertTrue(databaseManager.deleteDatabase());
+            assertFalse(sContext.getDatabasePath(DATABASE_NAME).exists());
+
+            /* Database is created again on next use. */
+            assertEquals(0, databaseManager.getRowCount());
+            assertTrue(databaseManager.put(generateContentValues()) >= 0);
+            assertEquals(1, databaseManager.getRowCount());
+        } finally {
+
+            /* Close. */
+            databaseManager.close();
+        }
+    }
+
+    @Test
+    public void insertWithCompiledStatement() {
+
+        /* Get instance to access database. */
+        DatabaseManager databaseManager = new DatabaseManager(sContext, DATABASE_NAME, "databaseManager", 1, mSchema, CREATE_TEST_SQL, mock(DatabaseManager.Listener.class));
+
+        //noinspection TryFinallyCanBeTryWithResources (try with resources statement is API >= 19)
+        try {
+
+            /* Insert all types with the same statement twice. */
+            String[] columns = {"COL_STRING", "COL_STRING_NULL", "COL_LONG", "COL_INTEGER", "COL_DOUBLE", "COL_BOOLEAN", "COL_BYTE_ARRAY"};
+            for (int i = 0; i < 2; i++) {
+                ContentValues values = generateContentValues();
+                long id = databaseManager.insert(columns, new Object[]{
+                        values.getAsString("COL_STRING"),
+                        null,
+                        values.getAsLong("COL_LONG"),
+                        values.getAsInteger("COL_INTEGER"),
+                        values.getAsDouble("COL_DOUBLE"),
+                        values.getAsBoolean("COL_BOOLEAN") ? 1 : 0,
+                        values.getAsByteArray("COL_BYTE_ARRAY")
+                });
+                assertTrue(id >= 0);
+                ContentValues valuesFromDatabase = get(databaseManager, id);
+                assertNotNull(valuesFromDatabase);
+                assertEquals(values.getAsString("COL_STRING"), valuesFromDatabase.getAsString("COL_STRING"));
+                assertNull(valuesFromDatabase.getAsString("COL_STRING_NULL"));
+                assertEquals(values.getAsLong("COL_LONG"), valuesFromDatabase.getAsLong("COL_LONG"));
+                assertEquals(values.getAsInteger("COL_INTEGER"), valuesFromDatabase.getAsInteger("COL_INTEGER"));
+                assertEquals(values.getAsDouble("COL_DOUBLE"), valuesFromDatabase.getAsDouble("COL_DOUBLE"));
+                assertEquals(values.getAsBoolean("COL_BOOLEAN"), valuesFromDatabase.getAsBoolean("COL_BOOLEAN"));
+                assertArrayEquals(values.getAsByteArray("COL_BYTE_ARRAY"), valuesFromDatabase.getAsByteArray("COL_BYTE_ARRAY"));
+            }
+
+            /* Statements are compiled again after the database is reopened. */
+            databaseManager.close();
+            assertTrue(databaseManager.insert(columns, new Object[]{"a", null, 1L, 1, 1.0, 1, new byte[0]}) >= 0);
+            assertEquals(3, databaseManager.getRowCount());
+        } finally {
+
+            /* Close. */
+            databaseManager.close();
+        }
+    }
+
+    @Test
+    public void writeAheadLoggingAndSynchronous() {
+
+        /* Get instance to access database. */
+        DatabaseManager databaseManager = new DatabaseManager(sContext, DATABASE_NAME, "databaseManager", 1, mSchema, CREATE_TEST_SQL, mock(DatabaseManager.Listener.class));
+
+        //noinspection TryFinallyCanBeTryWithResources (try with resources statement is API >= 19)
+        try {
+            databaseManager.setWriteAheadLoggingEnabled(true);
+            SQLiteDatabase database = databaseManager.getDatabase();
+            assertEquals("wal", DatabaseUtils.stringForQuery(database, "PRAGMA journal_mode", null).toLowerCase());
+            long defaultSynchronous = DatabaseUtils.longForQuery(database, "PRAGMA synchronous", null);
+
+            /* Change synchronous setting then restore it. */
+            databaseManager.setSynchronous(0);
+            assertEquals(0, DatabaseUtils.longForQuery(database, "PRAGMA synchronous", null));
+            assertTrue(databaseManager.put(generateContentValues()) >= 0);
+            databaseManager.setSynchronous(DatabaseManager.SYNCHRONOUS_DEFAULT);
+            assertEquals(defaultSynchronous, DatabaseUtils.longForQuery(database, "PRAGMA synchronous", null));
+
+            /* Disable write-ahead logging. */
+            databaseManager.setWriteAheadLoggingEnabled(false);
+            assertNotEquals("wal", DatabaseUtils.stringForQuery(databaseManager.getDatabase(), "PRAGMA journal_mode", null).toLowerCase());
+            assertEquals(1, databaseManager.getRowCount());
+        } finally {
+
+            /* Close. */
+            databaseManager.close();
+        }
+    }
+
     @Test
     public void setMaximumSize() {
 
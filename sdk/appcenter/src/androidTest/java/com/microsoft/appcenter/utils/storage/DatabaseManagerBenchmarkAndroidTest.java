@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.utils.storage;
+
+import static com.microsoft.appcenter.test.TestUtils.generateString;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import android.annotation.SuppressLint;
+import android.content.ContentValues;
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.internal.runner.junit4.AndroidJUnit4ClassRunner;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compare log insert throughput of the write modes of {@link DatabaseManager}.
+ * Results are printed to logcat with the BENCHMARK tag, they depend on the device storage.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4ClassRunner.class)
+public class DatabaseManagerBenchmarkAndroidTest {
+
+    /**
+     * Logcat tag of results.
+     */
+    private static final String TAG = "BENCHMARK";
+
+    /**
+     * Test database name.
+     */
+    private static final String DATABASE_NAME = "test-benchmark";
+
+    /**
+     * Same layout as the logs table of the persistence.
+     */
+    private static final String CREATE_TEST_SQL = "CREATE TABLE IF NOT EXISTS `logs`" +
+            "(`oid` INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "`target_token` TEXT," +
+            "`type` TEXT," +
+            "`priority` INTEGER," +
+            "`log` TEXT," +
+            "`persistence_group` TEXT," +
+            "`target_key` TEXT)";
+
+    /**
+     * Inserted columns.
+     */
+    private static final String[] COLUMNS = {"persistence_group", "log", "type", "priority"};
+
+    /**
+     * Number of logs inserted per run.
+     */
+    private static final int LOG_COUNT = 2000;
+
+    /**
+     * Number of logs per transaction in batch runs, same as the channel default.
+     */
+    private static final int BATCH_SIZE = 50;
+
+    /**
+     * Payload of a typical log.
+     */
+    private static final String PAYLOAD = generateString(700, 'x');
+
+    /**
+     * Context instance.
+     */
+    @SuppressLint("StaticFieldLeak")
+    private static Context sContext;
+
+    @BeforeClass
+    public static void setUpClass() {
+        sContext = InstrumentationRegistry.getInstrumentation().getContext();
+    }
+
+    @After
+    public void tearDown() {
+        sContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void insertThroughput() {
+        for (int batchSize : new int[]{1, BATCH_SIZE}) {
+            double before = run(false, false, DatabaseManager.SYNCHRONOUS_DEFAULT, batchSize);
+            double statement = run(true, false, DatabaseManager.SYNCHRONOUS_DEFAULT, batchSize);
+            double wal = run(true, true, DatabaseManager.SYNCHRONOUS_DEFAULT, batchSize);
+            double walNormal = run(true, true, 1, batchSize);
+            double walOff = run(true, true, 0, batchSize);
+            Log.i(TAG, String.format("Inserts/sec with %d log(s) per transaction: ContentValues %.0f, compiled statement %.0f, " +
+                    "+WAL %.0f, +synchronous NORMAL %.0f, +synchronous OFF %.0f", batchSize, before, statement, wal, walNormal, walOff));
+        }
+    }
+
+    /**
+     * Insert logs in a new database.
+     *
+     * @param compiledStatement true to use {@link DatabaseManager#insert(String[], Object[])}, false for {@link DatabaseManager#put(ContentValues)}.
+     * @param writeAheadLogging true to enable write-ahead logging.
+     * @param synchronous       synchronous setting.
+     * @param batchSize         number of logs per transaction.
+     * @return inserts per second.
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private static double run(boolean compiledStatement, boolean writeAheadLogging, int synchronous, int batchSize) {
+        sContext.deleteDatabase(DATABASE_NAME);
+        DatabaseManager databaseManager = new DatabaseManager(sContext, DATABASE_NAME, "logs", 1, new ContentValues(), CREATE_TEST_SQL, mock(DatabaseManager.Listener.class));
+        try {
+            databaseManager.setWriteAheadLoggingEnabled(writeAheadLogging);
+            databaseManager.setSynchronous(synchronous);
+            long startTime = System.nanoTime();
+            for (int i = 0; i < LOG_COUNT; i += batchSize) {
+                boolean inTransaction = batchSize > 1 && databaseManager.beginTransaction();
+                try {
+                    for (int j = 0; j < batchSize; j++) {
+                        if (compiledStatement) {
+                            databaseManager.insert(COLUMNS, new Object[]{"group", PAYLOAD, "event", 1});
+                        } else {
+                            ContentValues values = new ContentValues();
+                            values.put("persistence_group", "group");
+                            values.put("log", PAYLOAD);
+                            values.put("target_token", (String) null);
+                            values.put("type", "event");
+                            values.put("target_key", (String) null);
+                            values.put("priority", 1);
+                            databaseManager.put(values);
+                        }
+                    }
+                    if (inTransaction) {
+                        databaseManager.setTransactionSuccessful();
+                    }
+                } finally {
+                    if (inTransaction) {
+                        databaseManager.endTransaction();
+                    }
+                }
+            }
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            assertEquals(LOG_COUNT, databaseManager.getRowCount());
+            return LOG_COUNT / seconds;
+        } finally {
+            databaseManager.close();
+        }
+    }
+}
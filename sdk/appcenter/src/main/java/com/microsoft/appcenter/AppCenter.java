@@ -897,6 +897,25 @@ public class AppCenter {
         }
         mChannel.addListener(mOneCollectorChannelListener);
 
+        /* Save channel state when going to background, as the process can then be killed at any time. */
+        mApplicationLifecycleListener.registerApplicationLifecycleCallbacks(new ApplicationLifecycleListener.ApplicationLifecycleCallbacks() {
+
+            @Override
+            public void onApplicationEnterForeground() {
+            }
+
+            @Override
+            public void onApplicationEnterBackground() {
+                mHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        mChannel.checkpoint();
+                    }
+                });
+            }
+        });
+
         /* Disable listening network if we start while being disabled. */
         if (!enabled) {
             NetworkStateHelper.getSharedInstance(mContext).close();
@@ -6,6 +6,7 @@
 package com.microsoft.appcenter;
 
 import com.microsoft.appcenter.http.HttpClient;
+import com.microsoft.appcenter.persistence.PersistenceEngine;
 
 /**
  * Configuration to override default dependencies used by the SDK.
@@ -17,6 +18,17 @@ public final class DependencyConfiguration {
      */
     private static HttpClient sHttpClient;
 
+    /**
+     * Storage used to persist logs.
+     */
+    @PersistenceEngine
+    private static int sPersistenceEngine = PersistenceEngine.DATABASE;
+
+    /**
+     * Maximum size of the logs kept in memory before being persisted, 0 to persist every log.
+     */
+    private static long sPersistenceMemoryTierSize;
+
     DependencyConfiguration() {
     }
 
@@ -37,4 +49,44 @@ public final class DependencyConfiguration {
     public static void setHttpClient(HttpClient httpClient) {
         sHttpClient = httpClient;
     }
+
+    /**
+     * Get the storage used to persist logs.
+     *
+     * @return storage used to persist logs.
+     */
+    @PersistenceEngine
+    public static int getPersistenceEngine() {
+        return sPersistenceEngine;
+    }
+
+    /**
+     * Set the storage used to persist logs, must be called before App Center is started.
+     * Logs stored by a different storage are not migrated.
+     *
+     * @param persistenceEngine storage used to persist logs, {@link PersistenceEngine#DATABASE} by default.
+     */
+    public static void setPersistenceEngine(@PersistenceEngine int persistenceEngine) {
+        sPersistenceEngine = persistenceEngine;
+    }
+
+    /**
+     * Get the maximum size of the logs kept in memory before being persisted.
+     *
+     * @return size in bytes, 0 if every log is persisted.
+     */
+    public static long getPersistenceMemoryTierSize() {
+        return sPersistenceMemoryTierSize;
+    }
+
+    /**
+     * Keep normal logs in memory until they are sent, up to the given serialized size, must be called before App Center is started.
+     * Logs are persisted when this size is reached and when the application goes to background, critical logs are always persisted.
+     * Logs kept in memory are lost if the process is killed while the application is in foreground.
+     *
+     * @param maxSize maximum size in bytes of logs kept in memory, 0 (the default) to persist every log.
+     */
+    public static void setPersistenceMemoryTierSize(long maxSize) {
+        sPersistenceMemoryTierSize = maxSize;
+    }
 }
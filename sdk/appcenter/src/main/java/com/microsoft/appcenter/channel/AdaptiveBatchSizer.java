@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+/**
+ * Tunes the number of logs per batch of a group from the measured size and round-trip time of sent batches.
+ * The batch size grows while full batches are sent quickly and fit in the byte budget,
+ * and is halved when requests get slow or fail.
+ */
+class AdaptiveBatchSizer {
+
+    /**
+     * Minimum number of logs per batch.
+     */
+    private final int mMinLogsPerBatch;
+
+    /**
+     * Maximum number of logs per batch.
+     */
+    private final int mMaxLogsPerBatch;
+
+    /**
+     * Round-trip time in ms above which batches are made smaller.
+     */
+    private final long mTargetRoundTripTime;
+
+    /**
+     * Maximum serialized size of a batch in bytes, 0 for no limit.
+     */
+    private final long mMaxBatchByteSize;
+
+    /**
+     * Current number of logs per batch.
+     */
+    private int mLogsPerBatch;
+
+    /**
+     * Init.
+     *
+     * @param initialLogsPerBatch initial number of logs per batch, clamped to bounds.
+     * @param minLogsPerBatch     minimum number of logs per batch.
+     * @param maxLogsPerBatch     maximum number of logs per batch.
+     * @param targetRoundTripTime round-trip time in ms above which batches are made smaller.
+     * @param maxBatchByteSize    maximum serialized size of a batch in bytes, 0 for no limit.
+     */
+    AdaptiveBatchSizer(int initialLogsPerBatch, int minLogsPerBatch, int maxLogsPerBatch, long targetRoundTripTime, long maxBatchByteSize) {
+        mMinLogsPerBatch = minLogsPerBatch;
+        mMaxLogsPerBatch = maxLogsPerBatch;
+        mTargetRoundTripTime = targetRoundTripTime;
+        mMaxBatchByteSize = maxBatchByteSize;
+        mLogsPerBatch = clamp(initialLogsPerBatch);
+    }
+
+    /**
+     * Get the current number of logs per batch.
+     *
+     * @return number of logs per batch.
+     */
+    int getLogsPerBatch() {
+        return mLogsPerBatch;
+    }
+
+    /**
+     * Adapt the batch size after a batch was sent successfully.
+     *
+     * @param logCount      number of logs in the batch.
+     * @param byteSize      serialized size of the batch, negative if unknown.
+     * @param roundTripTime HTTP round-trip time in ms.
+     * @return the new number of logs per batch.
+     */
+    int onBatchSent(int logCount, long byteSize, long roundTripTime) {
+        if (logCount <= 0) {
+            return mLogsPerBatch;
+        }
+
+        /* Slow network: send smaller requests. */
+        if (roundTripTime > mTargetRoundTripTime) {
+            mLogsPerBatch = clamp(mLogsPerBatch / 2);
+            return mLogsPerBatch;
+        }
+
+        /* Compute how many logs of that size fit in the byte budget. */
+        int byteLimit = mMaxLogsPerBatch;
+        if (mMaxBatchByteSize > 0 && byteSize > 0) {
+            long bytesPerLog = Math.max(1, byteSize / logCount);
+            byteLimit = (int) Math.min(mMaxLogsPerBatch, mMaxBatchByteSize / bytesPerLog);
+        }
+
+        /* Grow only when the batch was full, there is no point otherwise. */
+        int logsPerBatch = mLogsPerBatch;
+        if (logCount >= mLogsPerBatch) {
+            logsPerBatch += Math.max(1, mLogsPerBatch / 4);
+        }
+        mLogsPerBatch = clamp(Math.min(logsPerBatch, byteLimit));
+        return mLogsPerBatch;
+    }
+
+    /**
+     * Adapt the batch size after a batch failed to be sent.
+     *
+     * @return the new number of logs per batch.
+     */
+    int onBatchFailed() {
+        mLogsPerBatch = clamp(mLogsPerBatch / 2);
+        return mLogsPerBatch;
+    }
+
+    /**
+     * Keep a batch size within bounds.
+     *
+     * @param logsPerBatch batch size.
+     * @return batch size within bounds.
+     */
+    private int clamp(int logsPerBatch) {
+        return Math.max(mMinLogsPerBatch, Math.min(mMaxLogsPerBatch, logsPerBatch));
+    }
+}
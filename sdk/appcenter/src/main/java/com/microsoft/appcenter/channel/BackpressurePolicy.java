@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import androidx.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * What to do when a log is enqueued while its group has more pending logs than its high watermark.
+ * Critical logs are never rejected nor sampled out.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@IntDef({
+        BackpressurePolicy.REJECT,
+        BackpressurePolicy.SAMPLE,
+        BackpressurePolicy.EVICT
+})
+public @interface BackpressurePolicy {
+
+    /**
+     * Reject the new log.
+     */
+    int REJECT = 1;
+
+    /**
+     * Keep only a fraction of new logs, proportional to how far the group is over its high watermark.
+     */
+    int SAMPLE = 2;
+
+    /**
+     * Delete the oldest logs of the group in bulk to make room for the new one.
+     */
+    int EVICT = 3;
+}
@@ -10,6 +10,8 @@ import androidx.annotation.NonNull;
 
 import com.microsoft.appcenter.ingestion.Ingestion;
 import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.persistence.EvictionPolicy;
+import com.microsoft.appcenter.persistence.SyncMode;
 
 import static com.microsoft.appcenter.Flags.CRITICAL;
 import static com.microsoft.appcenter.Flags.NORMAL;
@@ -35,6 +37,127 @@ public interface Channel {
      */
     boolean setMaxStorageSize(long maxStorageSizeInBytes);
 
+    /**
+     * Get counters and timings of what the channel does, per group.
+     *
+     * @return channel metrics.
+     */
+    @NonNull
+    ChannelMetrics getMetrics();
+
+    /**
+     * Configure the write-behind buffer that holds enqueued logs for a short time
+     * in order to persist them together in a single transaction.
+     * Critical logs are never buffered and are persisted immediately.
+     *
+     * @param maxBufferedLogs maximum number of logs held per group before persisting them, 0 to disable buffering.
+     * @param maxBufferDelay  maximum time in ms a log can be held before being persisted.
+     */
+    void setWriteBehindBuffer(int maxBufferedLogs, long maxBufferDelay);
+
+    /**
+     * Enable or disable reading the next batch of a group ahead of time while the previous batches
+     * are being sent, so that it is ready to be sent as soon as a batch slot becomes available.
+     *
+     * @param enabled true to read batches ahead of time, false otherwise.
+     */
+    void setBatchPrefetchEnabled(boolean enabled);
+
+    /**
+     * Enable or disable compression of log payloads in storage, so that the storage quota holds more logs.
+     * Logs already stored keep their encoding.
+     *
+     * @param enabled true to compress new logs, false to store them as JSON text.
+     */
+    void setLogCompressionEnabled(boolean enabled);
+
+    /**
+     * Enable or disable write-ahead logging in storage, which makes persisting logs faster.
+     *
+     * @param enabled true to enable write-ahead logging, false to use the default journal.
+     */
+    void setWriteAheadLoggingEnabled(boolean enabled);
+
+    /**
+     * Set how long persisting logs of a priority waits for the data to reach the disk.
+     * Waiting less makes persisting logs faster, at the risk of losing the last logs on power failure.
+     *
+     * @param priority persistence priority of the logs.
+     * @param syncMode sync mode.
+     */
+    void setSyncMode(@IntRange(from = NORMAL, to = CRITICAL) int priority, @SyncMode int syncMode);
+
+    /**
+     * Limit the storage used by the logs of a group, so that a noisy group cannot evict the logs of the others.
+     * Only the SQLite database engine applies quotas.
+     *
+     * @param groupName      the name of a group.
+     * @param maxSizeInBytes maximum size in bytes of the stored logs of the group, 0 to remove the quota.
+     * @param evictionPolicy what to do with a new log when the quota is full.
+     */
+    void setGroupQuota(@NonNull String groupName, long maxSizeInBytes, @EvictionPolicy int evictionPolicy);
+
+    /**
+     * Limit the storage used by the logs of a group to a percentage of the maximum storage size.
+     * Only the SQLite database engine applies quotas.
+     *
+     * @param groupName      the name of a group.
+     * @param percentage     maximum percentage of the storage used by the logs of the group, 0 to remove the quota.
+     * @param evictionPolicy what to do with a new log when the quota is full.
+     */
+    void setGroupQuotaPercentage(@NonNull String groupName, @IntRange(from = 0, to = 100) int percentage, @EvictionPolicy int evictionPolicy);
+
+    /**
+     * Set how long the logs of a group are kept in storage before being deleted without being sent.
+     * Expired logs are deleted periodically, separately from sending batches, and counted in the channel metrics.
+     * Only the SQLite database engine expires logs.
+     *
+     * @param groupName  the name of a group.
+     * @param timeToLive time in ms after the creation of a log after which it expires, 0 to keep logs until they are sent.
+     */
+    void setLogTimeToLive(@NonNull String groupName, long timeToLive);
+
+    /**
+     * Set how long logs of a type are kept in storage before being deleted without being sent,
+     * taking precedence over the time to live of their group.
+     *
+     * @param logType    the log type.
+     * @param timeToLive time in ms after the creation of a log after which it expires, 0 to use the time to live of its group.
+     */
+    void setLogTypeTimeToLive(@NonNull String logType, long timeToLive);
+
+    /**
+     * Merge batches of groups that use the same ingestion into a single request.
+     * When a group sends a batch, the other groups of the same ingestion also send their pending logs
+     * in the same request instead of waiting for their own batch timer.
+     *
+     * @param enabled true to merge batches, false to send one request per batch.
+     */
+    void setRequestCoalescingEnabled(boolean enabled);
+
+    /**
+     * Tune the number of logs per batch of each group from the size and the round-trip time of sent batches.
+     * Batches grow while they are sent faster than the target round-trip time and fit in the byte budget,
+     * and are halved when requests get slower or fail.
+     *
+     * @param minLogsPerBatch     minimum number of logs per batch, 0 to use the fixed batch size of each group.
+     * @param maxLogsPerBatch     maximum number of logs per batch.
+     * @param targetRoundTripTime round-trip time in ms above which batches are made smaller.
+     * @param maxBatchByteSize    maximum serialized size of a batch in bytes, 0 for no limit.
+     */
+    void setAdaptiveBatchSizing(int minLogsPerBatch, int maxLogsPerBatch, long targetRoundTripTime, long maxBatchByteSize);
+
+    /**
+     * Tune the circuit breaker used per ingestion instead of suspending the whole channel when sending a batch fails.
+     * After a failure, only groups using the failing ingestion stop sending, for a period that doubles at each
+     * consecutive failure, then a single probe batch is sent to decide whether to resume.
+     * Circuit breakers are used by default, starting with a 10 seconds period up to 20 minutes.
+     *
+     * @param initialOpenDuration time in ms during which an ingestion is not used after a first failure, 0 to suspend the channel on failures.
+     * @param maxOpenDuration     maximum time in ms during which an ingestion is not used after consecutive failures.
+     */
+    void setCircuitBreaker(long initialOpenDuration, long maxOpenDuration);
+
     /**
      * Add a group for logs to be persisted and sent.
      *
@@ -70,6 +193,41 @@ public interface Channel {
      */
     void resumeGroup(String groupName, String targetToken);
 
+    /**
+     * Limit the number of logs of a group waiting to be sent.
+     * Above the high watermark, new logs are handled according to the policy
+     * and listeners are notified with {@link Listener#onBackpressure(String, int, int)}.
+     *
+     * @param groupName     the name of a group.
+     * @param highWatermark maximum number of pending logs, 0 to disable the limit.
+     * @param policy        what to do with new logs above the high watermark.
+     */
+    void setBackpressure(@NonNull String groupName, int highWatermark, @BackpressurePolicy int policy);
+
+    /**
+     * Configure the lock-free ring buffer used by {@link #enqueueAsync(Log, String, int)}.
+     *
+     * @param capacity       maximum number of logs waiting for the App Center thread, 0 to post every log to the App Center thread instead.
+     * @param overflowPolicy what to do when the buffer is full.
+     */
+    void setEnqueueRingBuffer(int capacity, @OverflowPolicy int overflowPolicy);
+
+    /**
+     * Add log to queue to be persisted and sent, from any thread.
+     * The log is written to a lock-free ring buffer that the App Center thread drains in batches,
+     * then it goes through {@link #enqueue(Log, String, int)}. Logs dropped because the buffer was full
+     * are counted in {@link ChannelMetrics#getDroppedCount()} and don't trigger group listener callbacks.
+     * Logs that {@link BackpressurePolicy#REJECT} would reject are rejected right away and reported
+     * to the group listener. Other backpressure decisions are made on the App Center thread
+     * like for {@link #enqueue(Log, String, int)}.
+     *
+     * @param log       the log to be enqueued.
+     * @param groupName the group to use.
+     * @param flags     the flags for this log.
+     * @return false if the log was dropped or rejected, true otherwise.
+     */
+    boolean enqueueAsync(@NonNull Log log, @NonNull String groupName, int flags);
+
     /**
      * Add log to queue to be persisted and sent.
      *
@@ -129,6 +287,13 @@ public interface Channel {
      */
     void removeListener(Listener listener);
 
+    /**
+     * Save the state kept in memory that must survive the process, such as when batch timers started,
+     * logs in write-behind buffers and logs kept in memory by the persistence.
+     * Called when the application goes to background and on {@link #shutdown()}.
+     */
+    void checkpoint();
+
     /**
      * Suspend channel and wait for a limited period of time for queued logs to be persisted.
      */
@@ -219,6 +384,15 @@ public interface Channel {
          * @param targetToken The target token is resumed, or null when the entire group is resumed.
          */
         void onResumed(@NonNull String groupName, String targetToken);
+
+        /**
+         * Called when a group goes over its high watermark.
+         *
+         * @param groupName       The group name.
+         * @param pendingLogCount The number of logs of the group waiting to be sent.
+         * @param policy          The policy applied to new logs.
+         */
+        void onBackpressure(@NonNull String groupName, int pendingLogCount, @BackpressurePolicy int policy);
     }
 
     /**
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and timings of what the channel does, per group.
+ * Metrics are updated on the App Center thread and can be read from any thread,
+ * in which case they may be slightly out of date.
+ */
+public class ChannelMetrics {
+
+    /**
+     * Metrics per group name.
+     */
+    private final Map<String, GroupMetrics> mGroupMetrics = new ConcurrentHashMap<>();
+
+    /**
+     * Logs dropped because the enqueue ring buffer was full.
+     */
+    final AtomicLong mDroppedCount = new AtomicLong();
+
+    /**
+     * Get the number of logs dropped because the enqueue ring buffer was full.
+     *
+     * @return number of logs.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Get the metrics of a group.
+     *
+     * @param groupName group name.
+     * @return metrics of the group, null if the group was never added to the channel.
+     */
+    @Nullable
+    public GroupMetrics getGroupMetrics(@NonNull String groupName) {
+        return mGroupMetrics.get(groupName);
+    }
+
+    /**
+     * Get the metrics of all groups.
+     *
+     * @return metrics by group name.
+     */
+    @NonNull
+    public Map<String, GroupMetrics> getAllGroupMetrics() {
+        return Collections.unmodifiableMap(mGroupMetrics);
+    }
+
+    /**
+     * Get the metrics of a group, creating them if needed.
+     * Counters are kept when a group is removed and added again.
+     *
+     * @param groupName group name.
+     * @return metrics of the group.
+     */
+    @NonNull
+    GroupMetrics getOrCreateGroupMetrics(@NonNull String groupName) {
+        GroupMetrics groupMetrics = mGroupMetrics.get(groupName);
+        if (groupMetrics == null) {
+            groupMetrics = new GroupMetrics();
+            mGroupMetrics.put(groupName, groupMetrics);
+        }
+        return groupMetrics;
+    }
+
+    /**
+     * Metrics of a group.
+     */
+    public static class GroupMetrics {
+
+        /**
+         * Logs enqueued in the channel.
+         */
+        volatile long mEnqueuedCount;
+
+        /**
+         * Logs filtered out by channel listeners.
+         */
+        volatile long mFilteredCount;
+
+        /**
+         * Logs persisted.
+         */
+        volatile long mPersistedCount;
+
+        /**
+         * Logs sent successfully.
+         */
+        volatile long mSentCount;
+
+        /**
+         * Logs of batches that failed to be sent.
+         */
+        volatile long mFailedCount;
+
+        /**
+         * Logs dropped without being sent.
+         */
+        volatile long mDiscardedCount;
+
+        /**
+         * Logs deleted by persistence to make room for new logs.
+         */
+        volatile long mEvictedCount;
+
+        /**
+         * Logs deleted by persistence because the group reached its storage quota.
+         */
+        volatile long mQuotaEvictedCount;
+
+        /**
+         * Logs rejected by persistence because the group reached its storage quota.
+         */
+        volatile long mQuotaRejectedCount;
+
+        /**
+         * Logs deleted by persistence because they were older than their time to live.
+         */
+        volatile long mExpiredCount;
+
+        /**
+         * Logs rejected because the group was over its high watermark.
+         */
+        volatile long mRejectedCount;
+
+        /**
+         * Logs sampled out because the group was over its high watermark.
+         */
+        volatile long mSampledOutCount;
+
+        /**
+         * Current state of the group in the channel, null when the group is removed.
+         */
+        volatile DefaultChannel.GroupState mGroupState;
+
+        /**
+         * Time between a log being enqueued and persisted.
+         */
+        final LatencyHistogram mEnqueueToPersistTime = new LatencyHistogram();
+
+        /**
+         * Time to read a batch of logs from persistence.
+         */
+        final LatencyHistogram mBatchReadTime = new LatencyHistogram();
+
+        /**
+         * Time to serialize a log.
+         */
+        final LatencyHistogram mSerializationTime = new LatencyHistogram();
+
+        /**
+         * HTTP round-trip time of batches.
+         */
+        final LatencyHistogram mRoundTripTime = new LatencyHistogram();
+
+        /**
+         * Get the number of logs enqueued in the channel.
+         *
+         * @return number of logs.
+         */
+        public long getEnqueuedCount() {
+            return mEnqueuedCount;
+        }
+
+        /**
+         * Get the number of logs filtered out by channel listeners.
+         *
+         * @return number of logs.
+         */
+        public long getFilteredCount() {
+            return mFilteredCount;
+        }
+
+        /**
+         * Get the number of logs persisted.
+         *
+         * @return number of logs.
+         */
+        public long getPersistedCount() {
+            return mPersistedCount;
+        }
+
+        /**
+         * Get the number of logs sent successfully.
+         *
+         * @return number of logs.
+         */
+        public long getSentCount() {
+            return mSentCount;
+        }
+
+        /**
+         * Get the number of logs in batches that failed to be sent, including batches retried later.
+         *
+         * @return number of logs.
+         */
+        public long getFailedCount() {
+            return mFailedCount;
+        }
+
+        /**
+         * Get the number of logs dropped without being sent, because they could not be persisted,
+         * were rejected by the server or the channel was disabled.
+         *
+         * @return number of logs.
+         */
+        public long getDiscardedCount() {
+            return mDiscardedCount;
+        }
+
+        /**
+         * Get the number of logs deleted by persistence to make room for new logs.
+         *
+         * @return number of logs.
+         */
+        public long getEvictedCount() {
+            return mEvictedCount;
+        }
+
+        /**
+         * Get the number of logs deleted by persistence because the group reached its storage quota.
+         * These logs are also counted by {@link #getEvictedCount()}.
+         *
+         * @return number of logs.
+         */
+        public long getQuotaEvictedCount() {
+            return mQuotaEvictedCount;
+        }
+
+        /**
+         * Get the number of logs rejected by persistence because the group reached its storage quota.
+         *
+         * @return number of logs.
+         */
+        public long getQuotaRejectedCount() {
+            return mQuotaRejectedCount;
+        }
+
+        /**
+         * Get the number of logs deleted by persistence because they were older than their time to live.
+         *
+         * @return number of logs.
+         */
+        public long getExpiredCount() {
+            return mExpiredCount;
+        }
+
+        /**
+         * Get the number of logs rejected because the group was over its high watermark.
+         *
+         * @return number of logs.
+         */
+        public long getRejectedCount() {
+            return mRejectedCount;
+        }
+
+        /**
+         * Get the number of logs sampled out because the group was over its high watermark.
+         *
+         * @return number of logs.
+         */
+        public long getSampledOutCount() {
+            return mSampledOutCount;
+        }
+
+        /**
+         * Get the number of persisted logs waiting to be part of a batch.
+         *
+         * @return number of logs.
+         */
+        public int getPendingLogCount() {
+            DefaultChannel.GroupState groupState = mGroupState;
+            return groupState == null ? 0 : groupState.mPendingLogCount;
+        }
+
+        /**
+         * Get the number of batches being sent.
+         *
+         * @return number of batches.
+         */
+        public int getInFlightBatchCount() {
+            DefaultChannel.GroupState groupState = mGroupState;
+            return groupState == null ? 0 : groupState.mSendingBatches.size();
+        }
+
+        /**
+         * Get the histogram of time between a log being enqueued and persisted, in microseconds.
+         *
+         * @return histogram.
+         */
+        @NonNull
+        public LatencyHistogram getEnqueueToPersistTime() {
+            return mEnqueueToPersistTime;
+        }
+
+        /**
+         * Get the histogram of time to read a batch of logs from persistence, in microseconds.
+         *
+         * @return histogram.
+         */
+        @NonNull
+        public LatencyHistogram getBatchReadTime() {
+            return mBatchReadTime;
+        }
+
+        /**
+         * Get the histogram of time to serialize a log when persisting it, in microseconds.
+         *
+         * @return histogram.
+         */
+        @NonNull
+        public LatencyHistogram getSerializationTime() {
+            return mSerializationTime;
+        }
+
+        /**
+         * Get the histogram of HTTP round-trip time of batches, in microseconds.
+         *
+         * @return histogram.
+         */
+        @NonNull
+        public LatencyHistogram getRoundTripTime() {
+            return mRoundTripTime;
+        }
+    }
+}
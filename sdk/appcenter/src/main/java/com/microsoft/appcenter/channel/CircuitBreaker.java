@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Circuit breaker state for one ingestion endpoint.
+ * Sending failures open the circuit for a period that doubles at each consecutive failure,
+ * then a single probe request is allowed (half-open) to decide whether to close the circuit again.
+ */
+class CircuitBreaker {
+
+    /**
+     * Circuit breaker states.
+     */
+    enum State {
+
+        /**
+         * Requests are sent normally.
+         */
+        CLOSED,
+
+        /**
+         * Requests are not sent until the open period expires.
+         */
+        OPEN,
+
+        /**
+         * A single probe request is allowed.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Open period after the first failure, in ms.
+     */
+    private final long mInitialOpenDuration;
+
+    /**
+     * Maximum open period, in ms.
+     */
+    private final long mMaxOpenDuration;
+
+    /**
+     * Current state.
+     */
+    private State mState = State.CLOSED;
+
+    /**
+     * Last open period, 0 if the circuit did not fail since it was closed.
+     */
+    private long mOpenDuration;
+
+    /**
+     * Is the probe request in flight while half-open.
+     */
+    private boolean mProbeInFlight;
+
+    /**
+     * Runnable moving the circuit to half-open when the open period expires, null if not scheduled.
+     */
+    Runnable mHalfOpenRunnable;
+
+    /**
+     * Init.
+     *
+     * @param initialOpenDuration open period after the first failure, in ms.
+     * @param maxOpenDuration     maximum open period, in ms.
+     */
+    CircuitBreaker(long initialOpenDuration, long maxOpenDuration) {
+        mInitialOpenDuration = initialOpenDuration;
+        mMaxOpenDuration = Math.max(initialOpenDuration, maxOpenDuration);
+    }
+
+    /**
+     * Check if a request can be sent now.
+     *
+     * @return true if a request can be sent.
+     */
+    boolean allowsRequest() {
+        switch (mState) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                return !mProbeInFlight;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Record that a request has been sent, this is the probe if the circuit is half-open.
+     */
+    void onRequestSent() {
+        if (mState == State.HALF_OPEN) {
+            mProbeInFlight = true;
+        }
+    }
+
+    /**
+     * Record a successful request, closing the circuit.
+     *
+     * @return true if the circuit was not closed before.
+     */
+    boolean onSuccess() {
+        boolean wasNotClosed = mState != State.CLOSED;
+        reset();
+        return wasNotClosed;
+    }
+
+    /**
+     * Record a failed request, opening the circuit.
+     *
+     * @return how long the circuit stays open, in ms.
+     */
+    long onFailure() {
+        mState = State.OPEN;
+        mProbeInFlight = false;
+        mOpenDuration = mOpenDuration == 0 ? mInitialOpenDuration : Math.min(mOpenDuration * 2, mMaxOpenDuration);
+        return mOpenDuration;
+    }
+
+    /**
+     * Move to half-open when the open period expires.
+     */
+    void halfOpen() {
+        if (mState == State.OPEN) {
+            mState = State.HALF_OPEN;
+        }
+    }
+
+    /**
+     * Close the circuit and forget previous failures.
+     */
+    void reset() {
+        mState = State.CLOSED;
+        mOpenDuration = 0;
+        mProbeInFlight = false;
+    }
+
+    /**
+     * Get the current state.
+     *
+     * @return the current state.
+     */
+    @NonNull
+    State getState() {
+        return mState;
+    }
+}
@@ -7,12 +7,17 @@ package com.microsoft.appcenter.channel;
 
 import android.content.Context;
 import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.IntRange;
 import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.VisibleForTesting;
 import androidx.annotation.WorkerThread;
 
 import com.microsoft.appcenter.CancellationException;
+import com.microsoft.appcenter.DependencyConfiguration;
+import com.microsoft.appcenter.Flags;
 import com.microsoft.appcenter.http.HttpClient;
 import com.microsoft.appcenter.http.HttpResponse;
 import com.microsoft.appcenter.http.HttpUtils;
@@ -25,7 +30,13 @@ import com.microsoft.appcenter.ingestion.models.LogContainer;
 import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
 import com.microsoft.appcenter.ingestion.models.one.PartAUtils;
 import com.microsoft.appcenter.persistence.DatabasePersistence;
+import com.microsoft.appcenter.persistence.EvictionPolicy;
 import com.microsoft.appcenter.persistence.Persistence;
+import com.microsoft.appcenter.persistence.PersistenceEngine;
+import com.microsoft.appcenter.persistence.SegmentedFilePersistence;
+import com.microsoft.appcenter.persistence.ShardedPersistence;
+import com.microsoft.appcenter.persistence.SyncMode;
+import com.microsoft.appcenter.persistence.TieredPersistence;
 import com.microsoft.appcenter.utils.AppCenterLog;
 import com.microsoft.appcenter.utils.DeviceInfoHelper;
 import com.microsoft.appcenter.utils.IdHelper;
@@ -45,6 +56,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
 
 import static com.microsoft.appcenter.AppCenter.LOG_TAG;
 
@@ -67,6 +79,30 @@ public class DefaultChannel implements Channel {
      */
     private static final long MINIMUM_TRANSMISSION_INTERVAL = 3000;
 
+    /**
+     * Percentage of the high watermark that {@link BackpressurePolicy#EVICT} brings pending logs back to.
+     */
+    @VisibleForTesting
+    static final int BACKPRESSURE_EVICTION_TARGET_PERCENT = 75;
+
+    /**
+     * Interval in ms between deletions of expired logs, once a time to live is set.
+     */
+    @VisibleForTesting
+    static final long LOG_EXPIRY_INTERVAL = 10 * 60 * 1000;
+
+    /**
+     * Default open period in ms of a circuit breaker after a first failure.
+     */
+    @VisibleForTesting
+    static final long DEFAULT_CIRCUIT_BREAKER_INITIAL_OPEN_DURATION = 10 * 1000;
+
+    /**
+     * Default maximum open period in ms of a circuit breaker.
+     */
+    @VisibleForTesting
+    static final long DEFAULT_CIRCUIT_BREAKER_MAX_OPEN_DURATION = 20 * 60 * 1000;
+
     /**
      * Application context.
      */
@@ -134,6 +170,118 @@ public class DefaultChannel implements Channel {
      */
     private int mCurrentState;
 
+    /**
+     * Maximum number of logs held in the write-behind buffer of a group, 0 when buffering is disabled.
+     */
+    private int mMaxBufferedLogs;
+
+    /**
+     * Maximum time in ms a log can be held in the write-behind buffer.
+     */
+    private long mMaxBufferDelay;
+
+    /**
+     * Is reading batches ahead of time enabled?
+     */
+    private boolean mBatchPrefetchEnabled;
+
+    /**
+     * Are batches of groups sharing an ingestion merged into a single request.
+     */
+    private boolean mRequestCoalescingEnabled;
+
+    /**
+     * Batches waiting to be sent in a merged request, per ingestion.
+     */
+    private final Map<Ingestion, List<CoalescedBatch>> mCoalescedBatches = new HashMap<>();
+
+    /**
+     * Time to wait between attempts to add a log to a full ring buffer with {@link OverflowPolicy#BLOCK}.
+     */
+    private static final long RING_BUFFER_BLOCK_WAIT_NANOS = 100000;
+
+    /**
+     * Ring buffer used by {@link #enqueueAsync(Log, String, int)}, null to post every log instead.
+     */
+    private volatile LogRingBuffer mRingBuffer;
+
+    /**
+     * Policy when {@link #mRingBuffer} is full.
+     */
+    private volatile int mOverflowPolicy = OverflowPolicy.DROP_NEWEST;
+
+    /**
+     * Passes logs drained from the ring buffer to {@link #enqueue(Log, String, int)}.
+     */
+    private final LogRingBuffer.Consumer mRingBufferEnqueuer = new LogRingBuffer.Consumer() {
+
+        @Override
+        public void accept(@NonNull Log log, @NonNull String groupName, int flags) {
+            enqueue(log, groupName, flags);
+        }
+    };
+
+    /**
+     * Counts logs dropped from the ring buffer to make room for new ones.
+     */
+    private final LogRingBuffer.Consumer mRingBufferDropper = new LogRingBuffer.Consumer() {
+
+        @Override
+        public void accept(@NonNull Log log, @NonNull String groupName, int flags) {
+            mMetrics.mDroppedCount.incrementAndGet();
+        }
+    };
+
+    /**
+     * Batch timer start times changed since the last {@link #checkpoint()} by group name, 0 when the timer ended.
+     */
+    private final Map<String, Long> mTimerCheckpoints = new HashMap<>();
+
+    /**
+     * Periodically deletes expired logs, null until a time to live is set.
+     */
+    private Runnable mLogExpiryRunnable;
+
+    /**
+     * Counters and timings per group.
+     */
+    private final ChannelMetrics mMetrics = new ChannelMetrics();
+
+    /**
+     * Minimum number of logs per batch when adapting batch size, 0 when batch size is not adapted.
+     */
+    private int mAdaptiveMinLogsPerBatch;
+
+    /**
+     * Maximum number of logs per batch when adapting batch size.
+     */
+    private int mAdaptiveMaxLogsPerBatch;
+
+    /**
+     * Round-trip time in ms above which batches are made smaller when adapting batch size.
+     */
+    private long mAdaptiveTargetRoundTripTime;
+
+    /**
+     * Maximum serialized size of a batch in bytes when adapting batch size, 0 for no limit.
+     */
+    private long mAdaptiveMaxBatchByteSize;
+
+    /**
+     * Open period in ms after a first failure when using circuit breakers, 0 to suspend the channel on failures.
+     */
+    private long mCircuitBreakerInitialOpenDuration = DEFAULT_CIRCUIT_BREAKER_INITIAL_OPEN_DURATION;
+
+    /**
+     * Maximum open period in ms when using circuit breakers.
+     */
+    private long mCircuitBreakerMaxOpenDuration = DEFAULT_CIRCUIT_BREAKER_MAX_OPEN_DURATION;
+
+    /**
+     * Circuit breakers per ingestion, created when a group registers its ingestion, empty when circuit breakers are not used.
+     */
+    private final Map<Ingestion, CircuitBreaker> mCircuitBreakers = new HashMap<>();
+
     /**
      * Creates and initializes a new instance.
      *
@@ -169,13 +317,55 @@ public class DefaultChannel implements Channel {
         mIngestions.add(mIngestion);
         mAppCenterHandler = appCenterHandler;
         mEnabled = true;
+        mPersistence.setListener(new Persistence.Listener() {
+
+            @Override
+            public void onLogSerialized(@NonNull String group, long serializationTime) {
+                mMetrics.getOrCreateGroupMetrics(group).mSerializationTime.record(serializationTime);
+            }
+
+            @Override
+            public void onLogsEvicted(@NonNull String group, int count) {
+                mMetrics.getOrCreateGroupMetrics(group).mEvictedCount += count;
+            }
+
+            @Override
+            public void onLogsEvictedByQuota(@NonNull String group, int count) {
+                mMetrics.getOrCreateGroupMetrics(group).mQuotaEvictedCount += count;
+            }
+
+            @Override
+            public void onLogRejectedByQuota(@NonNull String group) {
+                mMetrics.getOrCreateGroupMetrics(group).mQuotaRejectedCount++;
+            }
+
+            @Override
+            public void onLogsExpired(@NonNull String group, int count) {
+                mMetrics.getOrCreateGroupMetrics(group).mExpiredCount += count;
+                GroupState groupState = mGroupStates.get(group);
+                if (groupState != null) {
+                    groupState.mPendingLogCount = Math.max(0, groupState.mPendingLogCount - count);
+                }
+            }
+        });
     }
 
     /**
      * Init Persistence for default constructor.
      */
     private static Persistence buildDefaultPersistence(@NonNull Context context, @NonNull LogSerializer logSerializer) {
-        Persistence persistence = new DatabasePersistence(context);
+        Persistence persistence;
+        if (DependencyConfiguration.getPersistenceEngine() == PersistenceEngine.SEGMENTED_FILES) {
+            persistence = new SegmentedFilePersistence(context);
+        } else if (DependencyConfiguration.getPersistenceEngine() == PersistenceEngine.SHARDED_DATABASE) {
+            persistence = new ShardedPersistence(context);
+        } else {
+            persistence = new DatabasePersistence(context);
+        }
+        long memoryTierSize = DependencyConfiguration.getPersistenceMemoryTierSize();
+        if (memoryTierSize > 0) {
+            persistence = new TieredPersistence(persistence, memoryTierSize);
+        }
         persistence.setLogSerializer(logSerializer);
         return persistence;
     }
@@ -186,6 +376,303 @@ public class DefaultChannel implements Channel {
         return mPersistence.setMaxStorageSize(maxStorageSizeInBytes);
     }
 
+    @NonNull
+    @Override
+    public ChannelMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    @WorkerThread
+    @Override
+    public void setEnqueueRingBuffer(int capacity, @OverflowPolicy int overflowPolicy) {
+        if (capacity < 0 || overflowPolicy < OverflowPolicy.DROP_OLDEST || overflowPolicy > OverflowPolicy.BLOCK) {
+            AppCenterLog.error(LOG_TAG, "Invalid enqueue ring buffer configuration: capacity=" + capacity + " overflowPolicy=" + overflowPolicy);
+            return;
+        }
+        AppCenterLog.debug(LOG_TAG, "setEnqueueRingBuffer(" + capacity + ", " + overflowPolicy + ")");
+        LogRingBuffer previousRingBuffer = mRingBuffer;
+        mOverflowPolicy = overflowPolicy;
+        mRingBuffer = capacity > 0 ? new LogRingBuffer(capacity) : null;
+
+        /* Logs written before the change are enqueued first. Late writers schedule their own drain. */
+        if (previousRingBuffer != null) {
+            drainRingBuffer(previousRingBuffer);
+        }
+    }
+
+    @Override
+    public boolean enqueueAsync(@NonNull final Log log, @NonNull final String groupName, final int flags) {
+
+        /* Let the caller know right away when the log would be rejected by backpressure. */
+        final GroupState groupState = mGroupStates.get(groupName);
+        if (groupState != null && isRejectedByBackpressure(groupState, flags)) {
+            mAppCenterHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    notifyBackpressure(groupState, groupState.mPendingLogCount + groupState.mBufferedLogs.size());
+                    rejectLog(groupState, log);
+                }
+            });
+            return false;
+        }
+        final LogRingBuffer ringBuffer = mRingBuffer;
+        if (ringBuffer == null) {
+            return mAppCenterHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    enqueue(log, groupName, flags);
+                }
+            });
+        }
+        boolean added = ringBuffer.offer(log, groupName, flags);
+        while (!added) {
+            switch (mOverflowPolicy) {
+                case OverflowPolicy.DROP_OLDEST:
+                    ringBuffer.poll(mRingBufferDropper);
+                    break;
+
+                case OverflowPolicy.BLOCK:
+
+                    /* Waiting on the App Center thread would never end, make room right away. */
+                    if (mAppCenterHandler.getLooper() == Looper.myLooper()) {
+                        drainRingBuffer(ringBuffer);
+                    } else {
+                        scheduleRingBufferDrain(ringBuffer);
+                        LockSupport.parkNanos(RING_BUFFER_BLOCK_WAIT_NANOS);
+                    }
+                    break;
+
+                default:
+                    mMetrics.mDroppedCount.incrementAndGet();
+                    return false;
+            }
+            added = ringBuffer.offer(log, groupName, flags);
+        }
+        scheduleRingBufferDrain(ringBuffer);
+        return true;
+    }
+
+    /**
+     * Schedule draining a ring buffer on the App Center thread if not already scheduled.
+     *
+     * @param ringBuffer the ring buffer.
+     */
+    private void scheduleRingBufferDrain(@NonNull final LogRingBuffer ringBuffer) {
+        if (ringBuffer.mDrainScheduled.compareAndSet(false, true)) {
+            mAppCenterHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    drainRingBuffer(ringBuffer);
+                }
+            });
+        }
+    }
+
+    /**
+     * Enqueue the logs of a ring buffer.
+     *
+     * @param ringBuffer the ring buffer.
+     */
+    @WorkerThread
+    private void drainRingBuffer(@NonNull LogRingBuffer ringBuffer) {
+
+        /* Clear the flag first so that logs added while draining schedule a new drain if missed. */
+        ringBuffer.mDrainScheduled.set(false);
+        int count = ringBuffer.drain(mRingBufferEnqueuer);
+        AppCenterLog.verbose(LOG_TAG, "Drained " + count + " log(s) from the enqueue ring buffer.");
+        if (!ringBuffer.isEmpty()) {
+            scheduleRingBufferDrain(ringBuffer);
+        }
+    }
+
+    @WorkerThread
+    @Override
+    public void setWriteBehindBuffer(int maxBufferedLogs, long maxBufferDelay) {
+        if (maxBufferedLogs < 0 || maxBufferDelay < 0) {
+            AppCenterLog.error(LOG_TAG, "Invalid write-behind buffer configuration: maxBufferedLogs=" + maxBufferedLogs + " maxBufferDelay=" + maxBufferDelay);
+            return;
+        }
+        AppCenterLog.debug(LOG_TAG, "setWriteBehindBuffer(" + maxBufferedLogs + ", " + maxBufferDelay + ")");
+        mMaxBufferedLogs = maxBufferedLogs;
+        mMaxBufferDelay = maxBufferDelay;
+
+        /* Persist what is buffered so that the new configuration applies from now on. */
+        for (GroupState groupState : mGroupStates.values()) {
+            flushBufferedLogs(groupState);
+        }
+    }
+
+    @WorkerThread
+    @Override
+    public void setBatchPrefetchEnabled(boolean enabled) {
+        AppCenterLog.debug(LOG_TAG, "setBatchPrefetchEnabled(" + enabled + ")");
+        mBatchPrefetchEnabled = enabled;
+        if (!enabled) {
+            for (GroupState groupState : mGroupStates.values()) {
+                releasePrefetchedBatch(groupState);
+            }
+        }
+    }
+
+    @WorkerThread
+    @Override
+    public void setLogCompressionEnabled(boolean enabled) {
+        AppCenterLog.debug(LOG_TAG, "setLogCompressionEnabled(" + enabled + ")");
+        mPersistence.setPayloadCompressionEnabled(enabled);
+    }
+
+    @WorkerThread
+    @Override
+    public void setWriteAheadLoggingEnabled(boolean enabled) {
+        AppCenterLog.debug(LOG_TAG, "setWriteAheadLoggingEnabled(" + enabled + ")");
+        mPersistence.setWriteAheadLoggingEnabled(enabled);
+    }
+
+    @WorkerThread
+    @Override
+    public void setSyncMode(@IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int priority, @SyncMode int syncMode) {
+        AppCenterLog.debug(LOG_TAG, "setSyncMode(" + priority + ", " + syncMode + ")");
+        mPersistence.setSyncMode(priority, syncMode);
+    }
+
+    @WorkerThread
+    @Override
+    public void setGroupQuota(@NonNull String groupName, long maxSizeInBytes, @EvictionPolicy int evictionPolicy) {
+        if (maxSizeInBytes < 0 || evictionPolicy < EvictionPolicy.OLDEST_FIRST || evictionPolicy > EvictionPolicy.REJECT_NEW) {
+            AppCenterLog.error(LOG_TAG, "Invalid storage quota configuration for " + groupName + ": maxSizeInBytes=" + maxSizeInBytes + " evictionPolicy=" + evictionPolicy);
+            return;
+        }
+        AppCenterLog.debug(LOG_TAG, "setGroupQuota(" + groupName + ", " + maxSizeInBytes + ", " + evictionPolicy + ")");
+        mPersistence.setGroupQuota(groupName, maxSizeInBytes, evictionPolicy);
+    }
+
+    @WorkerThread
+    @Override
+    public void setGroupQuotaPercentage(@NonNull String groupName, @IntRange(from = 0, to = 100) int percentage, @EvictionPolicy int evictionPolicy) {
+        if (percentage < 0 || percentage > 100 || evictionPolicy < EvictionPolicy.OLDEST_FIRST || evictionPolicy > EvictionPolicy.REJECT_NEW) {
+            AppCenterLog.error(LOG_TAG, "Invalid storage quota configuration for " + groupName + ": percentage=" + percentage + " evictionPolicy=" + evictionPolicy);
+            return;
+        }
+        AppCenterLog.debug(LOG_TAG, "setGroupQuotaPercentage(" + groupName + ", " + percentage + ", " + evictionPolicy + ")");
+        mPersistence.setGroupQuotaPercentage(groupName, percentage, evictionPolicy);
+    }
+
+    @WorkerThread
+    @Override
+    public void setLogTimeToLive(@NonNull String groupName, long timeToLive) {
+        if (timeToLive < 0) {
+            AppCenterLog.error(LOG_TAG, "Invalid time to live for " + groupName + ": " + timeToLive);
+            return;
+        }
+        AppCenterLog.debug(LOG_TAG, "setLogTimeToLive(" + groupName + ", " + timeToLive + ")");
+        mPersistence.setTimeToLive(groupName, timeToLive);
+        if (timeToLive > 0) {
+            scheduleLogExpiry();
+        }
+    }
+
+    @WorkerThread
+    @Override
+    public void setLogTypeTimeToLive(@NonNull String logType, long timeToLive) {
+        if (timeToLive < 0) {
+            AppCenterLog.error(LOG_TAG, "Invalid time to live for log type " + logType + ": " + timeToLive);
+            return;
+        }
+        AppCenterLog.debug(LOG_TAG, "setLogTypeTimeToLive(" + logType + ", " + timeToLive + ")");
+        mPersistence.setLogTypeTimeToLive(logType, timeToLive);
+        if (timeToLive > 0) {
+            scheduleLogExpiry();
+        }
+    }
+
+    /**
+     * Start deleting expired logs periodically, in their own handler messages so that sending batches is not delayed.
+     * The first deletion happens as soon as possible to drop logs that expired while the application was not running.
+     */
+    private void scheduleLogExpiry() {
+        if (mLogExpiryRunnable != null) {
+            return;
+        }
+        mLogExpiryRunnable = new Runnable() {
+
+            @Override
+            public void run() {
+                int expiredCount = mPersistence.deleteExpiredLogs();
+                if (expiredCount > 0) {
+                    AppCenterLog.debug(LOG_TAG, "Deleted " + expiredCount + " expired logs.");
+                }
+                mAppCenterHandler.postDelayed(this, LOG_EXPIRY_INTERVAL);
+            }
+        };
+        mAppCenterHandler.post(mLogExpiryRunnable);
+    }
+
+    @WorkerThread
+    @Override
+    public void setRequestCoalescingEnabled(boolean enabled) {
+        AppCenterLog.debug(LOG_TAG, "setRequestCoalescingEnabled(" + enabled + ")");
+        mRequestCoalescingEnabled = enabled;
+    }
+
+    @WorkerThread
+    @Override
+    public void setAdaptiveBatchSizing(int minLogsPerBatch, int maxLogsPerBatch, long targetRoundTripTime, long maxBatchByteSize) {
+        if (minLogsPerBatch < 0 || (minLogsPerBatch > 0 && (maxLogsPerBatch < minLogsPerBatch || targetRoundTripTime <= 0 || maxBatchByteSize < 0))) {
+            AppCenterLog.error(LOG_TAG, "Invalid adaptive batch sizing configuration: minLogsPerBatch=" + minLogsPerBatch
+                    + " maxLogsPerBatch=" + maxLogsPerBatch + " targetRoundTripTime=" + targetRoundTripTime + " maxBatchByteSize=" + maxBatchByteSize);
+            return;
+        }
+        AppCenterLog.debug(LOG_TAG, "setAdaptiveBatchSizing(" + minLogsPerBatch + ", " + maxLogsPerBatch + ", " + targetRoundTripTime + ", " + maxBatchByteSize + ")");
+        mAdaptiveMinLogsPerBatch = minLogsPerBatch;
+        mAdaptiveMaxLogsPerBatch = maxLogsPerBatch;
+        mAdaptiveTargetRoundTripTime = targetRoundTripTime;
+        mAdaptiveMaxBatchByteSize = maxBatchByteSize;
+        for (GroupState groupState : mGroupStates.values()) {
+            groupState.mBatchSizer = createBatchSizer(groupState.mConfiguredMaxLogsPerBatch);
+            groupState.mMaxLogsPerBatch = groupState.mBatchSizer != null ? groupState.mBatchSizer.getLogsPerBatch() : groupState.mConfiguredMaxLogsPerBatch;
+        }
+    }
+
+    /**
+     * Create a batch size controller for a group if adaptive batch sizing is enabled.
+     *
+     * @param maxLogsPerBatch batch size configured for the group.
+     * @return the controller or null if adaptive batch sizing is disabled.
+     */
+    private AdaptiveBatchSizer createBatchSizer(int maxLogsPerBatch) {
+        if (mAdaptiveMinLogsPerBatch <= 0) {
+            return null;
+        }
+        return new AdaptiveBatchSizer(maxLogsPerBatch, mAdaptiveMinLogsPerBatch, mAdaptiveMaxLogsPerBatch, mAdaptiveTargetRoundTripTime, mAdaptiveMaxBatchByteSize);
+    }
+
+    @WorkerThread
+    @Override
+    public void setCircuitBreaker(long initialOpenDuration, long maxOpenDuration) {
+        AppCenterLog.debug(LOG_TAG, "setCircuitBreaker(" + initialOpenDuration + ", " + maxOpenDuration + ")");
+        for (CircuitBreaker circuitBreaker : mCircuitBreakers.values()) {
+            cancelHalfOpenTimer(circuitBreaker);
+        }
+        mCircuitBreakers.clear();
+        mCircuitBreakerInitialOpenDuration = Math.max(initialOpenDuration, 0);
+        mCircuitBreakerMaxOpenDuration = maxOpenDuration;
+        if (mCircuitBreakerInitialOpenDuration > 0) {
+            for (Ingestion ingestion : mIngestions) {
+                mCircuitBreakers.put(ingestion, new CircuitBreaker(mCircuitBreakerInitialOpenDuration, mCircuitBreakerMaxOpenDuration));
+            }
+        }
+
+        /* Groups that were waiting for a circuit to close can send again. */
+        if (mEnabled) {
+            for (GroupState groupState : mGroupStates.values()) {
+                checkPendingLogs(groupState);
+            }
+        }
+    }
+
     /**
      * Call this after every async (such as database/ingestion) callback and stop processing if it returns false.
      * That means either the groupState was removed (or removed/added again),
@@ -224,9 +711,23 @@ public class DefaultChannel implements Channel {
         AppCenterLog.debug(LOG_TAG, "addGroup(" + groupName + ")");
         ingestion = ingestion == null ? mIngestion : ingestion;
         mIngestions.add(ingestion);
-        final GroupState groupState = new GroupState(groupName, maxLogsPerBatch, batchTimeInterval, maxParallelBatches, ingestion, groupListener);
+        if (mCircuitBreakerInitialOpenDuration > 0 && !mCircuitBreakers.containsKey(ingestion)) {
+            mCircuitBreakers.put(ingestion, new CircuitBreaker(mCircuitBreakerInitialOpenDuration, mCircuitBreakerMaxOpenDuration));
+        }
+        final GroupState groupState = new GroupState(groupName, maxLogsPerBatch, batchTimeInterval, maxParallelBatches, ingestion, groupListener, mMetrics.getOrCreateGroupMetrics(groupName));
+        groupState.mMetrics.mGroupState = groupState;
+        groupState.mBatchSizer = createBatchSizer(maxLogsPerBatch);
+        if (groupState.mBatchSizer != null) {
+            groupState.mMaxLogsPerBatch = groupState.mBatchSizer.getLogsPerBatch();
+        }
         mGroupStates.put(groupName, groupState);
 
+        /* Restore when the batch timer started, from memory if the group was already added before. */
+        if (batchTimeInterval > MINIMUM_TRANSMISSION_INTERVAL) {
+            Long timerStartTime = mTimerCheckpoints.get(groupName);
+            groupState.mTimerStartTime = timerStartTime != null ? timerStartTime : SharedPreferencesManager.getLong(START_TIMER_PREFIX + groupName);
+        }
+
         /* Count pending logs. */
         groupState.mPendingLogCount = mPersistence.countLogs(groupName);
 
@@ -252,7 +753,12 @@ public class DefaultChannel implements Channel {
         AppCenterLog.debug(LOG_TAG, "removeGroup(" + groupName + ")");
         GroupState groupState = mGroupStates.remove(groupName);
         if (groupState != null) {
+            persistBufferedLogs(groupState);
+            releasePrefetchedBatch(groupState);
             cancelTimer(groupState);
+            if (groupState.mMetrics.mGroupState == groupState) {
+                groupState.mMetrics.mGroupState = null;
+            }
         }
 
         /* Call listeners so that they can react on group removed. */
@@ -269,6 +775,9 @@ public class DefaultChannel implements Channel {
                 String targetKey = PartAUtils.getTargetKey(targetToken);
                 if (groupState.mPausedTargetKeys.add(targetKey)) {
                     AppCenterLog.debug(LOG_TAG, "pauseGroup(" + groupName + ", " + targetKey + ")");
+
+                    /* The batch read ahead of time may contain logs of the paused target. */
+                    releasePrefetchedBatch(groupState);
                 }
             } else if (!groupState.mPaused) {
                 AppCenterLog.debug(LOG_TAG, "pauseGroup(" + groupName + ")");
@@ -293,13 +802,11 @@ public class DefaultChannel implements Channel {
 
                     /*
                      * Log count can be 0 in memory because of the partial pause, but we might have
-                     * logs in storage for this key, a simple fix is to reevaluate log count and check
-                     * for logs again. This might create a batch with fewer logs than expected as
-                     * the log count does not exclude logs with paused keys, this would be an optimization
-                     * that does not seem necessary for now.
+                     * logs in storage for this key, reevaluate log count and check for logs again.
+                     * Logs of keys that are still paused are not counted as they cannot be sent.
                      */
                     AppCenterLog.debug(LOG_TAG, "resumeGroup(" + groupName + ", " + targetKey + ")");
-                    groupState.mPendingLogCount = mPersistence.countLogs(groupName);
+                    groupState.mPendingLogCount = mPersistence.countLogs(groupName, groupState.mPausedTargetKeys);
                     checkPendingLogs(groupState);
                 }
             } else if (groupState.mPaused) {
@@ -315,6 +822,21 @@ public class DefaultChannel implements Channel {
         }
     }
 
+    @Override
+    public void setBackpressure(@NonNull String groupName, int highWatermark, @BackpressurePolicy int policy) {
+        if (highWatermark < 0 || policy < BackpressurePolicy.REJECT || policy > BackpressurePolicy.EVICT) {
+            AppCenterLog.error(LOG_TAG, "Invalid backpressure configuration: highWatermark=" + highWatermark + " policy=" + policy);
+            return;
+        }
+        GroupState groupState = mGroupStates.get(groupName);
+        if (groupState != null) {
+            AppCenterLog.debug(LOG_TAG, "setBackpressure(" + groupName + ", " + highWatermark + ", " + policy + ")");
+            groupState.mBackpressurePolicy = policy;
+            groupState.mHighWatermark = highWatermark;
+            groupState.mUnderBackpressure = false;
+        }
+    }
+
     @Override
     public boolean isEnabled() {
         return mEnabled;
@@ -339,6 +861,9 @@ public class DefaultChannel implements Channel {
             for (Ingestion ingestion : mIngestions) {
                 ingestion.reopen();
             }
+            for (CircuitBreaker circuitBreaker : mCircuitBreakers.values()) {
+                circuitBreaker.reset();
+            }
             for (GroupState groupState : mGroupStates.values()) {
                 checkPendingLogs(groupState);
             }
@@ -369,8 +894,17 @@ public class DefaultChannel implements Channel {
             return;
         }
         AppCenterLog.debug(LOG_TAG, "clear(" + groupName + ")");
-        mPersistence.deleteLogs(groupName);
-
+        GroupState groupState = mGroupStates.get(groupName);
+        if (groupState != null) {
+            groupState.mMetrics.mDiscardedCount += groupState.mBufferedLogs.size() + groupState.mPendingLogCount
+                    + (groupState.mPrefetchedBatch != null ? groupState.mPrefetchedBatch.size() : 0);
+            cancelBufferFlush(groupState);
+            groupState.mBufferedLogs.clear();
+            groupState.mPrefetchedBatch = null;
+            groupState.mPrefetchedBatchId = null;
+        }
+        mPersistence.deleteLogs(groupName);
+
         /* Call listeners so that they can react on group clearing. */
         for (Listener listener : mListeners) {
             listener.onClear(groupName);
@@ -394,11 +928,37 @@ public class DefaultChannel implements Channel {
         for (GroupState groupState : mGroupStates.values()) {
             cancelTimer(groupState);
 
+            /* Buffered logs are either discarded with the others or persisted for later. */
+            if (deleteLogs) {
+                discardBufferedLogs(groupState);
+            } else {
+                persistBufferedLogs(groupState);
+            }
+
+            /* Logs read ahead of time were not sent yet. */
+            List<Log> prefetchedBatch = groupState.mPrefetchedBatch;
+            if (prefetchedBatch != null) {
+                groupState.mPrefetchedBatch = null;
+                groupState.mPrefetchedBatchId = null;
+                if (deleteLogs) {
+                    groupState.mMetrics.mDiscardedCount += prefetchedBatch.size();
+                    if (groupState.mListener != null) {
+                        for (Log log : prefetchedBatch) {
+                            groupState.mListener.onBeforeSending(log);
+                            groupState.mListener.onFailure(log, new CancellationException());
+                        }
+                    }
+                } else {
+                    groupState.mPendingLogCount += prefetchedBatch.size();
+                }
+            }
+
             /* Delete all other batches and call callback method that are currently in progress. */
             for (Iterator<Map.Entry<String, List<Log>>> iterator = groupState.mSendingBatches.entrySet().iterator(); iterator.hasNext(); ) {
                 Map.Entry<String, List<Log>> entry = iterator.next();
                 iterator.remove();
                 if (deleteLogs) {
+                    groupState.mMetrics.mDiscardedCount += entry.getValue().size();
                     GroupListener groupListener = groupState.mListener;
                     if (groupListener != null) {
                         for (Log log : entry.getValue()) {
@@ -408,6 +968,11 @@ public class DefaultChannel implements Channel {
                 }
             }
         }
+        mCoalescedBatches.clear();
+        for (CircuitBreaker circuitBreaker : mCircuitBreakers.values()) {
+            cancelHalfOpenTimer(circuitBreaker);
+            circuitBreaker.reset();
+        }
         for (Ingestion ingestion : mIngestions) {
             try {
                 ingestion.close();
@@ -427,6 +992,7 @@ public class DefaultChannel implements Channel {
     private void deleteLogsOnSuspended(final GroupState groupState) {
         final List<Log> logs = new ArrayList<>();
         mPersistence.getLogs(groupState.mName, Collections.<String>emptyList(), CLEAR_BATCH_SIZE, logs);
+        groupState.mMetrics.mDiscardedCount += logs.size();
         if (logs.size() > 0 && groupState.mListener != null) {
             for (Log log : logs) {
                 groupState.mListener.onBeforeSending(log);
@@ -445,8 +1011,41 @@ public class DefaultChannel implements Channel {
         if (groupState.mScheduled) {
             groupState.mScheduled = false;
             mAppCenterHandler.removeCallbacks(groupState.mRunnable);
-            SharedPreferencesManager.remove(START_TIMER_PREFIX + groupState.mName);
+            setTimerStartTime(groupState, 0);
+        }
+    }
+
+    /**
+     * Update when the batch timer of a group started, saved to storage on next {@link #checkpoint()}.
+     *
+     * @param groupState     the group state.
+     * @param timerStartTime start time in ms, 0 when the timer ended.
+     */
+    private void setTimerStartTime(@NonNull GroupState groupState, long timerStartTime) {
+        groupState.mTimerStartTime = timerStartTime;
+        mTimerCheckpoints.put(groupState.mName, timerStartTime);
+    }
+
+    @Override
+    public void checkpoint() {
+
+        /* Buffered logs must reach the persistence before it saves what it keeps in memory. */
+        for (GroupState groupState : mGroupStates.values()) {
+            flushBufferedLogs(groupState);
+        }
+        mPersistence.checkpoint();
+        if (mTimerCheckpoints.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, Long> entry : mTimerCheckpoints.entrySet()) {
+            if (entry.getValue() == 0) {
+                SharedPreferencesManager.remove(START_TIMER_PREFIX + entry.getKey());
+            } else {
+                SharedPreferencesManager.putLong(START_TIMER_PREFIX + entry.getKey(), entry.getValue());
+            }
         }
+        AppCenterLog.debug(LOG_TAG, "Saved " + mTimerCheckpoints.size() + " batch timer(s).");
+        mTimerCheckpoints.clear();
     }
 
     /**
@@ -465,6 +1064,11 @@ public class DefaultChannel implements Channel {
             AppCenterLog.debug(LOG_TAG, "SDK is in offline mode.");
             return;
         }
+        CircuitBreaker circuitBreaker = mCircuitBreakers.get(groupState.mIngestion);
+        if (circuitBreaker != null && !circuitBreaker.allowsRequest()) {
+            AppCenterLog.debug(LOG_TAG, "Circuit is open for the ingestion of " + groupState.mName + ", not sending logs.");
+            return;
+        }
         int pendingLogCount = groupState.mPendingLogCount;
         int maxFetch = Math.min(pendingLogCount, groupState.mMaxLogsPerBatch);
         AppCenterLog.debug(LOG_TAG, "triggerIngestion(" + groupState.mName + ") pendingLogCount=" + pendingLogCount);
@@ -473,19 +1077,33 @@ public class DefaultChannel implements Channel {
         /* Check if we have reached the maximum number of pending batches, log to LogCat and don't trigger another sending. */
         if (groupState.mSendingBatches.size() == groupState.mMaxParallelBatches) {
             AppCenterLog.debug(LOG_TAG, "Already sending " + groupState.mMaxParallelBatches + " batches of analytics data to the server.");
+            prefetchBatchIfNeeded(groupState);
             return;
         }
 
-        /* Get a batch from Persistence. */
-        final List<Log> batch = new ArrayList<>(maxFetch);
-        final String batchId = mPersistence.getLogs(groupState.mName, groupState.mPausedTargetKeys, maxFetch, batch);
+        /* Use the batch read ahead of time if any. */
+        final List<Log> batch;
+        final String batchId;
+        if (groupState.mPrefetchedBatchId != null) {
+            batch = groupState.mPrefetchedBatch;
+            batchId = groupState.mPrefetchedBatchId;
+            groupState.mPrefetchedBatch = null;
+            groupState.mPrefetchedBatchId = null;
+        } else {
 
-        /* Decrement counter. */
-        groupState.mPendingLogCount -= maxFetch;
+            /* Get a batch from Persistence. */
+            batch = new ArrayList<>(maxFetch);
+            long readStartTime = System.nanoTime();
+            batchId = mPersistence.getLogs(groupState.mName, groupState.mPausedTargetKeys, maxFetch, batch);
+            groupState.mMetrics.mBatchReadTime.record((System.nanoTime() - readStartTime) / 1000);
 
-        /* Nothing more to do if no logs. */
-        if (batchId == null) {
-            return;
+            /* Decrement counter. */
+            groupState.mPendingLogCount -= maxFetch;
+
+            /* Nothing more to do if no logs. */
+            if (batchId == null) {
+                return;
+            }
         }
         AppCenterLog.debug(LOG_TAG, "ingestLogs(" + groupState.mName + "," + batchId + ") pendingLogCount=" + groupState.mPendingLogCount);
 
@@ -498,7 +1116,84 @@ public class DefaultChannel implements Channel {
 
         /* Remember this batch. */
         groupState.mSendingBatches.put(batchId, batch);
-        sendLogs(groupState, mCurrentState, batch, batchId);
+        if (circuitBreaker != null) {
+            circuitBreaker.onRequestSent();
+        }
+        if (mRequestCoalescingEnabled) {
+            coalesceLogs(groupState, batch, batchId);
+        } else {
+            sendLogs(groupState, mCurrentState, batch, batchId);
+        }
+
+        /* Read the next batch while this one is in flight. */
+        prefetchBatchIfNeeded(groupState);
+    }
+
+    /**
+     * Schedule reading the next batch of a group ahead of time if pipelining is enabled
+     * and there are enough pending logs for a full batch.
+     *
+     * @param groupState the group state.
+     */
+    private void prefetchBatchIfNeeded(@NonNull final GroupState groupState) {
+        if (!mBatchPrefetchEnabled || groupState.mPrefetchScheduled || groupState.mPrefetchedBatchId != null
+                || groupState.mBatchTimeInterval > MINIMUM_TRANSMISSION_INTERVAL
+                || groupState.mPendingLogCount < groupState.mMaxLogsPerBatch) {
+            return;
+        }
+        groupState.mPrefetchScheduled = true;
+        final int stateSnapshot = mCurrentState;
+        mAppCenterHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                groupState.mPrefetchScheduled = false;
+                if (checkStateDidNotChange(groupState, stateSnapshot)) {
+                    prefetchBatch(groupState);
+                }
+            }
+        });
+    }
+
+    /**
+     * Read the next batch of a group from persistence and keep it until a batch slot is available.
+     *
+     * @param groupState the group state.
+     */
+    private void prefetchBatch(@NonNull GroupState groupState) {
+        if (!mEnabled || !mIngestion.isEnabled() || groupState.mPaused || groupState.mPrefetchedBatchId != null) {
+            return;
+        }
+        int maxFetch = Math.min(groupState.mPendingLogCount, groupState.mMaxLogsPerBatch);
+        List<Log> batch = new ArrayList<>(maxFetch);
+        long readStartTime = System.nanoTime();
+        String batchId = mPersistence.getLogs(groupState.mName, groupState.mPausedTargetKeys, maxFetch, batch);
+        groupState.mMetrics.mBatchReadTime.record((System.nanoTime() - readStartTime) / 1000);
+        groupState.mPendingLogCount -= maxFetch;
+        if (batchId != null) {
+            groupState.mPrefetchedBatch = batch;
+            groupState.mPrefetchedBatchId = batchId;
+            AppCenterLog.debug(LOG_TAG, "prefetchBatch(" + groupState.mName + "," + batchId + ") pendingLogCount=" + groupState.mPendingLogCount);
+
+            /* A batch slot may have been released while reading. */
+            if (groupState.mSendingBatches.size() < groupState.mMaxParallelBatches) {
+                triggerIngestion(groupState);
+            }
+        }
+    }
+
+    /**
+     * Give the batch read ahead of time back to persistence, for example when its logs may no longer be sent as is.
+     *
+     * @param groupState the group state.
+     */
+    private void releasePrefetchedBatch(@NonNull GroupState groupState) {
+        if (groupState.mPrefetchedBatchId != null) {
+            mPersistence.releaseLogs(groupState.mName, groupState.mPrefetchedBatchId);
+            groupState.mPendingLogCount += groupState.mPrefetchedBatch.size();
+            groupState.mPrefetchedBatch = null;
+            groupState.mPrefetchedBatchId = null;
+        }
     }
 
     /**
@@ -515,14 +1210,17 @@ public class DefaultChannel implements Channel {
         /* Send logs. */
         LogContainer logContainer = new LogContainer();
         logContainer.setLogs(batch);
+        final long sendTime = System.nanoTime();
         groupState.mIngestion.sendAsync(mAppSecret, mInstallId, logContainer, new ServiceCallback() {
 
             @Override
             public void onCallSucceeded(HttpResponse httpResponse) {
+                final long roundTripTime = (System.nanoTime() - sendTime) / 1000;
                 mAppCenterHandler.post(new Runnable() {
 
                     @Override
                     public void run() {
+                        onBatchResponse(groupState, batchId, roundTripTime, true);
                         handleSendingSuccess(groupState, batchId);
                     }
                 });
@@ -530,10 +1228,12 @@ public class DefaultChannel implements Channel {
 
             @Override
             public void onCallFailed(final Exception e) {
+                final long roundTripTime = (System.nanoTime() - sendTime) / 1000;
                 mAppCenterHandler.post(new Runnable() {
 
                     @Override
                     public void run() {
+                        onBatchResponse(groupState, batchId, roundTripTime, false);
                         handleSendingFailure(groupState, batchId, e);
                     }
                 });
@@ -550,6 +1250,169 @@ public class DefaultChannel implements Channel {
         });
     }
 
+    /**
+     * Add a batch to the request of its ingestion. The first batch schedules sending the merged request
+     * and gives the other groups of the same ingestion a chance to add their ready batches.
+     * Groups that are not ready keep waiting for their timer, they join the request if it fires before the request is sent.
+     *
+     * @param groupState The group state.
+     * @param batch      The log batch.
+     * @param batchId    The batch ID.
+     */
+    private void coalesceLogs(@NonNull GroupState groupState, @NonNull List<Log> batch, @NonNull String batchId) {
+        final Ingestion ingestion = groupState.mIngestion;
+        List<CoalescedBatch> coalescedBatches = mCoalescedBatches.get(ingestion);
+        boolean first = coalescedBatches == null;
+        if (first) {
+            coalescedBatches = new ArrayList<>();
+            mCoalescedBatches.put(ingestion, coalescedBatches);
+        }
+        coalescedBatches.add(new CoalescedBatch(groupState, batch, batchId));
+        if (!first) {
+            return;
+        }
+
+        /* Piggyback ready batches of other groups using the same ingestion. */
+        for (GroupState otherGroupState : mGroupStates.values()) {
+            if (otherGroupState != groupState && otherGroupState.mIngestion == ingestion && !otherGroupState.mPaused && isBatchReady(otherGroupState)) {
+                triggerIngestion(otherGroupState);
+            }
+        }
+        final int stateSnapshot = mCurrentState;
+        mAppCenterHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (stateSnapshot == mCurrentState) {
+                    sendCoalescedLogs(ingestion, stateSnapshot);
+                }
+            }
+        });
+    }
+
+    /**
+     * Check if a group would send a batch now without waiting for its timer: a batch was read ahead of time while sending,
+     * its custom interval is over or it has enough pending logs for a full batch.
+     *
+     * @param groupState The group state.
+     * @return true if the group has a batch ready to be sent.
+     */
+    private boolean isBatchReady(@NonNull GroupState groupState) {
+        if (groupState.mPrefetchedBatchId != null) {
+            return true;
+        }
+        if (groupState.mPendingLogCount <= 0) {
+            return false;
+        }
+        if (groupState.mBatchTimeInterval > MINIMUM_TRANSMISSION_INTERVAL) {
+            long startTimer = groupState.mTimerStartTime;
+            return startTimer != 0 && startTimer + groupState.mBatchTimeInterval <= System.currentTimeMillis();
+        }
+        return groupState.mPendingLogCount >= groupState.mMaxLogsPerBatch;
+    }
+
+    /**
+     * Send all the batches added for an ingestion in a single request and dispatch the result to each group.
+     *
+     * @param ingestion    The ingestion.
+     * @param currentState The current state.
+     */
+    private void sendCoalescedLogs(@NonNull Ingestion ingestion, int currentState) {
+        final List<CoalescedBatch> coalescedBatches = mCoalescedBatches.remove(ingestion);
+        if (coalescedBatches == null) {
+            return;
+        }
+        if (coalescedBatches.size() == 1) {
+            CoalescedBatch coalescedBatch = coalescedBatches.get(0);
+            sendLogs(coalescedBatch.mGroupState, currentState, coalescedBatch.mBatch, coalescedBatch.mBatchId);
+            return;
+        }
+        List<Log> logs = new ArrayList<>();
+        for (CoalescedBatch coalescedBatch : coalescedBatches) {
+            logs.addAll(coalescedBatch.mBatch);
+        }
+        AppCenterLog.debug(LOG_TAG, "Sending " + coalescedBatches.size() + " batches in a single request.");
+        LogContainer logContainer = new LogContainer();
+        logContainer.setLogs(logs);
+        final long sendTime = System.nanoTime();
+        ingestion.sendAsync(mAppSecret, mInstallId, logContainer, new ServiceCallback() {
+
+            @Override
+            public void onCallSucceeded(HttpResponse httpResponse) {
+                final long roundTripTime = (System.nanoTime() - sendTime) / 1000;
+                mAppCenterHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        for (CoalescedBatch coalescedBatch : coalescedBatches) {
+                            onBatchResponse(coalescedBatch.mGroupState, coalescedBatch.mBatchId, roundTripTime, true);
+                            handleSendingSuccess(coalescedBatch.mGroupState, coalescedBatch.mBatchId);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onCallFailed(final Exception e) {
+                final long roundTripTime = (System.nanoTime() - sendTime) / 1000;
+                mAppCenterHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        for (CoalescedBatch coalescedBatch : coalescedBatches) {
+                            onBatchResponse(coalescedBatch.mGroupState, coalescedBatch.mBatchId, roundTripTime, false);
+                            handleSendingFailure(coalescedBatch.mGroupState, coalescedBatch.mBatchId, e);
+                        }
+                    }
+                });
+            }
+        });
+
+        /* Check for more pending logs. */
+        for (final CoalescedBatch coalescedBatch : coalescedBatches) {
+            final int stateSnapshot = currentState;
+            mAppCenterHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    checkPendingLogsAfterPost(coalescedBatch.mGroupState, stateSnapshot);
+                }
+            });
+        }
+    }
+
+    /**
+     * Record the round-trip time of a batch still being sent and update the batch size of its group.
+     *
+     * @param groupState    The group state.
+     * @param batchId       The batch ID.
+     * @param roundTripTime The HTTP round-trip time in microseconds.
+     * @param success       true if the batch was sent successfully.
+     */
+    private void onBatchResponse(@NonNull GroupState groupState, @NonNull String batchId, long roundTripTime, boolean success) {
+        List<Log> batch = groupState.mSendingBatches.get(batchId);
+        if (batch == null) {
+            return;
+        }
+        groupState.mMetrics.mRoundTripTime.record(roundTripTime);
+        AdaptiveBatchSizer batchSizer = groupState.mBatchSizer;
+        if (batchSizer == null) {
+            return;
+        }
+        int logsPerBatch;
+        if (success) {
+            long byteSize = mPersistence.getBatchByteSize(groupState.mName, batchId);
+            logsPerBatch = batchSizer.onBatchSent(batch.size(), byteSize, roundTripTime / 1000);
+        } else {
+            logsPerBatch = batchSizer.onBatchFailed();
+        }
+        if (logsPerBatch != groupState.mMaxLogsPerBatch) {
+            AppCenterLog.debug(LOG_TAG, "Batch size of " + groupState.mName + " changed from " + groupState.mMaxLogsPerBatch + " to " + logsPerBatch
+                    + " after round-trip time of " + roundTripTime / 1000 + "ms.");
+            groupState.mMaxLogsPerBatch = logsPerBatch;
+        }
+    }
+
     private void checkPendingLogsAfterPost(@NonNull final GroupState groupState, int currentState) {
         if (checkStateDidNotChange(groupState, currentState)) {
             checkPendingLogs(groupState);
@@ -565,6 +1428,7 @@ public class DefaultChannel implements Channel {
     private void handleSendingSuccess(@NonNull GroupState groupState, @NonNull String batchId) {
         List<Log> removedLogsForBatchId = groupState.mSendingBatches.remove(batchId);
         if (removedLogsForBatchId != null) {
+            groupState.mMetrics.mSentCount += removedLogsForBatchId.size();
             mPersistence.deleteLogs(groupState.mName, batchId);
             GroupListener groupListener = groupState.mListener;
             if (groupListener != null) {
@@ -572,7 +1436,16 @@ public class DefaultChannel implements Channel {
                     groupListener.onSuccess(log);
                 }
             }
-            checkPendingLogs(groupState);
+            CircuitBreaker circuitBreaker = mCircuitBreakers.get(groupState.mIngestion);
+            if (circuitBreaker != null && circuitBreaker.onSuccess()) {
+
+                /* Circuit closed again, resume all groups sharing the ingestion. */
+                AppCenterLog.debug(LOG_TAG, "Circuit closed for the ingestion of " + groupState.mName + ".");
+                cancelHalfOpenTimer(circuitBreaker);
+                checkPendingLogsForIngestion(groupState.mIngestion);
+            } else {
+                checkPendingLogs(groupState);
+            }
         }
     }
 
@@ -591,9 +1464,11 @@ public class DefaultChannel implements Channel {
         if (removedLogsForBatchId != null) {
             AppCenterLog.error(LOG_TAG, "Sending logs groupName=" + groupName + " id=" + batchId + " failed", e);
             boolean recoverableError = HttpUtils.isRecoverableError(e);
+            groupState.mMetrics.mFailedCount += removedLogsForBatchId.size();
             if (recoverableError) {
                 groupState.mPendingLogCount += removedLogsForBatchId.size();
             } else {
+                groupState.mMetrics.mDiscardedCount += removedLogsForBatchId.size();
                 GroupListener groupListener = groupState.mListener;
                 if (groupListener != null) {
                     for (Log log : removedLogsForBatchId) {
@@ -601,11 +1476,78 @@ public class DefaultChannel implements Channel {
                     }
                 }
             }
+            CircuitBreaker circuitBreaker = mCircuitBreakers.get(groupState.mIngestion);
+            if (circuitBreaker != null) {
+
+                /* Only the failing ingestion stops sending, the batch is retried later or dropped. */
+                if (recoverableError) {
+                    mPersistence.releaseLogs(groupName, batchId);
+                } else {
+                    mPersistence.deleteLogs(groupName, batchId);
+                }
+                openCircuit(circuitBreaker, groupState.mIngestion);
+                return;
+            }
             mEnabled = false;
             suspend(!recoverableError, e);
         }
     }
 
+    /**
+     * Open the circuit of an ingestion and schedule moving it to half-open.
+     *
+     * @param circuitBreaker the circuit breaker.
+     * @param ingestion      the ingestion the circuit breaker is for.
+     */
+    private void openCircuit(@NonNull final CircuitBreaker circuitBreaker, @NonNull final Ingestion ingestion) {
+
+        /* Other batches of a request that already failed don't extend the open period. */
+        if (circuitBreaker.getState() == CircuitBreaker.State.OPEN) {
+            return;
+        }
+        cancelHalfOpenTimer(circuitBreaker);
+        long openDuration = circuitBreaker.onFailure();
+        AppCenterLog.debug(LOG_TAG, "Circuit opened for " + openDuration + "ms for ingestion " + ingestion);
+        circuitBreaker.mHalfOpenRunnable = new Runnable() {
+
+            @Override
+            public void run() {
+                circuitBreaker.mHalfOpenRunnable = null;
+                circuitBreaker.halfOpen();
+                AppCenterLog.debug(LOG_TAG, "Circuit half-open for ingestion " + ingestion);
+                if (mEnabled) {
+                    checkPendingLogsForIngestion(ingestion);
+                }
+            }
+        };
+        mAppCenterHandler.postDelayed(circuitBreaker.mHalfOpenRunnable, openDuration);
+    }
+
+    /**
+     * Cancel the scheduled move to half-open of a circuit breaker if any.
+     *
+     * @param circuitBreaker the circuit breaker.
+     */
+    private void cancelHalfOpenTimer(@NonNull CircuitBreaker circuitBreaker) {
+        if (circuitBreaker.mHalfOpenRunnable != null) {
+            mAppCenterHandler.removeCallbacks(circuitBreaker.mHalfOpenRunnable);
+            circuitBreaker.mHalfOpenRunnable = null;
+        }
+    }
+
+    /**
+     * Check pending logs of all groups using an ingestion.
+     *
+     * @param ingestion the ingestion.
+     */
+    private void checkPendingLogsForIngestion(@NonNull Ingestion ingestion) {
+        for (GroupState groupState : mGroupStates.values()) {
+            if (groupState.mIngestion == ingestion) {
+                checkPendingLogs(groupState);
+            }
+        }
+    }
+
     @Override
     public void enqueue(@NonNull Log log, @NonNull final String groupName, int flags) {
 
@@ -615,10 +1557,14 @@ public class DefaultChannel implements Channel {
             AppCenterLog.error(LOG_TAG, "Invalid group name:" + groupName);
             return;
         }
+        long enqueueTime = System.nanoTime();
+        ChannelMetrics.GroupMetrics metrics = groupState.mMetrics;
+        metrics.mEnqueuedCount++;
 
         /* Check if disabled with discarding logs. */
         if (mDiscardLogs) {
             AppCenterLog.warn(LOG_TAG, "Channel is disabled, the log is discarded.");
+            metrics.mDiscardedCount++;
             if (groupState.mListener != null) {
                 groupState.mListener.onBeforeSending(log);
                 groupState.mListener.onFailure(log, new CancellationException());
@@ -640,6 +1586,7 @@ public class DefaultChannel implements Channel {
                     mDevice = DeviceInfoHelper.getDeviceInfo(mContext);
                 } catch (DeviceInfoHelper.DeviceInfoException e) {
                     AppCenterLog.error(LOG_TAG, "Device log cannot be generated", e);
+                    metrics.mDiscardedCount++;
                     return;
                 }
             }
@@ -667,19 +1614,38 @@ public class DefaultChannel implements Channel {
         /* If filtered out, nothing more to do. */
         if (filteredOut) {
             AppCenterLog.debug(LOG_TAG, "Log of type '" + log.getType() + "' was filtered out by listener(s)");
+            metrics.mFilteredCount++;
         } else {
             if (mAppSecret == null && groupState.mIngestion == mIngestion) {
 
                 /* Log was not filtered out but no app secret has been provided. Do nothing in this case. */
                 AppCenterLog.debug(LOG_TAG, "Log of type '" + log.getType() + "' was not filtered out by listener(s) but no app secret was provided. Not persisting/sending the log.");
+                metrics.mDiscardedCount++;
+                return;
+            }
+
+            /* Limit pending logs when over the high watermark. */
+            if (!applyBackpressure(groupState, log, flags)) {
+                return;
+            }
+
+            /* Hold non critical logs in the write-behind buffer, they are persisted together later. */
+            if (mMaxBufferedLogs > 0 && Flags.getPersistenceFlag(flags, false) != Flags.CRITICAL) {
+                bufferLog(groupState, log, enqueueTime);
                 return;
             }
+
+            /* Persist buffered logs first so that they are not overtaken by this one. */
+            flushBufferedLogs(groupState);
             try {
 
                 /* Persist log. */
                 mPersistence.putLog(log, groupName, flags);
+                metrics.mPersistedCount++;
+                metrics.mEnqueueToPersistTime.record((System.nanoTime() - enqueueTime) / 1000);
             } catch (Persistence.PersistenceException e) {
                 AppCenterLog.error(LOG_TAG, "Error persisting log", e);
+                metrics.mDiscardedCount++;
                 if (groupState.mListener != null) {
                     groupState.mListener.onBeforeSending(log);
                     groupState.mListener.onFailure(log, e);
@@ -688,24 +1654,249 @@ public class DefaultChannel implements Channel {
             }
 
             /* Nothing more to do if the log is from a paused transmission target. */
-            Iterator<String> targetKeys = log.getTransmissionTargetTokens().iterator();
-            String targetKey = targetKeys.hasNext() ? PartAUtils.getTargetKey(targetKeys.next()) : null;
-            if (groupState.mPausedTargetKeys.contains(targetKey)) {
-                AppCenterLog.debug(LOG_TAG, "Transmission target ikey=" + targetKey + " is paused.");
+            if (!countPendingLog(groupState, log)) {
                 return;
             }
 
-            /* Increment counters and schedule ingestion if we are enabled. */
-            groupState.mPendingLogCount++;
+            /* Schedule ingestion if we are enabled. */
             AppCenterLog.debug(LOG_TAG, "enqueue(" + groupState.mName + ") pendingLogCount=" + groupState.mPendingLogCount);
-            if (mEnabled) {
-                checkPendingLogs(groupState);
-            } else {
-                AppCenterLog.debug(LOG_TAG, "Channel is temporarily disabled, log was saved to disk.");
+            checkPendingLogsIfEnabled(groupState);
+        }
+    }
+
+    /**
+     * Apply the backpressure policy of a group to a log about to be persisted.
+     *
+     * @param groupState the group state.
+     * @param log        the log.
+     * @param flags      the log flags.
+     * @return true if the log must be persisted, false if it was rejected or sampled out.
+     */
+    private boolean applyBackpressure(@NonNull GroupState groupState, @NonNull Log log, int flags) {
+        int highWatermark = groupState.mHighWatermark;
+        if (highWatermark <= 0) {
+            return true;
+        }
+        int pendingLogCount = groupState.mPendingLogCount + groupState.mBufferedLogs.size();
+        if (pendingLogCount < highWatermark) {
+            groupState.mUnderBackpressure = false;
+            return true;
+        }
+        int policy = groupState.mBackpressurePolicy;
+        notifyBackpressure(groupState, pendingLogCount);
+
+        /* Evicting makes room for critical logs too. */
+        if (policy == BackpressurePolicy.EVICT) {
+            int targetCount = (int) ((long) highWatermark * BACKPRESSURE_EVICTION_TARGET_PERCENT / 100);
+            evictOldestLogs(groupState, pendingLogCount - targetCount);
+            return true;
+        }
+        if (Flags.getPersistenceFlag(flags, false) == Flags.CRITICAL) {
+            return true;
+        }
+
+        /* Keep a share of logs that decreases as the backlog grows, spread evenly over time. */
+        if (policy == BackpressurePolicy.SAMPLE) {
+            groupState.mSampleCredit += (double) highWatermark / pendingLogCount;
+            if (groupState.mSampleCredit >= 1) {
+                groupState.mSampleCredit--;
+                return true;
+            }
+            groupState.mMetrics.mSampledOutCount++;
+            return false;
+        }
+        rejectLog(groupState, log);
+        return false;
+    }
+
+    /**
+     * Check if a new log would be rejected by the backpressure policy of its group, from any thread.
+     * This matches the {@link BackpressurePolicy#REJECT} decision of {@link #applyBackpressure(GroupState, Log, int)}.
+     *
+     * @param groupState the group state.
+     * @param flags      the log flags.
+     * @return true if the log would be rejected.
+     */
+    private static boolean isRejectedByBackpressure(@NonNull GroupState groupState, int flags) {
+        int highWatermark = groupState.mHighWatermark;
+        return highWatermark > 0
+                && groupState.mBackpressurePolicy == BackpressurePolicy.REJECT
+                && Flags.getPersistenceFlag(flags, false) != Flags.CRITICAL
+                && groupState.mPendingLogCount + groupState.mBufferedLogs.size() >= highWatermark;
+    }
+
+    /**
+     * Notify listeners the first time a group goes over its high watermark.
+     *
+     * @param groupState      the group state.
+     * @param pendingLogCount the number of logs of the group waiting to be sent.
+     */
+    private void notifyBackpressure(@NonNull GroupState groupState, int pendingLogCount) {
+        if (!groupState.mUnderBackpressure) {
+            AppCenterLog.warn(LOG_TAG, "Group " + groupState.mName + " is over its high watermark with " + pendingLogCount + " pending logs.");
+            groupState.mUnderBackpressure = true;
+            groupState.mSampleCredit = 0;
+            for (Listener listener : mListeners) {
+                listener.onBackpressure(groupState.mName, pendingLogCount, groupState.mBackpressurePolicy);
             }
         }
     }
 
+    /**
+     * Count a log rejected by backpressure and report it to the group listener.
+     *
+     * @param groupState the group state.
+     * @param log        the rejected log.
+     */
+    private void rejectLog(@NonNull GroupState groupState, @NonNull Log log) {
+        AppCenterLog.debug(LOG_TAG, "Log of type '" + log.getType() + "' was rejected as group " + groupState.mName + " is over its high watermark.");
+        groupState.mMetrics.mRejectedCount++;
+        if (groupState.mListener != null) {
+            groupState.mListener.onBeforeSending(log);
+            groupState.mListener.onFailure(log, new CancellationException());
+        }
+    }
+
+    /**
+     * Delete the oldest persisted logs of a group in a single operation.
+     *
+     * @param groupState the group state.
+     * @param count      number of logs to delete.
+     */
+    private void evictOldestLogs(@NonNull GroupState groupState, int count) {
+
+        /* Persist buffered logs first so that the oldest logs are all in storage. */
+        flushBufferedLogs(groupState);
+        count = Math.min(count, groupState.mPendingLogCount);
+        if (count <= 0) {
+            return;
+        }
+        int evictedCount = mPersistence.deleteOldestLogs(groupState.mName, count);
+        groupState.mPendingLogCount = Math.max(0, groupState.mPendingLogCount - evictedCount);
+        AppCenterLog.debug(LOG_TAG, "evictOldestLogs(" + groupState.mName + ") evictedCount=" + evictedCount + " pendingLogCount=" + groupState.mPendingLogCount);
+    }
+
+    /**
+     * Increment the pending log counter of a group for a log that has just been persisted.
+     *
+     * @param groupState the group state.
+     * @param log        the persisted log.
+     * @return true if the log was counted, false if the log is from a paused transmission target.
+     */
+    private boolean countPendingLog(@NonNull GroupState groupState, @NonNull Log log) {
+        Iterator<String> targetKeys = log.getTransmissionTargetTokens().iterator();
+        String targetKey = targetKeys.hasNext() ? PartAUtils.getTargetKey(targetKeys.next()) : null;
+        if (groupState.mPausedTargetKeys.contains(targetKey)) {
+            AppCenterLog.debug(LOG_TAG, "Transmission target ikey=" + targetKey + " is paused.");
+            return false;
+        }
+        groupState.mPendingLogCount++;
+        return true;
+    }
+
+    private void checkPendingLogsIfEnabled(@NonNull GroupState groupState) {
+        if (mEnabled) {
+            checkPendingLogs(groupState);
+        } else {
+            AppCenterLog.debug(LOG_TAG, "Channel is temporarily disabled, log was saved to disk.");
+        }
+    }
+
+    /**
+     * Add a log to the write-behind buffer of its group and persist the buffer when full,
+     * or make sure it will be persisted after {@link #mMaxBufferDelay} otherwise.
+     *
+     * @param groupState  the group state.
+     * @param log         the log to buffer.
+     * @param enqueueTime time when the log was enqueued, from {@link System#nanoTime()}.
+     */
+    private void bufferLog(@NonNull GroupState groupState, @NonNull Log log, long enqueueTime) {
+        if (groupState.mBufferedLogTimes.length < mMaxBufferedLogs) {
+            groupState.mBufferedLogTimes = new long[mMaxBufferedLogs];
+        }
+        groupState.mBufferedLogTimes[groupState.mBufferedLogs.size()] = enqueueTime;
+        groupState.mBufferedLogs.add(log);
+        if (groupState.mBufferedLogs.size() >= mMaxBufferedLogs) {
+            flushBufferedLogs(groupState);
+        } else if (!groupState.mBufferFlushScheduled) {
+            groupState.mBufferFlushScheduled = true;
+            mAppCenterHandler.postDelayed(groupState.mBufferFlushRunnable, mMaxBufferDelay);
+        }
+    }
+
+    /**
+     * Persist the write-behind buffer of a group and schedule ingestion for the persisted logs.
+     *
+     * @param groupState the group state.
+     */
+    private void flushBufferedLogs(@NonNull GroupState groupState) {
+        if (persistBufferedLogs(groupState)) {
+            AppCenterLog.debug(LOG_TAG, "flushBufferedLogs(" + groupState.mName + ") pendingLogCount=" + groupState.mPendingLogCount);
+            checkPendingLogsIfEnabled(groupState);
+        }
+    }
+
+    /**
+     * Persist the write-behind buffer of a group in a single operation.
+     *
+     * @param groupState the group state.
+     * @return true if at least one persisted log was added to the pending log count.
+     */
+    private boolean persistBufferedLogs(@NonNull GroupState groupState) {
+        cancelBufferFlush(groupState);
+        if (groupState.mBufferedLogs.isEmpty()) {
+            return false;
+        }
+        List<Log> logs = new ArrayList<>(groupState.mBufferedLogs);
+        groupState.mBufferedLogs.clear();
+        Map<Log, Persistence.PersistenceException> failures = mPersistence.putLogs(logs, groupState.mName, Flags.NORMAL);
+        long persistTime = System.nanoTime();
+        boolean counted = false;
+        for (int i = 0; i < logs.size(); i++) {
+            Log log = logs.get(i);
+            Persistence.PersistenceException e = failures.get(log);
+            if (e != null) {
+                AppCenterLog.error(LOG_TAG, "Error persisting log", e);
+                groupState.mMetrics.mDiscardedCount++;
+                if (groupState.mListener != null) {
+                    groupState.mListener.onBeforeSending(log);
+                    groupState.mListener.onFailure(log, e);
+                }
+                continue;
+            }
+            groupState.mMetrics.mPersistedCount++;
+            groupState.mMetrics.mEnqueueToPersistTime.record((persistTime - groupState.mBufferedLogTimes[i]) / 1000);
+            if (countPendingLog(groupState, log)) {
+                counted = true;
+            }
+        }
+        return counted;
+    }
+
+    /**
+     * Drop the write-behind buffer of a group, the same way persisted logs are dropped on suspension.
+     *
+     * @param groupState the group state.
+     */
+    private void discardBufferedLogs(@NonNull GroupState groupState) {
+        cancelBufferFlush(groupState);
+        groupState.mMetrics.mDiscardedCount += groupState.mBufferedLogs.size();
+        if (groupState.mListener != null) {
+            for (Log log : groupState.mBufferedLogs) {
+                groupState.mListener.onBeforeSending(log);
+                groupState.mListener.onFailure(log, new CancellationException());
+            }
+        }
+        groupState.mBufferedLogs.clear();
+    }
+
+    private void cancelBufferFlush(@NonNull GroupState groupState) {
+        if (groupState.mBufferFlushScheduled) {
+            groupState.mBufferFlushScheduled = false;
+            mAppCenterHandler.removeCallbacks(groupState.mBufferFlushRunnable);
+        }
+    }
+
     /**
      * Check for logs to trigger immediately or schedule with a timer or does nothing if no logs.
      *
@@ -718,7 +1909,16 @@ public class DefaultChannel implements Channel {
         Long batchTimeInterval = resolveTriggerInterval(groupState);
 
         /* Check if there is no need to trigger ingestion. */
-        if (batchTimeInterval == null || groupState.mPaused) {
+        if (groupState.mPaused) {
+            return;
+        }
+
+        /* A batch read ahead of time is sent as soon as possible. */
+        if (groupState.mPrefetchedBatchId != null) {
+            triggerIngestion(groupState);
+            return;
+        }
+        if (batchTimeInterval == null) {
             return;
         }
 
@@ -754,12 +1954,12 @@ public class DefaultChannel implements Channel {
     @WorkerThread
     private Long resolveCustomTriggerInterval(@NonNull GroupState groupState) {
         long now = System.currentTimeMillis();
-        long startTimer = SharedPreferencesManager.getLong(START_TIMER_PREFIX + groupState.mName);
+        long startTimer = groupState.mTimerStartTime;
         if (groupState.mPendingLogCount > 0) {
 
-            /* The timer isn't started or has invalid value (start time in the future), so start it and store the current time. */
+            /* The timer isn't started or has invalid value (start time in the future), so start it and keep the current time. */
             if (startTimer == 0 || startTimer > now) {
-                SharedPreferencesManager.putLong(START_TIMER_PREFIX + groupState.mName, now);
+                setTimerStartTime(groupState, now);
                 AppCenterLog.debug(LOG_TAG, "The timer value for " + groupState.mName + " has been saved.");
                 return groupState.mBatchTimeInterval;
             }
@@ -769,8 +1969,8 @@ public class DefaultChannel implements Channel {
         } else {
 
             /* If the interval is over. */
-            if (startTimer + groupState.mBatchTimeInterval < now) {
-                SharedPreferencesManager.remove(START_TIMER_PREFIX + groupState.mName);
+            if (startTimer != 0 && startTimer + groupState.mBatchTimeInterval < now) {
+                setTimerStartTime(groupState, 0);
                 AppCenterLog.debug(LOG_TAG, "The timer for " + groupState.mName + " channel finished.");
             }
             return null;
@@ -806,8 +2006,13 @@ public class DefaultChannel implements Channel {
 
     @Override
     public void shutdown() {
+        if (mLogExpiryRunnable != null) {
+            mAppCenterHandler.removeCallbacks(mLogExpiryRunnable);
+            mLogExpiryRunnable = null;
+        }
         mEnabled = false;
         suspend(false, new CancellationException());
+        checkpoint();
     }
 
     @Override
@@ -823,6 +2028,40 @@ public class DefaultChannel implements Channel {
         }
     }
 
+    /**
+     * A batch of a group waiting to be sent in a merged request.
+     */
+    private static class CoalescedBatch {
+
+        /**
+         * Group state.
+         */
+        final GroupState mGroupState;
+
+        /**
+         * Logs of the batch.
+         */
+        final List<Log> mBatch;
+
+        /**
+         * Batch identifier.
+         */
+        final String mBatchId;
+
+        /**
+         * Init.
+         *
+         * @param groupState group state.
+         * @param batch      logs of the batch.
+         * @param batchId    batch identifier.
+         */
+        CoalescedBatch(GroupState groupState, List<Log> batch, String batchId) {
+            mGroupState = groupState;
+            mBatch = batch;
+            mBatchId = batchId;
+        }
+    }
+
     /**
      * State for a specific log group.
      */
@@ -835,9 +2074,24 @@ public class DefaultChannel implements Channel {
         final String mName;
 
         /**
-         * Maximum log count per batch.
+         * Maximum log count per batch as configured for the group.
+         */
+        final int mConfiguredMaxLogsPerBatch;
+
+        /**
+         * Maximum log count per batch, adapted at runtime when {@link #mBatchSizer} is set.
          */
-        final int mMaxLogsPerBatch;
+        int mMaxLogsPerBatch;
+
+        /**
+         * Batch size controller, null if batch size is not adapted.
+         */
+        AdaptiveBatchSizer mBatchSizer;
+
+        /**
+         * Counters and timings of the group.
+         */
+        final ChannelMetrics.GroupMetrics mMetrics;
 
         /**
          * Time to wait before 2 batches, in ms.
@@ -867,13 +2121,18 @@ public class DefaultChannel implements Channel {
         /**
          * Pending log count not part of a batch yet.
          */
-        int mPendingLogCount;
+        volatile int mPendingLogCount;
 
         /**
          * Is timer scheduled.
          */
         boolean mScheduled;
 
+        /**
+         * When the batch timer started in ms, 0 if not started. Only used with a custom batch time interval.
+         */
+        long mTimerStartTime;
+
         /**
          * Indicates if the group is paused.
          */
@@ -884,6 +2143,69 @@ public class DefaultChannel implements Channel {
          */
         final Collection<String> mPausedTargetKeys = new HashSet<>();
 
+        /**
+         * Maximum number of pending logs before applying {@link #mBackpressurePolicy}, 0 for no limit.
+         * Also read by {@link #enqueueAsync(Log, String, int)} from any thread.
+         */
+        volatile int mHighWatermark;
+
+        /**
+         * Policy applied to new logs above {@link #mHighWatermark}.
+         */
+        volatile int mBackpressurePolicy = BackpressurePolicy.REJECT;
+
+        /**
+         * Is the group over its high watermark.
+         */
+        boolean mUnderBackpressure;
+
+        /**
+         * Accumulated share of logs to keep when sampling above the high watermark.
+         */
+        double mSampleCredit;
+
+        /**
+         * Batch read ahead of time and not sent yet.
+         */
+        List<Log> mPrefetchedBatch;
+
+        /**
+         * Identifier of the batch read ahead of time, null if none.
+         */
+        String mPrefetchedBatchId;
+
+        /**
+         * Is reading a batch ahead of time scheduled.
+         */
+        boolean mPrefetchScheduled;
+
+        /**
+         * Logs waiting in the write-behind buffer to be persisted.
+         */
+        final List<Log> mBufferedLogs = new ArrayList<>();
+
+        /**
+         * Enqueue times of buffered logs, from {@link System#nanoTime()}, at the same index as in {@link #mBufferedLogs}.
+         */
+        long[] mBufferedLogTimes = new long[0];
+
+        /**
+         * Is the write-behind buffer flush scheduled.
+         */
+        boolean mBufferFlushScheduled;
+
+        /**
+         * Runnable that persists the write-behind buffer of this group.
+         */
+        final Runnable mBufferFlushRunnable = new Runnable() {
+
+            @Override
+            public void run() {
+                mBufferFlushScheduled = false;
+                flushBufferedLogs(GroupState.this);
+            }
+        };
+
         /**
          * Runnable that triggers ingestion of this group data
          * and triggers itself in {@link #mBatchTimeInterval} ms.
@@ -906,14 +2228,17 @@ public class DefaultChannel implements Channel {
          * @param maxParallelBatches max number of parallel batches.
          * @param ingestion          ingestion for the group state.
          * @param listener           listener for a service.
+         * @param metrics            counters and timings of the group.
          */
-        GroupState(String name, int maxLogsPerBatch, long batchTimeInterval, int maxParallelBatches, Ingestion ingestion, GroupListener listener) {
+        GroupState(String name, int maxLogsPerBatch, long batchTimeInterval, int maxParallelBatches, Ingestion ingestion, GroupListener listener, ChannelMetrics.GroupMetrics metrics) {
             mName = name;
+            mConfiguredMaxLogsPerBatch = maxLogsPerBatch;
             mMaxLogsPerBatch = maxLogsPerBatch;
             mBatchTimeInterval = batchTimeInterval;
             mMaxParallelBatches = maxParallelBatches;
             mIngestion = ingestion;
             mListener = listener;
+            mMetrics = metrics;
         }
     }
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+/**
+ * Histogram of durations in microseconds with a fixed memory footprint.
+ * Buckets are logarithmic with 8 linear sub-buckets per power of 2 (like HDR histograms),
+ * which keeps a relative error below 12.5% on any recorded value.
+ * Recording does not allocate memory and is meant to be done from a single thread,
+ * values read from another thread may be slightly out of date.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of bits used for linear sub-buckets.
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /**
+     * Number of linear sub-buckets per power of 2.
+     */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Highest power of 2 tracked, larger values are recorded in the last bucket (about 9 hours).
+     */
+    private static final int MAX_MAGNITUDE = 35;
+
+    /**
+     * Bucket counts.
+     */
+    private final long[] mCounts = new long[(MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT];
+
+    /**
+     * Number of recorded values.
+     */
+    private volatile long mTotalCount;
+
+    /**
+     * Sum of recorded values.
+     */
+    private volatile long mTotalSum;
+
+    /**
+     * Smallest recorded value.
+     */
+    private volatile long mMin = Long.MAX_VALUE;
+
+    /**
+     * Largest recorded value.
+     */
+    private volatile long mMax;
+
+    /**
+     * Record a duration.
+     *
+     * @param value duration in microseconds, negative values are recorded as 0.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        mCounts[getBucketIndex(value)]++;
+        mTotalSum += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+        mTotalCount++;
+    }
+
+    /**
+     * Get the number of recorded values.
+     *
+     * @return number of recorded values.
+     */
+    public long getTotalCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * Get the smallest recorded value.
+     *
+     * @return smallest value in microseconds, 0 if nothing recorded.
+     */
+    public long getMin() {
+        return mTotalCount == 0 ? 0 : mMin;
+    }
+
+    /**
+     * Get the largest recorded value.
+     *
+     * @return largest value in microseconds.
+     */
+    public long getMax() {
+        return mMax;
+    }
+
+    /**
+     * Get the mean of recorded values.
+     *
+     * @return mean in microseconds, 0 if nothing recorded.
+     */
+    public double getMean() {
+        long totalCount = mTotalCount;
+        return totalCount == 0 ? 0 : (double) mTotalSum / totalCount;
+    }
+
+    /**
+     * Get the value at a given percentile.
+     *
+     * @param percentile percentile between 0 and 100.
+     * @return highest value in microseconds equivalent to the value at the percentile, 0 if nothing recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long totalCount = mTotalCount;
+        if (totalCount == 0) {
+            return 0;
+        }
+        long countAtPercentile = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * totalCount));
+        long count = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            count += mCounts[i];
+            if (count >= countAtPercentile) {
+                return Math.min(getHighestEquivalentValue(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Forget all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mTotalCount = 0;
+        mTotalSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    /**
+     * Get the bucket of a value.
+     *
+     * @param value value, positive.
+     * @return bucket index.
+     */
+    private static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int magnitude = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_MAGNITUDE);
+        if (magnitude == MAX_MAGNITUDE && value >>> MAX_MAGNITUDE > 1) {
+            return (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * Get the highest value that is recorded in a bucket.
+     *
+     * @param index bucket index.
+     * @return highest value of the bucket.
+     */
+    private static long getHighestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int magnitude = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKET_COUNT;
+        return ((long) (SUB_BUCKET_COUNT + subBucket + 1) << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import androidx.annotation.NonNull;
+
+import com.microsoft.appcenter.ingestion.models.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue of logs to enqueue, written by any thread and drained by the App Center thread.
+ * Slots are allocated once and every slot has a sequence number telling whether it can be written or read
+ * (Vyukov bounded queue), so offering and polling never lock nor allocate.
+ * Polling is also safe from producers, which is used to drop the oldest log when the buffer is full.
+ */
+class LogRingBuffer {
+
+    /**
+     * Receives polled logs.
+     */
+    interface Consumer {
+
+        /**
+         * Called for a polled log.
+         *
+         * @param log       log.
+         * @param groupName group name.
+         * @param flags     flags.
+         */
+        void accept(@NonNull Log log, @NonNull String groupName, int flags);
+    }
+
+    /**
+     * Mask to get the slot of a position, capacity is a power of 2.
+     */
+    private final int mMask;
+
+    /**
+     * Sequence of each slot: equal to the position when the slot can be written, position + 1 when it can be read.
+     */
+    private final AtomicLongArray mSequences;
+
+    /**
+     * Logs by slot.
+     */
+    private final Log[] mLogs;
+
+    /**
+     * Group names by slot.
+     */
+    private final String[] mGroupNames;
+
+    /**
+     * Flags by slot.
+     */
+    private final int[] mFlags;
+
+    /**
+     * Next position to write.
+     */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * Next position to read.
+     */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /**
+     * Is a drain of this buffer scheduled on the App Center thread.
+     */
+    final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+
+    /**
+     * Init.
+     *
+     * @param capacity minimum number of logs the buffer can hold, rounded up to a power of 2.
+     */
+    LogRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mMask = size - 1;
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+        mLogs = new Log[size];
+        mGroupNames = new String[size];
+        mFlags = new int[size];
+    }
+
+    /**
+     * Get the number of logs the buffer can hold.
+     *
+     * @return capacity.
+     */
+    int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Add a log if there is room.
+     *
+     * @param log       log.
+     * @param groupName group name.
+     * @param flags     flags.
+     * @return true if added, false if the buffer is full.
+     */
+    boolean offer(@NonNull Log log, @NonNull String groupName, int flags) {
+        long position = mTail.get();
+        int index;
+        while (true) {
+            index = (int) position & mMask;
+            long difference = mSequences.get(index) - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = mTail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = mTail.get();
+            }
+        }
+        mLogs[index] = log;
+        mGroupNames[index] = groupName;
+        mFlags[index] = flags;
+
+        /* Publish the slot to consumers. */
+        mSequences.set(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Remove the oldest log.
+     *
+     * @param consumer receives the log if any.
+     * @return true if a log was removed, false if the buffer is empty.
+     */
+    boolean poll(@NonNull Consumer consumer) {
+        long position = mHead.get();
+        int index;
+        while (true) {
+            index = (int) position & mMask;
+            long difference = mSequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (mHead.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = mHead.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = mHead.get();
+            }
+        }
+        Log log = mLogs[index];
+        String groupName = mGroupNames[index];
+        int flags = mFlags[index];
+        mLogs[index] = null;
+        mGroupNames[index] = null;
+
+        /* Give the slot back to producers for the next lap. */
+        mSequences.set(index, position + mMask + 1);
+        consumer.accept(log, groupName, flags);
+        return true;
+    }
+
+    /**
+     * Remove all the logs present when called or added while draining, up to the capacity.
+     *
+     * @param consumer receives the logs.
+     * @return number of logs removed.
+     */
+    int drain(@NonNull Consumer consumer) {
+        int count = 0;
+        while (count <= mMask && poll(consumer)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Check if the buffer is empty.
+     *
+     * @return true if empty.
+     */
+    boolean isEmpty() {
+        return mHead.get() >= mTail.get();
+    }
+}
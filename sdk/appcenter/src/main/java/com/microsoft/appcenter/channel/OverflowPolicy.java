@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import androidx.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * What to do when a log is enqueued from any thread while the enqueue ring buffer is full.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@IntDef({
+        OverflowPolicy.DROP_OLDEST,
+        OverflowPolicy.DROP_NEWEST,
+        OverflowPolicy.BLOCK
+})
+public @interface OverflowPolicy {
+
+    /**
+     * Drop the oldest log waiting in the buffer to make room for the new one.
+     */
+    int DROP_OLDEST = 1;
+
+    /**
+     * Drop the new log.
+     */
+    int DROP_NEWEST = 2;
+
+    /**
+     * Wait for the App Center thread to make room in the buffer.
+     */
+    int BLOCK = 3;
+}
@@ -24,30 +24,38 @@ import androidx.annotation.VisibleForTesting;
 
 import com.microsoft.appcenter.Constants;
 import com.microsoft.appcenter.Flags;
+import com.microsoft.appcenter.ingestion.models.Device;
 import com.microsoft.appcenter.ingestion.models.Log;
 import com.microsoft.appcenter.ingestion.models.one.CommonSchemaLog;
 import com.microsoft.appcenter.ingestion.models.one.PartAUtils;
 import com.microsoft.appcenter.utils.AppCenterLog;
+import com.microsoft.appcenter.utils.AsyncTaskUtils;
+import com.microsoft.appcenter.utils.HashUtils;
 import com.microsoft.appcenter.utils.crypto.CryptoUtils;
 import com.microsoft.appcenter.utils.storage.DatabaseManager;
 import com.microsoft.appcenter.utils.storage.FileManager;
 import com.microsoft.appcenter.utils.storage.SQLiteUtils;
 
 import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONStringer;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.zip.DataFormatException;
 
 @SuppressWarnings("TryFinallyCanBeTryWithResources")
 public class DatabasePersistence extends Persistence {
@@ -84,10 +92,34 @@ public class DatabasePersistence extends Persistence {
     @VisibleForTesting
     static final int VERSION_TIMESTAMP_COLUMN = 5;
 
+    /**
+     * Version where the payload encoding column was added.
+     */
+    @VisibleForTesting
+    static final int VERSION_PAYLOAD_ENCODING_COLUMN = 7;
+
+    /**
+     * Version where devices were moved to their own table.
+     */
+    @VisibleForTesting
+    static final int VERSION_DEVICE_TABLE = 8;
+
+    /**
+     * Version where the index on group and priority was added.
+     */
+    @VisibleForTesting
+    static final int VERSION_GROUP_INDEX = 9;
+
+    /**
+     * Version where the storage time column was added.
+     */
+    @VisibleForTesting
+    static final int VERSION_STORED_AT_COLUMN = 10;
+
     /**
      * Current version of the schema.
      */
-    private static final int VERSION = 6;
+    private static final int VERSION = 10;
 
     /**
      * Project identifier part of the target token in clear text (the target token key).
@@ -106,6 +138,54 @@ public class DatabasePersistence extends Persistence {
      */
     private static final String COLUMN_DATA_TYPE = "type";
 
+    /**
+     * Name of the column telling how the log column is encoded.
+     */
+    @VisibleForTesting
+    static final String COLUMN_PAYLOAD_ENCODING = "payload_encoding";
+
+    /**
+     * Name of the column referencing the device of the log in the devices table.
+     */
+    @VisibleForTesting
+    static final String COLUMN_DEVICE_ID = "device_id";
+
+    /**
+     * Creation time of the log in ms since epoch, or the time it was stored if not known, used to expire logs.
+     */
+    @VisibleForTesting
+    static final String COLUMN_STORED_AT = "stored_at";
+
+    /**
+     * Devices table name.
+     */
+    @VisibleForTesting
+    static final String DEVICES_TABLE = "devices";
+
+    /**
+     * Name of the device content hash column in the devices table.
+     */
+    @VisibleForTesting
+    static final String COLUMN_DEVICE_HASH = "hash";
+
+    /**
+     * Name of the device JSON column in the devices table.
+     */
+    @VisibleForTesting
+    static final String COLUMN_DEVICE = "device";
+
+    /**
+     * Payload stored as JSON text.
+     */
+    @VisibleForTesting
+    static final int PAYLOAD_ENCODING_JSON = 0;
+
+    /**
+     * Payload stored as a blob compressed by {@link PayloadCompressor}.
+     */
+    @VisibleForTesting
+    static final int PAYLOAD_ENCODING_DEFLATE = 1;
+
     /**
      * Database name.
      */
@@ -116,13 +196,55 @@ public class DatabasePersistence extends Persistence {
      * Table schema for Persistence.
      */
     @VisibleForTesting
-    static final ContentValues SCHEMA = getContentValues("", "", "", "", "", 0);
+    static final ContentValues SCHEMA = getContentValues("", "", "", "", "", 0, PAYLOAD_ENCODING_JSON, 0L, 0L);
+
+    /**
+     * Columns set when storing a log, in the order of the values passed to {@link DatabaseManager#insert(String[], Object[])}.
+     */
+    private static final String[] INSERT_COLUMNS = {COLUMN_GROUP, COLUMN_LOG, COLUMN_TARGET_TOKEN, COLUMN_DATA_TYPE, COLUMN_TARGET_KEY, COLUMN_PRIORITY, COLUMN_PAYLOAD_ENCODING, COLUMN_DEVICE_ID, COLUMN_STORED_AT};
 
     /**
      * Order by clause to select logs.
      */
     private static final String GET_SORT_ORDER = COLUMN_PRIORITY + " DESC, " + PRIMARY_KEY;
 
+    /**
+     * Columns read to send logs, in the order of their index in the cursor.
+     */
+    private static final String[] GET_LOG_COLUMNS = {PRIMARY_KEY, COLUMN_LOG, COLUMN_DATA_TYPE, COLUMN_TARGET_TOKEN, COLUMN_PAYLOAD_ENCODING, COLUMN_DEVICE_ID};
+
+    /**
+     * Order by clause to select logs to evict.
+     */
+    private static final String EVICTION_SORT_ORDER = COLUMN_PRIORITY + " ASC, " + PRIMARY_KEY;
+
+    /**
+     * Columns read to evict logs when storage is full: identifier, group, size of the variable length columns and target key.
+     */
+    private static final String[] EVICTION_COLUMNS = {
+            PRIMARY_KEY,
+            COLUMN_GROUP,
+            "IFNULL(LENGTH(CAST(" + COLUMN_LOG + " AS BLOB)), 0) + IFNULL(LENGTH(" + COLUMN_TARGET_TOKEN + "), 0)",
+            COLUMN_TARGET_KEY
+    };
+
+    /**
+     * Columns read to count logs by group and target key, with the size of their variable length columns.
+     */
+    private static final String[] COUNT_COLUMNS = {COLUMN_GROUP, COLUMN_TARGET_KEY, "COUNT(*)", "SUM(" + EVICTION_COLUMNS[2] + ")"};
+
+    /**
+     * Estimated size of a log row in the database besides the log and target token columns.
+     */
+    @VisibleForTesting
+    static final int ROW_SIZE_OVERHEAD = 64;
+
+    /**
+     * Number of inserts and deletes after which the estimated database size is checked against the pages used by SQLite.
+     */
+    @VisibleForTesting
+    static final int SIZE_RECONCILIATION_INTERVAL = 100;
+
     /**
      * Size limit (in bytes) for a database row log payload.
      * A separate file is used if payload is larger.
@@ -138,7 +260,12 @@ public class DatabasePersistence extends Persistence {
     /**
      * Large payload file extension.
      */
-    private static final String PAYLOAD_FILE_EXTENSION = ".json";
+    static final String PAYLOAD_FILE_EXTENSION = ".json";
+
+    /**
+     * Maximum number of identifiers checked per query when applying the large payload scan.
+     */
+    private static final int LARGE_PAYLOAD_CHECK_CHUNK_SIZE = 500;
 
     /**
      * SQL command to create logs table
@@ -151,7 +278,44 @@ public class DatabasePersistence extends Persistence {
             "`priority` INTEGER," +
             "`log` TEXT," +
             "`persistence_group` TEXT," +
-            "`target_key` TEXT);";
+            "`target_key` TEXT," +
+            "`payload_encoding` INTEGER DEFAULT 0," +
+            "`device_id` INTEGER," +
+            "`stored_at` INTEGER);";
+
+    /**
+     * SQL command to create devices table, each distinct device is stored once.
+     */
+    @VisibleForTesting
+    static final String CREATE_DEVICES_SQL = "CREATE TABLE IF NOT EXISTS `devices`" +
+            "(`oid` INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "`hash` TEXT UNIQUE," +
+            "`device` TEXT);";
+
+    /**
+     * SQL command to add the payload encoding column to logs table, existing logs are JSON text.
+     */
+    private static final String ADD_PAYLOAD_ENCODING_COLUMN_SQL = "ALTER TABLE `logs` ADD COLUMN `payload_encoding` INTEGER DEFAULT 0";
+
+    /**
+     * SQL command to add the device reference column to logs table, existing logs embed their device.
+     */
+    private static final String ADD_DEVICE_ID_COLUMN_SQL = "ALTER TABLE `logs` ADD COLUMN `device_id` INTEGER";
+
+    /**
+     * SQL command to add the storage time column to logs table.
+     */
+    private static final String ADD_STORED_AT_COLUMN_SQL = "ALTER TABLE `logs` ADD COLUMN `stored_at` INTEGER";
+
+    /**
+     * SQL command to set the storage time of logs stored before the column existed, they expire as if stored during the upgrade.
+     */
+    private static final String UPDATE_STORED_AT_SQL = "UPDATE `logs` SET `stored_at` = ?";
+
+    /**
+     * Condition matching devices that are not referenced by any log.
+     */
+    private static final String UNUSED_DEVICES_WHERE = PRIMARY_KEY + " NOT IN (SELECT " + COLUMN_DEVICE_ID + " FROM " + TABLE + " WHERE " + COLUMN_DEVICE_ID + " IS NOT NULL)";
 
     /**
      * SQL command to drop logs table
@@ -163,6 +327,21 @@ public class DatabasePersistence extends Persistence {
      */
     private static final String CREATE_PRIORITY_INDEX_LOGS = "CREATE INDEX `ix_logs_priority` ON logs (`priority`)";
 
+    /**
+     * SQL command to create index for reading logs of a group in the order they are sent or evicted.
+     */
+    private static final String CREATE_GROUP_INDEX_LOGS = "CREATE INDEX `ix_logs_group_priority` ON logs (`persistence_group`, `priority`, `oid`)";
+
+    /**
+     * SQL command to create index for selecting expired logs of a group with a range scan.
+     */
+    private static final String CREATE_GROUP_STORED_AT_INDEX_LOGS = "CREATE INDEX `ix_logs_group_stored_at` ON logs (`persistence_group`, `stored_at`)";
+
+    /**
+     * SQL command to create index for selecting expired logs of a log type with a range scan.
+     */
+    private static final String CREATE_TYPE_STORED_AT_INDEX_LOGS = "CREATE INDEX `ix_logs_type_stored_at` ON logs (`type`, `stored_at`)";
+
     /**
      * Database manager instance to access Persistence database.
      */
@@ -181,11 +360,62 @@ public class DatabasePersistence extends Persistence {
     @VisibleForTesting
     final Set<Long> mPendingDbIdentifiers;
 
+    /**
+     * Serialized size of pending log groups. Key is the same as {@link #mPendingDbIdentifiersGroups}.
+     */
+    @VisibleForTesting
+    final Map<String, Long> mPendingByteSizes;
+
+    /**
+     * Estimated database size of pending log groups. Key is the same as {@link #mPendingDbIdentifiersGroups}.
+     */
+    @VisibleForTesting
+    final Map<String, Long> mPendingRowSizes;
+
+    /**
+     * Number of logs by target key, null key for logs without target, of pending log groups.
+     * Key is the same as {@link #mPendingDbIdentifiersGroups}.
+     */
+    private final Map<String, Map<String, Integer>> mPendingLogCounts;
+
+    /**
+     * Number of stored logs by group then by target key, null key for logs without target.
+     * Loaded with a single query when first needed, null when not loaded.
+     */
+    @VisibleForTesting
+    Map<String, Map<String, Integer>> mLogCounts;
+
+    /**
+     * Estimated database size of stored logs by group, loaded with {@link #mLogCounts}, null when not loaded.
+     */
+    @VisibleForTesting
+    Map<String, Long> mGroupSizes;
+
+    /**
+     * Storage quotas by group.
+     */
+    private final Map<String, GroupQuota> mGroupQuotas = new HashMap<>();
+
+    /**
+     * Time to live in ms of logs by group.
+     */
+    private final Map<String, Long> mTimeToLives = new HashMap<>();
+
+    /**
+     * Time to live in ms of logs by log type, taking precedence over the time to live of their group.
+     */
+    private final Map<String, Long> mLogTypeTimeToLives = new HashMap<>();
+
     /**
      * Application context.
      */
     private final Context mContext;
 
+    /**
+     * The only group stored if this persistence is a shard, null if it stores all groups.
+     */
+    private final String mShardGroup;
+
     /**
      * Base directory to store large payloads outside of SQLite.
      */
@@ -196,6 +426,71 @@ public class DatabasePersistence extends Persistence {
      */
     private long mLargePayloadsSize;
 
+    /**
+     * Size of large payload files by database identifier of their log.
+     */
+    @VisibleForTesting
+    final Map<Long, Long> mLargePayloadSizes;
+
+    /**
+     * Scan of the large payload files left by previous runs, null once applied.
+     * Until then, files of previous runs are missing from {@link #mLargePayloadSizes}.
+     */
+    @VisibleForTesting
+    LargePayloadScanTask mLargePayloadScan;
+
+    /**
+     * Maximum database size, queried from SQLite only when not known.
+     */
+    private long mMaxSize = OPERATION_FAILED_FLAG;
+
+    /**
+     * Size of used database pages as of the last reconciliation, updated by the estimated size of inserted and deleted rows since.
+     */
+    @VisibleForTesting
+    long mDatabaseSize;
+
+    /**
+     * Number of inserts and deletes since the database size was last reconciled with SQLite.
+     */
+    @VisibleForTesting
+    int mSizeChangesSinceReconciliation = SIZE_RECONCILIATION_INTERVAL;
+
+    /**
+     * Whether new payloads are stored compressed.
+     */
+    private boolean mPayloadCompressionEnabled;
+
+    /**
+     * Payload compressor, created when the first compressed payload is written or read.
+     */
+    private PayloadCompressor mPayloadCompressor;
+
+    /**
+     * Sync mode by persistence priority.
+     */
+    private final Map<Integer, Integer> mSyncModes = new HashMap<>();
+
+    /**
+     * Identifiers in the devices table by device content hash, loaded when the first log with a device is stored.
+     */
+    private Map<String, Long> mDeviceIds;
+
+    /**
+     * Devices by identifier in the devices table, shared by the logs read from the database.
+     */
+    private final Map<Long, Device> mDevices = new HashMap<>();
+
+    /**
+     * Copy of the device of the last stored log, to avoid serializing the device again while it does not change.
+     */
+    private Device mLastDevice;
+
+    /**
+     * Identifier of {@link #mLastDevice} in the devices table.
+     */
+    private long mLastDeviceId;
+
     /**
      * Initializes variables with default values.
      *
@@ -205,6 +500,17 @@ public class DatabasePersistence extends Persistence {
         this(context, VERSION, SCHEMA);
     }
 
+    /**
+     * Initializes a shard storing only the logs of a group, in a database and a large payload directory of its own.
+     * Deleting all the logs of the group deletes the database file instead of its rows.
+     *
+     * @param context application context.
+     * @param group   the only group stored in this persistence.
+     */
+    public DatabasePersistence(Context context, @NonNull String group) {
+        this(context, DATABASE + "." + getShardName(group), PAYLOAD_LARGE_DIRECTORY + "." + getShardName(group), group, VERSION, SCHEMA);
+    }
+
     /**
      * Initializes variables.
      *
@@ -213,15 +519,38 @@ public class DatabasePersistence extends Persistence {
      * @param schema  schema.
      */
     DatabasePersistence(Context context, int version, @SuppressWarnings("SameParameterValue") final ContentValues schema) {
+        this(context, DATABASE, PAYLOAD_LARGE_DIRECTORY, null, version, schema);
+    }
+
+    /**
+     * Initializes variables.
+     *
+     * @param context               application context.
+     * @param database              database name.
+     * @param largePayloadDirectory large payload directory, relative to the files directory.
+     * @param shardGroup            the only group stored if this persistence is a shard, null to store all groups.
+     * @param version               The version of current schema.
+     * @param schema                schema.
+     */
+    private DatabasePersistence(Context context, String database, String largePayloadDirectory, @Nullable String shardGroup, int version, final ContentValues schema) {
         mContext = context;
+        mShardGroup = shardGroup;
         mPendingDbIdentifiersGroups = new HashMap<>();
         mPendingDbIdentifiers = new HashSet<>();
-        mDatabaseManager = new DatabaseManager(context, DATABASE, TABLE, version, schema, CREATE_LOGS_SQL, new DatabaseManager.Listener() {
+        mPendingByteSizes = new HashMap<>();
+        mPendingRowSizes = new HashMap<>();
+        mPendingLogCounts = new HashMap<>();
+        mLargePayloadSizes = new HashMap<>();
+        mDatabaseManager = new DatabaseManager(context, database, TABLE, version, schema, CREATE_LOGS_SQL, new DatabaseManager.Listener() {
 
 
             @Override
             public void onCreate(SQLiteDatabase db) {
                 db.execSQL(CREATE_PRIORITY_INDEX_LOGS);
+                db.execSQL(CREATE_GROUP_INDEX_LOGS);
+                db.execSQL(CREATE_GROUP_STORED_AT_INDEX_LOGS);
+                db.execSQL(CREATE_TYPE_STORED_AT_INDEX_LOGS);
+                db.execSQL(CREATE_DEVICES_SQL);
             }
 
             @Override
@@ -230,20 +559,55 @@ public class DatabasePersistence extends Persistence {
                 /*
                  * With version 3.0 of the SDK we decided to remove timestamp column and as
                  * it's a major SDK version and SQLite does not support removing column we just start over.
-                 * When adding a new column in a future version, update this code by something like
-                 * if (oldVersion <= VERSION_TIMESTAMP_COLUMN) {drop/create} else {add missing columns}
+                 * Columns added since are added to the existing table to keep stored logs.
                  */
-                db.execSQL(DROP_LOGS_SQL);
-                db.execSQL(CREATE_LOGS_SQL);
-                db.execSQL(CREATE_PRIORITY_INDEX_LOGS);
+                if (oldVersion <= VERSION_TIMESTAMP_COLUMN) {
+                    db.execSQL(DROP_LOGS_SQL);
+                    db.execSQL(CREATE_LOGS_SQL);
+                    db.execSQL(CREATE_PRIORITY_INDEX_LOGS);
+                    db.execSQL(CREATE_GROUP_INDEX_LOGS);
+                    db.execSQL(CREATE_GROUP_STORED_AT_INDEX_LOGS);
+                    db.execSQL(CREATE_TYPE_STORED_AT_INDEX_LOGS);
+                    db.execSQL(CREATE_DEVICES_SQL);
+                    return;
+                }
+                if (oldVersion < VERSION_PAYLOAD_ENCODING_COLUMN) {
+                    db.execSQL(ADD_PAYLOAD_ENCODING_COLUMN_SQL);
+                }
+                if (oldVersion < VERSION_DEVICE_TABLE) {
+                    db.execSQL(ADD_DEVICE_ID_COLUMN_SQL);
+                    db.execSQL(CREATE_DEVICES_SQL);
+                }
+                if (oldVersion < VERSION_GROUP_INDEX) {
+                    db.execSQL(CREATE_GROUP_INDEX_LOGS);
+                }
+                if (oldVersion < VERSION_STORED_AT_COLUMN) {
+                    db.execSQL(ADD_STORED_AT_COLUMN_SQL);
+                    db.execSQL(UPDATE_STORED_AT_SQL, new Object[]{System.currentTimeMillis()});
+                    db.execSQL(CREATE_GROUP_STORED_AT_INDEX_LOGS);
+                    db.execSQL(CREATE_TYPE_STORED_AT_INDEX_LOGS);
+                }
             }
         });
-        mLargePayloadDirectory = new File(Constants.FILES_PATH + PAYLOAD_LARGE_DIRECTORY);
+        mLargePayloadDirectory = new File(Constants.FILES_PATH + largePayloadDirectory);
 
         //noinspection ResultOfMethodCallIgnored we handle errors at read/write time for each file.
         mLargePayloadDirectory.mkdirs();
 
-        mLargePayloadsSize = checkLargePayloadFilesAndCollectTheirSize();
+        /* Listing and measuring files can be slow, do it in background and apply the result when it is needed. */
+        mLargePayloadScan = new LargePayloadScanTask(mLargePayloadDirectory);
+        AsyncTaskUtils.execute(LOG_TAG, mLargePayloadScan);
+    }
+
+    /**
+     * Get the name used for the database and large payload directory of a shard.
+     *
+     * @param group group stored in the shard.
+     * @return group name with characters that are not allowed in file names replaced by underscores.
+     */
+    @NonNull
+    static String getShardName(@NonNull String group) {
+        return group.replaceAll("[^A-Za-z0-9_-]", "_");
     }
 
     /**
@@ -254,9 +618,12 @@ public class DatabasePersistence extends Persistence {
      * @param targetToken The target token if the log is common schema.
      * @param targetKey   The project identifier part of the target token in clear text.
      * @param priority    The persistence priority.
+     * @param encoding    The payload encoding.
+     * @param deviceId    The identifier of the device in the devices table, null if the device is in the payload.
+     * @param storedAt    The creation time of the log in ms since epoch.
      * @return A {@link ContentValues} instance.
      */
-    private static ContentValues getContentValues(@Nullable String group, @Nullable String logJ, String targetToken, String type, String targetKey, int priority) {
+    private static ContentValues getContentValues(@Nullable String group, @Nullable String logJ, String targetToken, String type, String targetKey, int priority, int encoding, Long deviceId, Long storedAt) {
         ContentValues values = new ContentValues();
         values.put(COLUMN_GROUP, group);
         values.put(COLUMN_LOG, logJ);
@@ -264,64 +631,352 @@ public class DatabasePersistence extends Persistence {
         values.put(COLUMN_DATA_TYPE, type);
         values.put(COLUMN_TARGET_KEY, targetKey);
         values.put(COLUMN_PRIORITY, priority);
+        values.put(COLUMN_PAYLOAD_ENCODING, encoding);
+        values.put(COLUMN_DEVICE_ID, deviceId);
+        values.put(COLUMN_STORED_AT, storedAt);
         return values;
     }
 
     @Override
     public boolean setMaxStorageSize(long maxStorageSizeInBytes) {
         boolean success = mDatabaseManager.setMaxSize(maxStorageSizeInBytes);
+
+        /* Even a failed attempt can change the maximum size. */
+        mMaxSize = mDatabaseManager.getMaxSize();
         deleteLogsThatNotFitMaxSize();
         return success;
     }
 
+    /**
+     * {@inheritDoc}
+     * The quota applies to the estimated database size of the logs, large payloads stored in files only count
+     * towards the maximum storage size.
+     */
+    @Override
+    public void setGroupQuota(@NonNull String group, long maxSize, @EvictionPolicy int evictionPolicy) {
+        setGroupQuota(group, maxSize, 0, evictionPolicy);
+    }
+
     @Override
-    public long putLog(@NonNull Log log, @NonNull String group, @IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int flags) throws PersistenceException {
+    public void setGroupQuotaPercentage(@NonNull String group, @IntRange(from = 0, to = 100) int percentage, @EvictionPolicy int evictionPolicy) {
+        setGroupQuota(group, 0, percentage, evictionPolicy);
+    }
 
-        /* Convert log to JSON string and put in the database. */
+    /**
+     * Set or remove the storage quota of a group.
+     *
+     * @param group          group.
+     * @param maxSize        maximum size in bytes, 0 if the quota is a percentage.
+     * @param percentage     maximum size in percent of the maximum storage size, 0 if the quota is a size.
+     * @param evictionPolicy eviction policy.
+     */
+    private void setGroupQuota(@NonNull String group, long maxSize, int percentage, @EvictionPolicy int evictionPolicy) {
+        if (maxSize <= 0 && percentage <= 0) {
+            mGroupQuotas.remove(group);
+        } else {
+            mGroupQuotas.put(group, new GroupQuota(maxSize, percentage, evictionPolicy));
+        }
+    }
+
+    @Override
+    public void setTimeToLive(@NonNull String group, long timeToLive) {
+        setTimeToLive(mTimeToLives, group, timeToLive);
+    }
+
+    @Override
+    public void setLogTypeTimeToLive(@NonNull String type, long timeToLive) {
+        setTimeToLive(mLogTypeTimeToLives, type, timeToLive);
+    }
+
+    /**
+     * Set or remove a time to live.
+     *
+     * @param timeToLives time to lives to update.
+     * @param key         group or log type.
+     * @param timeToLive  time to live in ms, 0 to remove it.
+     */
+    private static void setTimeToLive(@NonNull Map<String, Long> timeToLives, @NonNull String key, long timeToLive) {
+        if (timeToLive <= 0) {
+            timeToLives.remove(key);
+        } else {
+            timeToLives.put(key, timeToLive);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Each time to live is applied with a range scan on the storage time index of its log type or group,
+     * so that only expired logs are read. The time to live of a log type takes precedence over the one of its group.
+     */
+    @Override
+    public int deleteExpiredLogs() {
+        if (mTimeToLives.isEmpty() && mLogTypeTimeToLives.isEmpty()) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        Map<Long, String> expiredLogGroups = new LinkedHashMap<>();
+        List<String> expiredTargetKeys = new ArrayList<>();
+        List<Long> expiredRowSizes = new ArrayList<>();
+        long rowsSize = 0;
         try {
-            AppCenterLog.debug(LOG_TAG, "Storing a log to the Persistence database for log type " + log.getType() + " with flags=" + flags);
-            String payload = getLogSerializer().serializeLog(log);
-            ContentValues contentValues;
+            for (Map.Entry<String, Long> entry : mLogTypeTimeToLives.entrySet()) {
+                SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
+                builder.appendWhere(COLUMN_DATA_TYPE + " = ? AND " + COLUMN_STORED_AT + " < ?");
+                String[] selectionArgs = new String[]{entry.getKey(), String.valueOf(now - entry.getValue())};
+                rowsSize += readExpiredLogs(builder, selectionArgs, expiredLogGroups, expiredTargetKeys, expiredRowSizes);
+            }
 
-            //noinspection CharsetObjectCanBeUsed min API level 19 required to fix this warning.
-            int payloadSize = payload.getBytes("UTF-8").length;
-            boolean isLargePayload = payloadSize >= PAYLOAD_MAX_SIZE;
-            String targetKey;
-            String targetToken;
-            if (log instanceof CommonSchemaLog) {
-                if (isLargePayload) {
-                    throw new PersistenceException("Log is larger than " + PAYLOAD_MAX_SIZE + " bytes, cannot send to OneCollector.");
+            /* Logs of a type with its own time to live were handled above. */
+            StringBuilder typesWhereClause = new StringBuilder();
+            if (!mLogTypeTimeToLives.isEmpty()) {
+                typesWhereClause.append(" AND (").append(COLUMN_DATA_TYPE).append(" IS NULL OR ").append(COLUMN_DATA_TYPE).append(" NOT IN (");
+                for (int i = 0; i < mLogTypeTimeToLives.size(); i++) {
+                    typesWhereClause.append(i == 0 ? "?" : ", ?");
                 }
-                targetToken = log.getTransmissionTargetTokens().iterator().next();
-                targetKey = PartAUtils.getTargetKey(targetToken);
-                targetToken = CryptoUtils.getInstance(mContext).encrypt(targetToken);
-            } else {
-                targetKey = null;
-                targetToken = null;
+                typesWhereClause.append("))");
             }
-            long maxSize = mDatabaseManager.getMaxSize();
-            if (maxSize == OPERATION_FAILED_FLAG) {
-                throw new PersistenceException("Failed to store a log to the Persistence database.");
+            for (Map.Entry<String, Long> entry : mTimeToLives.entrySet()) {
+                SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
+                builder.appendWhere(COLUMN_GROUP + " = ? AND " + COLUMN_STORED_AT + " < ?" + typesWhereClause);
+                List<String> selectionArgs = new ArrayList<>();
+                selectionArgs.add(entry.getKey());
+                selectionArgs.add(String.valueOf(now - entry.getValue()));
+                selectionArgs.addAll(mLogTypeTimeToLives.keySet());
+                rowsSize += readExpiredLogs(builder, selectionArgs.toArray(new String[0]), expiredLogGroups, expiredTargetKeys, expiredRowSizes);
             }
-            if (maxSize <= payloadSize) {
-                throw new PersistenceException("Log is too large (" + payloadSize + " bytes) to store in database. " +
-                        "Current maximum database size is " + maxSize + " bytes.");
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, "Failed to get expired logs: ", e);
+            return 0;
+        }
+        if (expiredLogGroups.isEmpty()) {
+            return 0;
+        }
+        if (mDatabaseManager.delete(expiredLogGroups.keySet()) == 0) {
+            AppCenterLog.error(LOG_TAG, "Failed to delete expired logs from the Persistence database.");
+            return 0;
+        }
+        updateDatabaseSize(-rowsSize);
+        AppCenterLog.debug(LOG_TAG, "Deleted " + expiredLogGroups.size() + " expired logs.");
+        Map<String, Integer> expiredCounts = forgetDeletedLogs(expiredLogGroups, expiredTargetKeys, expiredRowSizes);
+        Listener listener = getListener();
+        if (listener != null) {
+            for (Map.Entry<String, Integer> entry : expiredCounts.entrySet()) {
+                listener.onLogsExpired(entry.getKey(), entry.getValue());
             }
-            int priority = Flags.getPersistenceFlag(flags, false);
-            contentValues = getContentValues(group, isLargePayload ? null : payload, targetToken, log.getType(), targetKey, priority);
-            while (isLargePayload && payloadSize + getStoredDataSize() > maxSize) {
-                AppCenterLog.debug(LOG_TAG, "Storage is full, trying to delete the oldest log that has the lowest priority which is lower or equal priority than the new log.");
-                if (deleteTheOldestLog(priority) == OPERATION_FAILED_FLAG) {
-                    throw new PersistenceException("Failed to clear space for new log record.");
+        }
+        return expiredLogGroups.size();
+    }
+
+    /**
+     * Read the expired logs matching a condition. Logs being sent are skipped.
+     *
+     * @param builder           query builder with the condition.
+     * @param selectionArgs     arguments of the condition.
+     * @param expiredLogGroups  group by database identifier of expired logs, updated.
+     * @param expiredTargetKeys target keys of expired logs in the same order, updated.
+     * @param expiredRowSizes   estimated database size of expired logs in the same order, updated.
+     * @return estimated database size of the read logs.
+     * @throws RuntimeException if the logs cannot be queried.
+     */
+    private long readExpiredLogs(@NonNull SQLiteQueryBuilder builder, @NonNull String[] selectionArgs, @NonNull Map<Long, String> expiredLogGroups,
+                                 @NonNull List<String> expiredTargetKeys, @NonNull List<Long> expiredRowSizes) {
+        long rowsSize = 0;
+        Cursor cursor = mDatabaseManager.getCursor(builder, EVICTION_COLUMNS, selectionArgs, null);
+        try {
+            while (cursor.moveToNext()) {
+                long dbIdentifier = cursor.getLong(0);
+
+                /* Logs being sent are deleted when their batch completes. */
+                if (mPendingDbIdentifiers.contains(dbIdentifier)) {
+                    continue;
+                }
+                long rowSize = cursor.getLong(2) + ROW_SIZE_OVERHEAD;
+                rowsSize += rowSize;
+                expiredLogGroups.put(dbIdentifier, cursor.getString(1));
+                expiredTargetKeys.add(cursor.getString(3));
+                expiredRowSizes.add(rowSize);
+            }
+        } finally {
+            cursor.close();
+        }
+        return rowsSize;
+    }
+
+    @Override
+    public void setPayloadCompressionEnabled(boolean enabled) {
+        mPayloadCompressionEnabled = enabled;
+    }
+
+    @Override
+    public void setWriteAheadLoggingEnabled(boolean enabled) {
+        mDatabaseManager.setWriteAheadLoggingEnabled(enabled);
+    }
+
+    @Override
+    public void setSyncMode(@IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int priority, @SyncMode int syncMode) {
+        mSyncModes.put(Flags.getPersistenceFlag(priority, true), syncMode);
+    }
+
+    /**
+     * Apply the sync mode of a priority before writing logs, outside of any transaction.
+     *
+     * @param flags persistence flags of the logs.
+     */
+    private void applySyncMode(int flags) {
+        if (mSyncModes.isEmpty()) {
+            return;
+        }
+        Integer syncMode = mSyncModes.get(Flags.getPersistenceFlag(flags, false));
+        mDatabaseManager.setSynchronous(syncMode == null ? SyncMode.DEFAULT : syncMode);
+    }
+
+    @Override
+    public long putLog(@NonNull Log log, @NonNull String group, @IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int flags) throws PersistenceException {
+        applySyncMode(flags);
+        long databaseId = storeLog(log, group, flags);
+        deleteLogsThatNotFitMaxSize();
+        return databaseId;
+    }
+
+    @NonNull
+    @Override
+    public Map<Log, PersistenceException> putLogs(@NonNull List<Log> logs, @NonNull String group, @IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int flags) {
+        AppCenterLog.debug(LOG_TAG, "Storing " + logs.size() + " logs to the Persistence database in a single transaction for group " + group);
+        Map<Log, PersistenceException> failures = new IdentityHashMap<>();
+        List<Long> largePayloadIds = new ArrayList<>();
+        applySyncMode(flags);
+        boolean inTransaction = mDatabaseManager.beginTransaction();
+        try {
+            for (Log log : logs) {
+                try {
+                    long databaseId = storeLog(log, group, flags);
+                    if (mLargePayloadSizes.containsKey(databaseId)) {
+                        largePayloadIds.add(databaseId);
+                    }
+                } catch (PersistenceException e) {
+                    failures.put(log, e);
+                }
+            }
+            if (inTransaction) {
+                mDatabaseManager.setTransactionSuccessful();
+            }
+        } finally {
+            if (inTransaction && !mDatabaseManager.endTransaction()) {
+
+                /* The estimated size counted rows that were rolled back. */
+                requestSizeReconciliation();
+
+                /* Devices inserted by this batch were rolled back too, and counted logs. */
+                clearDeviceCache();
+                mLogCounts = null;
+                mGroupSizes = null;
+
+                /* Large payload files are not part of the transaction, and the next logs reuse the rolled back identifiers. */
+                File largePayloadGroupDirectory = getLargePayloadGroupDirectory(group);
+                for (Long databaseId : largePayloadIds) {
+                    deleteLargePayloadFile(largePayloadGroupDirectory, databaseId);
+                }
+
+                /* The commit failed so nothing from this batch is in the database. */
+                for (Log log : logs) {
+                    if (!failures.containsKey(log)) {
+                        failures.put(log, new PersistenceException("Failed to commit logs to the Persistence database for log type " + log.getType() + "."));
+                    }
+                }
+            }
+        }
+
+        /* Check the size once for the whole batch rather than once per log. */
+        deleteLogsThatNotFitMaxSize();
+        return failures;
+    }
+
+    /**
+     * Writes a log to the database without checking the overall storage size afterwards.
+     *
+     * @param log   The log to be placed in the storage.
+     * @param group The group of the storage for the log.
+     * @param flags The persistence flags.
+     * @return Log identifier from persistence after saving.
+     * @throws PersistenceException if the log cannot be written.
+     */
+    private long storeLog(@NonNull Log log, @NonNull String group, int flags) throws PersistenceException {
+
+        /* Convert log to JSON string and put in the database. */
+        try {
+            AppCenterLog.debug(LOG_TAG, "Storing a log to the Persistence database for log type " + log.getType() + " with flags=" + flags);
+            long serializationStartTime = System.nanoTime();
+
+            /* Common Schema logs do not serialize the device, others reference it in the devices table. */
+            Device device = log.getDevice();
+            Long deviceId = device != null && !(log instanceof CommonSchemaLog) ? getDeviceId(device) : null;
+            String payload;
+            if (deviceId != null) {
+                log.setDevice(null);
+                try {
+                    payload = getLogSerializer().serializeLog(log);
+                } finally {
+                    log.setDevice(device);
+                }
+            } else {
+                payload = getLogSerializer().serializeLog(log);
+            }
+            Listener listener = getListener();
+            if (listener != null) {
+                listener.onLogSerialized(group, (System.nanoTime() - serializationStartTime) / 1000);
+            }
+
+            //noinspection CharsetObjectCanBeUsed min API level 19 required to fix this warning.
+            int payloadSize = payload.getBytes("UTF-8").length;
+            boolean isLargePayload = payloadSize >= PAYLOAD_MAX_SIZE;
+            String targetKey;
+            String targetToken;
+            if (log instanceof CommonSchemaLog) {
+                if (isLargePayload) {
+                    throw new PersistenceException("Log is larger than " + PAYLOAD_MAX_SIZE + " bytes, cannot send to OneCollector.");
                 }
+                targetToken = log.getTransmissionTargetTokens().iterator().next();
+                targetKey = PartAUtils.getTargetKey(targetToken);
+                targetToken = CryptoUtils.getInstance(mContext).encrypt(targetToken);
+            } else {
+                targetKey = null;
+                targetToken = null;
+            }
+            long maxSize = getMaxSize();
+            if (maxSize == OPERATION_FAILED_FLAG) {
+                throw new PersistenceException("Failed to store a log to the Persistence database.");
+            }
+            if (maxSize <= payloadSize) {
+                throw new PersistenceException("Log is too large (" + payloadSize + " bytes) to store in database. " +
+                        "Current maximum database size is " + maxSize + " bytes.");
+            }
+            int priority = Flags.getPersistenceFlag(flags, false);
+            long storedPayloadSize = 0;
+            Object storedPayload = null;
+            int encoding = PAYLOAD_ENCODING_JSON;
+            if (!isLargePayload && mPayloadCompressionEnabled) {
+                byte[] compressedPayload = getPayloadCompressor().compress(payload);
+                storedPayload = compressedPayload;
+                storedPayloadSize = compressedPayload.length;
+                encoding = PAYLOAD_ENCODING_DEFLATE;
+            } else if (!isLargePayload) {
+                storedPayload = payload;
+                storedPayloadSize = payloadSize;
+            }
+            long storedAt = log.getTimestamp() != null ? log.getTimestamp().getTime() : System.currentTimeMillis();
+            Object[] values = {group, storedPayload, targetToken, log.getType(), targetKey, priority, encoding, deviceId, storedAt};
+            if (isLargePayload && !makeRoom(payloadSize, priority)) {
+                throw new PersistenceException("Failed to clear space for new log record.");
             }
+            long rowSize = storedPayloadSize + (targetToken == null ? 0 : targetToken.length()) + ROW_SIZE_OVERHEAD;
+            applyGroupQuota(group, rowSize, priority);
             Long databaseId = null;
             while (databaseId == null) {
                 try {
-                    databaseId = mDatabaseManager.put(contentValues);
+                    databaseId = mDatabaseManager.insert(INSERT_COLUMNS, values);
                 } catch (SQLiteFullException e) {
-                    AppCenterLog.debug(LOG_TAG, "Storage is full, trying to delete the oldest log that has the lowest priority which is lower or equal priority than the new log.");
-                    if (deleteTheOldestLog(priority) == OPERATION_FAILED_FLAG) {
+                    AppCenterLog.debug(LOG_TAG, "Storage is full, trying to delete the oldest logs that have the lowest priority which is lower or equal priority than the new log.");
+                    if (evictOldestLogs(null, rowSize, priority, EVICTION_SORT_ORDER) == 0) {
                         databaseId = OPERATION_FAILED_FLAG;
                     }
                 }
@@ -329,6 +984,9 @@ public class DatabasePersistence extends Persistence {
             if (databaseId == OPERATION_FAILED_FLAG) {
                 throw new PersistenceException("Failed to store a log to the Persistence database for log type " + log.getType() + ".");
             }
+            updateDatabaseSize(rowSize);
+            updateLogCount(group, targetKey, 1);
+            updateGroupSize(group, rowSize);
             AppCenterLog.debug(LOG_TAG, "Stored a log to the Persistence database for log type " + log.getType() + " with databaseId=" + databaseId);
             if (isLargePayload) {
                 AppCenterLog.debug(LOG_TAG, "Payload is larger than what SQLite supports, storing payload in a separate file.");
@@ -339,17 +997,21 @@ public class DatabasePersistence extends Persistence {
                 File payloadFile = getLargePayloadFile(directory, databaseId);
                 try {
                     FileManager.write(payloadFile, payload);
-                    mLargePayloadsSize += payloadFile.length();
-                    AppCenterLog.verbose(LOG_TAG, "Store extra " + payloadFile.length() + " KB as a separated payload file.");
+                    long fileSize = payloadFile.length();
+                    mLargePayloadsSize += fileSize;
+                    mLargePayloadSizes.put(databaseId, fileSize);
+                    AppCenterLog.verbose(LOG_TAG, "Store extra " + fileSize + " KB as a separated payload file.");
                 } catch (IOException e) {
 
                     /* Remove database entry if we cannot save payload as a file. */
                     mDatabaseManager.delete(databaseId);
+                    updateDatabaseSize(-rowSize);
+                    updateLogCount(group, targetKey, -1);
+                    updateGroupSize(group, -rowSize);
                     throw e;
                 }
                 AppCenterLog.debug(LOG_TAG, "Payload written to " + payloadFile);
             }
-            deleteLogsThatNotFitMaxSize();
             return databaseId;
         } catch (JSONException e) {
             throw new PersistenceException("Cannot convert to JSON string.", e);
@@ -371,10 +1033,29 @@ public class DatabasePersistence extends Persistence {
     }
 
     private void deleteLog(File groupLargePayloadDirectory, long id) {
-
-        //noinspection ResultOfMethodCallIgnored SQLite delete does not have return type either.
-        getLargePayloadFile(groupLargePayloadDirectory, id).delete();
+        deleteLargePayloadFile(groupLargePayloadDirectory, id);
         mDatabaseManager.delete(id);
+
+        /* The size and target of a record that could not be read are not known. */
+        requestSizeReconciliation();
+        mLogCounts = null;
+        mGroupSizes = null;
+    }
+
+    /**
+     * Delete logs in a single statement, and the large payload files of those having one.
+     *
+     * @param groupLargePayloadDirectory large payload directory of the group.
+     * @param ids                        database identifiers.
+     * @param rowsSize                   estimated database size of the logs.
+     */
+    private void deleteLogs(File groupLargePayloadDirectory, Collection<Long> ids, long rowsSize) {
+        if (mDatabaseManager.delete(ids) > 0) {
+            updateDatabaseSize(-rowsSize);
+        }
+        for (Long id : ids) {
+            deleteLargePayloadFile(groupLargePayloadDirectory, id);
+        }
     }
 
     @Override
@@ -386,13 +1067,33 @@ public class DatabasePersistence extends Persistence {
 
         /* Delete logs. */
         List<Long> dbIdentifiers = mPendingDbIdentifiersGroups.remove(group + id);
-        File directory = getLargePayloadGroupDirectory(group);
+        mPendingByteSizes.remove(group + id);
+        Long rowsSize = mPendingRowSizes.remove(group + id);
+        Map<String, Integer> logCounts = mPendingLogCounts.remove(group + id);
         if (dbIdentifiers != null) {
             for (Long dbIdentifier : dbIdentifiers) {
                 AppCenterLog.debug(LOG_TAG, "\t" + dbIdentifier);
-                deleteLog(directory, dbIdentifier);
                 mPendingDbIdentifiers.remove(dbIdentifier);
             }
+            if (rowsSize == null) {
+                requestSizeReconciliation();
+
+                /* Sizes are loaded with counts, reload both. */
+                mLogCounts = null;
+                mGroupSizes = null;
+                rowsSize = 0L;
+            } else {
+                updateGroupSize(group, -rowsSize);
+            }
+            deleteLogs(getLargePayloadGroupDirectory(group), dbIdentifiers, rowsSize);
+            if (logCounts == null) {
+                mLogCounts = null;
+                mGroupSizes = null;
+            } else {
+                for (Map.Entry<String, Integer> entry : logCounts.entrySet()) {
+                    updateLogCount(group, entry.getKey(), -entry.getValue());
+                }
+            }
         }
     }
 
@@ -407,49 +1108,255 @@ public class DatabasePersistence extends Persistence {
         File[] files = directory.listFiles();
         if (files != null) {
             for (File file : files) {
-
-                //noinspection ResultOfMethodCallIgnored we are not checking SQLite result either.
-                file.delete();
+                Long fileSize = null;
+                try {
+                    fileSize = mLargePayloadSizes.remove(Long.parseLong(FileManager.getNameWithoutExtension(file)));
+                } catch (NumberFormatException ignore) {
+                }
+                if (file.delete() && fileSize != null) {
+                    mLargePayloadsSize -= fileSize;
+                }
             }
         }
 
         //noinspection ResultOfMethodCallIgnored we are not checking SQLite result either.
         directory.delete();
 
-        /* Delete from database. */
-        int deletedCount = mDatabaseManager.delete(COLUMN_GROUP, group);
-        AppCenterLog.debug(LOG_TAG, "Deleted " + deletedCount + " logs.");
+        /* Delete from database, a shard deletes its whole database instead. */
+        if (group.equals(mShardGroup) && deleteShardDatabase()) {
+            AppCenterLog.debug(LOG_TAG, "Deleted the database of " + group + ".");
+            requestSizeReconciliation();
+        } else {
+            int deletedCount = mDatabaseManager.delete(COLUMN_GROUP, group);
+            AppCenterLog.debug(LOG_TAG, "Deleted " + deletedCount + " logs.");
+            if (deletedCount > 0) {
+                requestSizeReconciliation();
+            }
+        }
+        if (mLogCounts != null) {
+            mLogCounts.remove(group);
+            mGroupSizes.remove(group);
+        }
 
-        /* Delete from pending state. */
-        for (Iterator<String> iterator = mPendingDbIdentifiersGroups.keySet().iterator(); iterator.hasNext(); ) {
-            String key = iterator.next();
-            if (key.startsWith(group)) {
+        /*
+         * Delete from pending state, identifiers included:
+         * a new shard database starts numbering logs from 1 again.
+         */
+        for (Iterator<Map.Entry<String, List<Long>>> iterator = mPendingDbIdentifiersGroups.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, List<Long>> entry = iterator.next();
+            if (entry.getKey().startsWith(group)) {
+                mPendingDbIdentifiers.removeAll(entry.getValue());
+                iterator.remove();
+            }
+        }
+        for (Iterator<String> iterator = mPendingByteSizes.keySet().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().startsWith(group)) {
+                iterator.remove();
+            }
+        }
+        for (Iterator<String> iterator = mPendingRowSizes.keySet().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().startsWith(group)) {
+                iterator.remove();
+            }
+        }
+        for (Iterator<String> iterator = mPendingLogCounts.keySet().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().startsWith(group)) {
                 iterator.remove();
             }
         }
     }
 
     @Override
-    public int countLogs(@NonNull String group) {
+    public int deleteOldestLogs(@NonNull String group, @IntRange(from = 0) int count) {
 
-        /* Query database and get scanner. */
+        /* Select the oldest identifiers that are not being sent. */
         SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
         builder.appendWhere(COLUMN_GROUP + " = ?");
-        int count = 0;
+        List<Long> dbIdentifiers = new ArrayList<>();
+        List<String> targetKeys = new ArrayList<>();
+        long rowsSize = 0;
         try {
-            Cursor cursor = mDatabaseManager.getCursor(builder, new String[]{"COUNT(*)"}, new String[]{group}, null);
+            Cursor cursor = mDatabaseManager.getCursor(builder, EVICTION_COLUMNS, new String[]{group}, EVICTION_SORT_ORDER);
             try {
-                cursor.moveToNext();
-                count = cursor.getInt(0);
+                while (dbIdentifiers.size() < count && cursor.moveToNext()) {
+                    long dbIdentifier = cursor.getLong(0);
+                    if (!mPendingDbIdentifiers.contains(dbIdentifier)) {
+                        dbIdentifiers.add(dbIdentifier);
+                        targetKeys.add(cursor.getString(3));
+                        rowsSize += cursor.getLong(2) + ROW_SIZE_OVERHEAD;
+                    }
+                }
             } finally {
                 cursor.close();
             }
         } catch (RuntimeException e) {
-            AppCenterLog.error(LOG_TAG, "Failed to get logs count: ", e);
+            AppCenterLog.error(LOG_TAG, "Failed to get logs to evict: ", e);
+        }
+        if (dbIdentifiers.isEmpty()) {
+            return 0;
+        }
+
+        /* Delete them in a single statement. */
+        if (mDatabaseManager.delete(dbIdentifiers) == 0) {
+            return 0;
+        }
+        updateDatabaseSize(-rowsSize);
+        updateGroupSize(group, -rowsSize);
+        for (String targetKey : targetKeys) {
+            updateLogCount(group, targetKey, -1);
+        }
+        File directory = getLargePayloadGroupDirectory(group);
+        for (Long dbIdentifier : dbIdentifiers) {
+            deleteLargePayloadFile(directory, dbIdentifier);
+        }
+        AppCenterLog.debug(LOG_TAG, "Evicted " + dbIdentifiers.size() + " oldest logs from " + group);
+        Listener listener = getListener();
+        if (listener != null) {
+            listener.onLogsEvicted(group, dbIdentifiers.size());
+        }
+        return dbIdentifiers.size();
+    }
+
+    @Override
+    public int countLogs(@NonNull String group) {
+        return countLogs(group, Collections.<String>emptySet());
+    }
+
+    @Override
+    public int countLogs(@NonNull String group, @NonNull Collection<String> excludedTargetKeys) {
+        Map<String, Map<String, Integer>> logCounts = getLogCounts();
+        Map<String, Integer> groupCounts = logCounts == null ? null : logCounts.get(group);
+        if (groupCounts == null) {
+            return 0;
+        }
+        int count = 0;
+        for (Map.Entry<String, Integer> entry : groupCounts.entrySet()) {
+            if (!excludedTargetKeys.contains(entry.getKey())) {
+                count += entry.getValue();
+            }
         }
         return count;
     }
 
+    /**
+     * Get the number of stored logs by group and target key, counting them with a single query if not known.
+     * The query also loads {@link #mGroupSizes}.
+     *
+     * @return numbers of logs, null if they cannot be counted.
+     */
+    @Nullable
+    private Map<String, Map<String, Integer>> getLogCounts() {
+        if (mLogCounts == null || mGroupSizes == null) {
+            try {
+                Cursor cursor = mDatabaseManager.getGroupedCursor(null, COUNT_COLUMNS, null, COLUMN_GROUP + ", " + COLUMN_TARGET_KEY);
+                try {
+                    Map<String, Map<String, Integer>> logCounts = new HashMap<>();
+                    Map<String, Long> groupSizes = new HashMap<>();
+                    while (cursor.moveToNext()) {
+                        String group = cursor.getString(0);
+                        Map<String, Integer> groupCounts = logCounts.get(group);
+                        if (groupCounts == null) {
+                            groupCounts = new HashMap<>();
+                            logCounts.put(group, groupCounts);
+                        }
+                        int count = cursor.getInt(2);
+                        groupCounts.put(cursor.getString(1), count);
+                        Long groupSize = groupSizes.get(group);
+                        groupSizes.put(group, (groupSize == null ? 0 : groupSize) + cursor.getLong(3) + (long) count * ROW_SIZE_OVERHEAD);
+                    }
+                    mLogCounts = logCounts;
+                    mGroupSizes = groupSizes;
+                } finally {
+                    cursor.close();
+                }
+            } catch (RuntimeException e) {
+                AppCenterLog.error(LOG_TAG, "Failed to get logs count: ", e);
+            }
+        }
+        return mLogCounts;
+    }
+
+    /**
+     * Update the number of stored logs of a group and target key, if numbers are loaded.
+     *
+     * @param group     group.
+     * @param targetKey target key, null for logs without target.
+     * @param delta     number of inserted logs, negative for deleted logs.
+     */
+    private void updateLogCount(@NonNull String group, @Nullable String targetKey, int delta) {
+        if (mLogCounts == null) {
+            return;
+        }
+        Map<String, Integer> groupCounts = mLogCounts.get(group);
+        if (groupCounts == null) {
+            groupCounts = new HashMap<>();
+            mLogCounts.put(group, groupCounts);
+        }
+        Integer count = groupCounts.get(targetKey);
+        int newCount = (count == null ? 0 : count) + delta;
+        if (newCount > 0) {
+            groupCounts.put(targetKey, newCount);
+        } else {
+            groupCounts.remove(targetKey);
+        }
+    }
+
+    /**
+     * Update the estimated database size of the logs of a group, if sizes are loaded.
+     *
+     * @param group group.
+     * @param delta estimated size of inserted logs, negative for deleted logs.
+     */
+    private void updateGroupSize(@NonNull String group, long delta) {
+        if (mGroupSizes == null) {
+            return;
+        }
+        Long groupSize = mGroupSizes.get(group);
+        mGroupSizes.put(group, (groupSize == null ? 0 : groupSize) + delta);
+    }
+
+    /**
+     * Make room in the storage quota of a group for a new log, if the group has a quota.
+     *
+     * @param group    group of the new log.
+     * @param rowSize  estimated database size of the new log.
+     * @param priority priority of the new log.
+     * @throws PersistenceException if the log does not fit in the quota.
+     */
+    private void applyGroupQuota(@NonNull String group, long rowSize, int priority) throws PersistenceException {
+        GroupQuota quota = mGroupQuotas.get(group);
+        if (quota == null) {
+            return;
+        }
+        long maxGroupSize = quota.mMaxSize;
+        if (quota.mPercentage > 0) {
+            maxGroupSize = getMaxSize() * quota.mPercentage / 100;
+        }
+        if (rowSize > maxGroupSize) {
+            throw new PersistenceException("Log is too large (" + rowSize + " bytes) for the storage quota of " + group + " (" + maxGroupSize + " bytes).");
+        }
+        getLogCounts();
+        while (mGroupSizes != null) {
+            Long groupSize = mGroupSizes.get(group);
+            long bytesToFree = (groupSize == null ? 0 : groupSize) + rowSize - maxGroupSize;
+            if (bytesToFree <= 0) {
+                return;
+            }
+            if (quota.mEvictionPolicy == EvictionPolicy.REJECT_NEW) {
+                Listener listener = getListener();
+                if (listener != null) {
+                    listener.onLogRejectedByQuota(group);
+                }
+                throw new PersistenceException("Storage quota of " + group + " is full.");
+            }
+            String sortOrder = quota.mEvictionPolicy == EvictionPolicy.OLDEST_FIRST ? PRIMARY_KEY : EVICTION_SORT_ORDER;
+            if (evictOldestLogs(group, bytesToFree, priority, sortOrder) == 0) {
+                throw new PersistenceException("Failed to clear space for new log record in the storage quota of " + group + ".");
+            }
+        }
+        AppCenterLog.warn(LOG_TAG, "Cannot check the storage quota of " + group + ", sizes of stored logs are not known.");
+    }
+
     @Override
     @Nullable
     public String getLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, @IntRange(from = 0) int limit, @NonNull List<Log> outLogs) {
@@ -457,114 +1364,67 @@ public class DatabasePersistence extends Persistence {
         /* Log. */
         AppCenterLog.debug(LOG_TAG, "Trying to get " + limit + " logs from the Persistence database for " + group);
 
-        /* Query database. */
-        SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
-        builder.appendWhere(COLUMN_GROUP + " = ?");
+        /* Selection arguments are the same for every page. */
         List<String> selectionArgs = new ArrayList<>();
         selectionArgs.add(group);
-        if (!pausedTargetKeys.isEmpty()) {
-            StringBuilder filter = new StringBuilder();
-            for (int i = 0; i < pausedTargetKeys.size(); i++) {
-                filter.append("?,");
-            }
-            filter.deleteCharAt(filter.length() - 1);
-            builder.appendWhere(" AND ");
-            builder.appendWhere(COLUMN_TARGET_KEY + " NOT IN (" + filter.toString() + ")");
-            selectionArgs.addAll(pausedTargetKeys);
-        }
+        selectionArgs.addAll(pausedTargetKeys);
+        String[] selectionArgsArray = selectionArgs.toArray(new String[0]);
 
-        /* Add logs to output parameter after deserialization if logs are not already sent. */
-        int count = 0;
+        /*
+         * Read only what is missing, pending logs and logs already read are excluded by the query itself
+         * so that the cost of a batch does not depend on how many logs are waiting in the database.
+         * Another page is read only when some logs of the previous one could not be used.
+         */
+        long byteSize = 0;
         Map<Long, Log> candidates = new LinkedHashMap<>();
+        Map<Long, Long> rowSizes = new HashMap<>();
         List<Long> failedDbIdentifiers = new ArrayList<>();
+        Set<Long> excludedDbIdentifiers = new HashSet<>(mPendingDbIdentifiers);
         File largePayloadGroupDirectory = getLargePayloadGroupDirectory(group);
-        String[] selectionArgsArray = selectionArgs.toArray(new String[0]);
-        Cursor cursor = null;
-        ContentValues values;
-        try {
-            cursor = mDatabaseManager.getCursor(builder, null, selectionArgsArray, GET_SORT_ORDER);
-        } catch (RuntimeException e) {
-            AppCenterLog.error(LOG_TAG, "Failed to get logs: ", e);
-        }
-        while (cursor != null &&
-                (values = mDatabaseManager.nextValues(cursor)) != null &&
-                count < limit) {
-            Long dbIdentifier = values.getAsLong(PRIMARY_KEY);
-
-            /*
-             * When we can't even read the identifier (in this case ContentValues is most likely empty).
-             * That probably means it contained a record larger than 2MB (from a previous SDK version)
-             * and we hit the cursor limit.
-             * Get rid of first non pending log.
-             */
-            if (dbIdentifier == null) {
-                AppCenterLog.error(LOG_TAG, "Empty database record, probably content was larger than 2MB, need to delete as it's now corrupted.");
-                Set<Long> corruptedIds = getLogsIds(builder, selectionArgsArray);
-                for (Long corruptedId : corruptedIds) {
-                    if (!mPendingDbIdentifiers.contains(corruptedId) && !candidates.containsKey(corruptedId)) {
-
-                        /* Found the record to delete that we could not read when selecting all fields. */
-                        deleteLog(largePayloadGroupDirectory, corruptedId);
-                        AppCenterLog.error(LOG_TAG, "Empty database corrupted empty record deleted, id=" + corruptedId);
-                        break;
-                    }
-                }
-                continue;
+        int pageSize;
+        List<Long> dbIdentifiers;
+        do {
+            pageSize = limit - candidates.size();
+
+            /* First phase: identifiers of the next logs only, payloads are not loaded. */
+            SQLiteQueryBuilder builder = getLogsQueryBuilder(pausedTargetKeys.size(), excludedDbIdentifiers);
+            dbIdentifiers = getLogsIds(builder, selectionArgsArray, pageSize);
+            if (dbIdentifiers.isEmpty()) {
+                break;
             }
+            excludedDbIdentifiers.addAll(dbIdentifiers);
 
-            /* If the log is already in pending state, then skip. Otherwise put the log to candidate container. */
-            if (!mPendingDbIdentifiers.contains(dbIdentifier)) {
-                try {
-
-                    /* Deserialize JSON to Log. */
-                    String logPayload;
-                    String databasePayload = values.getAsString(COLUMN_LOG);
-                    if (databasePayload == null) {
-                        File file = getLargePayloadFile(largePayloadGroupDirectory, dbIdentifier);
-                        AppCenterLog.debug(LOG_TAG, "Read payload file " + file);
-                        logPayload = FileManager.read(file);
-                        if (logPayload == null) {
-                            throw new JSONException("Log payload is null and not stored as a file.");
-                        }
-                    } else {
-                        logPayload = databasePayload;
-                    }
-                    String databasePayloadType = values.getAsString(COLUMN_DATA_TYPE);
-                    Log log = getLogSerializer().deserializeLog(logPayload, databasePayloadType);
-
-                    /* Restore target token. */
-                    String targetToken = values.getAsString(COLUMN_TARGET_TOKEN);
-                    if (targetToken != null) {
-                        CryptoUtils.DecryptedData data = CryptoUtils.getInstance(mContext).decrypt(targetToken);
-                        log.addTransmissionTarget(data.getDecryptedData());
-                    }
-
-                    /* Add log to list and count. */
-                    candidates.put(dbIdentifier, log);
-                    count++;
-                } catch (JSONException e) {
-
-                    /* If it is not able to deserialize, delete and get another log. */
-                    AppCenterLog.error(LOG_TAG, "Cannot deserialize a log in the database", e);
+            /* Second phase: payloads of these logs. */
+            Set<Long> unreadDbIdentifiers = new LinkedHashSet<>(dbIdentifiers);
+            try {
+                byteSize += readLogs(largePayloadGroupDirectory, dbIdentifiers, unreadDbIdentifiers, candidates, rowSizes, failedDbIdentifiers);
 
-                    /* Put the failed identifier to delete. */
-                    failedDbIdentifiers.add(dbIdentifier);
+                /*
+                 * A record larger than 2MB (from a previous SDK version) hits the cursor limit and cannot be read,
+                 * depending on Android version the read fails or returns an empty row.
+                 * Read remaining logs one by one to isolate such records and delete them.
+                 */
+                for (Long dbIdentifier : new ArrayList<>(unreadDbIdentifiers)) {
+                    byteSize += readLogs(largePayloadGroupDirectory, Collections.singletonList(dbIdentifier), unreadDbIdentifiers, candidates, rowSizes, failedDbIdentifiers);
                 }
+                for (Long corruptedId : unreadDbIdentifiers) {
+                    deleteLog(largePayloadGroupDirectory, corruptedId);
+                    AppCenterLog.error(LOG_TAG, "Empty database corrupted empty record deleted, id=" + corruptedId);
+                }
+            } catch (RuntimeException e) {
+                AppCenterLog.error(LOG_TAG, "Failed to get logs: ", e);
+                break;
             }
-        }
-        if (cursor != null) {
-            try {
-                cursor.close();
-            } catch (RuntimeException ignore) {
-            }
-        }
+        } while (candidates.size() < limit && dbIdentifiers.size() >= pageSize);
 
         /* Delete any logs that cannot be de-serialized. */
         if (failedDbIdentifiers.size() > 0) {
-            for (long id : failedDbIdentifiers) {
-                deleteLog(largePayloadGroupDirectory, id);
-            }
+            deleteLogs(largePayloadGroupDirectory, failedDbIdentifiers, sumRowSizes(rowSizes, failedDbIdentifiers));
             AppCenterLog.warn(LOG_TAG, "Deleted logs that cannot be deserialized");
+
+            /* Their target key is not known. */
+            mLogCounts = null;
+            mGroupSizes = null;
         }
 
         /* No logs found. */
@@ -580,6 +1440,7 @@ public class DatabasePersistence extends Persistence {
         AppCenterLog.debug(LOG_TAG, "Returning " + candidates.size() + " log(s) with an ID, " + id);
         AppCenterLog.debug(LOG_TAG, "The SID/ID pairs for returning log(s) is/are:");
         List<Long> pendingDbIdentifiersGroup = new ArrayList<>();
+        Map<String, Integer> logCounts = new HashMap<>();
         for (Map.Entry<Long, Log> entry : candidates.entrySet()) {
             Long dbIdentifier = entry.getKey();
 
@@ -592,12 +1453,21 @@ public class DatabasePersistence extends Persistence {
             /* Add to output parameter. */
             outLogs.add(entry.getValue());
 
+            /* Count logs by target key to update counts when the logs are deleted. */
+            Set<String> targetTokens = entry.getValue().getTransmissionTargetTokens();
+            String targetKey = targetTokens == null || targetTokens.isEmpty() ? null : PartAUtils.getTargetKey(targetTokens.iterator().next());
+            Integer count = logCounts.get(targetKey);
+            logCounts.put(targetKey, count == null ? 1 : count + 1);
+
             /* Log. */
             AppCenterLog.debug(LOG_TAG, "\t" + entry.getValue().getSid() + " / " + dbIdentifier);
         }
 
         /* Update pending IDs. */
         mPendingDbIdentifiersGroups.put(group + id, pendingDbIdentifiersGroup);
+        mPendingByteSizes.put(group + id, byteSize);
+        mPendingRowSizes.put(group + id, sumRowSizes(rowSizes, pendingDbIdentifiersGroup));
+        mPendingLogCounts.put(group + id, logCounts);
         return id;
     }
 
@@ -605,117 +1475,679 @@ public class DatabasePersistence extends Persistence {
     public void clearPendingLogState() {
         mPendingDbIdentifiers.clear();
         mPendingDbIdentifiersGroups.clear();
+        mPendingByteSizes.clear();
+        mPendingRowSizes.clear();
+        mPendingLogCounts.clear();
         AppCenterLog.debug(LOG_TAG, "Cleared pending log states");
     }
 
+    @Override
+    public long getBatchByteSize(@NonNull String group, @NonNull String batchId) {
+        Long byteSize = mPendingByteSizes.get(group + batchId);
+        return byteSize != null ? byteSize : -1;
+    }
+
+    @Override
+    public void releaseLogs(@NonNull String group, @NonNull String batchId) {
+        List<Long> dbIdentifiers = mPendingDbIdentifiersGroups.remove(group + batchId);
+        mPendingByteSizes.remove(group + batchId);
+        mPendingRowSizes.remove(group + batchId);
+        mPendingLogCounts.remove(group + batchId);
+        if (dbIdentifiers != null) {
+            mPendingDbIdentifiers.removeAll(dbIdentifiers);
+            AppCenterLog.debug(LOG_TAG, "Released " + dbIdentifiers.size() + " pending log(s) for " + group + " with " + batchId);
+        }
+    }
+
     @Override
     public void close() {
+        if (mLargePayloadScan != null) {
+            mLargePayloadScan.cancel(false);
+            mLargePayloadScan = null;
+        }
         mDatabaseManager.close();
+        if (mPayloadCompressor != null) {
+            mPayloadCompressor.close();
+            mPayloadCompressor = null;
+        }
+    }
+
+    /**
+     * Get the identifier of a device in the devices table, inserting the device if it is not stored yet.
+     * Devices no longer referenced by any log are deleted the first time devices are loaded.
+     *
+     * @param device device.
+     * @return identifier in the devices table, null if the device could not be stored and must stay in the log payload.
+     * @throws JSONException if the device cannot be serialized.
+     */
+    @Nullable
+    private Long getDeviceId(@NonNull Device device) throws JSONException {
+        if (device.equals(mLastDevice)) {
+            return mLastDeviceId;
+        }
+        JSONStringer writer = new JSONStringer();
+        writer.object();
+        device.write(writer);
+        writer.endObject();
+        String deviceJson = writer.toString();
+        if (mDeviceIds == null) {
+            mDeviceIds = loadDeviceIds();
+        }
+        String hash = HashUtils.sha256(deviceJson);
+        Long deviceId = mDeviceIds.get(hash);
+        if (deviceId == null) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_DEVICE_HASH, hash);
+            values.put(COLUMN_DEVICE, deviceJson);
+            try {
+                deviceId = mDatabaseManager.put(DEVICES_TABLE, values);
+            } catch (SQLiteFullException e) {
+                deviceId = OPERATION_FAILED_FLAG;
+            }
+            if (deviceId == OPERATION_FAILED_FLAG) {
+                AppCenterLog.warn(LOG_TAG, "Failed to store the device, keeping it in the log.");
+                return null;
+            }
+            mDeviceIds.put(hash, deviceId);
+        }
+
+        /* Keep a copy as the device of the next log is usually the same, possibly updated, instance. */
+        Device copy = new Device();
+        copy.read(new JSONObject(deviceJson));
+        mDevices.put(deviceId, copy);
+        mLastDevice = copy;
+        mLastDeviceId = deviceId;
+        return deviceId;
+    }
+
+    /**
+     * Delete devices that are not referenced by any log and load the identifiers of the others.
+     *
+     * @return identifiers by device content hash.
+     */
+    @NonNull
+    private Map<String, Long> loadDeviceIds() {
+        int deletedCount = mDatabaseManager.deleteWhere(DEVICES_TABLE, UNUSED_DEVICES_WHERE);
+        if (deletedCount > 0) {
+            AppCenterLog.debug(LOG_TAG, "Deleted " + deletedCount + " devices no longer used by logs.");
+        }
+        Map<String, Long> deviceIds = new HashMap<>();
+        try {
+            Cursor cursor = mDatabaseManager.getCursor(DEVICES_TABLE, SQLiteUtils.newSQLiteQueryBuilder(), new String[]{PRIMARY_KEY, COLUMN_DEVICE_HASH}, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    deviceIds.put(cursor.getString(1), cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, "Failed to get devices: ", e);
+        }
+        return deviceIds;
+    }
+
+    /**
+     * Get a device from the devices table.
+     *
+     * @param deviceId identifier in the devices table.
+     * @return device.
+     * @throws JSONException if the device is not stored or cannot be deserialized.
+     */
+    @NonNull
+    private Device getDevice(long deviceId) throws JSONException {
+        Device device = mDevices.get(deviceId);
+        if (device != null) {
+            return device;
+        }
+        String deviceJson = null;
+        SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
+        builder.appendWhere(PRIMARY_KEY + " = ?");
+        Cursor cursor = mDatabaseManager.getCursor(DEVICES_TABLE, builder, new String[]{COLUMN_DEVICE}, new String[]{String.valueOf(deviceId)}, null);
+        try {
+            if (cursor.moveToNext()) {
+                deviceJson = cursor.getString(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (deviceJson == null) {
+            throw new JSONException("Device " + deviceId + " of the log is not stored.");
+        }
+        device = new Device();
+        device.read(new JSONObject(deviceJson));
+        mDevices.put(deviceId, device);
+        return device;
+    }
+
+    /**
+     * Forget cached devices, after a rollback may have removed some from the devices table.
+     */
+    private void clearDeviceCache() {
+        mDeviceIds = null;
+        mDevices.clear();
+        mLastDevice = null;
+    }
+
+    /**
+     * Get the payload compressor, creating it if needed.
+     *
+     * @return payload compressor.
+     */
+    @NonNull
+    private PayloadCompressor getPayloadCompressor() {
+        if (mPayloadCompressor == null) {
+            mPayloadCompressor = new PayloadCompressor();
+        }
+        return mPayloadCompressor;
     }
 
     /**
      * Delete the oldest logs that do not fit max storage size.
      */
     public void deleteLogsThatNotFitMaxSize() {
-        int normalPriority = Flags.getPersistenceFlag(Flags.NORMAL, false);
-        while (getStoredDataSize() >= mDatabaseManager.getMaxSize()) {
-            if (deleteTheOldestLog(normalPriority) == OPERATION_FAILED_FLAG) {
+        makeRoom(1, Flags.getPersistenceFlag(Flags.NORMAL, false));
+    }
+
+    /**
+     * Get the size of stored logs, used by {@link ShardedPersistence} to apply its maximum size to all its databases.
+     *
+     * @param exact true to reconcile the database size now if it changed since the last reconciliation.
+     * @return size in bytes.
+     */
+    long getStoredSize(boolean exact) {
+        return getStoredDataSize(exact);
+    }
+
+    /**
+     * Evict the oldest logs with the lowest priority, used by {@link ShardedPersistence} to apply its maximum size to all its databases.
+     *
+     * @param bytesToFree number of bytes to free.
+     * @param priority    maximum priority of logs to delete.
+     * @return number of deleted logs, 0 if none could be deleted.
+     */
+    int evictOldestLogs(long bytesToFree, int priority) {
+        return evictOldestLogs(null, bytesToFree, priority, EVICTION_SORT_ORDER);
+    }
+
+    /**
+     * Evict the oldest logs until the given number of bytes fits in storage besides stored logs.
+     *
+     * @param extraBytes number of bytes that must fit.
+     * @param priority   maximum priority of logs to delete.
+     * @return true if the bytes fit, false if not enough logs could be deleted.
+     */
+    private boolean makeRoom(long extraBytes, int priority) {
+        long maxSize = getMaxSize();
+        if (maxSize == OPERATION_FAILED_FLAG) {
+            return false;
+        }
+        while (getStoredDataSize(false) + extraBytes - maxSize > 0) {
+
+            /* The estimate says storage is full, check used pages before deleting anything. */
+            long bytesToFree = getStoredDataSize(true) + extraBytes - maxSize;
+            if (bytesToFree <= 0) {
                 break;
             }
+            AppCenterLog.debug(LOG_TAG, "Storage is full, trying to delete the oldest logs that have the lowest priority which is lower or equal priority than the new log.");
+            if (evictOldestLogs(null, bytesToFree, priority, EVICTION_SORT_ORDER) == 0) {
+                return false;
+            }
         }
+        return true;
     }
 
-    private long getStoredDataSize() {
-        return mDatabaseManager.getCurrentSize() + mLargePayloadsSize;
+    /**
+     * Get the maximum database size, querying SQLite only if not known yet.
+     *
+     * @return maximum size in bytes, or {@link DatabaseManager#OPERATION_FAILED_FLAG} if it cannot be read.
+     */
+    private long getMaxSize() {
+        if (mMaxSize == OPERATION_FAILED_FLAG) {
+            mMaxSize = mDatabaseManager.getMaxSize();
+        }
+        return mMaxSize;
     }
 
     /**
-     * Delete the log record from the database and the large payload file associated with this record if it exists.
+     * Get the size of stored logs: used database pages and large payload files.
+     * The database size is an estimate that is reconciled with SQLite every {@link #SIZE_RECONCILIATION_INTERVAL} changes.
+     * The large payloads size is approximate until the scan of the files of previous runs completes.
      *
-     * @param priority Value of maximum priority of record to delete.
-     * @return Id of deleted record.
+     * @param exact true to reconcile the database size now if it changed since the last reconciliation.
+     * @return size in bytes.
      */
-    private long deleteTheOldestLog(int priority) {
-        Set<String> columnsToGet = new HashSet<>();
-        columnsToGet.add(PRIMARY_KEY);
-        columnsToGet.add(COLUMN_GROUP);
-        ContentValues deletedRow = mDatabaseManager.deleteTheOldestRecord(columnsToGet, COLUMN_PRIORITY, priority);
-        if (deletedRow == null) {
-            return OPERATION_FAILED_FLAG;
+    private long getStoredDataSize(boolean exact) {
+        applyLargePayloadScan();
+        if (mSizeChangesSinceReconciliation >= SIZE_RECONCILIATION_INTERVAL || (exact && mSizeChangesSinceReconciliation > 0)) {
+            long usedSize = mDatabaseManager.getUsedSize();
+            if (usedSize != OPERATION_FAILED_FLAG) {
+                mDatabaseSize = usedSize;
+            }
+            mSizeChangesSinceReconciliation = 0;
         }
-        long deletedId = deletedRow.getAsLong(PRIMARY_KEY);
-        String group = deletedRow.getAsString(COLUMN_GROUP);
-        File file = getLargePayloadFile(getLargePayloadGroupDirectory(group), deletedId);
-        if (!file.exists()) {
-            return deletedId;
+        long largePayloadsSize = mLargePayloadsSize;
+        if (mLargePayloadScan != null) {
+
+            /* Files of previous runs are not known yet, count those measured so far. */
+            largePayloadsSize += mLargePayloadScan.getScannedSize();
         }
-        long fileSize = file.length();
-        if (file.delete()) {
-            mLargePayloadsSize -= fileSize;
-            AppCenterLog.verbose(LOG_TAG, "Large payload file with id " + deletedId + " has been deleted. " + fileSize + " KB of memory has been freed.");
-        } else {
-            AppCenterLog.warn(LOG_TAG, "Cannot delete large payload file with id " + deletedId);
+        return mDatabaseSize + largePayloadsSize;
+    }
+
+    /**
+     * Update the estimated database size after inserting or deleting rows.
+     *
+     * @param rowsSize estimated size of inserted rows, negative for deleted rows.
+     */
+    private void updateDatabaseSize(long rowsSize) {
+        mDatabaseSize += rowsSize;
+        mSizeChangesSinceReconciliation++;
+    }
+
+    /**
+     * Delete the database of a shard, which is faster than deleting its rows and gives the space back right away.
+     * The database is created again when the next log is stored.
+     *
+     * @return true if the database was deleted.
+     */
+    private boolean deleteShardDatabase() {
+        if (!mDatabaseManager.deleteDatabase()) {
+            return false;
+        }
+
+        /* Devices were stored in the deleted database, and the new one starts with the default maximum size. */
+        mDeviceIds = null;
+        mDevices.clear();
+        mLastDevice = null;
+        if (mMaxSize != OPERATION_FAILED_FLAG) {
+            mDatabaseManager.setMaxSize(mMaxSize);
         }
-        return deletedId;
+        return true;
     }
 
-    private long checkLargePayloadFilesAndCollectTheirSize() {
-        FilenameFilter filter = new FilenameFilter() {
-            @Override
-            public boolean accept(File file, String fileName) {
-                return fileName.endsWith(PAYLOAD_FILE_EXTENSION);
+    /**
+     * Reconcile the database size with SQLite on next check, after deleting rows of unknown size.
+     */
+    private void requestSizeReconciliation() {
+        mSizeChangesSinceReconciliation = SIZE_RECONCILIATION_INTERVAL;
+    }
+
+    /**
+     * Sum the estimated database size of logs.
+     *
+     * @param rowSizes      estimated database size by identifier.
+     * @param dbIdentifiers database identifiers.
+     * @return total size, sizes that are not known are not counted.
+     */
+    private static long sumRowSizes(@NonNull Map<Long, Long> rowSizes, @NonNull Collection<Long> dbIdentifiers) {
+        long rowsSize = 0;
+        for (Long dbIdentifier : dbIdentifiers) {
+            Long rowSize = rowSizes.get(dbIdentifier);
+            if (rowSize != null) {
+                rowsSize += rowSize;
             }
-        };
-        long size = 0;
+        }
+        return rowsSize;
+    }
+
+    /**
+     * Delete logs and their large payload files, in a single statement, in the given order
+     * until the estimated size of deleted logs reaches the given number of bytes. Logs being sent are not deleted.
+     *
+     * @param group       group of the logs to delete, null to delete logs of any group when the whole storage is full.
+     * @param bytesToFree number of bytes to free.
+     * @param priority    maximum priority of logs to delete.
+     * @param sortOrder   order of the logs to delete, {@link #EVICTION_SORT_ORDER} for the oldest logs with the lowest priority.
+     * @return number of deleted logs, 0 if none could be deleted.
+     */
+    private int evictOldestLogs(@Nullable String group, long bytesToFree, int priority, @NonNull String sortOrder) {
         SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
-        Set<Long> logsIds = getLogsIds(builder);
-        File[] groupFiles = mLargePayloadDirectory.listFiles();
-        if (groupFiles == null) {
-            return size;
-        }
-        for (File groupFile : groupFiles) {
-            File[] files = groupFile.listFiles(filter);
-            if (files == null) {
-                continue;
+        builder.appendWhere(COLUMN_PRIORITY + " <= ?");
+        String[] selectionArgs;
+        if (group != null) {
+            builder.appendWhere(" AND " + COLUMN_GROUP + " = ?");
+            selectionArgs = new String[]{String.valueOf(priority), group};
+        } else {
+            selectionArgs = new String[]{String.valueOf(priority)};
+        }
+        Map<Long, String> evictedLogGroups = new LinkedHashMap<>();
+        List<String> evictedTargetKeys = new ArrayList<>();
+        List<Long> evictedRowSizes = new ArrayList<>();
+        long freedBytes = 0;
+        long rowsSize = 0;
+        try {
+            Cursor cursor = mDatabaseManager.getCursor(builder, EVICTION_COLUMNS, selectionArgs, sortOrder);
+            try {
+                while (freedBytes < bytesToFree && cursor.moveToNext()) {
+                    long dbIdentifier = cursor.getLong(0);
+
+                    /* Logs being sent are deleted when their batch completes. */
+                    if (mPendingDbIdentifiers.contains(dbIdentifier)) {
+                        continue;
+                    }
+                    long rowSize = cursor.getLong(2) + ROW_SIZE_OVERHEAD;
+                    Long largePayloadSize = mLargePayloadSizes.get(dbIdentifier);
+                    rowsSize += rowSize;
+                    freedBytes += rowSize + (largePayloadSize == null ? 0 : largePayloadSize);
+                    evictedLogGroups.put(dbIdentifier, cursor.getString(1));
+                    evictedTargetKeys.add(cursor.getString(3));
+                    evictedRowSizes.add(rowSize);
+                }
+            } finally {
+                cursor.close();
             }
-            for (File file : files) {
-                long id;
-                try {
-                    id = Integer.parseInt(FileManager.getNameWithoutExtension(file));
-                } catch (NumberFormatException exception) {
-                    AppCenterLog.warn(LOG_TAG, "A file was found whose name does not match the pattern of naming log files: " + file.getName());
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, "Failed to get logs to evict: ", e);
+        }
+        if (evictedLogGroups.isEmpty() || mDatabaseManager.delete(evictedLogGroups.keySet()) == 0) {
+            AppCenterLog.error(LOG_TAG, "Failed to delete the oldest logs from the Persistence database.");
+            return 0;
+        }
+        updateDatabaseSize(-rowsSize);
+        AppCenterLog.debug(LOG_TAG, "Deleted " + evictedLogGroups.size() + " oldest logs to free " + bytesToFree + " bytes.");
+
+        Map<String, Integer> evictedCounts = forgetDeletedLogs(evictedLogGroups, evictedTargetKeys, evictedRowSizes);
+        Listener listener = getListener();
+        if (listener != null) {
+            for (Map.Entry<String, Integer> entry : evictedCounts.entrySet()) {
+                listener.onLogsEvicted(entry.getKey(), entry.getValue());
+            }
+            if (group != null) {
+                listener.onLogsEvictedByQuota(group, evictedLogGroups.size());
+            }
+        }
+        return evictedLogGroups.size();
+    }
+
+    /**
+     * Update counters and delete large payload files of logs deleted from the database.
+     *
+     * @param logGroups  groups of the deleted logs by database identifier.
+     * @param targetKeys target keys of the deleted logs, in the same order.
+     * @param rowSizes   estimated database sizes of the deleted logs, in the same order.
+     * @return number of deleted logs by group.
+     */
+    @NonNull
+    private Map<String, Integer> forgetDeletedLogs(@NonNull Map<Long, String> logGroups, @NonNull List<String> targetKeys, @NonNull List<Long> rowSizes) {
+        Map<String, Integer> counts = new HashMap<>();
+        Iterator<String> targetKeyIterator = targetKeys.iterator();
+        Iterator<Long> rowSizeIterator = rowSizes.iterator();
+        for (Map.Entry<Long, String> entry : logGroups.entrySet()) {
+            String group = entry.getValue();
+            updateLogCount(group, targetKeyIterator.next(), -1);
+            updateGroupSize(group, -rowSizeIterator.next());
+            if (mLargePayloadSizes.containsKey(entry.getKey())) {
+                deleteLargePayloadFile(getLargePayloadGroupDirectory(group), entry.getKey());
+            }
+            Integer count = counts.get(group);
+            counts.put(group, count == null ? 1 : count + 1);
+        }
+        return counts;
+    }
+
+    /**
+     * Read and deserialize logs, in the order they are sent.
+     * Reading stops at the first row that cannot be read, leaving the remaining logs unread.
+     *
+     * @param largePayloadGroupDirectory large payload directory of the group.
+     * @param dbIdentifiers              database identifiers of the logs to read.
+     * @param unreadDbIdentifiers        database identifiers not read yet, updated.
+     * @param candidates                 deserialized logs by database identifier, updated.
+     * @param rowSizes                   estimated database size of read logs by database identifier, updated.
+     * @param failedDbIdentifiers        database identifiers of logs that cannot be deserialized, updated.
+     * @return total size of the read payloads.
+     * @throws RuntimeException if the logs cannot be queried.
+     */
+    private long readLogs(@NonNull File largePayloadGroupDirectory, @NonNull Collection<Long> dbIdentifiers, @NonNull Set<Long> unreadDbIdentifiers,
+                          @NonNull Map<Long, Log> candidates, @NonNull Map<Long, Long> rowSizes, @NonNull List<Long> failedDbIdentifiers) {
+        SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
+        builder.appendWhere(PRIMARY_KEY + " IN (" + joinIdentifiers(dbIdentifiers) + ")");
+        Cursor cursor = mDatabaseManager.getCursor(builder, GET_LOG_COLUMNS, null, GET_SORT_ORDER, null);
+        long byteSize = 0;
+        try {
+            while (cursor.moveToNext()) {
+
+                /* An empty row is a record too large to be read, leave it unread. */
+                if (cursor.isNull(0)) {
                     continue;
                 }
-                if (logsIds.contains(id)) {
-                    size += file.length();
+                long dbIdentifier = cursor.getLong(0);
+                if (!unreadDbIdentifiers.remove(dbIdentifier)) {
                     continue;
                 }
-                if (!file.delete()) {
-                    AppCenterLog.warn(LOG_TAG, "Cannot delete redundant large payload file with id " + id);
-                    continue;
+                boolean compressed = cursor.getInt(4) == PAYLOAD_ENCODING_DEFLATE;
+                byte[] compressedPayload = compressed ? cursor.getBlob(1) : null;
+                String databasePayload = compressed ? null : cursor.getString(1);
+                String targetToken = cursor.getString(3);
+                long storedPayloadSize = compressed ? compressedPayload.length : databasePayload == null ? 0 : databasePayload.length();
+                rowSizes.put(dbIdentifier, storedPayloadSize + (targetToken == null ? 0 : targetToken.length()) + ROW_SIZE_OVERHEAD);
+                try {
+
+                    /* Deserialize JSON to Log. */
+                    String logPayload;
+                    if (compressed) {
+                        logPayload = getPayloadCompressor().decompress(compressedPayload);
+                    } else if (databasePayload == null) {
+                        File file = getLargePayloadFile(largePayloadGroupDirectory, dbIdentifier);
+                        AppCenterLog.debug(LOG_TAG, "Read payload file " + file);
+                        logPayload = FileManager.read(file);
+                        if (logPayload == null) {
+                            throw new JSONException("Log payload is null and not stored as a file.");
+                        }
+                    } else {
+                        logPayload = databasePayload;
+                    }
+                    Log log = getLogSerializer().deserializeLog(logPayload, cursor.getString(2));
+
+                    /* Restore device. */
+                    if (!cursor.isNull(5)) {
+                        log.setDevice(getDevice(cursor.getLong(5)));
+                    }
+
+                    /* Restore target token. */
+                    if (targetToken != null) {
+                        CryptoUtils.DecryptedData data = CryptoUtils.getInstance(mContext).decrypt(targetToken);
+                        log.addTransmissionTarget(data.getDecryptedData());
+                    }
+
+                    /* Add log to candidates. */
+                    candidates.put(dbIdentifier, log);
+                    byteSize += logPayload.length();
+                } catch (JSONException | DataFormatException e) {
+
+                    /* If it is not able to deserialize, delete and get another log. */
+                    AppCenterLog.error(LOG_TAG, "Cannot deserialize a log in the database", e);
+
+                    /* Put the failed identifier to delete. */
+                    failedDbIdentifiers.add(dbIdentifier);
+                }
+            }
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, "Failed to read logs: ", e);
+        } finally {
+            try {
+                cursor.close();
+            } catch (RuntimeException ignore) {
+            }
+        }
+        return byteSize;
+    }
+
+    /**
+     * Build the query of logs to send for a group.
+     * Selection arguments are the group name followed by the paused target keys.
+     *
+     * @param pausedTargetKeysCount number of paused target keys to exclude.
+     * @param excludedDbIdentifiers database identifiers to exclude.
+     * @return query builder.
+     */
+    private static SQLiteQueryBuilder getLogsQueryBuilder(int pausedTargetKeysCount, @NonNull Collection<Long> excludedDbIdentifiers) {
+        SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
+        builder.appendWhere(COLUMN_GROUP + " = ?");
+        if (pausedTargetKeysCount > 0) {
+            StringBuilder filter = new StringBuilder();
+            for (int i = 0; i < pausedTargetKeysCount; i++) {
+                filter.append("?,");
+            }
+            filter.deleteCharAt(filter.length() - 1);
+            builder.appendWhere(" AND ");
+            builder.appendWhere(COLUMN_TARGET_KEY + " NOT IN (" + filter.toString() + ")");
+        }
+
+        if (!excludedDbIdentifiers.isEmpty()) {
+            builder.appendWhere(" AND ");
+            builder.appendWhere(PRIMARY_KEY + " NOT IN (" + joinIdentifiers(excludedDbIdentifiers) + ")");
+        }
+        return builder;
+    }
+
+    /**
+     * Join database identifiers to be used in an IN clause.
+     * Identifiers are numbers, they are inlined to not be limited by the number of bound arguments.
+     *
+     * @param dbIdentifiers database identifiers, not empty.
+     * @return comma separated identifiers.
+     */
+    private static String joinIdentifiers(@NonNull Collection<Long> dbIdentifiers) {
+        StringBuilder identifiers = new StringBuilder();
+        for (Long id : dbIdentifiers) {
+            identifiers.append(id).append(',');
+        }
+        identifiers.deleteCharAt(identifiers.length() - 1);
+        return identifiers.toString();
+    }
+
+    /**
+     * Delete the large payload file of a log if it has one and update the large payloads size.
+     *
+     * @param groupLargePayloadDirectory large payload directory of the group.
+     * @param id                         database identifier of the log.
+     */
+    private void deleteLargePayloadFile(File groupLargePayloadDirectory, long id) {
+
+        /*
+         * Most logs do not have a file, avoid a file system call for them.
+         * Files of previous runs that are not known yet are deleted when the scan is applied, as their log is gone.
+         */
+        applyLargePayloadScan();
+        Long fileSize = mLargePayloadSizes.remove(id);
+        if (fileSize == null) {
+            return;
+        }
+        File file = getLargePayloadFile(groupLargePayloadDirectory, id);
+        if (file.delete()) {
+            mLargePayloadsSize -= fileSize;
+            AppCenterLog.verbose(LOG_TAG, "Large payload file with id " + id + " has been deleted. " + fileSize + " KB of memory has been freed.");
+        } else {
+            AppCenterLog.warn(LOG_TAG, "Cannot delete large payload file with id " + id);
+        }
+    }
+
+    /**
+     * Apply the scan of the large payload files of previous runs if it completed.
+     * Files whose log is still stored are tracked, the others are deleted.
+     * The check runs on identifiers of scanned files only, in chunks, logs stored since the scan are already tracked.
+     */
+    @VisibleForTesting
+    void applyLargePayloadScan() {
+        LargePayloadScanTask scan = mLargePayloadScan;
+        if (scan == null || !scan.isFinished()) {
+            return;
+        }
+        mLargePayloadScan = null;
+        List<Long> ids = new ArrayList<>();
+        for (Long id : scan.getFiles().keySet()) {
+            if (!mLargePayloadSizes.containsKey(id)) {
+                ids.add(id);
+            }
+        }
+        Set<Long> storedIds = new HashSet<>();
+        try {
+            for (int i = 0; i < ids.size(); i += LARGE_PAYLOAD_CHECK_CHUNK_SIZE) {
+                SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
+                builder.appendWhere(PRIMARY_KEY + " IN (" + joinIdentifiers(ids.subList(i, Math.min(i + LARGE_PAYLOAD_CHECK_CHUNK_SIZE, ids.size()))) + ")");
+                Cursor cursor = mDatabaseManager.getCursor(builder, SELECT_PRIMARY_KEY, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        storedIds.add(cursor.getLong(0));
+                    }
+                } finally {
+                    cursor.close();
                 }
-                AppCenterLog.debug(LOG_TAG, "Lasted large payload file with name " + file.getName() + " has been deleted.");
             }
+        } catch (RuntimeException e) {
+
+            /* Do not delete files that may still be needed. */
+            AppCenterLog.error(LOG_TAG, "Failed to check large payload files: ", e);
+            storedIds.addAll(ids);
+        }
+        for (Long id : ids) {
+            if (storedIds.contains(id)) {
+                Long fileSize = scan.getSizes().get(id);
+                mLargePayloadsSize += fileSize;
+                mLargePayloadSizes.put(id, fileSize);
+                continue;
+            }
+            File file = scan.getFiles().get(id);
+            if (!file.delete() && file.exists()) {
+                AppCenterLog.warn(LOG_TAG, "Cannot delete redundant large payload file with id " + id);
+                continue;
+            }
+            AppCenterLog.debug(LOG_TAG, "Lasted large payload file with name " + file.getName() + " has been deleted.");
         }
-        return size;
     }
 
-    private Set<Long> getLogsIds(SQLiteQueryBuilder builder, String... selectionArgs) {
-        Set<Long> result = new HashSet<>();
+    /**
+     * Get the identifiers of the next logs to send, reading only the identifier column.
+     *
+     * @param builder       query builder.
+     * @param selectionArgs selection arguments.
+     * @param limit         maximum number of identifiers.
+     * @return identifiers in the order logs are sent, empty if the query failed.
+     */
+    private List<Long> getLogsIds(SQLiteQueryBuilder builder, String[] selectionArgs, int limit) {
+        List<Long> result = new ArrayList<>();
         try {
-            Cursor cursor = mDatabaseManager.getCursor(builder, SELECT_PRIMARY_KEY, selectionArgs, null);
+            Cursor cursor = mDatabaseManager.getCursor(builder, SELECT_PRIMARY_KEY, selectionArgs, GET_SORT_ORDER, String.valueOf(limit));
             try {
                 while (cursor.moveToNext()) {
-                    ContentValues idValues = mDatabaseManager.buildValues(cursor);
-                    Long id = idValues.getAsLong(PRIMARY_KEY);
-                    result.add(id);
+                    result.add(cursor.getLong(0));
                 }
             } finally {
                 cursor.close();
             }
         } catch (RuntimeException e) {
-            AppCenterLog.error(LOG_TAG, "Failed to get corrupted ids: ", e);
+            AppCenterLog.error(LOG_TAG, "Failed to get logs: ", e);
         }
         return result;
     }
+
+    /**
+     * Storage quota of a group.
+     */
+    private static class GroupQuota {
+
+        /**
+         * Maximum size in bytes, used when {@link #mPercentage} is 0.
+         */
+        final long mMaxSize;
+
+        /**
+         * Maximum size in percent of the maximum storage size, 0 if the quota is a size.
+         */
+        final int mPercentage;
+
+        /**
+         * Eviction policy.
+         */
+        @EvictionPolicy
+        final int mEvictionPolicy;
+
+        GroupQuota(long maxSize, int percentage, @EvictionPolicy int evictionPolicy) {
+            mMaxSize = maxSize;
+            mPercentage = percentage;
+            mEvictionPolicy = evictionPolicy;
+        }
+    }
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import androidx.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * What happens to a new log when its group reached its storage quota.
+ * Logs of a higher priority than the new log are never deleted.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@IntDef({
+        EvictionPolicy.OLDEST_FIRST,
+        EvictionPolicy.LOWEST_PRIORITY_FIRST,
+        EvictionPolicy.REJECT_NEW
+})
+public @interface EvictionPolicy {
+
+    /**
+     * Delete the oldest logs of the group.
+     */
+    int OLDEST_FIRST = 0;
+
+    /**
+     * Delete the logs of the group with the lowest priority, the oldest first, like when the whole storage is full.
+     */
+    int LOWEST_PRIORITY_FIRST = 1;
+
+    /**
+     * Keep the stored logs and fail to store the new log.
+     */
+    int REJECT_NEW = 2;
+}
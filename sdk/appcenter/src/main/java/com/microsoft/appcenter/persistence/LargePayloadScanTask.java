@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import static com.microsoft.appcenter.AppCenter.LOG_TAG;
+
+import android.os.AsyncTask;
+
+import androidx.annotation.NonNull;
+
+import com.microsoft.appcenter.utils.AppCenterLog;
+import com.microsoft.appcenter.utils.storage.FileManager;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * List and measure the large payload files left by previous runs, off the App Center thread.
+ * The task only reads the file system: whether the files still belong to a stored log is checked by
+ * {@link DatabasePersistence} when it applies the result, so that logs stored or deleted meanwhile are accounted for.
+ */
+class LargePayloadScanTask extends AsyncTask<Void, Void, Void> {
+
+    /**
+     * Accepts large payload files.
+     */
+    private static final FilenameFilter PAYLOAD_FILE_FILTER = new FilenameFilter() {
+
+        @Override
+        public boolean accept(File file, String fileName) {
+            return fileName.endsWith(DatabasePersistence.PAYLOAD_FILE_EXTENSION);
+        }
+    };
+
+    /**
+     * Base directory of large payloads, containing a directory per group.
+     */
+    private final File mLargePayloadDirectory;
+
+    /**
+     * Files by database identifier of their log.
+     */
+    private final Map<Long, File> mFiles = new HashMap<>();
+
+    /**
+     * File sizes by database identifier of their log.
+     */
+    private final Map<Long, Long> mSizes = new HashMap<>();
+
+    /**
+     * Total size of the files measured so far.
+     */
+    private volatile long mScannedSize;
+
+    /**
+     * Whether the scan completed, the maps are not modified anymore once set.
+     */
+    private volatile boolean mFinished;
+
+    /**
+     * Init.
+     *
+     * @param largePayloadDirectory base directory of large payloads.
+     */
+    LargePayloadScanTask(@NonNull File largePayloadDirectory) {
+        mLargePayloadDirectory = largePayloadDirectory;
+    }
+
+    @Override
+    protected Void doInBackground(Void... params) {
+        File[] groupDirectories = mLargePayloadDirectory.listFiles();
+        if (groupDirectories != null) {
+            for (File groupDirectory : groupDirectories) {
+                if (isCancelled()) {
+                    return null;
+                }
+                File[] files = groupDirectory.listFiles(PAYLOAD_FILE_FILTER);
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    long id;
+                    try {
+                        id = Long.parseLong(FileManager.getNameWithoutExtension(file));
+                    } catch (NumberFormatException exception) {
+                        AppCenterLog.warn(LOG_TAG, "A file was found whose name does not match the pattern of naming log files: " + file.getName());
+                        continue;
+                    }
+                    long fileSize = file.length();
+                    mFiles.put(id, file);
+                    mSizes.put(id, fileSize);
+                    mScannedSize += fileSize;
+                }
+            }
+        }
+        mFinished = true;
+        return null;
+    }
+
+    /**
+     * Check if the scan completed.
+     *
+     * @return true if {@link #getFiles()} and {@link #getSizes()} can be read.
+     */
+    boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * Get the total size of the files measured so far, can be called while the scan is running.
+     *
+     * @return size in bytes.
+     */
+    long getScannedSize() {
+        return mScannedSize;
+    }
+
+    /**
+     * Get the scanned files.
+     *
+     * @return files by database identifier of their log.
+     */
+    @NonNull
+    Map<Long, File> getFiles() {
+        return mFiles;
+    }
+
+    /**
+     * Get the sizes of the scanned files.
+     *
+     * @return file sizes by database identifier of their log.
+     */
+    @NonNull
+    Map<Long, Long> getSizes() {
+        return mSizes;
+    }
+}
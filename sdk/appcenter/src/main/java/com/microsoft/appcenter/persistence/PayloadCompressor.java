@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of log payloads stored in the database.
+ * Payloads are small and repeat the same JSON keys, so compression starts from a preset dictionary
+ * of App Center fields. The dictionary is part of the stored format: changing it requires a new
+ * payload encoding so that logs stored with the previous one can still be read.
+ * Instances reuse their deflater and inflater and must be used from a single thread.
+ */
+class PayloadCompressor {
+
+    /**
+     * Preset dictionary, deflate favors matches that are close so the most frequent strings come last.
+     */
+    @VisibleForTesting
+    static final String DICTIONARY = "\"wrapperSdkName\":\"\",\"wrapperSdkVersion\":\"\",\"wrapperRuntimeVersion\":\"\"," +
+            "\"liveUpdateReleaseLabel\":\"\",\"liveUpdateDeploymentKey\":\"\",\"liveUpdatePackageHash\":\"\"," +
+            "\"distributionGroupId\":\"\",\"userId\":\"\",\"errorAttachment\",\"contentType\":\"\",\"managedError\"," +
+            "\"handledError\",\"startService\",\"services\":[\"\"],\"startSession\",\"page\",\"event\"," +
+            "\"ver\":\"3.0\",\"iKey\":\"o:\",\"ext\":{\"app\":{\"metadata\":{\"f\":{\"data\":{\"baseType\":\"\",\"popSample\":" +
+            "\"commonSchemaEvent\",\"properties\":{\"\":\"\"},\"typedProperties\":[{\"type\":\"string\",\"name\":\"\",\"value\":\"\"}]," +
+            "\"device\":{\"sdkName\":\"appcenter.android\",\"sdkVersion\":\"\",\"model\":\"\",\"oemName\":\"\",\"osName\":\"Android\"," +
+            "\"osVersion\":\"\",\"osBuild\":\"\",\"osApiLevel\":,\"locale\":\"\",\"timeZoneOffset\":,\"screenSize\":\"\"," +
+            "\"appVersion\":\"\",\"carrierName\":\"\",\"carrierCountry\":\"\",\"appBuild\":\"\",\"appNamespace\":\"com.\"}," +
+            "\"id\":\"\",\"name\":\"\",\"sid\":\"\",\"timestamp\":\"T00:00:00.000Z\",\"type\":\"";
+
+    /**
+     * Dictionary bytes.
+     */
+    private static final byte[] DICTIONARY_BYTES = getBytes(DICTIONARY);
+
+    /**
+     * Deflater, reset after each payload.
+     */
+    private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+    /**
+     * Inflater, reset after each payload.
+     */
+    private final Inflater mInflater = new Inflater();
+
+    /**
+     * Buffer used to compress and decompress.
+     */
+    private final byte[] mBuffer = new byte[4096];
+
+    /**
+     * Compress a payload.
+     *
+     * @param payload JSON payload.
+     * @return compressed payload.
+     */
+    @NonNull
+    byte[] compress(@NonNull String payload) {
+        byte[] input = getBytes(payload);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 4 + 16);
+        try {
+            mDeflater.setDictionary(DICTIONARY_BYTES);
+            mDeflater.setInput(input);
+            mDeflater.finish();
+            while (!mDeflater.finished()) {
+                output.write(mBuffer, 0, mDeflater.deflate(mBuffer));
+            }
+        } finally {
+            mDeflater.reset();
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Decompress a payload.
+     *
+     * @param data compressed payload.
+     * @return JSON payload.
+     * @throws DataFormatException if the data is not a valid compressed payload.
+     */
+    @NonNull
+    String decompress(@NonNull byte[] data) throws DataFormatException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length * 4);
+        try {
+            mInflater.setInput(data);
+            while (!mInflater.finished()) {
+                int length = mInflater.inflate(mBuffer);
+                output.write(mBuffer, 0, length);
+                if (length == 0 && !mInflater.finished()) {
+                    if (mInflater.needsDictionary()) {
+                        mInflater.setDictionary(DICTIONARY_BYTES);
+                    } else if (mInflater.needsInput()) {
+                        throw new DataFormatException("Compressed payload is truncated.");
+                    }
+                }
+            }
+        } finally {
+            mInflater.reset();
+        }
+        try {
+            return output.toString("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Release native resources, the compressor cannot be used anymore.
+     */
+    void close() {
+        mDeflater.end();
+        mInflater.end();
+    }
+
+    /**
+     * Encode a string in UTF-8.
+     *
+     * @param value string.
+     * @return bytes.
+     */
+    private static byte[] getBytes(@NonNull String value) {
+        try {
+
+            //noinspection CharsetObjectCanBeUsed min API level 19 required to fix this warning.
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
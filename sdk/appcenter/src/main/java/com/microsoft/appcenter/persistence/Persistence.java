@@ -16,7 +16,9 @@ import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
 import java.io.Closeable;
 import java.util.Collection;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Abstract class for Persistence service.
@@ -28,6 +30,11 @@ public abstract class Persistence implements Closeable {
      */
     private LogSerializer mLogSerializer;
 
+    /**
+     * Listener for storage events.
+     */
+    private Listener mListener;
+
     /**
      * Writes a log to the storage with the given {@code group}.
      *
@@ -40,6 +47,30 @@ public abstract class Persistence implements Closeable {
     public abstract long putLog(@NonNull Log log, @NonNull String group,
                                 @IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int flags) throws PersistenceException;
 
+    /**
+     * Writes several logs to the storage with the given {@code group}.
+     * Implementations can override this to store the logs in a single transaction,
+     * the default implementation calls {@link #putLog(Log, String, int)} for every log.
+     *
+     * @param logs  The logs to be placed in the storage.
+     * @param group The group of the storage for the logs.
+     * @param flags The persistence flags.
+     * @return The logs that could not be written to the storage with their failure, empty if all logs were written.
+     */
+    @NonNull
+    public Map<Log, PersistenceException> putLogs(@NonNull List<Log> logs, @NonNull String group,
+                                                  @IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int flags) {
+        Map<Log, PersistenceException> failures = new IdentityHashMap<>();
+        for (Log log : logs) {
+            try {
+                putLog(log, group, flags);
+            } catch (PersistenceException e) {
+                failures.put(log, e);
+            }
+        }
+        return failures;
+    }
+
     /**
      * Deletes a log with the give ID from the {@code group}.
      *
@@ -55,6 +86,16 @@ public abstract class Persistence implements Closeable {
      */
     public abstract void deleteLogs(String group);
 
+    /**
+     * Deletes the oldest logs of the given {@code group} that are not associated with an ID
+     * returned by {@link #getLogs(String, Collection, int, List)}, lowest priority first.
+     *
+     * @param group The group of the storage for logs.
+     * @param count The max number of logs to delete.
+     * @return The number of deleted logs.
+     */
+    public abstract int deleteOldestLogs(@NonNull String group, @IntRange(from = 0) int count);
+
     /**
      * Gets the number of logs for the given {@code group}.
      *
@@ -63,6 +104,18 @@ public abstract class Persistence implements Closeable {
      */
     public abstract int countLogs(@NonNull String group);
 
+    /**
+     * Gets the number of logs for the given {@code group}, excluding logs of some transmission targets.
+     * Implementations that do not count logs by target include them.
+     *
+     * @param group              The group of the storage for logs.
+     * @param excludedTargetKeys The target keys of logs not to count.
+     * @return The number of logs for the given {@code group}.
+     */
+    public int countLogs(@NonNull String group, @NonNull Collection<String> excludedTargetKeys) {
+        return countLogs(group);
+    }
+
     /**
      * Gets an array of logs for the given {@code group}.
      *
@@ -80,6 +133,27 @@ public abstract class Persistence implements Closeable {
      */
     public abstract void clearPendingLogState();
 
+    /**
+     * Clears the association between logs and an ID returned by {@link #getLogs(String, Collection, int, List)}
+     * without deleting the logs, so that they can be returned again by a next call.
+     *
+     * @param group   The group of the storage for logs.
+     * @param batchId The ID for a set of logs.
+     */
+    public abstract void releaseLogs(@NonNull String group, @NonNull String batchId);
+
+    /**
+     * Gets the approximate serialized size of the logs associated with an ID returned by
+     * {@link #getLogs(String, Collection, int, List)}.
+     *
+     * @param group   The group of the storage for logs.
+     * @param batchId The ID for a set of logs.
+     * @return The size in bytes, or -1 if unknown.
+     */
+    public long getBatchByteSize(@NonNull String group, @NonNull String batchId) {
+        return -1;
+    }
+
     /**
      * Gets a {@link LogSerializer}.
      *
@@ -101,6 +175,111 @@ public abstract class Persistence implements Closeable {
         mLogSerializer = logSerializer;
     }
 
+    /**
+     * Gets the {@link Listener}.
+     *
+     * @return the listener, null if not set.
+     */
+    @Nullable
+    Listener getListener() {
+        return mListener;
+    }
+
+    /**
+     * Sets a {@link Listener} to be notified of storage events.
+     *
+     * @param listener the listener, null to remove it.
+     */
+    public void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Store new log payloads compressed. Logs stored before keep their encoding and can still be read
+     * after compression is disabled. Implementations that cannot compress ignore this setting.
+     *
+     * @param enabled true to compress new payloads, false to store them as JSON text.
+     */
+    public void setPayloadCompressionEnabled(boolean enabled) {
+    }
+
+    /**
+     * Use write-ahead logging if the storage supports it, making writes faster. Implementations
+     * without a journal ignore this setting.
+     *
+     * @param enabled true to enable write-ahead logging, false otherwise.
+     */
+    public void setWriteAheadLoggingEnabled(boolean enabled) {
+    }
+
+    /**
+     * Set how long writing logs of a priority waits for the data to reach the disk.
+     * Implementations that cannot tune this ignore this setting.
+     *
+     * @param priority persistence priority of the logs.
+     * @param syncMode sync mode.
+     */
+    public void setSyncMode(@IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int priority, @SyncMode int syncMode) {
+    }
+
+    /**
+     * Write the logs kept in memory to durable storage, called when the application goes to background.
+     * Implementations that write every log to durable storage ignore this call.
+     */
+    public void checkpoint() {
+    }
+
+    /**
+     * Limit the size of the logs of a group, on top of the maximum storage size.
+     * Implementations without group quotas ignore this setting.
+     *
+     * @param group          The group of the storage for logs.
+     * @param maxSize        Maximum size in bytes of the logs of the group, 0 to remove the quota.
+     * @param evictionPolicy What happens to a new log when the quota is reached.
+     */
+    public void setGroupQuota(@NonNull String group, long maxSize, @EvictionPolicy int evictionPolicy) {
+    }
+
+    /**
+     * Limit the size of the logs of a group to a percentage of the maximum storage size.
+     * Implementations without group quotas ignore this setting.
+     *
+     * @param group          The group of the storage for logs.
+     * @param percentage     Maximum size of the logs of the group in percent of the maximum storage size, 0 to remove the quota.
+     * @param evictionPolicy What happens to a new log when the quota is reached.
+     */
+    public void setGroupQuotaPercentage(@NonNull String group, @IntRange(from = 0, to = 100) int percentage, @EvictionPolicy int evictionPolicy) {
+    }
+
+    /**
+     * Set how long the logs of a group are kept before they expire, on top of the maximum storage size.
+     * Implementations without expiry ignore this setting.
+     *
+     * @param group      The group of the storage for logs.
+     * @param timeToLive Time in ms after which logs of the group are deleted without being sent, 0 to keep them until sent.
+     */
+    public void setTimeToLive(@NonNull String group, long timeToLive) {
+    }
+
+    /**
+     * Set how long logs of a type are kept before they expire, taking precedence over the time to live of their group.
+     * Implementations without expiry ignore this setting.
+     *
+     * @param type       The log type.
+     * @param timeToLive Time in ms after which logs of the type are deleted without being sent, 0 to use the time to live of their group.
+     */
+    public void setLogTypeTimeToLive(@NonNull String type, long timeToLive) {
+    }
+
+    /**
+     * Delete logs that are older than their time to live, except logs that are being sent.
+     *
+     * @return The number of deleted logs.
+     */
+    public int deleteExpiredLogs() {
+        return 0;
+    }
+
     /**
      * Set maximum SQLite database size.
      *
@@ -109,6 +288,52 @@ public abstract class Persistence implements Closeable {
      */
     public abstract boolean setMaxStorageSize(long maxStorageSizeInBytes);
 
+    /**
+     * Listener for storage events, called on the thread using the {@link Persistence}.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a log has been serialized to be stored.
+         *
+         * @param group             The group of the storage for the log.
+         * @param serializationTime Time spent serializing the log, in microseconds.
+         */
+        void onLogSerialized(@NonNull String group, long serializationTime);
+
+        /**
+         * Called when logs have been deleted to make room for new logs.
+         *
+         * @param group The group of the storage for logs.
+         * @param count The number of deleted logs.
+         */
+        void onLogsEvicted(@NonNull String group, int count);
+
+        /**
+         * Called when logs of a group have been deleted because the group reached its storage quota.
+         * These logs are also reported by {@link #onLogsEvicted(String, int)}.
+         *
+         * @param group The group of the storage for logs.
+         * @param count The number of deleted logs.
+         */
+        void onLogsEvictedByQuota(@NonNull String group, int count);
+
+        /**
+         * Called when a new log has not been stored because its group reached its storage quota.
+         *
+         * @param group The group of the storage for the log.
+         */
+        void onLogRejectedByQuota(@NonNull String group);
+
+        /**
+         * Called when logs of a group have been deleted because they were older than their time to live.
+         *
+         * @param group The group of the storage for logs.
+         * @param count The number of deleted logs.
+         */
+        void onLogsExpired(@NonNull String group, int count);
+    }
+
     /**
      * Thrown when {@link Persistence} cannot write a log to the storage.
      */
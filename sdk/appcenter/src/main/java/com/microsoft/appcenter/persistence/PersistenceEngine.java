@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import androidx.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Storage used to persist logs until they are sent.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@IntDef({
+        PersistenceEngine.DATABASE,
+        PersistenceEngine.SEGMENTED_FILES,
+        PersistenceEngine.SHARDED_DATABASE
+})
+public @interface PersistenceEngine {
+
+    /**
+     * SQLite database, see {@link DatabasePersistence}.
+     */
+    int DATABASE = 0;
+
+    /**
+     * Append-only segment files per group, see {@link SegmentedFilePersistence}.
+     */
+    int SEGMENTED_FILES = 1;
+
+    /**
+     * SQLite database per group, see {@link ShardedPersistence}.
+     */
+    int SHARDED_DATABASE = 2;
+}
@@ -0,0 +1,1403 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import static com.microsoft.appcenter.AppCenter.LOG_TAG;
+import static com.microsoft.appcenter.persistence.DatabasePersistence.PAYLOAD_ENCODING_DEFLATE;
+import static com.microsoft.appcenter.persistence.DatabasePersistence.PAYLOAD_ENCODING_JSON;
+
+import android.content.Context;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.microsoft.appcenter.Constants;
+import com.microsoft.appcenter.Flags;
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.ingestion.models.one.CommonSchemaLog;
+import com.microsoft.appcenter.ingestion.models.one.PartAUtils;
+import com.microsoft.appcenter.utils.AppCenterLog;
+import com.microsoft.appcenter.utils.crypto.CryptoUtils;
+import com.microsoft.appcenter.utils.storage.FileManager;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+
+/**
+ * Persistence storing logs in append-only segment files, with a directory of segments per group.
+ * <p>
+ * A log is written once at the end of the current segment of its group, and read back through a memory map of the segment.
+ * An in-memory index keeps the priority and target of stored logs so that logs are selected without reading payloads.
+ * Deleted logs are appended to an acknowledgment file of their group, a segment file is deleted as a whole once
+ * all its logs are deleted. There is no size limit on a log.
+ * <p>
+ * Every record has a checksum. Segments are checked when the persistence is first used after startup:
+ * a segment is truncated at its first invalid record, which is where a write was interrupted.
+ * <p>
+ * The maximum storage size applies to the records of stored logs, the space of deleted records is released with their segment.
+ */
+@SuppressWarnings("TryFinallyCanBeTryWithResources")
+public class SegmentedFilePersistence extends Persistence {
+
+    /**
+     * Sub path of the directory of segments.
+     */
+    private static final String SEGMENTS_DIRECTORY = "/appcenter/log_segments";
+
+    /**
+     * Segment file extension.
+     */
+    @VisibleForTesting
+    static final String SEGMENT_FILE_EXTENSION = ".seg";
+
+    /**
+     * Name of the acknowledgment file in a group directory.
+     */
+    @VisibleForTesting
+    static final String ACKNOWLEDGMENTS_FILE = "acks";
+
+    /**
+     * Size after which a new segment is started, a segment with a single larger record can be larger.
+     */
+    @VisibleForTesting
+    static final int SEGMENT_MAX_SIZE = 512 * 1024;
+
+    /**
+     * Size of a record header: body size and checksum.
+     */
+    @VisibleForTesting
+    static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * Size of an acknowledgment: log identifier and checksum.
+     */
+    private static final int ACKNOWLEDGMENT_SIZE = 12;
+
+    /**
+     * Maximum storage size until it is set, same as the App Center default.
+     */
+    private static final long DEFAULT_MAX_STORAGE_SIZE = 10 * 1024 * 1024;
+
+    /**
+     * Encoding of strings in records.
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Accepts segment files.
+     */
+    private static final FilenameFilter SEGMENT_FILE_FILTER = new FilenameFilter() {
+
+        @Override
+        public boolean accept(File file, String fileName) {
+            return fileName.endsWith(SEGMENT_FILE_EXTENSION);
+        }
+    };
+
+    /**
+     * Orders records from the oldest.
+     */
+    private static final Comparator<Record> OLDEST_FIRST = new Comparator<Record>() {
+
+        @Override
+        public int compare(Record record1, Record record2) {
+            return record1.mId < record2.mId ? -1 : record1.mId == record2.mId ? 0 : 1;
+        }
+    };
+
+    /**
+     * Application context.
+     */
+    private final Context mContext;
+
+    /**
+     * Base directory, containing a directory per group.
+     */
+    private final File mDirectory;
+
+    /**
+     * Groups by name, loaded when the persistence is first used.
+     */
+    private final Map<String, Group> mGroups = new HashMap<>();
+
+    /**
+     * Whether segments have been checked and indexed.
+     */
+    private boolean mLoaded;
+
+    /**
+     * Identifier of the next segment, segment identifiers are unique across groups.
+     */
+    private long mNextSegmentId = 1;
+
+    /**
+     * Size of the records of stored logs.
+     */
+    @VisibleForTesting
+    long mStoredSize;
+
+    /**
+     * Maximum size of the records of stored logs.
+     */
+    private long mMaxSize = DEFAULT_MAX_STORAGE_SIZE;
+
+    /**
+     * Identifiers of logs being sent.
+     */
+    private final Set<Long> mPendingIds = new HashSet<>();
+
+    /**
+     * Identifiers of logs being sent by group and batch identifier.
+     */
+    private final Map<String, List<Long>> mPendingBatches = new HashMap<>();
+
+    /**
+     * Serialized size of the logs being sent by group and batch identifier.
+     */
+    private final Map<String, Long> mPendingByteSizes = new HashMap<>();
+
+    /**
+     * Whether new payloads are stored compressed.
+     */
+    private boolean mPayloadCompressionEnabled;
+
+    /**
+     * Payload compressor, created when the first compressed payload is written or read.
+     */
+    private PayloadCompressor mPayloadCompressor;
+
+    /**
+     * Sync mode by persistence priority.
+     */
+    private final Map<Integer, Integer> mSyncModes = new HashMap<>();
+
+    /**
+     * Initializes the persistence in the App Center files directory.
+     *
+     * @param context application context.
+     */
+    public SegmentedFilePersistence(Context context) {
+        this(context, new File(Constants.FILES_PATH + SEGMENTS_DIRECTORY));
+    }
+
+    /**
+     * Initializes the persistence.
+     *
+     * @param context   application context.
+     * @param directory base directory of segments.
+     */
+    @VisibleForTesting
+    SegmentedFilePersistence(Context context, @NonNull File directory) {
+        mContext = context;
+        mDirectory = directory;
+    }
+
+    @Override
+    public boolean setMaxStorageSize(long maxStorageSizeInBytes) {
+        load();
+        if (maxStorageSizeInBytes < mStoredSize) {
+            AppCenterLog.error(LOG_TAG, "Could not change maximum storage size to " + maxStorageSizeInBytes + " bytes, stored logs use " + mStoredSize + " bytes.");
+            return false;
+        }
+        mMaxSize = maxStorageSizeInBytes;
+        AppCenterLog.info(LOG_TAG, "Changed maximum storage size to " + maxStorageSizeInBytes + " bytes.");
+        return true;
+    }
+
+    @Override
+    public void setPayloadCompressionEnabled(boolean enabled) {
+        mPayloadCompressionEnabled = enabled;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Only {@link SyncMode#FULL} changes how logs are written: each record is forced to the disk.
+     */
+    @Override
+    public void setSyncMode(@IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int priority, @SyncMode int syncMode) {
+        mSyncModes.put(Flags.getPersistenceFlag(priority, false), syncMode);
+    }
+
+    @Override
+    public long putLog(@NonNull Log log, @NonNull String group, @IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int flags) throws PersistenceException {
+        load();
+        AppCenterLog.debug(LOG_TAG, "Storing a log to the segments of " + group + " for log type " + log.getType() + " with flags=" + flags);
+        try {
+            long serializationStartTime = System.nanoTime();
+            String payload = getLogSerializer().serializeLog(log);
+            Listener listener = getListener();
+            if (listener != null) {
+                listener.onLogSerialized(group, (System.nanoTime() - serializationStartTime) / 1000);
+            }
+            String targetToken = null;
+            String targetKey = null;
+            if (log instanceof CommonSchemaLog) {
+                targetToken = log.getTransmissionTargetTokens().iterator().next();
+                targetKey = PartAUtils.getTargetKey(targetToken);
+                targetToken = CryptoUtils.getInstance(mContext).encrypt(targetToken);
+            }
+            int priority = Flags.getPersistenceFlag(flags, false);
+            int encoding = PAYLOAD_ENCODING_JSON;
+            byte[] storedPayload;
+            if (mPayloadCompressionEnabled) {
+                storedPayload = getPayloadCompressor().compress(payload);
+                encoding = PAYLOAD_ENCODING_DEFLATE;
+            } else {
+                storedPayload = payload.getBytes(UTF_8);
+            }
+            byte[] record = buildRecord(priority, encoding, log.getType(), targetToken, targetKey, storedPayload);
+            if (record.length > mMaxSize) {
+                throw new PersistenceException("Log is too large (" + record.length + " bytes) to store. " +
+                        "Current maximum storage size is " + mMaxSize + " bytes.");
+            }
+            if (!makeRoom(record.length, priority)) {
+                throw new PersistenceException("Failed to clear space for new log record.");
+            }
+            long id = append(getOrCreateGroup(group), record, priority, targetKey);
+            AppCenterLog.debug(LOG_TAG, "Stored a log to the segments for log type " + log.getType() + " with id=" + id);
+            return id;
+        } catch (JSONException e) {
+            throw new PersistenceException("Cannot convert to JSON string.", e);
+        } catch (IOException e) {
+            throw new PersistenceException("Failed to write a log to a segment.", e);
+        }
+    }
+
+    @Override
+    public void deleteLogs(@NonNull String group, @NonNull String batchId) {
+        AppCenterLog.debug(LOG_TAG, "Deleting logs from the segments of " + group + " with " + batchId);
+        List<Long> ids = mPendingBatches.remove(group + batchId);
+        mPendingByteSizes.remove(group + batchId);
+        if (ids != null) {
+            mPendingIds.removeAll(ids);
+            Group groupState = mGroups.get(group);
+            if (groupState != null) {
+                deleteRecords(groupState, ids);
+            }
+        }
+    }
+
+    @Override
+    public void deleteLogs(String group) {
+        load();
+        AppCenterLog.debug(LOG_TAG, "Deleting all logs from the segments of " + group);
+        Group groupState = mGroups.remove(group);
+        File directory = getDirectory(group);
+        if (groupState != null) {
+            closeFiles(groupState);
+            for (Record record : groupState.mRecords.values()) {
+                mStoredSize -= record.mSize;
+            }
+        }
+        if (directory.exists() && !FileManager.deleteDirectory(directory)) {
+            AppCenterLog.warn(LOG_TAG, "Cannot delete segments of " + group);
+        }
+
+        /* Delete from pending state. */
+        for (Iterator<Map.Entry<String, List<Long>>> iterator = mPendingBatches.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, List<Long>> entry = iterator.next();
+            if (entry.getKey().startsWith(group)) {
+                mPendingIds.removeAll(entry.getValue());
+                iterator.remove();
+            }
+        }
+        for (Iterator<String> iterator = mPendingByteSizes.keySet().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().startsWith(group)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public int deleteOldestLogs(@NonNull String group, @IntRange(from = 0) int count) {
+        load();
+        Group groupState = mGroups.get(group);
+        if (groupState == null) {
+            return 0;
+        }
+        List<Long> ids = new ArrayList<>();
+        for (int priority = Flags.PERSISTENCE_NORMAL; priority <= Flags.PERSISTENCE_CRITICAL && ids.size() < count; priority++) {
+            for (Record record : groupState.mRecords.values()) {
+                if (ids.size() >= count) {
+                    break;
+                }
+                if (record.mPriority == priority && !mPendingIds.contains(record.mId)) {
+                    ids.add(record.mId);
+                }
+            }
+        }
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        deleteRecords(groupState, ids);
+        AppCenterLog.debug(LOG_TAG, "Evicted " + ids.size() + " oldest logs from " + group);
+        Listener listener = getListener();
+        if (listener != null) {
+            listener.onLogsEvicted(group, ids.size());
+        }
+        return ids.size();
+    }
+
+    @Override
+    public int countLogs(@NonNull String group) {
+        load();
+        Group groupState = mGroups.get(group);
+        return groupState == null ? 0 : groupState.mRecords.size();
+    }
+
+    @Override
+    public int countLogs(@NonNull String group, @NonNull Collection<String> excludedTargetKeys) {
+        load();
+        Group groupState = mGroups.get(group);
+        if (groupState == null) {
+            return 0;
+        }
+        int count = groupState.mRecords.size();
+        for (String targetKey : excludedTargetKeys) {
+            Integer targetCount = groupState.mCounts.get(targetKey);
+            if (targetCount != null) {
+                count -= targetCount;
+            }
+        }
+        return count;
+    }
+
+    @Nullable
+    @Override
+    public String getLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, @IntRange(from = 0) int limit, @NonNull List<Log> outLogs) {
+        load();
+        AppCenterLog.debug(LOG_TAG, "Trying to get " + limit + " logs from the segments of " + group);
+        Group groupState = mGroups.get(group);
+        Map<Long, Log> candidates = new LinkedHashMap<>();
+        List<Long> failedIds = new ArrayList<>();
+        long byteSize = 0;
+        if (groupState != null) {
+
+            /* Highest priority first, then oldest first. Only selected records are read. */
+            for (int priority = Flags.PERSISTENCE_CRITICAL; priority >= Flags.PERSISTENCE_NORMAL && candidates.size() < limit; priority--) {
+                for (Record record : groupState.mRecords.values()) {
+                    if (candidates.size() >= limit) {
+                        break;
+                    }
+                    if (record.mPriority != priority || mPendingIds.contains(record.mId) ||
+                            (record.mTargetKey != null && pausedTargetKeys.contains(record.mTargetKey))) {
+                        continue;
+                    }
+                    try {
+                        RecordBody body = readRecord(groupState, record);
+                        String payload = getPayload(body);
+                        Log log = getLogSerializer().deserializeLog(payload, body.mType);
+                        if (body.mTargetToken != null) {
+                            CryptoUtils.DecryptedData data = CryptoUtils.getInstance(mContext).decrypt(body.mTargetToken);
+                            log.addTransmissionTarget(data.getDecryptedData());
+                        }
+                        candidates.put(record.mId, log);
+                        byteSize += payload.length();
+                    } catch (IOException | JSONException | DataFormatException | RuntimeException e) {
+                        AppCenterLog.error(LOG_TAG, "Cannot read a log from the segments", e);
+                        failedIds.add(record.mId);
+                    }
+                }
+            }
+
+            /* Delete any logs that cannot be read. */
+            if (!failedIds.isEmpty()) {
+                deleteRecords(groupState, failedIds);
+                AppCenterLog.warn(LOG_TAG, "Deleted logs that cannot be read");
+            }
+        }
+        if (candidates.isEmpty()) {
+            AppCenterLog.debug(LOG_TAG, "No logs found in the segments at the moment");
+            return null;
+        }
+        String batchId = UUID.randomUUID().toString();
+        AppCenterLog.debug(LOG_TAG, "Returning " + candidates.size() + " log(s) with an ID, " + batchId);
+        List<Long> ids = new ArrayList<>(candidates.keySet());
+        mPendingIds.addAll(ids);
+        mPendingBatches.put(group + batchId, ids);
+        mPendingByteSizes.put(group + batchId, byteSize);
+        outLogs.addAll(candidates.values());
+        return batchId;
+    }
+
+    @Override
+    public void clearPendingLogState() {
+        mPendingIds.clear();
+        mPendingBatches.clear();
+        mPendingByteSizes.clear();
+        AppCenterLog.debug(LOG_TAG, "Cleared pending log states");
+    }
+
+    @Override
+    public void releaseLogs(@NonNull String group, @NonNull String batchId) {
+        List<Long> ids = mPendingBatches.remove(group + batchId);
+        mPendingByteSizes.remove(group + batchId);
+        if (ids != null) {
+            mPendingIds.removeAll(ids);
+            AppCenterLog.debug(LOG_TAG, "Released " + ids.size() + " pending log(s) for " + group + " with " + batchId);
+        }
+    }
+
+    @Override
+    public long getBatchByteSize(@NonNull String group, @NonNull String batchId) {
+        Long byteSize = mPendingByteSizes.get(group + batchId);
+        return byteSize != null ? byteSize : -1;
+    }
+
+    @Override
+    public void close() {
+        for (Group group : mGroups.values()) {
+            closeFiles(group);
+        }
+        mGroups.clear();
+        mLoaded = false;
+        mStoredSize = 0;
+        if (mPayloadCompressor != null) {
+            mPayloadCompressor.close();
+            mPayloadCompressor = null;
+        }
+    }
+
+    /**
+     * Check and index segments of all groups, if not done yet.
+     * Invalid records at the end of a segment are truncated, segments without stored logs are deleted.
+     */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        File[] directories = mDirectory.listFiles();
+        if (directories == null) {
+            return;
+        }
+        for (File directory : directories) {
+            if (directory.isDirectory()) {
+                String group = getGroupName(directory.getName());
+                if (group == null) {
+                    AppCenterLog.warn(LOG_TAG, "A directory was found whose name does not match the pattern of naming groups: " + directory.getName());
+                    continue;
+                }
+                mGroups.put(group, loadGroup(group, directory));
+            }
+        }
+        AppCenterLog.debug(LOG_TAG, "Loaded " + mGroups.size() + " group(s) from segments, " + mStoredSize + " bytes of stored logs.");
+    }
+
+    /**
+     * Check and index the segments of a group.
+     *
+     * @param name      group name.
+     * @param directory group directory.
+     * @return group.
+     */
+    @NonNull
+    private Group loadGroup(@NonNull String name, @NonNull File directory) {
+        Group group = new Group(name, directory);
+        File acknowledgmentsFile = new File(directory, ACKNOWLEDGMENTS_FILE);
+        List<Long> acknowledgedIds = readAcknowledgments(acknowledgmentsFile);
+        File[] files = directory.listFiles(SEGMENT_FILE_FILTER);
+        if (files != null) {
+            Map<Long, File> segmentFiles = new TreeMap<>();
+            for (File file : files) {
+                String name = file.getName();
+                try {
+                    segmentFiles.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_FILE_EXTENSION.length())), file);
+                } catch (NumberFormatException e) {
+                    AppCenterLog.warn(LOG_TAG, "A file was found whose name does not match the pattern of naming segments: " + name);
+                }
+            }
+            Set<Long> acknowledgedIdSet = new HashSet<>(acknowledgedIds);
+            for (Map.Entry<Long, File> entry : segmentFiles.entrySet()) {
+                mNextSegmentId = Math.max(mNextSegmentId, entry.getKey() + 1);
+                loadSegment(group, new Segment(entry.getKey(), entry.getValue()), acknowledgedIdSet);
+            }
+        }
+
+        /* Acknowledgments of deleted segments are not needed anymore, an interrupted acknowledgment must not be appended to. */
+        List<Long> neededIds = new ArrayList<>();
+        for (Long id : acknowledgedIds) {
+            if (group.mSegments.containsKey(getSegmentId(id))) {
+                neededIds.add(id);
+            }
+        }
+        if (group.mSegments.isEmpty()) {
+
+            //noinspection ResultOfMethodCallIgnored it may not exist.
+            acknowledgmentsFile.delete();
+        } else if (neededIds.size() < acknowledgedIds.size() || acknowledgmentsFile.length() != (long) acknowledgedIds.size() * ACKNOWLEDGMENT_SIZE) {
+            rewriteAcknowledgments(acknowledgmentsFile, neededIds);
+        }
+        return group;
+    }
+
+    /**
+     * Check and index the records of a segment, truncating it at the first invalid record.
+     *
+     * @param group           group of the segment.
+     * @param segment         segment.
+     * @param acknowledgedIds identifiers of deleted logs.
+     */
+    private void loadSegment(@NonNull Group group, @NonNull Segment segment, @NonNull Set<Long> acknowledgedIds) {
+        try {
+            RandomAccessFile file = new RandomAccessFile(segment.mFile, "rw");
+            try {
+                FileChannel channel = file.getChannel();
+                long size = channel.size();
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                int offset = 0;
+                while (true) {
+                    byte[] body = readBody(map, offset);
+                    if (body == null) {
+                        break;
+                    }
+                    RecordBody recordBody;
+                    try {
+                        recordBody = parseBody(body);
+                    } catch (RuntimeException e) {
+                        break;
+                    }
+                    long id = getId(segment.mId, offset);
+                    int recordSize = RECORD_HEADER_SIZE + body.length;
+                    if (!acknowledgedIds.contains(id)) {
+                        segment.mStoredCount++;
+                        addRecord(group, new Record(id, recordBody.mPriority, recordBody.mTargetKey, recordSize));
+                    }
+                    offset += recordSize;
+                }
+                segment.mSize = offset;
+                if (offset < size) {
+                    AppCenterLog.warn(LOG_TAG, "Truncating segment " + segment.mFile + " at invalid record, offset=" + offset);
+                    channel.truncate(offset);
+                } else {
+                    segment.mMap = map;
+                }
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            AppCenterLog.error(LOG_TAG, "Cannot read segment " + segment.mFile, e);
+            return;
+        }
+        if (segment.mStoredCount == 0) {
+            deleteSegmentFile(segment);
+        } else {
+            group.mSegments.put(segment.mId, segment);
+        }
+    }
+
+    /**
+     * Read valid acknowledgments, reading stops at the first invalid one.
+     *
+     * @param file acknowledgment file.
+     * @return identifiers of deleted logs.
+     */
+    @NonNull
+    private static List<Long> readAcknowledgments(@NonNull File file) {
+        List<Long> ids = new ArrayList<>();
+        if (!file.exists()) {
+            return ids;
+        }
+        try {
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                byte[] data = new byte[(int) input.length()];
+                input.readFully(data);
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                CRC32 crc = new CRC32();
+                while (buffer.remaining() >= ACKNOWLEDGMENT_SIZE) {
+                    int position = buffer.position();
+                    long id = buffer.getLong();
+                    crc.reset();
+                    crc.update(data, position, 8);
+                    if (buffer.getInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                    ids.add(id);
+                }
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            AppCenterLog.error(LOG_TAG, "Cannot read acknowledgments " + file, e);
+        }
+        return ids;
+    }
+
+    /**
+     * Replace the acknowledgment file of a group.
+     *
+     * @param file acknowledgment file.
+     * @param ids  identifiers of deleted logs.
+     */
+    private static void rewriteAcknowledgments(@NonNull File file, @NonNull List<Long> ids) {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try {
+            RandomAccessFile output = new RandomAccessFile(temporaryFile, "rw");
+            try {
+                output.setLength(0);
+                output.write(buildAcknowledgments(ids).array());
+            } finally {
+                output.close();
+            }
+            if (!temporaryFile.renameTo(file)) {
+                throw new IOException("Cannot rename " + temporaryFile);
+            }
+        } catch (IOException e) {
+            AppCenterLog.error(LOG_TAG, "Cannot rewrite acknowledgments " + file, e);
+        }
+    }
+
+    /**
+     * Serialize acknowledgments.
+     *
+     * @param ids identifiers of deleted logs.
+     * @return buffer ready to be written.
+     */
+    @NonNull
+    private static ByteBuffer buildAcknowledgments(@NonNull Collection<Long> ids) {
+        ByteBuffer buffer = ByteBuffer.allocate(ids.size() * ACKNOWLEDGMENT_SIZE);
+        CRC32 crc = new CRC32();
+        for (Long id : ids) {
+            int position = buffer.position();
+            buffer.putLong(id);
+            crc.reset();
+            crc.update(buffer.array(), position, 8);
+            buffer.putInt((int) crc.getValue());
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Get a group, creating it if it has no stored logs yet.
+     *
+     * @param group group name.
+     * @return group.
+     */
+    @NonNull
+    private Group getOrCreateGroup(@NonNull String group) {
+        Group groupState = mGroups.get(group);
+        if (groupState == null) {
+            groupState = new Group(group, getDirectory(group));
+            mGroups.put(group, groupState);
+        }
+        return groupState;
+    }
+
+    /**
+     * Get the directory of a group.
+     *
+     * @param group group name.
+     * @return group directory.
+     */
+    @NonNull
+    private File getDirectory(@NonNull String group) {
+        return new File(mDirectory, getDirectoryName(group));
+    }
+
+    /**
+     * Get the directory name of a group. Group names are percent encoded so that they map to a single directory,
+     * for example One Collector groups contain a slash.
+     *
+     * @param group group name.
+     * @return directory name.
+     */
+    @NonNull
+    @VisibleForTesting
+    static String getDirectoryName(@NonNull String group) {
+        try {
+            return URLEncoder.encode(group, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+
+            /* UTF-8 is always supported. */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Get the group name of a directory.
+     *
+     * @param directoryName directory name.
+     * @return group name, null if the name is not an encoded group name.
+     */
+    @Nullable
+    @VisibleForTesting
+    static String getGroupName(@NonNull String directoryName) {
+        try {
+            String group = URLDecoder.decode(directoryName, "UTF-8");
+            return getDirectoryName(group).equals(directoryName) ? group : null;
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Append a record to the current segment of a group, starting a new segment if needed.
+     *
+     * @param group     group.
+     * @param record    record.
+     * @param priority  log priority.
+     * @param targetKey log target key, null if none.
+     * @return log identifier.
+     * @throws IOException if the record cannot be written.
+     */
+    private long append(@NonNull Group group, @NonNull byte[] record, int priority, @Nullable String targetKey) throws IOException {
+        Segment segment = group.mCurrentSegment;
+        if (segment == null || (segment.mSize > 0 && segment.mSize + record.length > SEGMENT_MAX_SIZE)) {
+            closeWriter(group);
+            segment = new Segment(mNextSegmentId, new File(group.mDirectory, mNextSegmentId + SEGMENT_FILE_EXTENSION));
+
+            //noinspection ResultOfMethodCallIgnored we'll get an error anyway when opening the file.
+            group.mDirectory.mkdirs();
+            group.mWriter = new RandomAccessFile(segment.mFile, "rw").getChannel();
+            mNextSegmentId++;
+            group.mCurrentSegment = segment;
+            group.mSegments.put(segment.mId, segment);
+        }
+        long offset = segment.mSize;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                group.mWriter.write(buffer, offset + buffer.position());
+            }
+            Integer syncMode = mSyncModes.get(priority);
+            if (syncMode != null && syncMode == SyncMode.FULL) {
+                group.mWriter.force(false);
+            }
+        } catch (IOException e) {
+
+            /* Remove the partial record, as recovery would. */
+            try {
+                group.mWriter.truncate(offset);
+            } catch (IOException ignore) {
+            }
+            throw e;
+        }
+        segment.mSize += record.length;
+        segment.mStoredCount++;
+        long id = getId(segment.mId, offset);
+        addRecord(group, new Record(id, priority, targetKey, record.length));
+        return id;
+    }
+
+    /**
+     * Delete logs: acknowledge them, or delete their segment if it has no stored logs left.
+     *
+     * @param group group of the logs.
+     * @param ids   log identifiers.
+     */
+    private void deleteRecords(@NonNull Group group, @NonNull Collection<Long> ids) {
+        List<Long> deletedIds = new ArrayList<>();
+        for (Long id : ids) {
+            Record record = group.mRecords.remove(id);
+            if (record == null) {
+                continue;
+            }
+            updateCount(group, record.mTargetKey, -1);
+            mStoredSize -= record.mSize;
+            Segment segment = group.mSegments.get(getSegmentId(id));
+            if (segment != null) {
+                segment.mStoredCount--;
+            }
+            deletedIds.add(id);
+        }
+        List<Long> acknowledgedIds = new ArrayList<>();
+        for (Long id : deletedIds) {
+            Segment segment = group.mSegments.get(getSegmentId(id));
+            if (segment == null) {
+                continue;
+            }
+            if (segment.mStoredCount == 0) {
+                if (segment == group.mCurrentSegment) {
+                    closeWriter(group);
+                }
+                group.mSegments.remove(segment.mId);
+                deleteSegmentFile(segment);
+            } else {
+                acknowledgedIds.add(id);
+            }
+        }
+        if (group.mSegments.isEmpty()) {
+
+            /* No segment left to acknowledge logs of. */
+            closeAcknowledgments(group);
+
+            //noinspection ResultOfMethodCallIgnored it may not exist.
+            new File(group.mDirectory, ACKNOWLEDGMENTS_FILE).delete();
+        } else if (!acknowledgedIds.isEmpty()) {
+            try {
+                if (group.mAcknowledgments == null) {
+                    group.mAcknowledgments = new RandomAccessFile(new File(group.mDirectory, ACKNOWLEDGMENTS_FILE), "rw").getChannel();
+                }
+                ByteBuffer buffer = buildAcknowledgments(acknowledgedIds);
+                long position = group.mAcknowledgments.size();
+                while (buffer.hasRemaining()) {
+                    group.mAcknowledgments.write(buffer, position + buffer.position());
+                }
+            } catch (IOException e) {
+                AppCenterLog.error(LOG_TAG, "Cannot acknowledge deleted logs, they will be read again after restart.", e);
+            }
+        }
+    }
+
+    /**
+     * Delete the oldest logs with the lowest priority until the given number of bytes fits in storage.
+     * Logs being sent are not deleted.
+     *
+     * @param extraBytes number of bytes that must fit.
+     * @param priority   maximum priority of logs to delete.
+     * @return true if the bytes fit, false if not enough logs could be deleted.
+     */
+    private boolean makeRoom(long extraBytes, int priority) {
+        long bytesToFree = mStoredSize + extraBytes - mMaxSize;
+        if (bytesToFree <= 0) {
+            return true;
+        }
+        AppCenterLog.debug(LOG_TAG, "Storage is full, trying to delete the oldest logs that have the lowest priority which is lower or equal priority than the new log.");
+        Map<Group, List<Long>> evictedIds = new LinkedHashMap<>();
+        long freedBytes = 0;
+        for (int recordPriority = Flags.PERSISTENCE_NORMAL; recordPriority <= priority && freedBytes < bytesToFree; recordPriority++) {
+            List<Record> records = new ArrayList<>();
+            for (Group group : mGroups.values()) {
+                for (Record record : group.mRecords.values()) {
+
+                    /* Logs being sent are deleted when their batch completes. */
+                    if (record.mPriority == recordPriority && !mPendingIds.contains(record.mId)) {
+                        records.add(record);
+                    }
+                }
+            }
+
+            /* Identifiers grow with time across groups. */
+            Collections.sort(records, OLDEST_FIRST);
+            for (Record record : records) {
+                if (freedBytes >= bytesToFree) {
+                    break;
+                }
+                Group group = record.mGroup;
+                List<Long> ids = evictedIds.get(group);
+                if (ids == null) {
+                    ids = new ArrayList<>();
+                    evictedIds.put(group, ids);
+                }
+                ids.add(record.mId);
+                freedBytes += record.mSize;
+            }
+        }
+        Listener listener = getListener();
+        for (Map.Entry<Group, List<Long>> entry : evictedIds.entrySet()) {
+            deleteRecords(entry.getKey(), entry.getValue());
+            if (listener != null) {
+                listener.onLogsEvicted(entry.getKey().mName, entry.getValue().size());
+            }
+        }
+        return mStoredSize + extraBytes <= mMaxSize;
+    }
+
+    /**
+     * Read and check a record.
+     *
+     * @param group  group of the log.
+     * @param record record.
+     * @return record body.
+     * @throws IOException if the record cannot be read or is corrupted.
+     */
+    @NonNull
+    private RecordBody readRecord(@NonNull Group group, @NonNull Record record) throws IOException {
+        Segment segment = group.mSegments.get(getSegmentId(record.mId));
+        if (segment == null) {
+            throw new IOException("Segment of log " + record.mId + " not found.");
+        }
+        int offset = getOffset(record.mId);
+
+        /* The current segment is mapped again when it grew past the mapped records. */
+        if (segment.mMap == null || segment.mMap.limit() < offset + record.mSize) {
+            RandomAccessFile file = new RandomAccessFile(segment.mFile, "r");
+            try {
+                segment.mMap = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, segment.mSize);
+            } finally {
+                file.close();
+            }
+        }
+        byte[] body = readBody(segment.mMap, offset);
+        if (body == null) {
+            throw new IOException("Log " + record.mId + " is corrupted.");
+        }
+        return parseBody(body);
+    }
+
+    /**
+     * Decode the payload of a record.
+     *
+     * @param body record body.
+     * @return JSON payload.
+     * @throws DataFormatException if the payload is compressed and invalid.
+     */
+    @NonNull
+    private String getPayload(@NonNull RecordBody body) throws DataFormatException {
+        if (body.mEncoding == PAYLOAD_ENCODING_DEFLATE) {
+            return getPayloadCompressor().decompress(Arrays.copyOfRange(body.mData, body.mPayloadOffset, body.mData.length));
+        }
+        return new String(body.mData, body.mPayloadOffset, body.mData.length - body.mPayloadOffset, UTF_8);
+    }
+
+    /**
+     * Get the payload compressor, creating it if needed.
+     *
+     * @return payload compressor.
+     */
+    @NonNull
+    private PayloadCompressor getPayloadCompressor() {
+        if (mPayloadCompressor == null) {
+            mPayloadCompressor = new PayloadCompressor();
+        }
+        return mPayloadCompressor;
+    }
+
+    /**
+     * Add a stored log to the index.
+     *
+     * @param group  group of the log.
+     * @param record record.
+     */
+    private void addRecord(@NonNull Group group, @NonNull Record record) {
+        record.mGroup = group;
+        group.mRecords.put(record.mId, record);
+        updateCount(group, record.mTargetKey, 1);
+        mStoredSize += record.mSize;
+    }
+
+    /**
+     * Update the number of stored logs of a target.
+     *
+     * @param group     group.
+     * @param targetKey target key, null for logs without target.
+     * @param delta     number of logs added, negative for deleted logs.
+     */
+    private static void updateCount(@NonNull Group group, @Nullable String targetKey, int delta) {
+        Integer count = group.mCounts.get(targetKey);
+        int newCount = (count == null ? 0 : count) + delta;
+        if (newCount > 0) {
+            group.mCounts.put(targetKey, newCount);
+        } else {
+            group.mCounts.remove(targetKey);
+        }
+    }
+
+    /**
+     * Close the files of a group.
+     *
+     * @param group group.
+     */
+    private static void closeFiles(@NonNull Group group) {
+        closeWriter(group);
+        closeAcknowledgments(group);
+    }
+
+    /**
+     * Close the writer of the current segment of a group, next log starts a new segment.
+     *
+     * @param group group.
+     */
+    private static void closeWriter(@NonNull Group group) {
+        if (group.mWriter != null) {
+            try {
+                group.mWriter.close();
+            } catch (IOException e) {
+                AppCenterLog.warn(LOG_TAG, "Cannot close segment " + group.mCurrentSegment.mFile, e);
+            }
+            group.mWriter = null;
+        }
+        group.mCurrentSegment = null;
+    }
+
+    /**
+     * Close the acknowledgment file of a group.
+     *
+     * @param group group.
+     */
+    private static void closeAcknowledgments(@NonNull Group group) {
+        if (group.mAcknowledgments != null) {
+            try {
+                group.mAcknowledgments.close();
+            } catch (IOException e) {
+                AppCenterLog.warn(LOG_TAG, "Cannot close acknowledgments of " + group.mDirectory, e);
+            }
+            group.mAcknowledgments = null;
+        }
+    }
+
+    /**
+     * Delete a segment file.
+     *
+     * @param segment segment.
+     */
+    private static void deleteSegmentFile(@NonNull Segment segment) {
+        segment.mMap = null;
+        if (segment.mFile.delete()) {
+            AppCenterLog.verbose(LOG_TAG, "Segment " + segment.mFile + " has been deleted.");
+        } else {
+            AppCenterLog.warn(LOG_TAG, "Cannot delete segment " + segment.mFile);
+        }
+    }
+
+    /**
+     * Build a record.
+     *
+     * @param priority    log priority.
+     * @param encoding    payload encoding.
+     * @param type        log type.
+     * @param targetToken encrypted target token, null if none.
+     * @param targetKey   target key, null if none.
+     * @param payload     stored payload.
+     * @return record: header followed by body.
+     */
+    @VisibleForTesting
+    static byte[] buildRecord(int priority, int encoding, @NonNull String type, @Nullable String targetToken, @Nullable String targetKey, @NonNull byte[] payload) {
+        byte[] typeBytes = type.getBytes(UTF_8);
+        byte[] targetTokenBytes = targetToken == null ? null : targetToken.getBytes(UTF_8);
+        byte[] targetKeyBytes = targetKey == null ? null : targetKey.getBytes(UTF_8);
+        int bodySize = 2 + getStringSize(typeBytes) + getStringSize(targetTokenBytes) + getStringSize(targetKeyBytes) + payload.length;
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + bodySize);
+        buffer.putInt(bodySize);
+        buffer.putInt(0);
+        buffer.put((byte) priority);
+        buffer.put((byte) encoding);
+        putString(buffer, typeBytes);
+        putString(buffer, targetTokenBytes);
+        putString(buffer, targetKeyBytes);
+        buffer.put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), RECORD_HEADER_SIZE, bodySize);
+        buffer.putInt(4, (int) crc.getValue());
+        return buffer.array();
+    }
+
+    /**
+     * Read the body of a record if it is complete and matches its checksum.
+     *
+     * @param map    mapped segment.
+     * @param offset record offset.
+     * @return body, null if there is no valid record at this offset.
+     */
+    @Nullable
+    private static byte[] readBody(@NonNull ByteBuffer map, int offset) {
+        if (offset > map.limit() - RECORD_HEADER_SIZE) {
+            return null;
+        }
+        int bodySize = map.getInt(offset);
+        int checksum = map.getInt(offset + 4);
+        if (bodySize <= 0 || bodySize > map.limit() - offset - RECORD_HEADER_SIZE) {
+            return null;
+        }
+        byte[] body = new byte[bodySize];
+        ByteBuffer record = map.duplicate();
+        record.position(offset + RECORD_HEADER_SIZE);
+        record.get(body);
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, bodySize);
+        return (int) crc.getValue() == checksum ? body : null;
+    }
+
+    /**
+     * Parse the body of a record.
+     *
+     * @param body body.
+     * @return parsed body.
+     * @throws RuntimeException if the body is invalid.
+     */
+    @NonNull
+    private static RecordBody parseBody(@NonNull byte[] body) {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        RecordBody recordBody = new RecordBody(body);
+        recordBody.mPriority = buffer.get();
+        recordBody.mEncoding = buffer.get();
+        recordBody.mType = getString(buffer);
+        recordBody.mTargetToken = getString(buffer);
+        recordBody.mTargetKey = getString(buffer);
+        if (recordBody.mType == null) {
+            throw new IllegalArgumentException("Log type is missing.");
+        }
+        recordBody.mPayloadOffset = buffer.position();
+        return recordBody;
+    }
+
+    /**
+     * Get the size of a string in a record.
+     *
+     * @param value UTF-8 bytes, null for a null string.
+     * @return size in bytes.
+     */
+    private static int getStringSize(@Nullable byte[] value) {
+        return 2 + (value == null ? 0 : value.length);
+    }
+
+    /**
+     * Write a string: its size, -1 if null, then its UTF-8 bytes.
+     *
+     * @param buffer buffer.
+     * @param value  UTF-8 bytes, null for a null string.
+     */
+    private static void putString(@NonNull ByteBuffer buffer, @Nullable byte[] value) {
+        if (value == null) {
+            buffer.putShort((short) -1);
+        } else {
+            buffer.putShort((short) value.length);
+            buffer.put(value);
+        }
+    }
+
+    /**
+     * Read a string written by {@link #putString(ByteBuffer, byte[])}.
+     *
+     * @param buffer buffer.
+     * @return string, null if a null string was written.
+     */
+    @Nullable
+    private static String getString(@NonNull ByteBuffer buffer) {
+        short size = buffer.getShort();
+        if (size == -1) {
+            return null;
+        }
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid string size: " + size);
+        }
+        byte[] value = new byte[size];
+        buffer.get(value);
+        return new String(value, UTF_8);
+    }
+
+    /**
+     * Log identifiers are made of the segment identifier and the record offset.
+     *
+     * @param segmentId segment identifier.
+     * @param offset    record offset in segment.
+     * @return log identifier.
+     */
+    private static long getId(long segmentId, long offset) {
+        return segmentId << 32 | offset;
+    }
+
+    /**
+     * Get the segment of a log.
+     *
+     * @param id log identifier.
+     * @return segment identifier.
+     */
+    private static long getSegmentId(long id) {
+        return id >>> 32;
+    }
+
+    /**
+     * Get the offset of a log record in its segment.
+     *
+     * @param id log identifier.
+     * @return offset.
+     */
+    private static int getOffset(long id) {
+        return (int) id;
+    }
+
+    /**
+     * Stored logs and open files of a group.
+     */
+    private static class Group {
+
+        /**
+         * Group name.
+         */
+        final String mName;
+
+        /**
+         * Group directory, named after the percent encoded group name.
+         */
+        final File mDirectory;
+
+        /**
+         * Stored logs by identifier, oldest first.
+         */
+        final Map<Long, Record> mRecords = new LinkedHashMap<>();
+
+        /**
+         * Number of stored logs by target key, null key for logs without target.
+         */
+        final Map<String, Integer> mCounts = new HashMap<>();
+
+        /**
+         * Segments with stored logs by identifier.
+         */
+        final Map<Long, Segment> mSegments = new HashMap<>();
+
+        /**
+         * Segment that new logs are appended to, null until the next log.
+         */
+        Segment mCurrentSegment;
+
+        /**
+         * Writer of the current segment.
+         */
+        FileChannel mWriter;
+
+        /**
+         * Writer of the acknowledgment file, opened when the first log is acknowledged.
+         */
+        FileChannel mAcknowledgments;
+
+        Group(@NonNull String name, @NonNull File directory) {
+            mName = name;
+            mDirectory = directory;
+        }
+    }
+
+    /**
+     * Segment file state.
+     */
+    private static class Segment {
+
+        /**
+         * Segment identifier.
+         */
+        final long mId;
+
+        /**
+         * Segment file.
+         */
+        final File mFile;
+
+        /**
+         * Size of the valid records.
+         */
+        long mSize;
+
+        /**
+         * Number of stored logs.
+         */
+        int mStoredCount;
+
+        /**
+         * Memory map used to read records, mapped again when needed.
+         */
+        MappedByteBuffer mMap;
+
+        Segment(long id, @NonNull File file) {
+            mId = id;
+            mFile = file;
+        }
+    }
+
+    /**
+     * Index entry of a stored log.
+     */
+    private static class Record {
+
+        /**
+         * Log identifier.
+         */
+        final long mId;
+
+        /**
+         * Log priority.
+         */
+        final int mPriority;
+
+        /**
+         * Target key, null for logs without target.
+         */
+        final String mTargetKey;
+
+        /**
+         * Record size, header included.
+         */
+        final int mSize;
+
+        /**
+         * Group of the log.
+         */
+        Group mGroup;
+
+        Record(long id, int priority, @Nullable String targetKey, int size) {
+            mId = id;
+            mPriority = priority;
+            mTargetKey = targetKey;
+            mSize = size;
+        }
+    }
+
+    /**
+     * Parsed record body.
+     */
+    private static class RecordBody {
+
+        /**
+         * Body bytes.
+         */
+        final byte[] mData;
+
+        /**
+         * Log priority.
+         */
+        int mPriority;
+
+        /**
+         * Payload encoding.
+         */
+        int mEncoding;
+
+        /**
+         * Log type.
+         */
+        String mType;
+
+        /**
+         * Encrypted target token, null for logs without target.
+         */
+        String mTargetToken;
+
+        /**
+         * Target key, null for logs without target.
+         */
+        String mTargetKey;
+
+        /**
+         * Offset of the payload in the body, the payload ends with the body.
+         */
+        int mPayloadOffset;
+
+        RecordBody(@NonNull byte[] data) {
+            mData = data;
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import static com.microsoft.appcenter.AppCenter.LOG_TAG;
+
+import android.content.Context;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.microsoft.appcenter.Flags;
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
+import com.microsoft.appcenter.utils.AppCenterLog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistence storing the logs of each group in a SQLite database of its own.
+ * <p>
+ * Groups do not share database pages, indexes or journal, so a group with a large backlog does not slow down
+ * queries of the others, and deleting all the logs of a group deletes its database file instead of its rows.
+ * Databases are opened when their group is first used.
+ * <p>
+ * The maximum storage size applies to all databases together: after each write, the oldest logs with the lowest priority
+ * of the largest databases are evicted until all the databases fit. Percentage based group quotas are relative to that
+ * maximum storage size.
+ */
+public class ShardedPersistence extends Persistence {
+
+    /**
+     * Orders databases from the one storing the most bytes.
+     */
+    private static final Comparator<DatabasePersistence> LARGEST_FIRST = new Comparator<DatabasePersistence>() {
+
+        @Override
+        public int compare(DatabasePersistence shard1, DatabasePersistence shard2) {
+            long size1 = shard1.getStoredSize(false);
+            long size2 = shard2.getStoredSize(false);
+            return size1 > size2 ? -1 : size1 == size2 ? 0 : 1;
+        }
+    };
+
+    /**
+     * Application context.
+     */
+    private final Context mContext;
+
+    /**
+     * Persistence of each group that has been used, by group.
+     */
+    @VisibleForTesting
+    final Map<String, DatabasePersistence> mShards = new HashMap<>();
+
+    /**
+     * Log serializer given to shards, null until set.
+     */
+    private LogSerializer mLogSerializer;
+
+    /**
+     * Whether new payloads are stored compressed.
+     */
+    private boolean mPayloadCompressionEnabled;
+
+    /**
+     * Whether write-ahead logging is enabled, null if not set.
+     */
+    private Boolean mWriteAheadLoggingEnabled;
+
+    /**
+     * Sync mode by priority, as given to {@link #setSyncMode(int, int)}.
+     */
+    private final Map<Integer, Integer> mSyncModes = new HashMap<>();
+
+    /**
+     * Maximum size of all databases together, 0 if not set.
+     */
+    private long mMaxStorageSize;
+
+    /**
+     * Time to live in ms of logs by log type.
+     */
+    private final Map<String, Long> mLogTypeTimeToLives = new HashMap<>();
+
+    /**
+     * Init.
+     *
+     * @param context application context.
+     */
+    public ShardedPersistence(@NonNull Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Create the persistence of a group.
+     *
+     * @param group group.
+     * @return persistence only storing logs of the group.
+     */
+    @NonNull
+    @VisibleForTesting
+    DatabasePersistence createShard(@NonNull String group) {
+        return new DatabasePersistence(mContext, group);
+    }
+
+    /**
+     * Get the persistence of a group, creating it with the current settings if not used yet.
+     *
+     * @param group group.
+     * @return persistence of the group.
+     */
+    @NonNull
+    private DatabasePersistence getShard(@NonNull String group) {
+        DatabasePersistence shard = mShards.get(group);
+        if (shard == null) {
+            shard = createShard(group);
+            if (mLogSerializer != null) {
+                shard.setLogSerializer(mLogSerializer);
+            }
+            shard.setListener(getListener());
+            shard.setPayloadCompressionEnabled(mPayloadCompressionEnabled);
+            if (mWriteAheadLoggingEnabled != null) {
+                shard.setWriteAheadLoggingEnabled(mWriteAheadLoggingEnabled);
+            }
+            for (Map.Entry<Integer, Integer> entry : mSyncModes.entrySet()) {
+                shard.setSyncMode(entry.getKey(), entry.getValue());
+            }
+            if (mMaxStorageSize > 0) {
+                shard.setMaxStorageSize(mMaxStorageSize);
+            }
+            for (Map.Entry<String, Long> entry : mLogTypeTimeToLives.entrySet()) {
+                shard.setLogTypeTimeToLive(entry.getKey(), entry.getValue());
+            }
+            mShards.put(group, shard);
+        }
+        return shard;
+    }
+
+    @Override
+    public void setLogSerializer(@NonNull LogSerializer logSerializer) {
+        super.setLogSerializer(logSerializer);
+        mLogSerializer = logSerializer;
+        for (DatabasePersistence shard : mShards.values()) {
+            shard.setLogSerializer(logSerializer);
+        }
+    }
+
+    @Override
+    public void setListener(@Nullable Listener listener) {
+        super.setListener(listener);
+        for (DatabasePersistence shard : mShards.values()) {
+            shard.setListener(listener);
+        }
+    }
+
+    @Override
+    public void setPayloadCompressionEnabled(boolean enabled) {
+        mPayloadCompressionEnabled = enabled;
+        for (DatabasePersistence shard : mShards.values()) {
+            shard.setPayloadCompressionEnabled(enabled);
+        }
+    }
+
+    @Override
+    public void setWriteAheadLoggingEnabled(boolean enabled) {
+        mWriteAheadLoggingEnabled = enabled;
+        for (DatabasePersistence shard : mShards.values()) {
+            shard.setWriteAheadLoggingEnabled(enabled);
+        }
+    }
+
+    @Override
+    public void setSyncMode(@IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int priority, @SyncMode int syncMode) {
+        mSyncModes.put(priority, syncMode);
+        for (DatabasePersistence shard : mShards.values()) {
+            shard.setSyncMode(priority, syncMode);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * The maximum size applies to all databases together. Each database is also limited to it on its own,
+     * so that percentage based group quotas are relative to it.
+     */
+    @Override
+    public boolean setMaxStorageSize(long maxStorageSizeInBytes) {
+        mMaxStorageSize = maxStorageSizeInBytes;
+        boolean success = true;
+        for (DatabasePersistence shard : mShards.values()) {
+            success &= shard.setMaxStorageSize(maxStorageSizeInBytes);
+        }
+        boolean fits = applyMaxStorageSize(Flags.getPersistenceFlag(Flags.NORMAL, false));
+        return success && fits;
+    }
+
+    /**
+     * Get the size of the logs stored in all databases.
+     *
+     * @param exact true to reconcile the database sizes with SQLite.
+     * @return size in bytes.
+     */
+    private long getStoredSize(boolean exact) {
+        long size = 0;
+        for (DatabasePersistence shard : mShards.values()) {
+            size += shard.getStoredSize(exact);
+        }
+        return size;
+    }
+
+    /**
+     * Evict the oldest logs with the lowest priority from the largest databases until all databases fit in the maximum storage size.
+     *
+     * @param priority maximum priority of logs to delete.
+     * @return true if all databases fit, false if not enough logs could be deleted.
+     */
+    private boolean applyMaxStorageSize(int priority) {
+        if (mMaxStorageSize <= 0) {
+            return true;
+        }
+        while (getStoredSize(false) > mMaxStorageSize) {
+
+            /* The estimate says storage is full, check used pages before deleting anything. */
+            long bytesToFree = getStoredSize(true) - mMaxStorageSize;
+            if (bytesToFree <= 0) {
+                break;
+            }
+            List<DatabasePersistence> shards = new ArrayList<>(mShards.values());
+            Collections.sort(shards, LARGEST_FIRST);
+            boolean evicted = false;
+            for (DatabasePersistence shard : shards) {
+                if (shard.evictOldestLogs(bytesToFree, priority) > 0) {
+                    evicted = true;
+                    break;
+                }
+            }
+            if (!evicted) {
+                AppCenterLog.warn(LOG_TAG, "Logs stored in all databases do not fit in the maximum storage size, no log can be evicted.");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void setGroupQuota(@NonNull String group, long maxSize, @EvictionPolicy int evictionPolicy) {
+        getShard(group).setGroupQuota(group, maxSize, evictionPolicy);
+    }
+
+    @Override
+    public void setGroupQuotaPercentage(@NonNull String group, @IntRange(from = 0, to = 100) int percentage, @EvictionPolicy int evictionPolicy) {
+        getShard(group).setGroupQuotaPercentage(group, percentage, evictionPolicy);
+    }
+
+    @Override
+    public void setTimeToLive(@NonNull String group, long timeToLive) {
+        getShard(group).setTimeToLive(group, timeToLive);
+    }
+
+    @Override
+    public void setLogTypeTimeToLive(@NonNull String type, long timeToLive) {
+        if (timeToLive <= 0) {
+            mLogTypeTimeToLives.remove(type);
+        } else {
+            mLogTypeTimeToLives.put(type, timeToLive);
+        }
+        for (DatabasePersistence shard : mShards.values()) {
+            shard.setLogTypeTimeToLive(type, timeToLive);
+        }
+    }
+
+    @Override
+    public int deleteExpiredLogs() {
+        int count = 0;
+        for (DatabasePersistence shard : mShards.values()) {
+            count += shard.deleteExpiredLogs();
+        }
+        return count;
+    }
+
+    @Override
+    public long putLog(@NonNull Log log, @NonNull String group, @IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int flags) throws PersistenceException {
+        long id = getShard(group).putLog(log, group, flags);
+        applyMaxStorageSize(Flags.getPersistenceFlag(flags, false));
+        return id;
+    }
+
+    @NonNull
+    @Override
+    public Map<Log, PersistenceException> putLogs(@NonNull List<Log> logs, @NonNull String group, @IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int flags) {
+        Map<Log, PersistenceException> failures = getShard(group).putLogs(logs, group, flags);
+        applyMaxStorageSize(Flags.getPersistenceFlag(flags, false));
+        return failures;
+    }
+
+    @Override
+    public void deleteLogs(@NonNull String group, @NonNull String batchId) {
+        getShard(group).deleteLogs(group, batchId);
+    }
+
+    /**
+     * {@inheritDoc}
+     * The database of the group is deleted.
+     */
+    @Override
+    public void deleteLogs(String group) {
+        getShard(group).deleteLogs(group);
+    }
+
+    @Override
+    public int deleteOldestLogs(@NonNull String group, @IntRange(from = 0) int count) {
+        return getShard(group).deleteOldestLogs(group, count);
+    }
+
+    @Override
+    public int countLogs(@NonNull String group) {
+        return getShard(group).countLogs(group);
+    }
+
+    @Override
+    public int countLogs(@NonNull String group, @NonNull Collection<String> excludedTargetKeys) {
+        return getShard(group).countLogs(group, excludedTargetKeys);
+    }
+
+    @Nullable
+    @Override
+    public String getLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, @IntRange(from = 0) int limit, @NonNull List<Log> outLogs) {
+        return getShard(group).getLogs(group, pausedTargetKeys, limit, outLogs);
+    }
+
+    @Override
+    public void clearPendingLogState() {
+        for (DatabasePersistence shard : mShards.values()) {
+            shard.clearPendingLogState();
+        }
+    }
+
+    @Override
+    public void releaseLogs(@NonNull String group, @NonNull String batchId) {
+        getShard(group).releaseLogs(group, batchId);
+    }
+
+    @Override
+    public long getBatchByteSize(@NonNull String group, @NonNull String batchId) {
+        return getShard(group).getBatchByteSize(group, batchId);
+    }
+
+    @Override
+    public void checkpoint() {
+        for (DatabasePersistence shard : mShards.values()) {
+            shard.checkpoint();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (DatabasePersistence shard : mShards.values()) {
+            shard.close();
+        }
+        mShards.clear();
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import androidx.annotation.IntDef;
+
+import com.microsoft.appcenter.utils.storage.DatabaseManager;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * How long writing a log to storage waits for the data to reach the disk.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@IntDef({
+        SyncMode.DEFAULT,
+        SyncMode.OFF,
+        SyncMode.NORMAL,
+        SyncMode.FULL
+})
+public @interface SyncMode {
+
+    /**
+     * Keep the setting chosen by the platform.
+     */
+    int DEFAULT = DatabaseManager.SYNCHRONOUS_DEFAULT;
+
+    /**
+     * Do not wait, logs written just before a power failure or an OS crash can be lost or corrupt the storage.
+     */
+    int OFF = 0;
+
+    /**
+     * Wait at critical moments only, with write-ahead logging the last logs can be lost on power failure.
+     */
+    int NORMAL = 1;
+
+    /**
+     * Wait for every write to reach the disk.
+     */
+    int FULL = 2;
+}
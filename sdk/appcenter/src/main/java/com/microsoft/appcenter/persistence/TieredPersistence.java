@@ -0,0 +1,480 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import static com.microsoft.appcenter.AppCenter.LOG_TAG;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.microsoft.appcenter.Flags;
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
+import com.microsoft.appcenter.ingestion.models.one.CommonSchemaLog;
+import com.microsoft.appcenter.ingestion.models.one.PartAUtils;
+import com.microsoft.appcenter.utils.AppCenterLog;
+
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Persistence keeping recent logs in a bounded memory tier in front of a durable persistence.
+ * <p>
+ * Logs that are sent shortly after being stored are never written to disk. Logs are written to the durable persistence
+ * when the memory tier is full, on {@link #checkpoint()} (when the application goes to background) and on {@link #close()}.
+ * Critical logs are always written to the durable persistence directly.
+ * <p>
+ * Logs of a batch being sent stay in memory until the batch is deleted or released, they are lost if the process
+ * is killed meanwhile, like normal logs between two checkpoints.
+ */
+public class TieredPersistence extends Persistence {
+
+    /**
+     * Durable persistence.
+     */
+    private final Persistence mDurablePersistence;
+
+    /**
+     * Maximum serialized size of the logs kept in memory.
+     */
+    private final long mMaxMemorySize;
+
+    /**
+     * Logs kept in memory by group then by identifier, oldest first.
+     */
+    @VisibleForTesting
+    final Map<String, LinkedHashMap<Long, MemoryLog>> mMemoryLogs = new HashMap<>();
+
+    /**
+     * Serialized size of the logs kept in memory.
+     */
+    @VisibleForTesting
+    long mMemorySize;
+
+    /**
+     * Identifier of the next log kept in memory, negative so that it does not collide with durable identifiers.
+     */
+    private long mNextMemoryId = -1;
+
+    /**
+     * Identifiers of logs kept in memory that are being sent.
+     */
+    private final Set<Long> mPendingMemoryIds = new HashSet<>();
+
+    /**
+     * Batches containing logs kept in memory by group and batch identifier.
+     * Batches only made of durable logs use the identifier of the durable persistence and are not tracked here.
+     */
+    private final Map<String, Batch> mBatches = new HashMap<>();
+
+    /**
+     * Init.
+     *
+     * @param durablePersistence persistence the logs are written to when they leave memory.
+     * @param maxMemorySize      maximum serialized size in bytes of the logs kept in memory.
+     */
+    public TieredPersistence(@NonNull Persistence durablePersistence, long maxMemorySize) {
+        mDurablePersistence = durablePersistence;
+        mMaxMemorySize = maxMemorySize;
+    }
+
+    @Override
+    public void setLogSerializer(@NonNull LogSerializer logSerializer) {
+        super.setLogSerializer(logSerializer);
+        mDurablePersistence.setLogSerializer(logSerializer);
+    }
+
+    @Override
+    public void setListener(@Nullable Listener listener) {
+        super.setListener(listener);
+        mDurablePersistence.setListener(listener);
+    }
+
+    @Override
+    public void setPayloadCompressionEnabled(boolean enabled) {
+        mDurablePersistence.setPayloadCompressionEnabled(enabled);
+    }
+
+    @Override
+    public void setWriteAheadLoggingEnabled(boolean enabled) {
+        mDurablePersistence.setWriteAheadLoggingEnabled(enabled);
+    }
+
+    @Override
+    public void setSyncMode(@IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int priority, @SyncMode int syncMode) {
+        mDurablePersistence.setSyncMode(priority, syncMode);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Only logs spilled to the durable persistence count toward the quota.
+     */
+    @Override
+    public void setGroupQuota(@NonNull String group, long maxSize, @EvictionPolicy int evictionPolicy) {
+        mDurablePersistence.setGroupQuota(group, maxSize, evictionPolicy);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Only logs spilled to the durable persistence count toward the quota.
+     */
+    @Override
+    public void setGroupQuotaPercentage(@NonNull String group, @IntRange(from = 0, to = 100) int percentage, @EvictionPolicy int evictionPolicy) {
+        mDurablePersistence.setGroupQuotaPercentage(group, percentage, evictionPolicy);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Logs still in memory do not expire, they are sent or spilled to the durable persistence first.
+     */
+    @Override
+    public void setTimeToLive(@NonNull String group, long timeToLive) {
+        mDurablePersistence.setTimeToLive(group, timeToLive);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Logs still in memory do not expire, they are sent or spilled to the durable persistence first.
+     */
+    @Override
+    public void setLogTypeTimeToLive(@NonNull String type, long timeToLive) {
+        mDurablePersistence.setLogTypeTimeToLive(type, timeToLive);
+    }
+
+    @Override
+    public int deleteExpiredLogs() {
+        return mDurablePersistence.deleteExpiredLogs();
+    }
+
+    @Override
+    public boolean setMaxStorageSize(long maxStorageSizeInBytes) {
+        return mDurablePersistence.setMaxStorageSize(maxStorageSizeInBytes);
+    }
+
+    @Override
+    public long putLog(@NonNull Log log, @NonNull String group, @IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int flags) throws PersistenceException {
+        if (Flags.getPersistenceFlag(flags, false) == Flags.CRITICAL) {
+            return mDurablePersistence.putLog(log, group, flags);
+        }
+        long size;
+        try {
+            long serializationStartTime = System.nanoTime();
+            size = getLogSerializer().serializeLog(log).length();
+            Listener listener = getListener();
+            if (listener != null) {
+                listener.onLogSerialized(group, (System.nanoTime() - serializationStartTime) / 1000);
+            }
+        } catch (JSONException e) {
+            throw new PersistenceException("Cannot convert to JSON string.", e);
+        }
+        if (size > mMaxMemorySize) {
+            return mDurablePersistence.putLog(log, group, flags);
+        }
+        if (mMemorySize + size > mMaxMemorySize) {
+            spill(false);
+
+            /* Logs being sent can still fill memory. */
+            if (mMemorySize + size > mMaxMemorySize) {
+                return mDurablePersistence.putLog(log, group, flags);
+            }
+        }
+        String targetKey = null;
+        if (log instanceof CommonSchemaLog) {
+            targetKey = PartAUtils.getTargetKey(log.getTransmissionTargetTokens().iterator().next());
+        }
+        LinkedHashMap<Long, MemoryLog> memoryLogs = mMemoryLogs.get(group);
+        if (memoryLogs == null) {
+            memoryLogs = new LinkedHashMap<>();
+            mMemoryLogs.put(group, memoryLogs);
+        }
+        long id = mNextMemoryId--;
+        memoryLogs.put(id, new MemoryLog(log, targetKey, size));
+        mMemorySize += size;
+        AppCenterLog.verbose(LOG_TAG, "Kept a log in memory for group " + group + " with id=" + id);
+        return id;
+    }
+
+    @Override
+    public void deleteLogs(@NonNull String group, @NonNull String batchId) {
+        Batch batch = mBatches.remove(group + batchId);
+        if (batch == null) {
+            mDurablePersistence.deleteLogs(group, batchId);
+            return;
+        }
+        if (batch.mDurableBatchId != null) {
+            mDurablePersistence.deleteLogs(group, batch.mDurableBatchId);
+        }
+        mPendingMemoryIds.removeAll(batch.mMemoryIds);
+        LinkedHashMap<Long, MemoryLog> memoryLogs = mMemoryLogs.get(group);
+        if (memoryLogs != null) {
+            for (Long id : batch.mMemoryIds) {
+                MemoryLog memoryLog = memoryLogs.remove(id);
+                if (memoryLog != null) {
+                    mMemorySize -= memoryLog.mSize;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void deleteLogs(String group) {
+        mDurablePersistence.deleteLogs(group);
+        LinkedHashMap<Long, MemoryLog> memoryLogs = mMemoryLogs.remove(group);
+        if (memoryLogs != null) {
+            for (Map.Entry<Long, MemoryLog> entry : memoryLogs.entrySet()) {
+                mMemorySize -= entry.getValue().mSize;
+                mPendingMemoryIds.remove(entry.getKey());
+            }
+        }
+
+        /* Match the group exactly, other group names can start with this one. */
+        for (Iterator<Batch> iterator = mBatches.values().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().mGroup.equals(group)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public int deleteOldestLogs(@NonNull String group, @IntRange(from = 0) int count) {
+
+        /* Durable logs of the group were stored before the logs still in memory. */
+        int deletedCount = mDurablePersistence.deleteOldestLogs(group, count);
+        LinkedHashMap<Long, MemoryLog> memoryLogs = mMemoryLogs.get(group);
+        if (deletedCount >= count || memoryLogs == null) {
+            return deletedCount;
+        }
+        int memoryDeletedCount = 0;
+        for (Iterator<Map.Entry<Long, MemoryLog>> iterator = memoryLogs.entrySet().iterator(); iterator.hasNext() && deletedCount + memoryDeletedCount < count; ) {
+            Map.Entry<Long, MemoryLog> entry = iterator.next();
+            if (!mPendingMemoryIds.contains(entry.getKey())) {
+                mMemorySize -= entry.getValue().mSize;
+                iterator.remove();
+                memoryDeletedCount++;
+            }
+        }
+        Listener listener = getListener();
+        if (memoryDeletedCount > 0 && listener != null) {
+            listener.onLogsEvicted(group, memoryDeletedCount);
+        }
+        return deletedCount + memoryDeletedCount;
+    }
+
+    @Override
+    public int countLogs(@NonNull String group) {
+        LinkedHashMap<Long, MemoryLog> memoryLogs = mMemoryLogs.get(group);
+        return mDurablePersistence.countLogs(group) + (memoryLogs == null ? 0 : memoryLogs.size());
+    }
+
+    @Override
+    public int countLogs(@NonNull String group, @NonNull Collection<String> excludedTargetKeys) {
+        int count = mDurablePersistence.countLogs(group, excludedTargetKeys);
+        LinkedHashMap<Long, MemoryLog> memoryLogs = mMemoryLogs.get(group);
+        if (memoryLogs != null) {
+            for (MemoryLog memoryLog : memoryLogs.values()) {
+                if (memoryLog.mTargetKey == null || !excludedTargetKeys.contains(memoryLog.mTargetKey)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Nullable
+    @Override
+    public String getLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, @IntRange(from = 0) int limit, @NonNull List<Log> outLogs) {
+
+        /* Durable logs first: they are either critical or older than the logs in memory. */
+        String durableBatchId = null;
+        int outLogsSize = outLogs.size();
+        if (mDurablePersistence.countLogs(group) > 0) {
+            durableBatchId = mDurablePersistence.getLogs(group, pausedTargetKeys, limit, outLogs);
+        }
+        LinkedHashMap<Long, MemoryLog> memoryLogs = mMemoryLogs.get(group);
+        List<Long> memoryIds = new ArrayList<>();
+        long memoryByteSize = 0;
+        if (memoryLogs != null) {
+            int remaining = limit - (outLogs.size() - outLogsSize);
+            for (Map.Entry<Long, MemoryLog> entry : memoryLogs.entrySet()) {
+                if (memoryIds.size() >= remaining) {
+                    break;
+                }
+                MemoryLog memoryLog = entry.getValue();
+                if (mPendingMemoryIds.contains(entry.getKey()) ||
+                        (memoryLog.mTargetKey != null && pausedTargetKeys.contains(memoryLog.mTargetKey))) {
+                    continue;
+                }
+                memoryIds.add(entry.getKey());
+                memoryByteSize += memoryLog.mSize;
+                outLogs.add(memoryLog.mLog);
+            }
+        }
+        if (memoryIds.isEmpty()) {
+            return durableBatchId;
+        }
+        String batchId = UUID.randomUUID().toString();
+        mPendingMemoryIds.addAll(memoryIds);
+        mBatches.put(group + batchId, new Batch(group, durableBatchId, memoryIds, memoryByteSize));
+        AppCenterLog.debug(LOG_TAG, "Returning " + memoryIds.size() + " log(s) from memory with an ID, " + batchId);
+        return batchId;
+    }
+
+    @Override
+    public void clearPendingLogState() {
+        mDurablePersistence.clearPendingLogState();
+        mPendingMemoryIds.clear();
+        mBatches.clear();
+    }
+
+    @Override
+    public void releaseLogs(@NonNull String group, @NonNull String batchId) {
+        Batch batch = mBatches.remove(group + batchId);
+        if (batch == null) {
+            mDurablePersistence.releaseLogs(group, batchId);
+            return;
+        }
+        if (batch.mDurableBatchId != null) {
+            mDurablePersistence.releaseLogs(group, batch.mDurableBatchId);
+        }
+        mPendingMemoryIds.removeAll(batch.mMemoryIds);
+    }
+
+    @Override
+    public long getBatchByteSize(@NonNull String group, @NonNull String batchId) {
+        Batch batch = mBatches.get(group + batchId);
+        if (batch == null) {
+            return mDurablePersistence.getBatchByteSize(group, batchId);
+        }
+        if (batch.mDurableBatchId == null) {
+            return batch.mMemoryByteSize;
+        }
+        long durableByteSize = mDurablePersistence.getBatchByteSize(group, batch.mDurableBatchId);
+        return durableByteSize < 0 ? -1 : durableByteSize + batch.mMemoryByteSize;
+    }
+
+    /**
+     * Write the logs kept in memory, except the ones being sent, to the durable persistence.
+     */
+    @Override
+    public void checkpoint() {
+        spill(false);
+        mDurablePersistence.checkpoint();
+    }
+
+    /**
+     * Write all the logs kept in memory to the durable persistence then close it.
+     */
+    @Override
+    public void close() {
+        spill(true);
+        mDurablePersistence.close();
+    }
+
+    /**
+     * Move logs from memory to the durable persistence, a single write per group.
+     *
+     * @param includePending true to also move logs being sent.
+     */
+    private void spill(boolean includePending) {
+        int spilledCount = 0;
+        for (Map.Entry<String, LinkedHashMap<Long, MemoryLog>> groupEntry : mMemoryLogs.entrySet()) {
+            List<Log> logs = new ArrayList<>();
+            for (Iterator<Map.Entry<Long, MemoryLog>> iterator = groupEntry.getValue().entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<Long, MemoryLog> entry = iterator.next();
+                if (includePending || !mPendingMemoryIds.contains(entry.getKey())) {
+                    logs.add(entry.getValue().mLog);
+                    mMemorySize -= entry.getValue().mSize;
+                    mPendingMemoryIds.remove(entry.getKey());
+                    iterator.remove();
+                }
+            }
+            if (logs.isEmpty()) {
+                continue;
+            }
+            Map<Log, PersistenceException> failures = mDurablePersistence.putLogs(logs, groupEntry.getKey(), Flags.NORMAL);
+            for (PersistenceException e : failures.values()) {
+                AppCenterLog.error(LOG_TAG, "Cannot write a log kept in memory to storage", e);
+            }
+            spilledCount += logs.size();
+        }
+        if (spilledCount > 0) {
+            AppCenterLog.debug(LOG_TAG, "Wrote " + spilledCount + " log(s) kept in memory to storage.");
+        }
+    }
+
+    /**
+     * Log kept in memory.
+     */
+    @VisibleForTesting
+    static class MemoryLog {
+
+        /**
+         * Log.
+         */
+        final Log mLog;
+
+        /**
+         * Target key, null for logs without target.
+         */
+        final String mTargetKey;
+
+        /**
+         * Serialized size.
+         */
+        final long mSize;
+
+        MemoryLog(@NonNull Log log, @Nullable String targetKey, long size) {
+            mLog = log;
+            mTargetKey = targetKey;
+            mSize = size;
+        }
+    }
+
+    /**
+     * Batch containing logs kept in memory.
+     */
+    private static class Batch {
+
+        /**
+         * Group of the batch.
+         */
+        final String mGroup;
+
+        /**
+         * Identifier of the durable logs of the batch in the durable persistence, null if none.
+         */
+        final String mDurableBatchId;
+
+        /**
+         * Identifiers of the logs kept in memory.
+         */
+        final List<Long> mMemoryIds;
+
+        /**
+         * Serialized size of the logs kept in memory.
+         */
+        final long mMemoryByteSize;
+
+        Batch(@NonNull String group, @Nullable String durableBatchId, @NonNull List<Long> memoryIds, long memoryByteSize) {
+            mGroup = group;
+            mDurableBatchId = durableBatchId;
+            mMemoryIds = memoryIds;
+            mMemoryByteSize = memoryByteSize;
+        }
+    }
+}
@@ -15,6 +15,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
@@ -25,7 +26,13 @@ import com.microsoft.appcenter.utils.AppCenterLog;
 
 import java.io.Closeable;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -48,6 +55,11 @@ public class DatabaseManager implements Closeable {
      */
     public static final long OPERATION_FAILED_FLAG = -1;
 
+    /**
+     * Value for {@link #setSynchronous(int)} to restore the synchronous setting chosen by Android.
+     */
+    public static final int SYNCHRONOUS_DEFAULT = -1;
+
     /**
      * Application context instance.
      */
@@ -78,6 +90,26 @@ public class DatabaseManager implements Closeable {
      */
     private SQLiteOpenHelper mSQLiteOpenHelper;
 
+    /**
+     * Database that {@link #mInsertStatements} and {@link #mSynchronous} apply to.
+     */
+    private SQLiteDatabase mConnectedDatabase;
+
+    /**
+     * Compiled insert statements on the default table by inserted columns.
+     */
+    private final Map<List<String>, SQLiteStatement> mInsertStatements = new HashMap<>();
+
+    /**
+     * Current synchronous setting, {@link #SYNCHRONOUS_DEFAULT} if not changed.
+     */
+    private int mSynchronous = SYNCHRONOUS_DEFAULT;
+
+    /**
+     * Synchronous setting chosen by Android, read before changing it, null if not read yet.
+     */
+    private Integer mDefaultSynchronous;
+
     /**
      * Initializes the table in the database.
      *
@@ -189,10 +221,22 @@ public class DatabaseManager implements Closeable {
      * @throws SQLiteFullException Thrown if the storage is full when trying to insert.
      */
     public long put(@NonNull ContentValues values) throws SQLiteFullException {
+        return put(mDefaultTable, values);
+    }
+
+    /**
+     * Stores the entry to a table.
+     *
+     * @param table  The table to perform the operation on.
+     * @param values The entry to be stored.
+     * @return If a row was inserted, the database identifier. Otherwise -1.
+     * @throws SQLiteFullException Thrown if the storage is full when trying to insert.
+     */
+    public long put(@NonNull String table, @NonNull ContentValues values) throws SQLiteFullException {
         long id;
         try {
             /* Insert data. */
-            id = getDatabase().insertOrThrow(mDefaultTable, null, values);
+            id = getDatabase().insertOrThrow(table, null, values);
         } catch (SQLiteFullException e) {
             throw e;
         } catch (RuntimeException e) {
@@ -202,6 +246,187 @@ public class DatabaseManager implements Closeable {
         return id;
     }
 
+    /**
+     * Stores an entry to the default table with a compiled statement reused for the same columns,
+     * which avoids building {@link ContentValues} and compiling SQL for every entry.
+     *
+     * @param columns The columns to set.
+     * @param values  The values of the columns in the same order: null, String, byte[] or a Number.
+     * @return If an entry was inserted, the database identifier. Otherwise -1.
+     * @throws SQLiteFullException Thrown if the storage is full when trying to insert.
+     */
+    public long insert(@NonNull String[] columns, @NonNull Object[] values) throws SQLiteFullException {
+        try {
+            SQLiteStatement statement = getInsertStatement(columns);
+            statement.clearBindings();
+            for (int i = 0; i < values.length; i++) {
+                Object value = values[i];
+                int index = i + 1;
+                if (value == null) {
+                    statement.bindNull(index);
+                } else if (value instanceof String) {
+                    statement.bindString(index, (String) value);
+                } else if (value instanceof byte[]) {
+                    statement.bindBlob(index, (byte[]) value);
+                } else if (value instanceof Double || value instanceof Float) {
+                    statement.bindDouble(index, ((Number) value).doubleValue());
+                } else {
+                    statement.bindLong(index, ((Number) value).longValue());
+                }
+            }
+            return statement.executeInsert();
+        } catch (SQLiteFullException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, String.format("Failed to insert values (%s) to database %s.", Arrays.toString(columns), mDatabase), e);
+            return OPERATION_FAILED_FLAG;
+        }
+    }
+
+    /**
+     * Gets the compiled insert statement for the given columns, compiling it on first use.
+     *
+     * @param columns The columns to set.
+     * @return The statement.
+     * @throws RuntimeException If an error occurs.
+     */
+    private SQLiteStatement getInsertStatement(@NonNull String[] columns) {
+        SQLiteDatabase database = getConnectedDatabase();
+        List<String> key = Arrays.asList(columns);
+        SQLiteStatement statement = mInsertStatements.get(key);
+        if (statement == null) {
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(mDefaultTable).append('(');
+            StringBuilder parameters = new StringBuilder();
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    sql.append(',');
+                    parameters.append(',');
+                }
+                sql.append(columns[i]);
+                parameters.append('?');
+            }
+            sql.append(") VALUES (").append(parameters).append(')');
+            statement = database.compileStatement(sql.toString());
+            mInsertStatements.put(key, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Gets the database, forgetting compiled statements and settings if it was reopened since they were made.
+     *
+     * @return SQLite database.
+     * @throws RuntimeException if an error occurs.
+     */
+    private SQLiteDatabase getConnectedDatabase() {
+        SQLiteDatabase database = getDatabase();
+        if (database != mConnectedDatabase) {
+            releaseConnection();
+            mConnectedDatabase = database;
+        }
+        return database;
+    }
+
+    /**
+     * Releases compiled statements and forgets settings of the current database.
+     */
+    private void releaseConnection() {
+        for (SQLiteStatement statement : mInsertStatements.values()) {
+            try {
+                statement.close();
+            } catch (RuntimeException ignore) {
+            }
+        }
+        mInsertStatements.clear();
+        mConnectedDatabase = null;
+        mSynchronous = SYNCHRONOUS_DEFAULT;
+        mDefaultSynchronous = null;
+    }
+
+    /**
+     * Enables or disables write-ahead logging. With write-ahead logging, commits append to a
+     * separate log instead of rewriting the database, which makes writes faster.
+     * Must not be called during a transaction.
+     *
+     * @param enabled true to enable write-ahead logging, false to use a rollback journal.
+     */
+    public void setWriteAheadLoggingEnabled(boolean enabled) {
+        try {
+            mSQLiteOpenHelper.setWriteAheadLoggingEnabled(enabled);
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, String.format("Failed to change write-ahead logging on database %s.", mDatabase), e);
+        }
+
+        /* Android resets the synchronous setting when the journal mode changes. */
+        mSynchronous = SYNCHRONOUS_DEFAULT;
+        mDefaultSynchronous = null;
+    }
+
+    /**
+     * Changes how often SQLite waits for data to reach storage, if different from the current setting.
+     * Lower values make writes faster but recent commits can be lost on power failure.
+     * Must not be called during a transaction.
+     *
+     * @param synchronous 0 (OFF), 1 (NORMAL), 2 (FULL) or {@link #SYNCHRONOUS_DEFAULT}.
+     */
+    public void setSynchronous(@IntRange(from = SYNCHRONOUS_DEFAULT, to = 2) int synchronous) {
+        try {
+            SQLiteDatabase database = getConnectedDatabase();
+            if (synchronous == mSynchronous) {
+                return;
+            }
+            if (mDefaultSynchronous == null) {
+                mDefaultSynchronous = (int) DatabaseUtils.longForQuery(database, "PRAGMA synchronous", null);
+            }
+            database.execSQL("PRAGMA synchronous = " + (synchronous == SYNCHRONOUS_DEFAULT ? mDefaultSynchronous : synchronous));
+            mSynchronous = synchronous;
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, String.format("Failed to change synchronous setting on database %s.", mDatabase), e);
+        }
+    }
+
+    /**
+     * Begins a transaction so that subsequent writes are committed together.
+     * Every call must be followed by {@link #endTransaction()}.
+     *
+     * @return true if the transaction was started, false otherwise.
+     */
+    public boolean beginTransaction() {
+        try {
+            getDatabase().beginTransaction();
+            return true;
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, String.format("Failed to begin transaction on database %s.", mDatabase), e);
+            return false;
+        }
+    }
+
+    /**
+     * Marks the current transaction as successful, so that {@link #endTransaction()} commits it.
+     */
+    public void setTransactionSuccessful() {
+        try {
+            getDatabase().setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, String.format("Failed to mark transaction as successful on database %s.", mDatabase), e);
+        }
+    }
+
+    /**
+     * Ends the current transaction, committing it if it was marked successful or rolling it back otherwise.
+     *
+     * @return true if the transaction was ended without error, false otherwise.
+     */
+    public boolean endTransaction() {
+        try {
+            getDatabase().endTransaction();
+            return true;
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, String.format("Failed to end transaction on database %s.", mDatabase), e);
+            return false;
+        }
+    }
+
     /**
      * Deletes the entry by the identifier from the database.
      *
@@ -211,6 +436,67 @@ public class DatabaseManager implements Closeable {
         delete(mDefaultTable, PRIMARY_KEY, id);
     }
 
+    /**
+     * Deletes the entries by identifiers from the database in a single statement.
+     *
+     * @param ids The database identifiers.
+     * @return the number of rows affected.
+     */
+    public int delete(@NonNull Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        String whereClause = getIdentifiersWhereClause(ids);
+        try {
+            return getDatabase().delete(mDefaultTable, whereClause, null);
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, String.format("Failed to delete values that match condition=\"%s\" from database %s.", whereClause, mDatabase), e);
+            return 0;
+        }
+    }
+
+    /**
+     * Builds a condition matching the given identifiers.
+     * Runs of consecutive identifiers, which is what batches usually are, are matched as ranges.
+     * Identifiers are numbers so they are inlined to not be limited by the number of bound arguments.
+     *
+     * @param ids The database identifiers, not empty.
+     * @return WHERE clause without WHERE itself.
+     */
+    @VisibleForTesting
+    static String getIdentifiersWhereClause(@NonNull Collection<Long> ids) {
+        List<Long> sortedIds = new ArrayList<>(ids);
+        Collections.sort(sortedIds);
+        StringBuilder whereClause = new StringBuilder();
+        StringBuilder singleIds = new StringBuilder();
+        int start = 0;
+        while (start < sortedIds.size()) {
+            int end = start;
+            while (end + 1 < sortedIds.size() && sortedIds.get(end + 1) == sortedIds.get(end) + 1) {
+                end++;
+            }
+            if (end - start >= 2) {
+                if (whereClause.length() > 0) {
+                    whereClause.append(" OR ");
+                }
+                whereClause.append(PRIMARY_KEY).append(" BETWEEN ").append(sortedIds.get(start)).append(" AND ").append(sortedIds.get(end));
+            } else {
+                for (int i = start; i <= end; i++) {
+                    singleIds.append(sortedIds.get(i)).append(',');
+                }
+            }
+            start = end + 1;
+        }
+        if (singleIds.length() > 0) {
+            if (whereClause.length() > 0) {
+                whereClause.append(" OR ");
+            }
+            singleIds.deleteCharAt(singleIds.length() - 1);
+            whereClause.append(PRIMARY_KEY).append(" IN (").append(singleIds).append(')');
+        }
+        return whereClause.toString();
+    }
+
 
     /**
      * Delete the oldest record from the database.
@@ -225,7 +511,7 @@ public class DatabaseManager implements Closeable {
         SQLiteQueryBuilder queryBuilder = SQLiteUtils.newSQLiteQueryBuilder();
         queryBuilder.appendWhere(priorityColumn + " <= ?");
         columnsToReturn.add(PRIMARY_KEY);
-        Cursor cursor = getCursor(queryBuilder, columnsToReturn.toArray(new String[0]), new String[]{String.valueOf(priority)}, priorityColumn + " , " + PRIMARY_KEY);
+        Cursor cursor = getCursor(queryBuilder, columnsToReturn.toArray(new String[0]), new String[]{String.valueOf(priority)}, priorityColumn + " , " + PRIMARY_KEY, "1");
         ContentValues rowData = nextValues(cursor);
         if (rowData != null) {
             long deletedId = rowData.getAsLong(PRIMARY_KEY);
@@ -266,6 +552,22 @@ public class DatabaseManager implements Closeable {
         }
     }
 
+    /**
+     * Deletes the entries of a table that match a condition.
+     *
+     * @param table       The table to perform the operation on.
+     * @param whereClause The condition (WHERE clause without WHERE itself).
+     * @return the number of rows affected.
+     */
+    public int deleteWhere(@NonNull String table, @NonNull String whereClause) {
+        try {
+            return getDatabase().delete(table, whereClause, null);
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, String.format("Failed to delete values that match condition=\"%s\" from database %s.", whereClause, mDatabase), e);
+            return 0;
+        }
+    }
+
     /**
      * Clears the table in the database.
      */
@@ -284,6 +586,9 @@ public class DatabaseManager implements Closeable {
     public void close() {
         try {
 
+            /* Statements hold a reference on the database, release them first. */
+            releaseConnection();
+
             /* Close opened database (do not force open). */
             mSQLiteOpenHelper.close();
         } catch (RuntimeException e) {
@@ -291,6 +596,16 @@ public class DatabaseManager implements Closeable {
         }
     }
 
+    /**
+     * Closes the database and deletes its files, the database is created again when used next.
+     *
+     * @return true if the database was deleted, otherwise false.
+     */
+    public boolean deleteDatabase() {
+        close();
+        return mContext.deleteDatabase(mDatabase);
+    }
+
     /**
      * Gets the count of records in the table.
      *
@@ -316,7 +631,22 @@ public class DatabaseManager implements Closeable {
      * @throws RuntimeException If an error occurs.
      */
     public Cursor getCursor(@Nullable SQLiteQueryBuilder queryBuilder, String[] columns, @Nullable String[] selectionArgs, @Nullable String sortOrder) throws RuntimeException {
-        return getCursor(mDefaultTable, queryBuilder, columns, selectionArgs, sortOrder);
+        return getCursor(mDefaultTable, queryBuilder, columns, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * Gets a cursor for at most the given number of rows in the table, all rows where key matches value if specified.
+     *
+     * @param queryBuilder  The query builder that contains SQL query.
+     * @param columns       Columns to select, null for all.
+     * @param selectionArgs The array of values for selection.
+     * @param sortOrder     Sorting order (ORDER BY clause without ORDER BY itself).
+     * @param limit         Maximum number of rows to return (LIMIT clause without LIMIT itself), null for all.
+     * @return A cursor for the rows that match the given criteria.
+     * @throws RuntimeException If an error occurs.
+     */
+    public Cursor getCursor(@Nullable SQLiteQueryBuilder queryBuilder, String[] columns, @Nullable String[] selectionArgs, @Nullable String sortOrder, @Nullable String limit) throws RuntimeException {
+        return getCursor(mDefaultTable, queryBuilder, columns, selectionArgs, sortOrder, limit);
     }
 
     /**
@@ -330,12 +660,46 @@ public class DatabaseManager implements Closeable {
      * @return A cursor for all rows that matches the given criteria.
      * @throws RuntimeException If an error occurs.
      */
-    Cursor getCursor(@NonNull String table, @Nullable SQLiteQueryBuilder queryBuilder, String[] columns, @Nullable String[] selectionArgs, @Nullable String sortOrder) throws RuntimeException {
+    public Cursor getCursor(@NonNull String table, @Nullable SQLiteQueryBuilder queryBuilder, String[] columns, @Nullable String[] selectionArgs, @Nullable String sortOrder) throws RuntimeException {
+        return getCursor(table, queryBuilder, columns, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * Gets a cursor on the rows of the default table aggregated by the given columns.
+     *
+     * @param queryBuilder  The query builder that contains SQL query.
+     * @param columns       Columns to select, usually grouped columns and aggregate functions.
+     * @param selectionArgs The array of values for selection.
+     * @param groupBy       GROUP BY clause without GROUP BY itself.
+     * @return A cursor with a row per group.
+     * @throws RuntimeException If an error occurs.
+     */
+    public Cursor getGroupedCursor(@Nullable SQLiteQueryBuilder queryBuilder, String[] columns, @Nullable String[] selectionArgs, @NonNull String groupBy) throws RuntimeException {
+        if (queryBuilder == null) {
+            queryBuilder = SQLiteUtils.newSQLiteQueryBuilder();
+        }
+        queryBuilder.setTables(mDefaultTable);
+        return queryBuilder.query(getDatabase(), columns, null, selectionArgs, groupBy, null, null, null);
+    }
+
+    /**
+     * Gets a cursor for at most the given number of rows in the table, all rows where key matches value if specified.
+     *
+     * @param table         The table to perform the operation on.
+     * @param queryBuilder  The query builder that contains SQL query.
+     * @param columns       Columns to select, null for all.
+     * @param selectionArgs The array of values for selection.
+     * @param sortOrder     Sorting order (ORDER BY clause without ORDER BY itself).
+     * @param limit         Maximum number of rows to return (LIMIT clause without LIMIT itself), null for all.
+     * @return A cursor for the rows that match the given criteria.
+     * @throws RuntimeException If an error occurs.
+     */
+    private Cursor getCursor(@NonNull String table, @Nullable SQLiteQueryBuilder queryBuilder, String[] columns, @Nullable String[] selectionArgs, @Nullable String sortOrder, @Nullable String limit) throws RuntimeException {
         if (queryBuilder == null) {
             queryBuilder = SQLiteUtils.newSQLiteQueryBuilder();
         }
         queryBuilder.setTables(table);
-        return queryBuilder.query(getDatabase(), columns, null, selectionArgs, null, null, sortOrder);
+        return queryBuilder.query(getDatabase(), columns, null, selectionArgs, null, null, sortOrder, limit);
     }
 
     /**
@@ -372,6 +736,7 @@ public class DatabaseManager implements Closeable {
      */
     @VisibleForTesting
     void setSQLiteOpenHelper(@NonNull SQLiteOpenHelper helper) {
+        releaseConnection();
         mSQLiteOpenHelper.close();
         mSQLiteOpenHelper = helper;
     }
@@ -437,6 +802,25 @@ public class DatabaseManager implements Closeable {
         return dbFile.length();
     }
 
+    /**
+     * Gets the size of the database pages that are in use, as counted by SQLite.
+     * Unlike {@link #getCurrentSize()} this includes changes not yet checkpointed from the journal
+     * and excludes pages freed by deletions, which the database file keeps until vacuumed.
+     *
+     * @return The size of used pages in bytes, or <code>-1</code> if operation failed.
+     */
+    public long getUsedSize() {
+        try {
+            SQLiteDatabase db = getDatabase();
+            long pageCount = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+            long freePageCount = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+            return (pageCount - freePageCount) * db.getPageSize();
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, "Could not get used database size.", e);
+            return OPERATION_FAILED_FLAG;
+        }
+    }
+
     /**
      * Database listener.
      */
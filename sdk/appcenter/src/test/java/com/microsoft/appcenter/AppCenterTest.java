@@ -1117,6 +1117,9 @@ public class AppCenterTest extends AbstractAppCenterTest {
         /* Check enter background. */
         lifecycleListener.onActivityStopped(mockActivity);
         verify(service).onApplicationEnterBackground();
+
+        /* Channel state is saved in background. */
+        verify(mChannel).checkpoint();
     }
 
     @Test
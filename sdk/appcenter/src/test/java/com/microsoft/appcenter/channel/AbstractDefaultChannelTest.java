@@ -10,8 +10,10 @@ import android.os.Handler;
 
 import com.microsoft.appcenter.http.HttpResponse;
 import com.microsoft.appcenter.http.ServiceCallback;
+import com.microsoft.appcenter.ingestion.AppCenterIngestion;
 import com.microsoft.appcenter.ingestion.models.Device;
 import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.persistence.Persistence;
 import com.microsoft.appcenter.utils.AppCenterLog;
 import com.microsoft.appcenter.utils.DeviceInfoHelper;
 import com.microsoft.appcenter.utils.HandlerUtils;
@@ -31,6 +33,10 @@ import java.util.ArrayList;
 import java.util.UUID;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.doAnswer;
@@ -63,6 +69,22 @@ public class AbstractDefaultChannelTest {
     @Mock
     protected Handler mAppCenterHandler;
 
+    @Mock
+    protected Persistence mPersistence;
+
+    @Mock
+    protected AppCenterIngestion mIngestion;
+
+    /**
+     * Create a channel using {@link #mPersistence}, which returns as many logs as requested,
+     * and {@link #mIngestion}, which is enabled. Groups are added by each test.
+     */
+    DefaultChannel createChannel() {
+        when(mPersistence.getLogs(anyString(), anyCollection(), anyInt(), anyList())).then(getGetLogsAnswer());
+        when(mIngestion.isEnabled()).thenReturn(true);
+        return new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mPersistence, mIngestion, mAppCenterHandler);
+    }
+
     static Answer<String> getGetLogsAnswer() {
         return getGetLogsAnswer(-1);
     }
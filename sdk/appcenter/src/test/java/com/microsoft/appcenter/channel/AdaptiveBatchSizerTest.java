@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class AdaptiveBatchSizerTest {
+
+    @Test
+    public void initialSizeIsClamped() {
+        assertEquals(10, new AdaptiveBatchSizer(5, 10, 100, 1000, 0).getLogsPerBatch());
+        assertEquals(100, new AdaptiveBatchSizer(500, 10, 100, 1000, 0).getLogsPerBatch());
+        assertEquals(50, new AdaptiveBatchSizer(50, 10, 100, 1000, 0).getLogsPerBatch());
+    }
+
+    @Test
+    public void growsOnFastFullBatches() {
+        AdaptiveBatchSizer batchSizer = new AdaptiveBatchSizer(40, 10, 60, 1000, 0);
+        assertEquals(50, batchSizer.onBatchSent(40, -1, 200));
+
+        /* Partial batch does not grow. */
+        assertEquals(50, batchSizer.onBatchSent(20, -1, 200));
+        assertEquals(60, batchSizer.onBatchSent(50, -1, 200));
+        assertEquals(60, batchSizer.onBatchSent(60, -1, 200));
+
+        /* Ignore empty batches. */
+        assertEquals(60, batchSizer.onBatchSent(0, -1, 5000));
+    }
+
+    @Test
+    public void shrinksOnSlowNetworkAndFailures() {
+        AdaptiveBatchSizer batchSizer = new AdaptiveBatchSizer(50, 10, 100, 1000, 0);
+        assertEquals(25, batchSizer.onBatchSent(50, -1, 1500));
+        assertEquals(12, batchSizer.onBatchFailed());
+        assertEquals(10, batchSizer.onBatchFailed());
+        assertEquals(10, batchSizer.onBatchSent(10, -1, 2000));
+    }
+
+    @Test
+    public void limitedByByteSize() {
+        AdaptiveBatchSizer batchSizer = new AdaptiveBatchSizer(50, 1, 100, 1000, 10000);
+
+        /* 1KB logs: only 10 fit. */
+        assertEquals(10, batchSizer.onBatchSent(50, 50000, 100));
+
+        /* Small logs: grow again. */
+        assertEquals(12, batchSizer.onBatchSent(10, 1000, 100));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void openDurationDoublesUpToMaximum() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1000, 3000);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowsRequest());
+        assertEquals(1000, circuitBreaker.onFailure());
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowsRequest());
+        assertEquals(2000, circuitBreaker.onFailure());
+        assertEquals(3000, circuitBreaker.onFailure());
+        assertEquals(3000, circuitBreaker.onFailure());
+
+        /* Success resets the open duration. */
+        assertTrue(circuitBreaker.onSuccess());
+        assertFalse(circuitBreaker.onSuccess());
+        assertEquals(1000, circuitBreaker.onFailure());
+    }
+
+    @Test
+    public void halfOpenAllowsSingleProbe() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1000, 500);
+
+        /* Half-open only applies to an open circuit. */
+        circuitBreaker.halfOpen();
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+
+        /* Maximum lower than initial is the initial value. */
+        assertEquals(1000, circuitBreaker.onFailure());
+        assertEquals(1000, circuitBreaker.onFailure());
+        circuitBreaker.halfOpen();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowsRequest());
+        circuitBreaker.onRequestSent();
+        assertFalse(circuitBreaker.allowsRequest());
+
+        /* Probe failure opens again. */
+        circuitBreaker.onFailure();
+        circuitBreaker.halfOpen();
+        assertTrue(circuitBreaker.allowsRequest());
+
+        /* Reset closes. */
+        circuitBreaker.reset();
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        circuitBreaker.onRequestSent();
+        assertTrue(circuitBreaker.allowsRequest());
+    }
+}
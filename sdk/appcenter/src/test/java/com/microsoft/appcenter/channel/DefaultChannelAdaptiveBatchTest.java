@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import com.microsoft.appcenter.Flags;
+import com.microsoft.appcenter.http.HttpException;
+import com.microsoft.appcenter.http.HttpResponse;
+import com.microsoft.appcenter.http.ServiceCallback;
+import com.microsoft.appcenter.ingestion.Ingestion;
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.ingestion.models.LogContainer;
+import com.microsoft.appcenter.persistence.Persistence;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+public class DefaultChannelAdaptiveBatchTest extends AbstractDefaultChannelTest {
+
+    @Test
+    public void batchSizeFollowsNetwork() {
+        Persistence persistence = mock(Persistence.class);
+        Ingestion ingestion = mock(Ingestion.class);
+        when(persistence.getLogs(anyString(), anyCollection(), anyInt(), anyList())).then(getGetLogsAnswer());
+        when(persistence.getBatchByteSize(anyString(), anyString())).thenReturn(400L);
+        when(ingestion.isEnabled()).thenReturn(true);
+        when(ingestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer());
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), persistence, ingestion, mAppCenterHandler);
+        channel.setAdaptiveBatchSizing(2, 8, 1000, 0);
+        channel.addGroup(TEST_GROUP, 4, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        assertNotNull(channel.getGroupState(TEST_GROUP).mBatchSizer);
+
+        /* Full batch sent quickly: batch grows. */
+        for (int i = 0; i < 4; i++) {
+            channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        }
+        verify(persistence).getLogs(eq(TEST_GROUP), anyCollection(), eq(4), anyList());
+        assertEquals(5, channel.getGroupState(TEST_GROUP).mMaxLogsPerBatch);
+
+        /* Failure: batch shrinks. */
+        when(ingestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer(new HttpException(new HttpResponse(503))));
+        for (int i = 0; i < 5; i++) {
+            channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        }
+        verify(persistence).getLogs(eq(TEST_GROUP), anyCollection(), eq(5), anyList());
+        assertEquals(2, channel.getGroupState(TEST_GROUP).mMaxLogsPerBatch);
+    }
+
+    @Test
+    public void disablingRestoresConfiguredSize() {
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mock(Persistence.class), mock(Ingestion.class), mAppCenterHandler);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        assertNull(channel.getGroupState(TEST_GROUP).mBatchSizer);
+        channel.setAdaptiveBatchSizing(1, 20, 1000, 0);
+        assertEquals(20, channel.getGroupState(TEST_GROUP).mMaxLogsPerBatch);
+
+        /* Invalid values are ignored. */
+        channel.setAdaptiveBatchSizing(10, 5, 1000, 0);
+        assertEquals(20, channel.getGroupState(TEST_GROUP).mMaxLogsPerBatch);
+        channel.setAdaptiveBatchSizing(0, 0, 0, 0);
+        assertNull(channel.getGroupState(TEST_GROUP).mBatchSizer);
+        assertEquals(50, channel.getGroupState(TEST_GROUP).mMaxLogsPerBatch);
+    }
+}
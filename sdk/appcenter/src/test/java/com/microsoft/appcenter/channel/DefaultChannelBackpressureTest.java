@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.verifyStatic;
+
+import com.microsoft.appcenter.CancellationException;
+import com.microsoft.appcenter.Flags;
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.persistence.Persistence;
+import com.microsoft.appcenter.utils.AppCenterLog;
+
+import org.junit.Test;
+
+public class DefaultChannelBackpressureTest extends AbstractDefaultChannelTest {
+
+    @Test
+    public void reject() throws Persistence.PersistenceException {
+        DefaultChannel channel = createChannel();
+        Channel.GroupListener groupListener = mock(Channel.GroupListener.class);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, groupListener);
+        Channel.Listener listener = mock(Channel.Listener.class);
+        channel.addListener(listener);
+        channel.setBackpressure(TEST_GROUP, 3, BackpressurePolicy.REJECT);
+        for (int i = 0; i < 3; i++) {
+            channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        }
+        verify(listener, never()).onBackpressure(anyString(), anyInt(), anyInt());
+
+        /* Over the high watermark. */
+        Log rejectedLog = mock(Log.class);
+        channel.enqueue(rejectedLog, TEST_GROUP, Flags.DEFAULTS);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        verify(mPersistence, never()).putLog(eq(rejectedLog), anyString(), anyInt());
+        verify(mPersistence, times(3)).putLog(any(Log.class), anyString(), anyInt());
+        verify(listener).onBackpressure(TEST_GROUP, 3, BackpressurePolicy.REJECT);
+        verify(groupListener).onBeforeSending(rejectedLog);
+        verify(groupListener).onFailure(eq(rejectedLog), any(CancellationException.class));
+
+        /* Asynchronous enqueue tells the caller about the rejection and reports it to the group listener. */
+        Log rejectedAsyncLog = mock(Log.class);
+        assertFalse(channel.enqueueAsync(rejectedAsyncLog, TEST_GROUP, Flags.DEFAULTS));
+        verify(mPersistence, never()).putLog(eq(rejectedAsyncLog), anyString(), anyInt());
+        verify(groupListener).onBeforeSending(rejectedAsyncLog);
+        verify(groupListener).onFailure(eq(rejectedAsyncLog), any(CancellationException.class));
+        ChannelMetrics.GroupMetrics metrics = channel.getMetrics().getGroupMetrics(TEST_GROUP);
+        assertNotNull(metrics);
+        assertEquals(3, metrics.getRejectedCount());
+
+        /* Critical logs are still persisted. */
+        Log criticalLog = mock(Log.class);
+        assertTrue(channel.enqueueAsync(criticalLog, TEST_GROUP, Flags.CRITICAL));
+        verify(mPersistence).putLog(criticalLog, TEST_GROUP, Flags.CRITICAL);
+
+        /* Listeners are notified once per crossing. */
+        verify(listener).onBackpressure(anyString(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void sample() throws Persistence.PersistenceException {
+        DefaultChannel channel = createChannel();
+        Channel.GroupListener groupListener = mock(Channel.GroupListener.class);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, groupListener);
+        Channel.Listener listener = mock(Channel.Listener.class);
+        channel.addListener(listener);
+        channel.setBackpressure(TEST_GROUP, 2, BackpressurePolicy.SAMPLE);
+        for (int i = 0; i < 12; i++) {
+            channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        }
+
+        /* Kept share decreases with the backlog: 2/2, 2/3, 2/3, 2/4... */
+        verify(mPersistence, times(7)).putLog(any(Log.class), anyString(), anyInt());
+        ChannelMetrics.GroupMetrics metrics = channel.getMetrics().getGroupMetrics(TEST_GROUP);
+        assertNotNull(metrics);
+        assertEquals(5, metrics.getSampledOutCount());
+        assertEquals(0, metrics.getRejectedCount());
+        verify(listener).onBackpressure(TEST_GROUP, 2, BackpressurePolicy.SAMPLE);
+        verify(groupListener, never()).onFailure(any(Log.class), any(Exception.class));
+    }
+
+    @Test
+    public void evict() throws Persistence.PersistenceException {
+        DefaultChannel channel = createChannel();
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        Channel.Listener listener = mock(Channel.Listener.class);
+        channel.addListener(listener);
+        channel.setBackpressure(TEST_GROUP, 8, BackpressurePolicy.EVICT);
+        when(mPersistence.deleteOldestLogs(TEST_GROUP, 2)).thenReturn(2);
+        for (int i = 0; i < 8; i++) {
+            channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        }
+        verify(mPersistence, never()).deleteOldestLogs(anyString(), anyInt());
+
+        /* Evict down to 75% of the high watermark in one call. */
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        verify(mPersistence).deleteOldestLogs(TEST_GROUP, 2);
+        verify(listener).onBackpressure(TEST_GROUP, 8, BackpressurePolicy.EVICT);
+        ChannelMetrics.GroupMetrics metrics = channel.getMetrics().getGroupMetrics(TEST_GROUP);
+        assertNotNull(metrics);
+        assertEquals(7, metrics.getPendingLogCount());
+
+        /* Back under the high watermark. */
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        verify(mPersistence).deleteOldestLogs(anyString(), anyInt());
+        verify(mPersistence, times(10)).putLog(any(Log.class), anyString(), anyInt());
+
+        /* Crossing again notifies again. */
+        when(mPersistence.deleteOldestLogs(TEST_GROUP, 2)).thenReturn(0);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        verify(listener, times(2)).onBackpressure(TEST_GROUP, 8, BackpressurePolicy.EVICT);
+    }
+
+    @Test
+    public void disabledAndInvalidConfiguration() throws Persistence.PersistenceException {
+        DefaultChannel channel = createChannel();
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        Channel.Listener listener = mock(Channel.Listener.class);
+        channel.addListener(listener);
+        channel.setBackpressure(TEST_GROUP, -1, BackpressurePolicy.REJECT);
+        channel.setBackpressure(TEST_GROUP, 1, 0);
+        verifyStatic(AppCenterLog.class, times(2));
+        AppCenterLog.error(anyString(), anyString());
+
+        /* Unknown group is ignored. */
+        channel.setBackpressure(TEST_GROUP_TWO, 1, BackpressurePolicy.REJECT);
+
+        /* No limit by default. */
+        for (int i = 0; i < 5; i++) {
+            channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        }
+        verify(mPersistence, times(5)).putLog(any(Log.class), anyString(), anyInt());
+        verify(listener, never()).onBackpressure(anyString(), anyInt(), anyInt());
+    }
+}
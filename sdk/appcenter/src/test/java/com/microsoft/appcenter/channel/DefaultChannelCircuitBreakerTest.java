@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.microsoft.appcenter.Flags;
+import com.microsoft.appcenter.http.HttpException;
+import com.microsoft.appcenter.http.HttpResponse;
+import com.microsoft.appcenter.http.ServiceCallback;
+import com.microsoft.appcenter.ingestion.Ingestion;
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.ingestion.models.LogContainer;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.UUID;
+
+public class DefaultChannelCircuitBreakerTest extends AbstractDefaultChannelTest {
+
+    @Test
+    public void failureOnlyStopsGroupsOfFailingIngestion() {
+        DefaultChannel channel = createChannel();
+        when(mIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer());
+        Ingestion otherIngestion = mock(Ingestion.class);
+        Channel.GroupListener otherListener = mock(Channel.GroupListener.class);
+        channel.setCircuitBreaker(1000, 3000);
+        channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, 1, null, null);
+        channel.addGroup(TEST_GROUP_TWO, 1, BATCH_TIME_INTERVAL, 1, otherIngestion, otherListener);
+        when(otherIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer(new HttpException(new HttpResponse(503))));
+
+        /* Recoverable failure on the other ingestion: logs are kept and the circuit opens. */
+        channel.enqueue(mock(Log.class), TEST_GROUP_TWO, Flags.DEFAULTS);
+        verify(mPersistence).releaseLogs(eq(TEST_GROUP_TWO), anyString());
+        verify(mPersistence, never()).clearPendingLogState();
+        verify(otherIngestion, never()).close();
+        verify(mIngestion, never()).close();
+        verify(mAppCenterHandler).postDelayed(any(Runnable.class), eq(1000L));
+        assertEquals(1, channel.getGroupState(TEST_GROUP_TWO).mPendingLogCount);
+        verify(otherListener, never()).onFailure(any(Log.class), any(Exception.class));
+
+        /* The default ingestion still works. */
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        verify(mIngestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        verify(mPersistence).deleteLogs(eq(TEST_GROUP), anyString());
+
+        /* The other group does not send while the circuit is open. */
+        channel.enqueue(mock(Log.class), TEST_GROUP_TWO, Flags.DEFAULTS);
+        verify(otherIngestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        assertEquals(2, channel.getGroupState(TEST_GROUP_TWO).mPendingLogCount);
+    }
+
+    @Test
+    public void halfOpenProbeClosesCircuit() {
+        DefaultChannel channel = createChannel();
+        when(mIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer());
+        Ingestion otherIngestion = mock(Ingestion.class);
+        Channel.GroupListener otherListener = mock(Channel.GroupListener.class);
+        channel.setCircuitBreaker(1000, 3000);
+        channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, 1, null, null);
+        channel.addGroup(TEST_GROUP_TWO, 1, BATCH_TIME_INTERVAL, 1, otherIngestion, otherListener);
+        ArgumentCaptor<ServiceCallback> callback = ArgumentCaptor.forClass(ServiceCallback.class);
+        when(otherIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), callback.capture())).thenReturn(null);
+        ArgumentCaptor<Runnable> halfOpen = ArgumentCaptor.forClass(Runnable.class);
+        when(mAppCenterHandler.postDelayed(halfOpen.capture(), anyLong())).thenReturn(true);
+
+        /* Open the circuit. */
+        channel.enqueue(mock(Log.class), TEST_GROUP_TWO, Flags.DEFAULTS);
+        callback.getValue().onCallFailed(new HttpException(new HttpResponse(503)));
+        verify(mAppCenterHandler).postDelayed(any(Runnable.class), eq(1000L));
+        channel.enqueue(mock(Log.class), TEST_GROUP_TWO, Flags.DEFAULTS);
+        verify(otherIngestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+
+        /* When open period expires, a single probe is sent. */
+        halfOpen.getValue().run();
+        verify(otherIngestion, times(2)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        channel.enqueue(mock(Log.class), TEST_GROUP_TWO, Flags.DEFAULTS);
+        verify(otherIngestion, times(2)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+
+        /* Probe fails: circuit opens again for twice as long. */
+        callback.getValue().onCallFailed(new HttpException(new HttpResponse(503)));
+        verify(mAppCenterHandler).postDelayed(any(Runnable.class), eq(2000L));
+
+        /* Next probe succeeds: circuit is closed and sending resumes. */
+        halfOpen.getValue().run();
+        verify(otherIngestion, times(3)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        callback.getValue().onCallSucceeded(new HttpResponse(200, ""));
+        verify(otherIngestion, times(4)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+    }
+
+    @Test
+    public void nonRecoverableFailureDropsBatch() {
+        DefaultChannel channel = createChannel();
+        when(mIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer());
+        Ingestion otherIngestion = mock(Ingestion.class);
+        Channel.GroupListener otherListener = mock(Channel.GroupListener.class);
+        channel.setCircuitBreaker(1000, 3000);
+        channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, 1, null, null);
+        channel.addGroup(TEST_GROUP_TWO, 1, BATCH_TIME_INTERVAL, 1, otherIngestion, otherListener);
+        when(otherIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer(new HttpException(new HttpResponse(403))));
+        channel.enqueue(mock(Log.class), TEST_GROUP_TWO, Flags.DEFAULTS);
+        verify(otherListener).onFailure(any(Log.class), any(HttpException.class));
+        verify(mPersistence).deleteLogs(eq(TEST_GROUP_TWO), anyString());
+        verify(mPersistence, never()).releaseLogs(anyString(), anyString());
+        assertEquals(0, channel.getGroupState(TEST_GROUP_TWO).mPendingLogCount);
+        verify(mAppCenterHandler).postDelayed(any(Runnable.class), eq(1000L));
+    }
+
+    @Test
+    public void usedByDefault() {
+        DefaultChannel channel = createChannel();
+        when(mPersistence.getLogs(anyString(), anyCollection(), anyInt(), anyList())).then(getGetLogsAnswer(1));
+        Ingestion oneCollectorIngestion = mock(Ingestion.class);
+        when(oneCollectorIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer(new HttpException(new HttpResponse(503))));
+        channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, 1, null, null);
+        channel.addGroup(TEST_GROUP_TWO, 1, BATCH_TIME_INTERVAL, 1, oneCollectorIngestion, null);
+        channel.enqueue(mock(Log.class), TEST_GROUP_TWO, Flags.DEFAULTS);
+
+        /* Only the failing ingestion stops sending. */
+        assertTrue(channel.isEnabled());
+        verify(mIngestion, never()).close();
+        verify(mPersistence, never()).clearPendingLogState();
+        verify(mPersistence).releaseLogs(eq(TEST_GROUP_TWO), anyString());
+        verify(mAppCenterHandler).postDelayed(any(Runnable.class), eq(DefaultChannel.DEFAULT_CIRCUIT_BREAKER_INITIAL_OPEN_DURATION));
+
+        /* The App Center ingestion still works. */
+        when(mIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer());
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        verify(mPersistence).deleteLogs(eq(TEST_GROUP), anyString());
+    }
+
+    @Test
+    public void suspendChannelWhenDisabled() {
+        DefaultChannel channel = createChannel();
+        when(mPersistence.getLogs(anyString(), anyCollection(), anyInt(), anyList())).then(getGetLogsAnswer(1)).then(getGetLogsAnswer(0));
+        when(mIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer(new HttpException(new HttpResponse(503))));
+        channel.setCircuitBreaker(0, 0);
+        channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, 1, null, null);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+
+        /* Legacy behavior: the whole channel is suspended. */
+        verify(mIngestion).close();
+        verify(mPersistence).clearPendingLogState();
+        verify(mPersistence, never()).releaseLogs(anyString(), anyString());
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.microsoft.appcenter.Flags;
+import com.microsoft.appcenter.http.HttpException;
+import com.microsoft.appcenter.http.HttpResponse;
+import com.microsoft.appcenter.http.ServiceCallback;
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.ingestion.models.LogContainer;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.UUID;
+
+public class DefaultChannelCoalescingTest extends AbstractDefaultChannelTest {
+
+    private static final long CUSTOM_INTERVAL = 10000;
+
+    @Test
+    public void batchesAreMergedAndAcknowledgedPerGroup() {
+        DefaultChannel channel = createChannel();
+        Channel.GroupListener listener = mock(Channel.GroupListener.class);
+        Channel.GroupListener listenerTwo = mock(Channel.GroupListener.class);
+        channel.setRequestCoalescingEnabled(true);
+        channel.addGroup(TEST_GROUP, 2, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, listener);
+        channel.addGroup(TEST_GROUP_TWO, 2, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, listenerTwo);
+        ArgumentCaptor<LogContainer> container = ArgumentCaptor.forClass(LogContainer.class);
+        ArgumentCaptor<ServiceCallback> callback = ArgumentCaptor.forClass(ServiceCallback.class);
+
+        /* Second group waits for its timer. */
+        channel.enqueue(mock(Log.class), TEST_GROUP_TWO, Flags.DEFAULTS);
+        verify(mIngestion, never()).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+
+        /* Its batch becomes full after being resized. */
+        channel.getGroupState(TEST_GROUP_TWO).mMaxLogsPerBatch = 1;
+
+        /* First group batch is full: second group ready batch is sent in the same request. */
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        verify(mIngestion).sendAsync(anyString(), any(UUID.class), container.capture(), callback.capture());
+        assertEquals(3, container.getValue().getLogs().size());
+        assertEquals(0, channel.getGroupState(TEST_GROUP_TWO).mPendingLogCount);
+        assertEquals(1, channel.getGroupState(TEST_GROUP).mSendingBatches.size());
+        assertEquals(1, channel.getGroupState(TEST_GROUP_TWO).mSendingBatches.size());
+
+        /* Acknowledgement is split back to each group. */
+        callback.getValue().onCallSucceeded(new HttpResponse(200, ""));
+        verify(mPersistence).deleteLogs(eq(TEST_GROUP), anyString());
+        verify(mPersistence).deleteLogs(eq(TEST_GROUP_TWO), anyString());
+        verify(listener, times(2)).onSuccess(any(Log.class));
+        verify(listenerTwo).onSuccess(any(Log.class));
+        assertEquals(0, channel.getGroupState(TEST_GROUP).mSendingBatches.size());
+        assertEquals(0, channel.getGroupState(TEST_GROUP_TWO).mSendingBatches.size());
+    }
+
+    @Test
+    public void failureIsReportedToEachGroupOnce() {
+        DefaultChannel channel = createChannel();
+        channel.setRequestCoalescingEnabled(true);
+        channel.addGroup(TEST_GROUP, 2, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        channel.addGroup(TEST_GROUP_TWO, 2, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        channel.setCircuitBreaker(1000, 3000);
+        when(mIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer(new HttpException(new HttpResponse(503))));
+        channel.enqueue(mock(Log.class), TEST_GROUP_TWO, Flags.DEFAULTS);
+        channel.getGroupState(TEST_GROUP_TWO).mMaxLogsPerBatch = 1;
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        verify(mIngestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+
+        /* Both batches are given back and the circuit opens only once. */
+        verify(mPersistence).releaseLogs(eq(TEST_GROUP), anyString());
+        verify(mPersistence).releaseLogs(eq(TEST_GROUP_TWO), anyString());
+        assertEquals(2, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+        assertEquals(1, channel.getGroupState(TEST_GROUP_TWO).mPendingLogCount);
+        verify(mAppCenterHandler).postDelayed(any(Runnable.class), eq(1000L));
+        verify(mAppCenterHandler, never()).postDelayed(any(Runnable.class), eq(2000L));
+    }
+
+    @Test
+    public void groupsNotReadyKeepWaitingForTheirTimer() {
+        DefaultChannel channel = createChannel();
+        channel.setRequestCoalescingEnabled(true);
+        channel.addGroup(TEST_GROUP, 2, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        channel.addGroup(TEST_GROUP_TWO, 2, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        ArgumentCaptor<LogContainer> container = ArgumentCaptor.forClass(LogContainer.class);
+        channel.enqueue(mock(Log.class), TEST_GROUP_TWO, Flags.DEFAULTS);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+
+        /* Only the full batch is sent. */
+        verify(mIngestion).sendAsync(anyString(), any(UUID.class), container.capture(), any(ServiceCallback.class));
+        assertEquals(2, container.getValue().getLogs().size());
+        assertEquals(1, channel.getGroupState(TEST_GROUP_TWO).mPendingLogCount);
+        assertTrue(channel.getGroupState(TEST_GROUP_TWO).mScheduled);
+        verify(mAppCenterHandler, never()).removeCallbacks(channel.getGroupState(TEST_GROUP_TWO).mRunnable);
+    }
+
+    @Test
+    public void customIntervalGroupJoinsWhenItsIntervalIsOver() {
+        DefaultChannel channel = createChannel();
+        channel.setRequestCoalescingEnabled(true);
+        channel.addGroup(TEST_GROUP, 2, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        channel.addGroup(TEST_GROUP_TWO, 2, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        long now = 1000000;
+        when(System.currentTimeMillis()).thenReturn(now);
+        channel.addGroup(TEST_GROUP_THREE, 50, CUSTOM_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        DefaultChannel.GroupState customGroupState = channel.getGroupState(TEST_GROUP_THREE);
+        channel.enqueue(mock(Log.class), TEST_GROUP_THREE, Flags.DEFAULTS);
+
+        /* Interval is not over: the group keeps waiting. */
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        assertEquals(1, customGroupState.mPendingLogCount);
+
+        /* Interval is over: the group joins the next request. */
+        when(System.currentTimeMillis()).thenReturn(now + CUSTOM_INTERVAL);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        assertEquals(0, customGroupState.mPendingLogCount);
+        assertEquals(1, customGroupState.mSendingBatches.size());
+    }
+
+    @Test
+    public void disablingDropsMergedRequest() {
+        DefaultChannel channel = createChannel();
+        Channel.GroupListener listener = mock(Channel.GroupListener.class);
+        channel.setRequestCoalescingEnabled(true);
+        channel.addGroup(TEST_GROUP, 2, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, listener);
+        channel.addGroup(TEST_GROUP_TWO, 2, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        when(mAppCenterHandler.post(any(Runnable.class))).thenReturn(true);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        ArgumentCaptor<Runnable> runnable = ArgumentCaptor.forClass(Runnable.class);
+        verify(mAppCenterHandler).post(runnable.capture());
+
+        /* Batch is cancelled while the merged request was not sent yet. */
+        when(mPersistence.getLogs(anyString(), anyCollection(), anyInt(), anyList())).then(getGetLogsAnswer(0));
+        channel.setEnabled(false);
+        runnable.getValue().run();
+        verify(mIngestion, never()).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        verify(listener, times(2)).onFailure(any(Log.class), any(Exception.class));
+    }
+
+    @Test
+    public void oneRequestPerBatchByDefault() {
+        DefaultChannel channel = createChannel();
+        channel.addGroup(TEST_GROUP, 2, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        channel.addGroup(TEST_GROUP_TWO, 2, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        channel.enqueue(mock(Log.class), TEST_GROUP_TWO, Flags.DEFAULTS);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        verify(mIngestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        assertEquals(1, channel.getGroupState(TEST_GROUP_TWO).mPendingLogCount);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import com.microsoft.appcenter.Flags;
+import com.microsoft.appcenter.http.HttpException;
+import com.microsoft.appcenter.http.HttpResponse;
+import com.microsoft.appcenter.http.ServiceCallback;
+import com.microsoft.appcenter.ingestion.Ingestion;
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.ingestion.models.LogContainer;
+import com.microsoft.appcenter.persistence.Persistence;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.UUID;
+
+public class DefaultChannelMetricsTest extends AbstractDefaultChannelTest {
+
+    @Test
+    public void countersAndTimings() throws Persistence.PersistenceException {
+        Persistence persistence = mock(Persistence.class);
+        Ingestion ingestion = mock(Ingestion.class);
+        when(persistence.getLogs(anyString(), anyCollection(), anyInt(), anyList())).then(getGetLogsAnswer());
+        when(ingestion.isEnabled()).thenReturn(true);
+        ArgumentCaptor<ServiceCallback> callback = ArgumentCaptor.forClass(ServiceCallback.class);
+        when(ingestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), callback.capture())).thenReturn(null);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), persistence, ingestion, mAppCenterHandler);
+        channel.addGroup(TEST_GROUP, 2, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        ChannelMetrics.GroupMetrics metrics = channel.getMetrics().getGroupMetrics(TEST_GROUP);
+        assertNotNull(metrics);
+        assertNull(channel.getMetrics().getGroupMetrics(TEST_GROUP_TWO));
+        assertSame(metrics, channel.getMetrics().getAllGroupMetrics().get(TEST_GROUP));
+
+        /* A filtered log. */
+        Channel.Listener listener = mock(Channel.Listener.class);
+        Log filteredLog = mock(Log.class);
+        when(listener.shouldFilter(filteredLog)).thenReturn(true);
+        channel.addListener(listener);
+        channel.enqueue(filteredLog, TEST_GROUP, Flags.DEFAULTS);
+
+        /* A log that cannot be persisted. */
+        Log invalidLog = mock(Log.class);
+        doThrow(new Persistence.PersistenceException("mock", null)).when(persistence).putLog(eq(invalidLog), anyString(), anyInt());
+        channel.enqueue(invalidLog, TEST_GROUP, Flags.DEFAULTS);
+
+        /* A first batch. */
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        assertEquals(1, metrics.getPendingLogCount());
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        assertEquals(0, metrics.getPendingLogCount());
+        assertEquals(1, metrics.getInFlightBatchCount());
+        assertEquals(4, metrics.getEnqueuedCount());
+        assertEquals(1, metrics.getFilteredCount());
+        assertEquals(2, metrics.getPersistedCount());
+        assertEquals(1, metrics.getDiscardedCount());
+        assertEquals(2, metrics.getEnqueueToPersistTime().getTotalCount());
+        assertEquals(1, metrics.getBatchReadTime().getTotalCount());
+
+        /* Batch is sent. */
+        callback.getValue().onCallSucceeded(new HttpResponse(200, ""));
+        assertEquals(0, metrics.getInFlightBatchCount());
+        assertEquals(2, metrics.getSentCount());
+        assertEquals(1, metrics.getRoundTripTime().getTotalCount());
+
+        /* Second batch is rejected. */
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        when(persistence.getLogs(anyString(), anyCollection(), anyInt(), anyList())).then(getGetLogsAnswer(0));
+        callback.getValue().onCallFailed(new HttpException(new HttpResponse(403)));
+        assertEquals(2, metrics.getSentCount());
+        assertEquals(2, metrics.getFailedCount());
+        assertEquals(3, metrics.getDiscardedCount());
+        assertEquals(2, metrics.getRoundTripTime().getTotalCount());
+    }
+
+    @Test
+    public void persistenceEvents() {
+        Persistence persistence = mock(Persistence.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), persistence, mock(Ingestion.class), mAppCenterHandler);
+        ArgumentCaptor<Persistence.Listener> listener = ArgumentCaptor.forClass(Persistence.Listener.class);
+        verify(persistence).setListener(listener.capture());
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        listener.getValue().onLogSerialized(TEST_GROUP, 42);
+        listener.getValue().onLogsEvicted(TEST_GROUP, 3);
+        listener.getValue().onLogsEvictedByQuota(TEST_GROUP, 2);
+        listener.getValue().onLogRejectedByQuota(TEST_GROUP);
+        listener.getValue().onLogsExpired(TEST_GROUP, 4);
+
+        /* Logs of a group not added yet, for example evicted at startup, are still counted. */
+        listener.getValue().onLogsEvicted(TEST_GROUP_TWO, 1);
+        ChannelMetrics.GroupMetrics metrics = channel.getMetrics().getGroupMetrics(TEST_GROUP);
+        assertNotNull(metrics);
+        assertEquals(3, metrics.getEvictedCount());
+        assertEquals(2, metrics.getQuotaEvictedCount());
+        assertEquals(1, metrics.getQuotaRejectedCount());
+        assertEquals(4, metrics.getExpiredCount());
+        assertEquals(42, metrics.getSerializationTime().getMax());
+        ChannelMetrics.GroupMetrics otherMetrics = channel.getMetrics().getGroupMetrics(TEST_GROUP_TWO);
+        assertNotNull(otherMetrics);
+        assertEquals(1, otherMetrics.getEvictedCount());
+        assertEquals(0, otherMetrics.getPendingLogCount());
+
+        /* Counters survive removing the group. */
+        channel.removeGroup(TEST_GROUP);
+        assertEquals(3, metrics.getEvictedCount());
+        assertEquals(0, metrics.getInFlightBatchCount());
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        assertSame(metrics, channel.getMetrics().getGroupMetrics(TEST_GROUP));
+    }
+}
@@ -7,11 +7,19 @@ package com.microsoft.appcenter.channel;
 
 import android.content.Context;
 
+import com.microsoft.appcenter.DependencyConfiguration;
 import com.microsoft.appcenter.Flags;
+import com.microsoft.appcenter.http.HttpClient;
 import com.microsoft.appcenter.ingestion.AppCenterIngestion;
 import com.microsoft.appcenter.ingestion.Ingestion;
 import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
+import com.microsoft.appcenter.persistence.DatabasePersistence;
 import com.microsoft.appcenter.persistence.Persistence;
+import com.microsoft.appcenter.persistence.PersistenceEngine;
+import com.microsoft.appcenter.persistence.SegmentedFilePersistence;
+import com.microsoft.appcenter.persistence.ShardedPersistence;
+import com.microsoft.appcenter.persistence.TieredPersistence;
 
 import org.junit.Test;
 
@@ -34,6 +42,8 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.spy;
+import static org.powermock.api.mockito.PowerMockito.verifyNew;
+import static org.powermock.api.mockito.PowerMockito.whenNew;
 
 public class DefaultChannelOtherOperationsTest extends AbstractDefaultChannelTest {
 
@@ -213,4 +223,58 @@ public class DefaultChannelOtherOperationsTest extends AbstractDefaultChannelTes
         assertTrue(channel.setMaxStorageSize(20480));
         assertFalse(channel.setMaxStorageSize(2));
     }
+
+    @Test
+    public void segmentedFilePersistenceSelectedByConfiguration() throws Exception {
+        SegmentedFilePersistence persistence = mock(SegmentedFilePersistence.class);
+        whenNew(SegmentedFilePersistence.class).withAnyArguments().thenReturn(persistence);
+        Context context = mock(Context.class);
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        DependencyConfiguration.setPersistenceEngine(PersistenceEngine.SEGMENTED_FILES);
+        try {
+            new DefaultChannel(context, UUID.randomUUID().toString(), logSerializer, mock(HttpClient.class), mAppCenterHandler);
+        } finally {
+            DependencyConfiguration.setPersistenceEngine(PersistenceEngine.DATABASE);
+        }
+        verifyNew(SegmentedFilePersistence.class).withArguments(context);
+        verify(persistence).setLogSerializer(logSerializer);
+    }
+
+    @Test
+    public void shardedDatabaseSelectedByConfiguration() throws Exception {
+        ShardedPersistence persistence = mock(ShardedPersistence.class);
+        whenNew(ShardedPersistence.class).withAnyArguments().thenReturn(persistence);
+        Context context = mock(Context.class);
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        DependencyConfiguration.setPersistenceEngine(PersistenceEngine.SHARDED_DATABASE);
+        try {
+            new DefaultChannel(context, UUID.randomUUID().toString(), logSerializer, mock(HttpClient.class), mAppCenterHandler);
+        } finally {
+            DependencyConfiguration.setPersistenceEngine(PersistenceEngine.DATABASE);
+        }
+        verifyNew(ShardedPersistence.class).withArguments(context);
+        verify(persistence).setLogSerializer(logSerializer);
+    }
+
+    @Test
+    public void memoryTierSelectedByConfiguration() throws Exception {
+        DatabasePersistence databasePersistence = mock(DatabasePersistence.class);
+        TieredPersistence tieredPersistence = mock(TieredPersistence.class);
+        whenNew(DatabasePersistence.class).withAnyArguments().thenReturn(databasePersistence);
+        whenNew(TieredPersistence.class).withAnyArguments().thenReturn(tieredPersistence);
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        DependencyConfiguration.setPersistenceMemoryTierSize(1024);
+        DefaultChannel channel;
+        try {
+            channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), logSerializer, mock(HttpClient.class), mAppCenterHandler);
+        } finally {
+            DependencyConfiguration.setPersistenceMemoryTierSize(0);
+        }
+        verifyNew(TieredPersistence.class).withArguments(databasePersistence, 1024L);
+        verify(tieredPersistence).setLogSerializer(logSerializer);
+
+        /* Logs kept in memory are persisted when going to background. */
+        channel.checkpoint();
+        verify(tieredPersistence).checkpoint();
+    }
 }
@@ -152,7 +152,7 @@ public class DefaultChannelPauseResumeTest extends AbstractDefaultChannelTest {
         /* Mock the database to return logs now. */
         when(persistence.getLogs(anyString(), anyCollection(), anyInt(), anyList()))
                 .thenAnswer(getGetLogsAnswer(1));
-        when(persistence.countLogs(TEST_GROUP)).thenReturn(1);
+        when(persistence.countLogs(eq(TEST_GROUP), anyCollection())).thenReturn(1);
 
         /* Enqueue a log. */
         Log log = mock(Log.class);
@@ -220,7 +220,7 @@ public class DefaultChannelPauseResumeTest extends AbstractDefaultChannelTest {
         /* Mock the database to return logs now. */
         when(persistence.getLogs(anyString(), anyCollection(), anyInt(), anyList()))
                 .thenAnswer(getGetLogsAnswer(1));
-        when(persistence.countLogs(TEST_GROUP)).thenReturn(1);
+        when(persistence.countLogs(eq(TEST_GROUP), anyCollection())).thenReturn(1);
 
         /* Enqueue a log. */
         Log log = mock(Log.class);
@@ -292,6 +292,7 @@ public class DefaultChannelPauseResumeTest extends AbstractDefaultChannelTest {
         channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
 
         /* Verify that timer does not start but that the current time is saved for future reference. */
+        channel.checkpoint();
         verifyStatic(SharedPreferencesManager.class);
         SharedPreferencesManager.putLong(eq(START_TIMER_PREFIX + TEST_GROUP), eq(now));
         verify(mockIngestion, never()).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
@@ -337,6 +338,7 @@ public class DefaultChannelPauseResumeTest extends AbstractDefaultChannelTest {
         channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
 
         /* Verify that timer does not start but that the current time is saved for future reference. */
+        channel.checkpoint();
         verifyStatic(SharedPreferencesManager.class);
         SharedPreferencesManager.putLong(eq(START_TIMER_PREFIX + TEST_GROUP), eq(now));
         verify(mockIngestion, never()).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.microsoft.appcenter.CancellationException;
+import com.microsoft.appcenter.Flags;
+import com.microsoft.appcenter.http.HttpResponse;
+import com.microsoft.appcenter.http.ServiceCallback;
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.ingestion.models.LogContainer;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.UUID;
+
+public class DefaultChannelPrefetchTest extends AbstractDefaultChannelTest {
+
+    private static void enqueue(Channel channel, int count) {
+        for (int i = 0; i < count; i++) {
+            channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        }
+    }
+
+    @Test
+    public void nextBatchIsReadWhileSending() {
+        DefaultChannel channel = createChannel();
+        Channel.GroupListener listener = mock(Channel.GroupListener.class);
+        channel.setBatchPrefetchEnabled(true);
+        channel.addGroup(TEST_GROUP, 2, BATCH_TIME_INTERVAL, 1, null, listener);
+
+        /* First batch is sent and stays in flight. */
+        enqueue(channel, 2);
+        ArgumentCaptor<ServiceCallback> callback = ArgumentCaptor.forClass(ServiceCallback.class);
+        verify(mIngestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), callback.capture());
+
+        /* Next batch is read ahead of time even if no slot is available. */
+        enqueue(channel, 2);
+        verify(mPersistence, times(2)).getLogs(eq(TEST_GROUP), anyCollection(), eq(2), anyList());
+        verify(mIngestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        assertNotNull(channel.getGroupState(TEST_GROUP).mPrefetchedBatchId);
+        assertEquals(0, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+        verify(listener, times(2)).onBeforeSending(any(Log.class));
+
+        /* When the first batch succeeds the next one is sent without reading the database again. */
+        callback.getValue().onCallSucceeded(new HttpResponse(200, ""));
+        verify(mIngestion, times(2)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        verify(mPersistence, times(2)).getLogs(eq(TEST_GROUP), anyCollection(), eq(2), anyList());
+        assertNull(channel.getGroupState(TEST_GROUP).mPrefetchedBatchId);
+        verify(listener, times(4)).onBeforeSending(any(Log.class));
+        verify(listener, times(2)).onSuccess(any(Log.class));
+    }
+
+    @Test
+    public void noPrefetchByDefault() {
+        DefaultChannel channel = createChannel();
+        channel.addGroup(TEST_GROUP, 2, BATCH_TIME_INTERVAL, 1, null, null);
+        enqueue(channel, 4);
+        verify(mPersistence).getLogs(eq(TEST_GROUP), anyCollection(), eq(2), anyList());
+        assertNull(channel.getGroupState(TEST_GROUP).mPrefetchedBatchId);
+        assertEquals(2, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+    }
+
+    @Test
+    public void pausingTargetReleasesPrefetchedBatch() {
+        DefaultChannel channel = createChannel();
+        channel.setBatchPrefetchEnabled(true);
+        channel.addGroup(TEST_GROUP, 2, BATCH_TIME_INTERVAL, 1, null, null);
+        enqueue(channel, 4);
+        String batchId = channel.getGroupState(TEST_GROUP).mPrefetchedBatchId;
+        assertNotNull(batchId);
+
+        /* Pause a target: prefetched logs are given back to persistence. */
+        channel.pauseGroup(TEST_GROUP, "iKey-token");
+        verify(mPersistence).releaseLogs(TEST_GROUP, batchId);
+        assertNull(channel.getGroupState(TEST_GROUP).mPrefetchedBatchId);
+        assertEquals(2, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+    }
+
+    @Test
+    public void disablingFailsPrefetchedLogs() {
+        DefaultChannel channel = createChannel();
+        Channel.GroupListener listener = mock(Channel.GroupListener.class);
+        channel.setBatchPrefetchEnabled(true);
+        channel.addGroup(TEST_GROUP, 2, BATCH_TIME_INTERVAL, 1, null, listener);
+        enqueue(channel, 4);
+        assertNotNull(channel.getGroupState(TEST_GROUP).mPrefetchedBatchId);
+
+        /* In flight and prefetched logs are all reported as failed, nothing else in storage. */
+        when(mPersistence.getLogs(anyString(), anyCollection(), anyInt(), anyList())).then(getGetLogsAnswer(0));
+        channel.setEnabled(false);
+        verify(listener, times(4)).onFailure(any(Log.class), any(CancellationException.class));
+        assertNull(channel.getGroupState(TEST_GROUP).mPrefetchedBatchId);
+        verify(mPersistence, never()).releaseLogs(anyString(), anyString());
+    }
+
+    @Test
+    public void shutdownRestoresPendingCount() {
+        DefaultChannel channel = createChannel();
+        channel.setBatchPrefetchEnabled(true);
+        channel.addGroup(TEST_GROUP, 2, BATCH_TIME_INTERVAL, 1, null, null);
+        enqueue(channel, 4);
+        assertNotNull(channel.getGroupState(TEST_GROUP).mPrefetchedBatchId);
+        channel.shutdown();
+        assertNull(channel.getGroupState(TEST_GROUP).mPrefetchedBatchId);
+        assertEquals(2, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+        verify(mPersistence).clearPendingLogState();
+    }
+}
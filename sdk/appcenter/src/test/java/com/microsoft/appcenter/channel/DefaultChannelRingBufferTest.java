@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.microsoft.appcenter.Flags;
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.persistence.Persistence;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+public class DefaultChannelRingBufferTest extends AbstractDefaultChannelTest {
+
+    @Test
+    public void postsEveryLogWithoutRingBuffer() throws Persistence.PersistenceException {
+        DefaultChannel channel = createChannel();
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        Log log = mock(Log.class);
+        assertTrue(channel.enqueueAsync(log, TEST_GROUP, Flags.DEFAULTS));
+        assertTrue(channel.enqueueAsync(mock(Log.class), TEST_GROUP, Flags.DEFAULTS));
+        verify(mAppCenterHandler, times(2)).post(any(Runnable.class));
+        verify(mPersistence).putLog(log, TEST_GROUP, Flags.NORMAL);
+    }
+
+    @Test
+    public void drainsInBatches() throws Persistence.PersistenceException {
+        DefaultChannel channel = createChannel();
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        channel.setEnqueueRingBuffer(8, OverflowPolicy.DROP_NEWEST);
+
+        /* Producers only schedule one drain. */
+        when(mAppCenterHandler.post(any(Runnable.class))).thenReturn(true);
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        assertTrue(channel.enqueueAsync(log1, TEST_GROUP, Flags.DEFAULTS));
+        assertTrue(channel.enqueueAsync(log2, TEST_GROUP, Flags.CRITICAL));
+        ArgumentCaptor<Runnable> drain = ArgumentCaptor.forClass(Runnable.class);
+        verify(mAppCenterHandler).post(drain.capture());
+        verify(mPersistence, never()).putLog(any(Log.class), anyString(), anyInt());
+
+        /* Drain enqueues in order. */
+        drain.getValue().run();
+        InOrder inOrder = inOrder(mPersistence);
+        inOrder.verify(mPersistence).putLog(log1, TEST_GROUP, Flags.NORMAL);
+        inOrder.verify(mPersistence).putLog(log2, TEST_GROUP, Flags.CRITICAL);
+
+        /* Next log schedules a new drain. */
+        channel.enqueueAsync(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        verify(mAppCenterHandler, times(2)).post(any(Runnable.class));
+    }
+
+    @Test
+    public void dropNewest() throws Persistence.PersistenceException {
+        DefaultChannel channel = createChannel();
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        channel.setEnqueueRingBuffer(2, OverflowPolicy.DROP_NEWEST);
+        when(mAppCenterHandler.post(any(Runnable.class))).thenReturn(true);
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        Log log3 = mock(Log.class);
+        assertTrue(channel.enqueueAsync(log1, TEST_GROUP, Flags.DEFAULTS));
+        assertTrue(channel.enqueueAsync(log2, TEST_GROUP, Flags.DEFAULTS));
+        assertFalse(channel.enqueueAsync(log3, TEST_GROUP, Flags.DEFAULTS));
+        assertEquals(1, channel.getMetrics().getDroppedCount());
+        ArgumentCaptor<Runnable> drain = ArgumentCaptor.forClass(Runnable.class);
+        verify(mAppCenterHandler).post(drain.capture());
+        drain.getValue().run();
+        verify(mPersistence).putLog(eq(log1), anyString(), anyInt());
+        verify(mPersistence).putLog(eq(log2), anyString(), anyInt());
+        verify(mPersistence, never()).putLog(eq(log3), anyString(), anyInt());
+    }
+
+    @Test
+    public void dropOldest() throws Persistence.PersistenceException {
+        DefaultChannel channel = createChannel();
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        channel.setEnqueueRingBuffer(2, OverflowPolicy.DROP_OLDEST);
+        when(mAppCenterHandler.post(any(Runnable.class))).thenReturn(true);
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        Log log3 = mock(Log.class);
+        assertTrue(channel.enqueueAsync(log1, TEST_GROUP, Flags.DEFAULTS));
+        assertTrue(channel.enqueueAsync(log2, TEST_GROUP, Flags.DEFAULTS));
+        assertTrue(channel.enqueueAsync(log3, TEST_GROUP, Flags.DEFAULTS));
+        assertEquals(1, channel.getMetrics().getDroppedCount());
+        ArgumentCaptor<Runnable> drain = ArgumentCaptor.forClass(Runnable.class);
+        verify(mAppCenterHandler).post(drain.capture());
+        drain.getValue().run();
+        verify(mPersistence, never()).putLog(eq(log1), anyString(), anyInt());
+        verify(mPersistence).putLog(eq(log2), anyString(), anyInt());
+        verify(mPersistence).putLog(eq(log3), anyString(), anyInt());
+    }
+
+    @Test
+    public void blockOnAppCenterThreadDrainsImmediately() throws Persistence.PersistenceException {
+        DefaultChannel channel = createChannel();
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        channel.setEnqueueRingBuffer(2, OverflowPolicy.BLOCK);
+        when(mAppCenterHandler.post(any(Runnable.class))).thenReturn(true);
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        Log log3 = mock(Log.class);
+        assertTrue(channel.enqueueAsync(log1, TEST_GROUP, Flags.DEFAULTS));
+        assertTrue(channel.enqueueAsync(log2, TEST_GROUP, Flags.DEFAULTS));
+
+        /* Test thread looper is the same as the mock handler one (null): no dead lock. */
+        assertTrue(channel.enqueueAsync(log3, TEST_GROUP, Flags.DEFAULTS));
+        verify(mPersistence).putLog(eq(log1), anyString(), anyInt());
+        verify(mPersistence).putLog(eq(log2), anyString(), anyInt());
+        verify(mPersistence, never()).putLog(eq(log3), anyString(), anyInt());
+        assertEquals(0, channel.getMetrics().getDroppedCount());
+    }
+
+    @Test
+    public void reconfiguringDrainsPreviousBuffer() throws Persistence.PersistenceException {
+        DefaultChannel channel = createChannel();
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        channel.setEnqueueRingBuffer(4, OverflowPolicy.DROP_NEWEST);
+        when(mAppCenterHandler.post(any(Runnable.class))).thenReturn(true);
+        Log log = mock(Log.class);
+        channel.enqueueAsync(log, TEST_GROUP, Flags.DEFAULTS);
+        channel.setEnqueueRingBuffer(0, OverflowPolicy.DROP_NEWEST);
+        verify(mPersistence).putLog(eq(log), anyString(), anyInt());
+
+        /* Invalid configuration is ignored. */
+        channel.setEnqueueRingBuffer(-1, OverflowPolicy.BLOCK);
+        channel.setEnqueueRingBuffer(4, 42);
+        channel.enqueueAsync(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        verify(mAppCenterHandler, times(2)).post(any(Runnable.class));
+    }
+}
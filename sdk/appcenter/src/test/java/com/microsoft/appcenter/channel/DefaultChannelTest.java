@@ -38,7 +38,9 @@ import com.microsoft.appcenter.ingestion.Ingestion;
 import com.microsoft.appcenter.ingestion.models.Device;
 import com.microsoft.appcenter.ingestion.models.Log;
 import com.microsoft.appcenter.ingestion.models.LogContainer;
+import com.microsoft.appcenter.persistence.EvictionPolicy;
 import com.microsoft.appcenter.persistence.Persistence;
+import com.microsoft.appcenter.persistence.SyncMode;
 import com.microsoft.appcenter.utils.DeviceInfoHelper;
 import com.microsoft.appcenter.utils.storage.SharedPreferencesManager;
 
@@ -78,6 +80,71 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         verify(mAppCenterHandler, never()).removeCallbacks(any(Runnable.class));
     }
 
+    @Test
+    public void setLogCompressionEnabled() {
+        Persistence persistence = mock(Persistence.class);
+        Channel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), persistence, mock(Ingestion.class), mAppCenterHandler);
+        channel.setLogCompressionEnabled(true);
+        verify(persistence).setPayloadCompressionEnabled(true);
+        channel.setLogCompressionEnabled(false);
+        verify(persistence).setPayloadCompressionEnabled(false);
+    }
+
+    @Test
+    public void setWriteModes() {
+        Persistence persistence = mock(Persistence.class);
+        Channel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), persistence, mock(Ingestion.class), mAppCenterHandler);
+        channel.setWriteAheadLoggingEnabled(true);
+        verify(persistence).setWriteAheadLoggingEnabled(true);
+        channel.setSyncMode(Flags.NORMAL, SyncMode.OFF);
+        verify(persistence).setSyncMode(Flags.NORMAL, SyncMode.OFF);
+    }
+
+    @Test
+    public void setGroupQuotas() {
+        Persistence persistence = mock(Persistence.class);
+        Channel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), persistence, mock(Ingestion.class), mAppCenterHandler);
+        channel.setGroupQuota(TEST_GROUP, 1024, EvictionPolicy.OLDEST_FIRST);
+        verify(persistence).setGroupQuota(TEST_GROUP, 1024, EvictionPolicy.OLDEST_FIRST);
+        channel.setGroupQuotaPercentage(TEST_GROUP, 25, EvictionPolicy.REJECT_NEW);
+        verify(persistence).setGroupQuotaPercentage(TEST_GROUP, 25, EvictionPolicy.REJECT_NEW);
+
+        /* Invalid configurations are ignored. */
+        channel.setGroupQuota(TEST_GROUP, -1, EvictionPolicy.OLDEST_FIRST);
+        channel.setGroupQuota(TEST_GROUP, 1024, 3);
+        channel.setGroupQuotaPercentage(TEST_GROUP, 101, EvictionPolicy.OLDEST_FIRST);
+        channel.setGroupQuotaPercentage(TEST_GROUP, -1, EvictionPolicy.OLDEST_FIRST);
+        verify(persistence).setGroupQuota(anyString(), anyLong(), anyInt());
+        verify(persistence).setGroupQuotaPercentage(anyString(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void setLogTimeToLive() {
+        Persistence persistence = mock(Persistence.class);
+        Channel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), persistence, mock(Ingestion.class), mAppCenterHandler);
+
+        /* Expired logs are deleted right away then periodically. */
+        channel.setLogTimeToLive(TEST_GROUP, 1000);
+        verify(persistence).setTimeToLive(TEST_GROUP, 1000);
+        verify(persistence).deleteExpiredLogs();
+        verify(mAppCenterHandler).postDelayed(any(Runnable.class), eq(DefaultChannel.LOG_EXPIRY_INTERVAL));
+
+        /* Deletion is scheduled only once. */
+        channel.setLogTypeTimeToLive("event", 2000);
+        verify(persistence).setLogTypeTimeToLive("event", 2000);
+        verify(persistence).deleteExpiredLogs();
+
+        /* Invalid values are ignored. */
+        channel.setLogTimeToLive(TEST_GROUP, -1);
+        channel.setLogTypeTimeToLive("event", -1);
+        verify(persistence).setTimeToLive(anyString(), anyLong());
+        verify(persistence).setLogTypeTimeToLive(anyString(), anyLong());
+
+        /* Deletion stops on shutdown. */
+        channel.shutdown();
+        verify(mAppCenterHandler).removeCallbacks(any(Runnable.class));
+    }
+
     @Test
     public void analyticsSuccess() throws Persistence.PersistenceException {
         Persistence mockPersistence = mock(Persistence.class);
@@ -334,6 +401,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer(new SocketException())).then(getSendAsyncAnswer());
         when(mockIngestion.isEnabled()).thenReturn(true);
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
+        channel.setCircuitBreaker(0, 0);
         channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, mockListener);
 
         /* Enqueuing 50 events. */
@@ -412,6 +480,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer(new HttpException(new HttpResponse(403)))).then(getSendAsyncAnswer());
         when(mockIngestion.isEnabled()).thenReturn(true);
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
+        channel.setCircuitBreaker(0, 0);
         channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
 
         /* Enqueuing 50 events. */
@@ -529,6 +598,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         when(mockIngestion.isEnabled()).thenReturn(true);
 
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
+        channel.setCircuitBreaker(0, 0);
         channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, mockListener);
 
         /* Enqueuing n errors. */
@@ -610,6 +680,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         when(mockIngestion.isEnabled()).thenReturn(true);
 
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
+        channel.setCircuitBreaker(0, 0);
         channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, mockListener);
 
         /* 30 from countLogs and 10 new logs from getLogs. */
@@ -644,6 +715,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         when(mockIngestion.isEnabled()).thenReturn(true);
 
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
+        channel.setCircuitBreaker(0, 0);
         channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
 
         assertFalse(channel.isEnabled());
@@ -860,6 +932,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer(new HttpException(new HttpResponse(403))));
 
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
+        channel.setCircuitBreaker(0, 0);
         channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, mockListener);
         channel.addGroup(TEST_GROUP + "2", 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
 
@@ -891,6 +964,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).thenReturn(null).then(getSendAsyncAnswer(new HttpException(new HttpResponse(403))));
 
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
+        channel.setCircuitBreaker(0, 0);
         channel.addGroup(TEST_GROUP, 1, 1, MAX_PARALLEL_BATCHES, null, null);
         channel.addGroup(TEST_GROUP + "2", 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, mockListener);
 
@@ -918,6 +992,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer(new HttpException(new HttpResponse(503))));
 
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
+        channel.setCircuitBreaker(0, 0);
         channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, mockListener);
         channel.addGroup(TEST_GROUP + "2", 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
 
@@ -981,7 +1056,10 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
         channel.addGroup(TEST_GROUP, 10, CUSTOM_INTERVAL, MAX_PARALLEL_BATCHES, mockIngestion, mock(Channel.GroupListener.class));
 
-        /* Verify that timer starts and current time is saved into preferences. */
+        /* Verify that timer starts and current time is saved into preferences only on checkpoint. */
+        verifyStatic(SharedPreferencesManager.class, never());
+        SharedPreferencesManager.putLong(eq(START_TIMER_PREFIX + TEST_GROUP), anyLong());
+        channel.checkpoint();
         verifyStatic(SharedPreferencesManager.class);
         SharedPreferencesManager.putLong(eq(START_TIMER_PREFIX + TEST_GROUP), eq(now));
         verify(mAppCenterHandler).postDelayed(any(Runnable.class), eq(CUSTOM_INTERVAL));
@@ -1055,6 +1133,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         channel.addGroup(TEST_GROUP, 10, CUSTOM_INTERVAL, MAX_PARALLEL_BATCHES, mockIngestion, mock(Channel.GroupListener.class));
 
         /* Verify that start time is replaced. */
+        channel.checkpoint();
         verifyStatic(SharedPreferencesManager.class);
         SharedPreferencesManager.putLong(eq(START_TIMER_PREFIX + TEST_GROUP), any(long.class));
 
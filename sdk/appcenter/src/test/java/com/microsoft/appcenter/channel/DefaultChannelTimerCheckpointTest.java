@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import static com.microsoft.appcenter.channel.DefaultChannel.START_TIMER_PREFIX;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.verifyStatic;
+
+import com.microsoft.appcenter.Flags;
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.utils.storage.SharedPreferencesManager;
+
+import org.junit.Test;
+
+public class DefaultChannelTimerCheckpointTest extends AbstractDefaultChannelTest {
+
+    private static final long CUSTOM_INTERVAL = 10000;
+
+    @Test
+    public void noPreferenceAccessPerLog() {
+        long now = 1000;
+        when(System.currentTimeMillis()).thenReturn(now);
+        DefaultChannel channel = createChannel();
+        channel.addGroup(TEST_GROUP, 50, CUSTOM_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+
+        /* Only the initial read when adding the group. */
+        verifyStatic(SharedPreferencesManager.class);
+        SharedPreferencesManager.getLong(START_TIMER_PREFIX + TEST_GROUP);
+        for (int i = 0; i < 20; i++) {
+            channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        }
+        verifyStatic(SharedPreferencesManager.class);
+        SharedPreferencesManager.getLong(anyString());
+        verifyStatic(SharedPreferencesManager.class, never());
+        SharedPreferencesManager.putLong(anyString(), anyLong());
+
+        /* Checkpoint writes the start time once. */
+        channel.checkpoint();
+        verifyStatic(SharedPreferencesManager.class);
+        SharedPreferencesManager.putLong(START_TIMER_PREFIX + TEST_GROUP, now);
+
+        /* Nothing changed since. */
+        channel.checkpoint();
+        verifyStatic(SharedPreferencesManager.class);
+        SharedPreferencesManager.putLong(anyString(), anyLong());
+        verifyStatic(SharedPreferencesManager.class, never());
+        SharedPreferencesManager.remove(anyString());
+    }
+
+    @Test
+    public void cancelledTimerRemovedOnShutdown() {
+        when(System.currentTimeMillis()).thenReturn(1000L);
+        when(mPersistence.countLogs(TEST_GROUP)).thenReturn(1);
+        DefaultChannel channel = createChannel();
+        channel.addGroup(TEST_GROUP, 50, CUSTOM_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        verify(mAppCenterHandler).postDelayed(eq(channel.getGroupState(TEST_GROUP).mRunnable), eq(CUSTOM_INTERVAL));
+
+        /* Shutdown cancels the timer and saves that. */
+        channel.shutdown();
+        verifyStatic(SharedPreferencesManager.class);
+        SharedPreferencesManager.remove(START_TIMER_PREFIX + TEST_GROUP);
+        verifyStatic(SharedPreferencesManager.class, never());
+        SharedPreferencesManager.putLong(anyString(), anyLong());
+    }
+
+    @Test
+    public void readdedGroupUsesTimerInMemory() {
+        when(SharedPreferencesManager.getLong(START_TIMER_PREFIX + TEST_GROUP)).thenReturn(500L);
+        when(System.currentTimeMillis()).thenReturn(1000L);
+        when(mPersistence.countLogs(TEST_GROUP)).thenReturn(1);
+        DefaultChannel channel = createChannel();
+
+        /* Timer resumes from the stored start time. */
+        channel.addGroup(TEST_GROUP, 50, CUSTOM_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        verify(mAppCenterHandler).postDelayed(eq(channel.getGroupState(TEST_GROUP).mRunnable), eq(CUSTOM_INTERVAL - 500));
+
+        /* Removing the group cancels the timer, adding it again starts a new one without reading stale storage. */
+        channel.removeGroup(TEST_GROUP);
+        channel.addGroup(TEST_GROUP, 50, CUSTOM_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        verifyStatic(SharedPreferencesManager.class, times(1));
+        SharedPreferencesManager.getLong(START_TIMER_PREFIX + TEST_GROUP);
+        verify(mAppCenterHandler).postDelayed(eq(channel.getGroupState(TEST_GROUP).mRunnable), eq(CUSTOM_INTERVAL));
+        channel.checkpoint();
+        verifyStatic(SharedPreferencesManager.class);
+        SharedPreferencesManager.putLong(START_TIMER_PREFIX + TEST_GROUP, 1000L);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import static com.microsoft.appcenter.Flags.CRITICAL;
+import static com.microsoft.appcenter.Flags.NORMAL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import com.microsoft.appcenter.CancellationException;
+import com.microsoft.appcenter.Flags;
+import com.microsoft.appcenter.ingestion.Ingestion;
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
+import com.microsoft.appcenter.persistence.Persistence;
+import com.microsoft.appcenter.persistence.TieredPersistence;
+
+import org.json.JSONException;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+public class DefaultChannelWriteBehindTest extends AbstractDefaultChannelTest {
+
+    @Test
+    public void bufferIsPersistedWhenFull() throws Persistence.PersistenceException {
+        Persistence mockPersistence = mock(Persistence.class);
+        when(mockPersistence.putLogs(anyList(), anyString(), anyInt())).thenReturn(new IdentityHashMap<Log, Persistence.PersistenceException>());
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mock(Ingestion.class), mAppCenterHandler);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        channel.setWriteBehindBuffer(3, 200);
+
+        /* Logs are held in memory. */
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        verify(mockPersistence, never()).putLog(any(Log.class), anyString(), anyInt());
+        verify(mockPersistence, never()).putLogs(anyList(), anyString(), anyInt());
+        assertEquals(0, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+        verify(mAppCenterHandler).postDelayed(any(Runnable.class), eq(200L));
+
+        /* Third log fills the buffer: a single write for all of them. */
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<Log>> logs = ArgumentCaptor.forClass(List.class);
+        verify(mockPersistence).putLogs(logs.capture(), eq(TEST_GROUP), eq(NORMAL));
+        assertEquals(3, logs.getValue().size());
+        assertEquals(3, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+        assertTrue(channel.getGroupState(TEST_GROUP).mBufferedLogs.isEmpty());
+        verify(mAppCenterHandler).removeCallbacks(any(Runnable.class));
+    }
+
+    @Test
+    public void bufferIsPersistedAfterDelay() {
+        Persistence mockPersistence = mock(Persistence.class);
+        when(mockPersistence.putLogs(anyList(), anyString(), anyInt())).thenReturn(new IdentityHashMap<Log, Persistence.PersistenceException>());
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mock(Ingestion.class), mAppCenterHandler);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        channel.setWriteBehindBuffer(10, 200);
+
+        /* Capture the flush timer. */
+        ArgumentCaptor<Runnable> delayedRunnable = ArgumentCaptor.forClass(Runnable.class);
+        when(mAppCenterHandler.postDelayed(delayedRunnable.capture(), eq(200L))).thenReturn(true);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        verify(mAppCenterHandler).postDelayed(any(Runnable.class), eq(200L));
+
+        /* Simulate the timer. */
+        delayedRunnable.getValue().run();
+        verify(mockPersistence).putLogs(anyList(), eq(TEST_GROUP), eq(NORMAL));
+        assertEquals(2, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+
+        /* Batch timer is then scheduled as usual. */
+        verify(mAppCenterHandler).postDelayed(any(Runnable.class), eq(BATCH_TIME_INTERVAL));
+    }
+
+    @Test
+    public void bufferIsPersistedToDiskOnCheckpointWithMemoryTier() throws JSONException {
+        Persistence durablePersistence = mock(Persistence.class);
+        when(durablePersistence.putLogs(anyList(), anyString(), anyInt())).thenReturn(new IdentityHashMap<Log, Persistence.PersistenceException>());
+        TieredPersistence tieredPersistence = new TieredPersistence(durablePersistence, 1024 * 1024);
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(any(Log.class))).thenReturn("{}");
+        tieredPersistence.setLogSerializer(logSerializer);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), tieredPersistence, mock(Ingestion.class), mAppCenterHandler);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        channel.setWriteBehindBuffer(10, 200);
+
+        /* Logs are held in the buffer. */
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        assertEquals(0, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+
+        /* Going to background writes the buffered logs through the memory tier to disk. */
+        channel.checkpoint();
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<Log>> logs = ArgumentCaptor.forClass(List.class);
+        InOrder inOrder = inOrder(durablePersistence);
+        inOrder.verify(durablePersistence).putLogs(logs.capture(), eq(TEST_GROUP), eq(NORMAL));
+        inOrder.verify(durablePersistence).checkpoint();
+        assertEquals(2, logs.getValue().size());
+        assertEquals(2, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+        assertTrue(channel.getGroupState(TEST_GROUP).mBufferedLogs.isEmpty());
+    }
+
+    @Test
+    public void criticalLogIsNotBufferedAndKeepsOrder() throws Persistence.PersistenceException {
+        Persistence mockPersistence = mock(Persistence.class);
+        when(mockPersistence.putLogs(anyList(), anyString(), anyInt())).thenReturn(new IdentityHashMap<Log, Persistence.PersistenceException>());
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mock(Ingestion.class), mAppCenterHandler);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        channel.setWriteBehindBuffer(10, 200);
+
+        /* Buffer a normal log then enqueue a critical one. */
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        Log criticalLog = mock(Log.class);
+        channel.enqueue(criticalLog, TEST_GROUP, CRITICAL);
+
+        /* Buffered log is persisted first, then the critical one right away. */
+        InOrder inOrder = inOrder(mockPersistence);
+        inOrder.verify(mockPersistence).putLogs(anyList(), eq(TEST_GROUP), eq(NORMAL));
+        inOrder.verify(mockPersistence).putLog(criticalLog, TEST_GROUP, CRITICAL);
+        assertEquals(2, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+    }
+
+    @Test
+    public void persistenceFailuresAreReported() {
+        final Log failingLog = mock(Log.class);
+        Persistence mockPersistence = mock(Persistence.class);
+        Map<Log, Persistence.PersistenceException> failures = new IdentityHashMap<>();
+        Persistence.PersistenceException exception = new Persistence.PersistenceException("mock", null);
+        failures.put(failingLog, exception);
+        when(mockPersistence.putLogs(anyList(), anyString(), anyInt())).thenReturn(failures);
+        Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mock(Ingestion.class), mAppCenterHandler);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, mockListener);
+        channel.setWriteBehindBuffer(2, 200);
+
+        /* Fill the buffer. */
+        Log log = mock(Log.class);
+        channel.enqueue(log, TEST_GROUP, Flags.DEFAULTS);
+        channel.enqueue(failingLog, TEST_GROUP, Flags.DEFAULTS);
+
+        /* Only the failing log is reported. */
+        verify(mockListener).onBeforeSending(failingLog);
+        verify(mockListener).onFailure(failingLog, exception);
+        verify(mockListener, never()).onFailure(eq(log), any(Exception.class));
+        assertEquals(1, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+    }
+
+    @Test
+    public void disablingDiscardsBuffer() {
+        Persistence mockPersistence = mock(Persistence.class);
+        Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mock(Ingestion.class), mAppCenterHandler);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, mockListener);
+        channel.setWriteBehindBuffer(10, 200);
+        Log log = mock(Log.class);
+        channel.enqueue(log, TEST_GROUP, Flags.DEFAULTS);
+
+        /* Disable channel. */
+        channel.setEnabled(false);
+        verify(mockPersistence, never()).putLogs(anyList(), anyString(), anyInt());
+        verify(mockListener).onBeforeSending(log);
+        verify(mockListener).onFailure(eq(log), any(CancellationException.class));
+        assertTrue(channel.getGroupState(TEST_GROUP).mBufferedLogs.isEmpty());
+    }
+
+    @Test
+    public void shutdownPersistsBuffer() {
+        Persistence mockPersistence = mock(Persistence.class);
+        when(mockPersistence.putLogs(anyList(), anyString(), anyInt())).thenReturn(new IdentityHashMap<Log, Persistence.PersistenceException>());
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mock(Ingestion.class), mAppCenterHandler);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        channel.setWriteBehindBuffer(10, 200);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+
+        /* Shutdown must not lose buffered logs. */
+        channel.shutdown();
+        verify(mockPersistence).putLogs(anyList(), eq(TEST_GROUP), eq(NORMAL));
+        verify(mAppCenterHandler, never()).postDelayed(any(Runnable.class), eq(BATCH_TIME_INTERVAL));
+    }
+
+    @Test
+    public void invalidConfigurationIsIgnored() throws Persistence.PersistenceException {
+        Persistence mockPersistence = mock(Persistence.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mock(Ingestion.class), mAppCenterHandler);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        channel.setWriteBehindBuffer(-1, 200);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        verify(mockPersistence).putLog(any(Log.class), eq(TEST_GROUP), eq(NORMAL));
+        verify(mockPersistence, never()).putLogs(anyList(), anyString(), anyInt());
+        verify(mAppCenterHandler, never()).postDelayed(any(Runnable.class), eq(200L));
+    }
+}
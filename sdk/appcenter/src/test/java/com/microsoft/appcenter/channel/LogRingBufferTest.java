@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import androidx.annotation.NonNull;
+
+import com.microsoft.appcenter.ingestion.models.Log;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+public class LogRingBufferTest {
+
+    @Test
+    public void capacityIsPowerOfTwo() {
+        assertEquals(2, new LogRingBuffer(0).getCapacity());
+        assertEquals(2, new LogRingBuffer(2).getCapacity());
+        assertEquals(8, new LogRingBuffer(5).getCapacity());
+        assertEquals(16, new LogRingBuffer(16).getCapacity());
+    }
+
+    @Test
+    public void firstInFirstOut() {
+        LogRingBuffer ringBuffer = new LogRingBuffer(4);
+        assertTrue(ringBuffer.isEmpty());
+        final List<Log> polledLogs = new ArrayList<>();
+        final List<String> polledGroups = new ArrayList<>();
+        final List<Integer> polledFlags = new ArrayList<>();
+        LogRingBuffer.Consumer consumer = new LogRingBuffer.Consumer() {
+
+            @Override
+            public void accept(@NonNull Log log, @NonNull String groupName, int flags) {
+                polledLogs.add(log);
+                polledGroups.add(groupName);
+                polledFlags.add(flags);
+            }
+        };
+        assertFalse(ringBuffer.poll(consumer));
+
+        /* Several laps over the slots. */
+        for (int lap = 0; lap < 3; lap++) {
+            List<Log> logs = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                Log log = mock(Log.class);
+                logs.add(log);
+                assertTrue(ringBuffer.offer(log, "group" + i, i));
+            }
+            assertFalse(ringBuffer.offer(mock(Log.class), "full", 0));
+            assertFalse(ringBuffer.isEmpty());
+            polledLogs.clear();
+            polledGroups.clear();
+            polledFlags.clear();
+            assertEquals(4, ringBuffer.drain(consumer));
+            assertEquals(logs, polledLogs);
+            for (int i = 0; i < 4; i++) {
+                assertEquals("group" + i, polledGroups.get(i));
+                assertEquals(i, (int) polledFlags.get(i));
+            }
+            assertTrue(ringBuffer.isEmpty());
+        }
+    }
+
+    @Test
+    public void concurrentProducers() throws InterruptedException {
+        final int producerCount = 4;
+        final int logsPerProducer = 10000;
+        final LogRingBuffer ringBuffer = new LogRingBuffer(64);
+        final Set<Log> polledLogs = new HashSet<>();
+        final List<Log> allLogs = new ArrayList<>();
+        for (int i = 0; i < producerCount * logsPerProducer; i++) {
+            allLogs.add(mock(Log.class));
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < producerCount; p++) {
+            final int offset = p * logsPerProducer;
+            Thread producer = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < logsPerProducer; i++) {
+                        while (!ringBuffer.offer(allLogs.get(offset + i), "group", 0)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            producer.start();
+            producers.add(producer);
+        }
+        LogRingBuffer.Consumer consumer = new LogRingBuffer.Consumer() {
+
+            @Override
+            public void accept(@NonNull Log log, @NonNull String groupName, int flags) {
+                assertSame("group", groupName);
+                assertTrue(polledLogs.add(log));
+            }
+        };
+        start.countDown();
+        while (polledLogs.size() < allLogs.size()) {
+            if (ringBuffer.drain(consumer) == 0) {
+                Thread.yield();
+            }
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertTrue(ringBuffer.isEmpty());
+        assertEquals(new HashSet<>(allLogs), polledLogs);
+    }
+}
@@ -5,24 +5,35 @@
 
 package com.microsoft.appcenter.persistence;
 
+import static com.microsoft.appcenter.Flags.CRITICAL;
 import static com.microsoft.appcenter.Flags.NORMAL;
 import static com.microsoft.appcenter.utils.storage.DatabaseManager.PRIMARY_KEY;
+import static com.microsoft.appcenter.utils.storage.DatabaseManager.SELECT_PRIMARY_KEY;
 import static com.microsoft.appcenter.persistence.DatabasePersistence.PAYLOAD_MAX_SIZE;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
-import static org.mockito.ArgumentMatchers.anySet;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNotNull;
 import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.verifyNew;
 import static org.powermock.api.mockito.PowerMockito.verifyStatic;
 import static org.powermock.api.mockito.PowerMockito.whenNew;
 
@@ -31,8 +42,10 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.CursorWrapper;
 import android.database.sqlite.SQLiteDiskIOException;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.text.TextUtils;
 
 import androidx.annotation.Nullable;
 
@@ -42,12 +55,15 @@ import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
 import com.microsoft.appcenter.persistence.Persistence.PersistenceException;
 import com.microsoft.appcenter.utils.AppCenterLog;
 import com.microsoft.appcenter.utils.storage.DatabaseManager;
+import com.microsoft.appcenter.utils.storage.FileManager;
 
 import org.json.JSONException;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -58,14 +74,19 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 @SuppressWarnings("unused")
 @PrepareForTest({
         AppCenterLog.class,
         DatabaseManager.class,
-        DatabasePersistence.class
+        DatabasePersistence.class,
+        FileManager.class,
+        TextUtils.class
 })
 @RunWith(PowerMockRunner.class)
 public class DatabasePersistenceTest {
@@ -107,7 +128,7 @@ public class DatabasePersistenceTest {
         /* Mock instances. */
         mockStatic(AppCenterLog.class);
         DatabasePersistence persistence = createDatabasePersistenceInstance(1, DatabasePersistence.SCHEMA);
-        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), any(), any(String[].class), anyString())).thenReturn(mCursor);
+        when(mDatabaseManager.getGroupedCursor(isNull(), any(String[].class), isNull(), anyString())).thenReturn(mCursor);
         when(mCursor.moveToNext()).thenThrow(new RuntimeException());
 
         /* Try to get logs count. */
@@ -132,28 +153,22 @@ public class DatabasePersistenceTest {
         final int groupCount = 4;
         final int logCount = 10;
 
-        /* Mock logs. */
-        List<List<ContentValues>> list = new ArrayList<>();
-        for (int i = 0; i < groupCount; i++) {
-            List<ContentValues> iterator = new ArrayList<>();
-            for (long l = 1; l <= logCount; l++) {
-                ContentValues values = mock(ContentValues.class);
-                when(values.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(l + i * logCount);
-                when(values.getAsString(DatabasePersistence.COLUMN_LOG)).thenReturn("{}");
-                iterator.add(values);
-            }
-            list.add(iterator);
-        }
-
         /* Mock instances. */
-        when(mDatabaseManager.nextValues(any(Cursor.class))).thenCallRealMethod();
         DatabasePersistence persistence = createDatabasePersistenceInstance();
+        Cursor[] logCursors = new Cursor[groupCount];
         for (int i = 0; i < groupCount; i++) {
-            MockCursor mockCursor = new MockCursor(list.get(i));
-            mockCursor.mockBuildValues(mDatabaseManager);
-            when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), any(), eq(new String[]{String.valueOf(i)}), anyString()))
-                    .thenReturn(mockCursor);
+            List<Object[]> ids = new ArrayList<>();
+            List<Object[]> logs = new ArrayList<>();
+            for (long l = 1; l <= logCount; l++) {
+                ids.add(new Object[]{l + i * logCount});
+                logs.add(new Object[]{l + i * logCount, "{}", null, null, 0, null});
+            }
+            when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), eq(SELECT_PRIMARY_KEY), eq(new String[]{String.valueOf(i)}), anyString(), anyString()))
+                    .thenReturn(new MockCursor(ids));
+            logCursors[i] = new MockCursor(logs);
         }
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), isNotNull(), isNull(), anyString(), isNull()))
+                .thenReturn(logCursors[0], logCursors[1], logCursors[2], logCursors[3]);
         LogSerializer mockLogSerializer = mock(LogSerializer.class);
         when(mockLogSerializer.deserializeLog(anyString(), any())).thenReturn(mock(Log.class));
 
@@ -182,7 +197,7 @@ public class DatabasePersistenceTest {
         mockStatic(AppCenterLog.class);
         when(mDatabaseManager.nextValues(any(Cursor.class))).thenCallRealMethod();
         DatabasePersistence persistence = createDatabasePersistenceInstance(1, DatabasePersistence.SCHEMA);
-        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), any(), any(String[].class), anyString())).thenThrow(new RuntimeException());
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), any(), any(String[].class), anyString(), anyString())).thenThrow(new RuntimeException());
 
         /* Try to get logs. */
         ArrayList<Log> outLogs = new ArrayList<>();
@@ -201,7 +216,7 @@ public class DatabasePersistenceTest {
         mockStatic(AppCenterLog.class);
         when(mDatabaseManager.nextValues(any(Cursor.class))).thenCallRealMethod();
         DatabasePersistence persistence = createDatabasePersistenceInstance(1, DatabasePersistence.SCHEMA);
-        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), any(), any(String[].class), anyString())).thenReturn(mCursor);
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), any(), any(String[].class), anyString(), anyString())).thenReturn(mCursor);
         when(mCursor.moveToNext()).thenThrow(new RuntimeException());
 
         /* Try to get logs. */
@@ -215,90 +230,72 @@ public class DatabasePersistenceTest {
     }
 
     @Test
-    public void getLogsWithGetCorruptedIdsException() throws Exception {
+    public void getLogsWithReadPayloadsException() throws Exception {
 
         /* Mock instances. */
         mockStatic(AppCenterLog.class);
-        when(mDatabaseManager.nextValues(any(Cursor.class))).thenCallRealMethod();
         DatabasePersistence persistence = createDatabasePersistenceInstance();
 
-        /* Make corrupted log. */
-        List<ContentValues> fieldValues = new ArrayList<>();
-        {
-            /* Empty record, "corrupted", cause identifier is null (and no other field either). */
-            ContentValues contentValues = mock(ContentValues.class);
-            when(contentValues.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(null);
-            fieldValues.add(contentValues);
-        }
-
-        /* Mock log sequence retrieved from cursor. */
-        MockCursor mockCursor = new MockCursor(fieldValues);
-        mockCursor.mockBuildValues(mDatabaseManager);
-        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), isNull(), any(String[].class), anyString())).thenReturn(mockCursor);
+        /* Identifiers can be read but not payloads. */
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), eq(SELECT_PRIMARY_KEY), any(String[].class), anyString(), anyString()))
+                .thenReturn(new MockCursor(Collections.singletonList(new Object[]{0L})));
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), isNotNull(), isNull(), anyString(), isNull()))
+                .thenThrow(new SQLiteDiskIOException());
 
-        /* Mock second cursor with identifiers only. */
-        Cursor failingCursor = mCursor;
-        when(failingCursor.moveToNext()).thenThrow(new SQLiteDiskIOException());
-        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), isNotNull(), any(String[].class), any())).thenReturn(failingCursor);
-
-        /* Get logs and verify we get only non corrupted logs. */
+        /* Get logs and verify we get nothing. */
         ArrayList<Log> outLogs = new ArrayList<>();
         persistence.getLogs("mock", Collections.emptyList(), 50, outLogs);
         assertEquals(0, outLogs.size());
 
-        /* There is an error log. */
+        /* There is an error log and the log that could not be read is kept. */
         verifyStatic(AppCenterLog.class);
         AppCenterLog.error(eq(AppCenter.LOG_TAG), anyString(), any(RuntimeException.class));
+        verify(mDatabaseManager, never()).delete(anyLong());
+    }
+
+    @Test
+    public void getLogsWithCorruptedCompressedPayload() throws Exception {
+
+        /* Mock instances. */
+        mockStatic(AppCenterLog.class);
+        DatabasePersistence persistence = createDatabasePersistenceInstance();
+        persistence.setLogSerializer(mock(LogSerializer.class));
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), eq(SELECT_PRIMARY_KEY), any(String[].class), anyString(), anyString()))
+                .thenReturn(new MockCursor(Collections.singletonList(new Object[]{5L})));
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), isNotNull(), isNull(), anyString(), isNull()))
+                .thenReturn(new MockCursor(Collections.singletonList(new Object[]{5L, new byte[]{1, 2, 3}, null, null, DatabasePersistence.PAYLOAD_ENCODING_DEFLATE, null})));
+
+        /* The log cannot be decompressed so it is deleted like a log that cannot be deserialized. */
+        ArrayList<Log> outLogs = new ArrayList<>();
+        assertNull(persistence.getLogs("mock", Collections.emptyList(), 50, outLogs));
+        assertEquals(0, outLogs.size());
+        verify(mDatabaseManager).delete(Collections.singletonList(5L));
     }
 
     @Test
     public void getLogsWithCorruption() throws Exception {
 
         /* Mock instances. */
-        int logCount = 3;
-        when(mDatabaseManager.nextValues(any(Cursor.class))).thenCallRealMethod();
         DatabasePersistence persistence = createDatabasePersistenceInstance();
 
         /* Make 3 logs, the second one will be corrupted. */
-        List<ContentValues> fieldValues = new ArrayList<>(logCount);
-        {
-            /* Valid record. */
-            ContentValues contentValues = mock(ContentValues.class);
-            when(contentValues.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(0L);
-            when(contentValues.getAsString(DatabasePersistence.COLUMN_LOG)).thenReturn("first");
-            fieldValues.add(contentValues);
-        }
-        {
-            /* Empty record, "corrupted", cause identifier is null (and no other field either). */
-            ContentValues contentValues = mock(ContentValues.class);
-            when(contentValues.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(null);
-            fieldValues.add(contentValues);
-        }
-        {
-            /* Valid record. */
-            ContentValues contentValues = mock(ContentValues.class);
-            when(contentValues.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(2L);
-            when(contentValues.getAsString(DatabasePersistence.COLUMN_LOG)).thenReturn("last");
-            fieldValues.add(contentValues);
-        }
-
-        /* Mock log sequence retrieved from cursor. */
-        MockCursor mockCursor = new MockCursor(fieldValues);
-        mockCursor.mockBuildValues(mDatabaseManager);
-        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), isNull(), any(String[].class), anyString()))
-                .thenReturn(mockCursor);
-
-        /* Mock second cursor with identifiers only. */
-        List<ContentValues> idValues = new ArrayList<>(logCount);
-        for (long i = 0; i < logCount; i++) {
-            ContentValues contentValues = mock(ContentValues.class);
-            when(contentValues.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(i);
-            idValues.add(contentValues);
-        }
-        MockCursor mockIdCursor = new MockCursor(idValues);
-        mockIdCursor.mockBuildValues(mDatabaseManager);
-        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), isNotNull(), any(String[].class), isNull()))
-                .thenReturn(mockIdCursor);
+        List<Object[]> ids = new ArrayList<>();
+        ids.add(new Object[]{0L});
+        ids.add(new Object[]{1L});
+        ids.add(new Object[]{2L});
+        List<Object[]> logs = new ArrayList<>();
+        logs.add(new Object[]{0L, "first", null, null, 0, null});
+
+        /* Empty record, "corrupted", cause identifier is null (and no other field either). */
+        logs.add(new Object[]{null, null, null, null, 0, null});
+        logs.add(new Object[]{2L, "last", null, null, 0, null});
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), eq(SELECT_PRIMARY_KEY), any(String[].class), anyString(), anyString()))
+                .thenReturn(new MockCursor(ids));
+
+        /* The corrupted record is still empty when read alone. */
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), isNotNull(), isNull(), anyString(), isNull()))
+                .thenReturn(new MockCursor(logs))
+                .thenReturn(new MockCursor(Collections.singletonList(new Object[]{null, null, null, null, 0, null})));
 
         /* Mock serializer and eventually the database. */
         LogSerializer logSerializer = mock(LogSerializer.class);
@@ -318,85 +315,35 @@ public class DatabasePersistenceTest {
         /* Get logs and verify we get only non corrupted logs. */
         ArrayList<Log> outLogs = new ArrayList<>();
         persistence.getLogs("mock", Collections.emptyList(), 50, outLogs);
-        assertEquals(logCount - 1, outLogs.size());
+        assertEquals(2, outLogs.size());
         assertEquals("first", outLogs.get(0).getType());
         assertEquals("last", outLogs.get(1).getType());
 
         /* Verify we detected and deleted the corrupted log, the second one. */
         verify(mDatabaseManager).delete(1);
 
-        /* Verify next call is empty logs as they are pending. */
-        outLogs = new ArrayList<>();
-        persistence.getLogs("mock", Collections.emptyList(), 50, outLogs);
-        assertEquals(0, outLogs.size());
-
         /*
-         * Add new logs with corruption again. First 2 logs are still there.
-         * Also this time the corrupted log will not even return its identifier when scanning
-         * with only id fields, to test that the delete fails gracefully and that we can still
-         * work with other logs.
+         * Add new logs with corruption again. First 2 logs are pending.
+         * This time reading the corrupted log fails instead of returning an empty row,
+         * to test that the other logs can still be read.
          */
-        logCount = 4;
-        fieldValues = new ArrayList<>(logCount);
-        {
-            /* Valid record. */
-            ContentValues contentValues = mock(ContentValues.class);
-            when(contentValues.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(0L);
-            when(contentValues.getAsString(DatabasePersistence.COLUMN_LOG)).thenReturn("first");
-            fieldValues.add(contentValues);
-        }
-        {
-            /* Valid record. */
-            ContentValues contentValues = mock(ContentValues.class);
-            when(contentValues.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(2L);
-            when(contentValues.getAsString(DatabasePersistence.COLUMN_LOG)).thenReturn("last");
-            fieldValues.add(contentValues);
-        }
-        {
-            /* New corrupted record. */
-            ContentValues contentValues = mock(ContentValues.class);
-            when(contentValues.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(null);
-            fieldValues.add(contentValues);
-        }
-        {
-            /* Valid new record. */
-            ContentValues contentValues = mock(ContentValues.class);
-            when(contentValues.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(4L);
-            when(contentValues.getAsString(DatabasePersistence.COLUMN_LOG)).thenReturn("true last");
-            fieldValues.add(contentValues);
-        }
-        mockCursor = new MockCursor(fieldValues) {
-
-            @Override
-            public void close() {
-
-                /* It should be ignored. */
-                throw new RuntimeException();
-            }
-        };
-        mockCursor.mockBuildValues(mDatabaseManager);
-        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), isNull(), any(String[].class), anyString()))
-                .thenReturn(mockCursor);
-        idValues = new ArrayList<>(4);
-
-        /* Here the id cursor will also skip the new corrupted log which id would be 3. */
-        for (long i = 0; i < logCount; i += 2) {
-            ContentValues contentValues = mock(ContentValues.class);
-            when(contentValues.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(i);
-            idValues.add(contentValues);
-        }
-        mockIdCursor = new MockCursor(idValues) {
-
-            @Override
-            public void close() {
-
-                /* It should be ignored. */
-                throw new RuntimeException();
-            }
-        };
-        mockIdCursor.mockBuildValues(mDatabaseManager);
-        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), isNotNull(), any(String[].class), isNull()))
-                .thenReturn(mockIdCursor);
+        ids = new ArrayList<>();
+        ids.add(new Object[]{3L});
+        ids.add(new Object[]{4L});
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), eq(SELECT_PRIMARY_KEY), any(String[].class), anyString(), anyString()))
+                .thenReturn(new MockCursor(ids));
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), isNotNull(), isNull(), anyString(), isNull()))
+                .thenReturn(new MockCursor(Arrays.asList(new Object[]{3L, null, null, null, 0, null}, new Object[]{4L, "true last", null, null, 0, null}), 0))
+                .thenReturn(new MockCursor(Collections.singletonList(new Object[]{3L, null, null, null, 0, null}), 0))
+                .thenReturn(new MockCursor(Collections.singletonList(new Object[]{4L, "true last", null, null, 0, null})) {
+
+                    @Override
+                    public void close() {
+
+                        /* It should be ignored. */
+                        throw new RuntimeException();
+                    }
+                });
 
         /* Verify next call is only the new valid log as others are marked pending. */
         outLogs = new ArrayList<>();
@@ -404,8 +351,9 @@ public class DatabasePersistenceTest {
         assertEquals(1, outLogs.size());
         assertEquals("true last", outLogs.get(0).getType());
 
-        /* Verify that the only log we deleted in the entire test was the one from previous test (id=1). */
-        verify(mDatabaseManager).delete(anyLong());
+        /* Verify that only corrupted logs were deleted. */
+        verify(mDatabaseManager).delete(3);
+        verify(mDatabaseManager, times(2)).delete(anyLong());
     }
 
     @Test
@@ -434,8 +382,9 @@ public class DatabasePersistenceTest {
 
         /* Mock the database managers methods. */
         when(mDatabaseManager.getMaxSize()).thenReturn((long) deserializedLog.getBytes(StandardCharsets.UTF_8).length * 3);
-        when(mDatabaseManager.deleteTheOldestRecord(anySet(), anyString(), anyInt())).thenReturn(null);
-        when(mDatabaseManager.put(any(ContentValues.class))).thenThrow(new SQLiteFullException());
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), isNotNull(), any(String[].class), anyString()))
+                .thenReturn(new MockCursor(Collections.<Object[]>emptyList()));
+        when(mDatabaseManager.insert(any(String[].class), any(Object[].class))).thenThrow(new SQLiteFullException());
 
         /* Persist a log and throwing an exception when trying to free space for a new record. */
         persistence.putLog(mock(Log.class), "mock", NORMAL);
@@ -444,15 +393,8 @@ public class DatabasePersistenceTest {
     @Test
     public void successfullyFileDeletingWhileFileScanning() throws Exception {
         /* Initialize mocks. */
-        ContentValues mockContentValues = mock(ContentValues.class);
         mockStatic(AppCenterLog.class);
-
-        /* Setup behaviour for database manager, cursor and content values mocks. */
         whenNew(DatabaseManager.class).withAnyArguments().thenReturn(mDatabaseManager);
-        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), any(), any(String[].class), any())).thenReturn(mCursor);
-        when(mCursor.moveToNext()).thenReturn(true).thenReturn(false);
-        when(mDatabaseManager.buildValues(mCursor)).thenReturn(mockContentValues);
-        when(mockContentValues.getAsLong(PRIMARY_KEY)).thenReturn(1L);
 
         /*
          * Setup behaviour for files and directories mocks for searching in the file hierarchy.
@@ -474,33 +416,51 @@ public class DatabasePersistenceTest {
         File redundantFileInGroupDirectorySecond = mLargePayloadsFolder.newFile("group2/someFile.tmp");
         whenNew(File.class).withAnyArguments().thenReturn(largePayloadDirectory);
 
-        /* Initialize files checking. */
-        Persistence persistence = new DatabasePersistence(mContext);
+        /* The constructor does not scan files. */
+        DatabasePersistence persistence = new DatabasePersistence(mContext);
+        assertNotNull(persistence.mLargePayloadScan);
+        assertFalse(persistence.mLargePayloadScan.isFinished());
+
+        /* Scan files, nothing is applied until the persistence needs it. */
+        persistence.mLargePayloadScan.doInBackground();
+        assertTrue(persistence.mLargePayloadScan.isFinished());
+        assertEquals(2, persistence.mLargePayloadScan.getFiles().size());
+        assertTrue(lastedLargePayloadFile.exists());
 
         /* There is an warning log after file with name that cannot be converted to number. */
         verifyStatic(AppCenterLog.class);
         AppCenterLog.warn(eq(AppCenter.LOG_TAG), anyString());
 
+        /* Only the first log is still stored, identifiers are checked in a single query. */
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), eq(SELECT_PRIMARY_KEY), isNull(), isNull()))
+                .thenReturn(new MockCursor(Collections.singletonList(new Object[]{1L})));
+        persistence.applyLargePayloadScan();
+        verify(mDatabaseManager).getCursor(any(SQLiteQueryBuilder.class), eq(SELECT_PRIMARY_KEY), isNull(), isNull());
+        assertNull(persistence.mLargePayloadScan);
+        assertEquals(Collections.singletonMap(1L, 0L), persistence.mLargePayloadSizes);
+        assertTrue(largePayloadFile.exists());
+        assertFalse(lastedLargePayloadFile.exists());
+
         /* There is an debug log after successfully deleting lasted file. */
         verifyStatic(AppCenterLog.class);
         AppCenterLog.debug(eq(AppCenter.LOG_TAG), anyString());
+
+        /* Applying again does nothing. */
+        persistence.applyLargePayloadScan();
+        verify(mDatabaseManager).getCursor(any(SQLiteQueryBuilder.class), eq(SELECT_PRIMARY_KEY), isNull(), isNull());
     }
 
     @Test
     public void failedToDeleteFileWhileFileScanning() throws Exception {
         /* Initialize mocks. */
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(PRIMARY_KEY, 1L);
         mockStatic(AppCenterLog.class);
         File mockLargePayloadDirectory = mock(File.class);
         File mockGroupDirectory = mock(File.class);
         File mockLastedLargePayloadFileWithError = mock(File.class);
 
-        /* Setup behaviour for database manager, cursor and content values mocks. */
+        /* Setup behaviour for database manager: the log of the file is not stored anymore. */
         whenNew(DatabaseManager.class).withAnyArguments().thenReturn(mDatabaseManager);
-        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), any(), any(String[].class), any())).thenReturn(mCursor);
-        when(mCursor.moveToNext()).thenReturn(true).thenReturn(false);
-        when(mDatabaseManager.buildValues(mCursor)).thenReturn(contentValues);
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), any(), any(), any())).thenReturn(new MockCursor(Collections.<Object[]>emptyList()));
 
         /*
          * Setup behaviour for files and directories mocks for searching in the file hierarchy.
@@ -510,25 +470,49 @@ public class DatabasePersistenceTest {
         when(mockLargePayloadDirectory.listFiles()).thenReturn(new File[]{mockGroupDirectory});
         when(mockLastedLargePayloadFileWithError.getName()).thenReturn("3.json");
         when(mockLastedLargePayloadFileWithError.delete()).thenReturn(false);
+        when(mockLastedLargePayloadFileWithError.exists()).thenReturn(true);
         when(mockGroupDirectory.listFiles(any(FilenameFilter.class))).thenReturn(new File[]{mockLastedLargePayloadFileWithError});
 
         /* Initialize files checking */
-        Persistence persistence = new DatabasePersistence(mContext);
+        DatabasePersistence persistence = new DatabasePersistence(mContext);
+        persistence.mLargePayloadScan.doInBackground();
+        persistence.applyLargePayloadScan();
 
         /* Verification of try of file deleting. */
         verify(mockLastedLargePayloadFileWithError).delete();
+        assertTrue(persistence.mLargePayloadSizes.isEmpty());
 
         /* There is an warning log. */
         verifyStatic(AppCenterLog.class);
         AppCenterLog.warn(eq(AppCenter.LOG_TAG), anyString());
     }
 
+    @Test
+    public void keepFilesWhenLargePayloadCheckFails() throws Exception {
+        mockStatic(AppCenterLog.class);
+        mLargePayloadsFolder.newFolder("group");
+        File largePayloadFile = mLargePayloadsFolder.newFile("group/4.json");
+        whenNew(DatabaseManager.class).withAnyArguments().thenReturn(mDatabaseManager);
+        whenNew(File.class).withAnyArguments().thenReturn(mLargePayloadsFolder.getRoot());
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), any(), any(), any())).thenThrow(new SQLiteException());
+        DatabasePersistence persistence = new DatabasePersistence(mContext);
+
+        /* Files whose log cannot be checked are kept. */
+        persistence.mLargePayloadScan.doInBackground();
+        persistence.applyLargePayloadScan();
+        assertTrue(largePayloadFile.exists());
+        assertEquals(Collections.singletonMap(4L, 0L), persistence.mLargePayloadSizes);
+        verifyStatic(AppCenterLog.class);
+        AppCenterLog.error(eq(AppCenter.LOG_TAG), anyString(), any(SQLiteException.class));
+    }
+
     @Test
     public void failedToDeleteLargePayloadFileWhatDoesNotFitMaxSize() throws Exception {
         /* Initialize mocks. */
         mockStatic(AppCenterLog.class);
-        Persistence persistence = createDatabasePersistenceInstance();
-        ContentValues mockContentValues = mock(ContentValues.class);
+        DatabasePersistence persistence = createDatabasePersistenceInstance();
+        Persistence.Listener listener = mock(Persistence.Listener.class);
+        persistence.setListener(listener);
         File mockGroupDirectory = mock(File.class);
         File mockLargePayloadFile = mock(File.class);
         File mockLargePayloadFileWithError = mock(File.class);
@@ -538,14 +522,13 @@ public class DatabasePersistenceTest {
         long errorLogId = 2;
         long maxSize = 10;
 
-        /* Setup behaviour for database manager, cursor and content values mocks. */
-        when(mCursor.moveToNext()).thenReturn(true).thenReturn(false);
+        /* Setup behaviour for database manager: both logs are needed to free enough bytes. */
         when(mDatabaseManager.setMaxSize(anyLong())).thenReturn(true);
         when(mDatabaseManager.getMaxSize()).thenReturn(maxSize);
-        when(mDatabaseManager.getCurrentSize()).thenReturn(maxSize + 2).thenReturn(maxSize + 1).thenReturn(maxSize - 1);
-        when(mDatabaseManager.deleteTheOldestRecord(anySet(), anyString(), anyInt())).thenReturn(mockContentValues);
-        when(mockContentValues.getAsLong(PRIMARY_KEY)).thenReturn(logId).thenReturn(errorLogId);
-        when(mockContentValues.getAsString(DatabasePersistence.COLUMN_GROUP)).thenReturn(mockGroup);
+        when(mDatabaseManager.getUsedSize()).thenReturn(maxSize + DatabasePersistence.ROW_SIZE_OVERHEAD + 1);
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), isNotNull(), any(String[].class), anyString()))
+                .thenReturn(new MockCursor(Arrays.asList(new Object[]{logId, mockGroup, 1L, null}, new Object[]{errorLogId, mockGroup, 1L, null})));
+        when(mDatabaseManager.delete(anyCollection())).thenReturn(1);
 
         /*
          * Setup behaviour for files and directories mocks.
@@ -555,10 +538,10 @@ public class DatabasePersistenceTest {
         whenNew(File.class).withAnyArguments().thenReturn(mockGroupDirectory);
         whenNew(File.class).withArguments(mockGroupDirectory, logId + logFileExtension).thenReturn(mockLargePayloadFile);
         whenNew(File.class).withArguments(mockGroupDirectory, errorLogId + logFileExtension).thenReturn(mockLargePayloadFileWithError);
-        when(mockLargePayloadFile.exists()).thenReturn(true);
         when(mockLargePayloadFile.delete()).thenReturn(true);
-        when(mockLargePayloadFileWithError.exists()).thenReturn(true);
         when(mockLargePayloadFileWithError.delete()).thenReturn(false);
+        persistence.mLargePayloadSizes.put(logId, 0L);
+        persistence.mLargePayloadSizes.put(errorLogId, 0L);
 
         /* Initialize deleting of logs that not fit max storage size. */
         persistence.setMaxStorageSize(maxSize);
@@ -570,6 +553,324 @@ public class DatabasePersistenceTest {
         /* Verification of tries of files deleting. */
         verify(mockLargePayloadFile).delete();
         verify(mockLargePayloadFileWithError).delete();
+        verify(mDatabaseManager).delete(new HashSet<>(Arrays.asList(logId, errorLogId)));
+        verify(listener).onLogsEvicted(mockGroup, 2);
+    }
+
+    @Test
+    public void evictOldestLogsUntilEnoughBytesAreFreed() throws Exception {
+        DatabasePersistence persistence = createDatabasePersistenceInstance();
+        Persistence.Listener listener = mock(Persistence.Listener.class);
+        persistence.setListener(listener);
+
+        /* Storage is over its limit by 2 rows of 100 bytes. */
+        long maxSize = 1000;
+        int rowSize = 100 - DatabasePersistence.ROW_SIZE_OVERHEAD;
+        when(mDatabaseManager.getMaxSize()).thenReturn(maxSize);
+        when(mDatabaseManager.getUsedSize()).thenReturn(maxSize + 199);
+        List<Object[]> rows = new ArrayList<>();
+        for (long id = 1; id <= 5; id++) {
+            rows.add(new Object[]{id, id < 2 ? "group1" : "group2", (long) rowSize, null});
+        }
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), isNotNull(), any(String[].class), anyString()))
+                .thenReturn(new MockCursor(rows));
+        when(mDatabaseManager.delete(anyCollection())).thenReturn(2);
+
+        /* The second log is being sent. */
+        persistence.mPendingDbIdentifiers.add(2L);
+
+        /* Only the 2 oldest logs that are not being sent are deleted, in a single statement. */
+        persistence.deleteLogsThatNotFitMaxSize();
+        verify(mDatabaseManager).delete(new HashSet<>(Arrays.asList(1L, 3L)));
+        verify(mDatabaseManager, never()).delete(anyLong());
+        verify(listener).onLogsEvicted("group1", 1);
+        verify(listener).onLogsEvicted("group2", 1);
+
+        /* The freed bytes are accounted for without checking the database again. */
+        assertEquals(maxSize - 1, persistence.mDatabaseSize);
+        persistence.deleteLogsThatNotFitMaxSize();
+        verify(mDatabaseManager).getUsedSize();
+        verify(mDatabaseManager).getMaxSize();
+    }
+
+    @Test
+    public void countLogsFromCounters() throws Exception {
+        DatabasePersistence persistence = createDatabasePersistenceInstance();
+        when(mDatabaseManager.getGroupedCursor(isNull(), any(String[].class), isNull(), anyString()))
+                .thenReturn(new MockCursor(Arrays.asList(new Object[]{"test-p1", null, 2, 4L}, new Object[]{"test-p1", "key1", 3, 6L}, new Object[]{"test-p2", null, 1, 2L})));
+        when(mDatabaseManager.getMaxSize()).thenReturn(1000000L);
+        when(mDatabaseManager.insert(any(String[].class), any(Object[].class))).thenReturn(1L);
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(any(Log.class))).thenReturn("{}");
+        persistence.setLogSerializer(logSerializer);
+
+        /* Logs of all groups are counted with a single query. */
+        assertEquals(5, persistence.countLogs("test-p1"));
+        assertEquals(2, persistence.countLogs("test-p1", Collections.singleton("key1")));
+        assertEquals(1, persistence.countLogs("test-p2"));
+        assertEquals(0, persistence.countLogs("test-p3"));
+
+        /* Stored and deleted logs are counted without querying again. */
+        persistence.putLog(mock(Log.class), "test-p3", NORMAL);
+        assertEquals(1, persistence.countLogs("test-p3"));
+        persistence.deleteLogs("test-p1");
+        assertEquals(0, persistence.countLogs("test-p1"));
+        verify(mDatabaseManager).getGroupedCursor(isNull(), any(String[].class), isNull(), anyString());
+
+        /* Logs are counted again after a failed transaction. */
+        when(mDatabaseManager.beginTransaction()).thenReturn(true);
+        when(mDatabaseManager.endTransaction()).thenReturn(false);
+        persistence.putLogs(Collections.singletonList(mock(Log.class)), "test-p3", NORMAL);
+        assertNull(persistence.mLogCounts);
+    }
+
+    @Test
+    public void largePayloadFilesDeletedWhenTransactionFails() throws Exception {
+        DatabasePersistence persistence = spy(createDatabasePersistenceInstance());
+        File groupDirectory = mLargePayloadsFolder.newFolder("test-p1");
+        doReturn(groupDirectory).when(persistence).getLargePayloadGroupDirectory("test-p1");
+        when(mDatabaseManager.getMaxSize()).thenReturn(PAYLOAD_MAX_SIZE * 10L);
+        when(mDatabaseManager.insert(any(String[].class), any(Object[].class))).thenReturn(1L);
+        mockStatic(TextUtils.class);
+        when(TextUtils.getTrimmedLength(anyString())).thenReturn(PAYLOAD_MAX_SIZE + 1);
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(any(Log.class))).thenReturn(new String(new byte[PAYLOAD_MAX_SIZE + 1], StandardCharsets.UTF_8));
+        persistence.setLogSerializer(logSerializer);
+        when(mDatabaseManager.beginTransaction()).thenReturn(true);
+        when(mDatabaseManager.endTransaction()).thenReturn(false);
+
+        /* The rolled back identifier is used again by the next log, its file must not be left behind. */
+        Log log = mock(Log.class);
+        Map<Log, PersistenceException> failures = persistence.putLogs(Collections.singletonList(log), "test-p1", NORMAL);
+        assertTrue(failures.containsKey(log));
+        assertFalse(persistence.getLargePayloadFile(groupDirectory, 1L).exists());
+        assertFalse(persistence.mLargePayloadSizes.containsKey(1L));
+    }
+
+    @Test
+    public void countsAndSizesAreReloadedTogether() throws Exception {
+        DatabasePersistence persistence = createDatabasePersistenceInstance();
+        when(mDatabaseManager.getGroupedCursor(isNull(), any(String[].class), isNull(), anyString()))
+                .thenReturn(new MockCursor(Collections.singletonList(new Object[]{"test-p1", null, 2, 72L})))
+                .thenReturn(new MockCursor(Collections.singletonList(new Object[]{"test-p1", null, 1, 36L})));
+        assertEquals(2, persistence.countLogs("test-p1"));
+
+        /* Deleting a batch whose size is unknown invalidates both counts and sizes. */
+        persistence.mPendingDbIdentifiersGroups.put("test-p1" + "batch", new ArrayList<>(Collections.singletonList(1L)));
+        persistence.mPendingDbIdentifiers.add(1L);
+        persistence.deleteLogs("test-p1", "batch");
+        assertNull(persistence.mLogCounts);
+        assertNull(persistence.mGroupSizes);
+
+        /* Deleting a group still works and counts are loaded again with sizes. */
+        persistence.deleteLogs("test-p2");
+        assertEquals(1, persistence.countLogs("test-p1"));
+        assertNotNull(persistence.mGroupSizes);
+        verify(mDatabaseManager, times(2)).getGroupedCursor(isNull(), any(String[].class), isNull(), anyString());
+    }
+
+    @Test
+    public void groupQuotaEvictsOldestLogsOfGroup() throws Exception {
+        DatabasePersistence persistence = createDatabasePersistenceInstance();
+        Persistence.Listener listener = mock(Persistence.Listener.class);
+        persistence.setListener(listener);
+        when(mDatabaseManager.getGroupedCursor(isNull(), any(String[].class), isNull(), anyString()))
+                .thenReturn(new MockCursor(Collections.singletonList(new Object[]{"test-p1", null, 2, 72L})));
+        when(mDatabaseManager.getMaxSize()).thenReturn(1000000L);
+        when(mDatabaseManager.insert(any(String[].class), any(Object[].class))).thenReturn(1L);
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), isNotNull(), any(String[].class), eq(PRIMARY_KEY)))
+                .thenReturn(new MockCursor(Collections.singletonList(new Object[]{1L, "test-p1", 36L, null})));
+        when(mDatabaseManager.delete(anyCollection())).thenReturn(1);
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(any(Log.class))).thenReturn("{}");
+        persistence.setLogSerializer(logSerializer);
+
+        /* Group stores 200 bytes, the new log needs the oldest log of the group to be evicted. */
+        int rowSize = 2 + DatabasePersistence.ROW_SIZE_OVERHEAD;
+        persistence.setGroupQuota("test-p1", 250, EvictionPolicy.OLDEST_FIRST);
+        persistence.putLog(mock(Log.class), "test-p1", NORMAL);
+        verify(mDatabaseManager).getCursor(any(SQLiteQueryBuilder.class), isNotNull(), eq(new String[]{String.valueOf(NORMAL), "test-p1"}), eq(PRIMARY_KEY));
+        verify(listener).onLogsEvicted("test-p1", 1);
+        verify(listener).onLogsEvictedByQuota("test-p1", 1);
+        assertEquals(Long.valueOf(200 - 36 - DatabasePersistence.ROW_SIZE_OVERHEAD + rowSize), persistence.mGroupSizes.get("test-p1"));
+
+        /* Other groups are not limited. */
+        persistence.putLog(mock(Log.class), "test-p2", NORMAL);
+        verify(mDatabaseManager).delete(anyCollection());
+
+        /* Removing the quota stops evicting. */
+        persistence.setGroupQuota("test-p1", 0, EvictionPolicy.OLDEST_FIRST);
+        persistence.putLog(mock(Log.class), "test-p1", NORMAL);
+        verify(mDatabaseManager).delete(anyCollection());
+        verify(listener).onLogsEvictedByQuota(anyString(), anyInt());
+    }
+
+    @Test
+    public void groupQuotaPercentageRejectsNewLogs() throws Exception {
+        DatabasePersistence persistence = createDatabasePersistenceInstance();
+        Persistence.Listener listener = mock(Persistence.Listener.class);
+        persistence.setListener(listener);
+        when(mDatabaseManager.getGroupedCursor(isNull(), any(String[].class), isNull(), anyString()))
+                .thenReturn(new MockCursor(Collections.singletonList(new Object[]{"test-p1", null, 2, 72L})));
+        when(mDatabaseManager.getMaxSize()).thenReturn(1000L);
+        when(mDatabaseManager.insert(any(String[].class), any(Object[].class))).thenReturn(1L);
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(any(Log.class))).thenReturn("{}");
+        persistence.setLogSerializer(logSerializer);
+
+        /* 20% of the storage is 200 bytes, already used by the group. */
+        persistence.setGroupQuotaPercentage("test-p1", 20, EvictionPolicy.REJECT_NEW);
+        try {
+            persistence.putLog(mock(Log.class), "test-p1", NORMAL);
+            fail("Expected PersistenceException");
+        } catch (PersistenceException ignore) {
+        }
+        verify(listener).onLogRejectedByQuota("test-p1");
+        verify(mDatabaseManager, never()).insert(any(String[].class), any(Object[].class));
+        verify(mDatabaseManager, never()).delete(anyCollection());
+
+        /* Logs fit again in a larger quota. */
+        persistence.setGroupQuotaPercentage("test-p1", 30, EvictionPolicy.REJECT_NEW);
+        persistence.putLog(mock(Log.class), "test-p1", NORMAL);
+        verify(mDatabaseManager).insert(any(String[].class), any(Object[].class));
+    }
+
+    @Test(expected = PersistenceException.class)
+    public void groupQuotaFailsWhenNothingToEvict() throws Exception {
+        mockStatic(AppCenterLog.class);
+        DatabasePersistence persistence = createDatabasePersistenceInstance();
+        when(mDatabaseManager.getGroupedCursor(isNull(), any(String[].class), isNull(), anyString()))
+                .thenReturn(new MockCursor(Collections.singletonList(new Object[]{"test-p1", null, 2, 72L})));
+        when(mDatabaseManager.getMaxSize()).thenReturn(1000000L);
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), isNotNull(), any(String[].class), anyString()))
+                .thenReturn(new MockCursor(Collections.<Object[]>emptyList()));
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(any(Log.class))).thenReturn("{}");
+        persistence.setLogSerializer(logSerializer);
+
+        /* Only logs with a higher priority are left in the group. */
+        persistence.setGroupQuota("test-p1", 250, EvictionPolicy.LOWEST_PRIORITY_FIRST);
+        persistence.putLog(mock(Log.class), "test-p1", NORMAL);
+    }
+
+    @Test
+    public void deleteExpiredLogsByGroupAndType() throws Exception {
+        DatabasePersistence persistence = createDatabasePersistenceInstance();
+        Persistence.Listener listener = mock(Persistence.Listener.class);
+        persistence.setListener(listener);
+
+        /* Nothing expires by default. */
+        assertEquals(0, persistence.deleteExpiredLogs());
+        verify(mDatabaseManager, never()).getCursor(any(SQLiteQueryBuilder.class), isNotNull(), any(String[].class), isNull());
+
+        /* Each time to live selects only its expired logs: first by log type, then by group without those types. */
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), isNotNull(), any(String[].class), isNull()))
+                .thenReturn(new MockCursor(Collections.singletonList(new Object[]{2L, "test-p2", 10L, null})))
+                .thenReturn(new MockCursor(Arrays.asList(
+                        new Object[]{1L, "test-p1", 10L, null},
+                        new Object[]{4L, "test-p1", 10L, null})));
+        when(mDatabaseManager.delete(anyCollection())).thenReturn(2);
+        persistence.mPendingDbIdentifiers.add(4L);
+        persistence.setTimeToLive("test-p1", 1000);
+        persistence.setLogTypeTimeToLive("startService", 60000);
+        assertEquals(2, persistence.deleteExpiredLogs());
+        ArgumentCaptor<String[]> selectionArgs = ArgumentCaptor.forClass(String[].class);
+        verify(mDatabaseManager, times(2)).getCursor(any(SQLiteQueryBuilder.class), isNotNull(), selectionArgs.capture(), isNull());
+        assertEquals("startService", selectionArgs.getAllValues().get(0)[0]);
+        assertEquals(2, selectionArgs.getAllValues().get(0).length);
+        assertEquals("test-p1", selectionArgs.getAllValues().get(1)[0]);
+        assertEquals("startService", selectionArgs.getAllValues().get(1)[2]);
+
+        /* Logs being sent are kept. */
+        verify(mDatabaseManager).delete(eq(new HashSet<>(Arrays.asList(1L, 2L))));
+        verify(listener).onLogsExpired("test-p1", 1);
+        verify(listener).onLogsExpired("test-p2", 1);
+
+        /* Removing time to lives stops expiry. */
+        persistence.setTimeToLive("test-p1", 0);
+        persistence.setLogTypeTimeToLive("startService", 0);
+        assertEquals(0, persistence.deleteExpiredLogs());
+        verify(mDatabaseManager, times(2)).getCursor(any(SQLiteQueryBuilder.class), isNotNull(), any(String[].class), isNull());
+    }
+
+    @Test
+    public void shardDeletesItsDatabaseWithTheLogsOfItsGroup() throws Exception {
+        whenNew(DatabaseManager.class).withAnyArguments().thenReturn(mDatabaseManager);
+        when(mDatabaseManager.getMaxSize()).thenReturn(1000000L);
+        when(mDatabaseManager.deleteDatabase()).thenReturn(true);
+        DatabasePersistence persistence = new DatabasePersistence(mContext, "test/p1");
+        verifyNew(DatabaseManager.class).withArguments(eq(mContext), eq(DatabasePersistence.DATABASE + ".test_p1"), eq(DatabasePersistence.TABLE),
+                anyInt(), any(ContentValues.class), eq(DatabasePersistence.CREATE_LOGS_SQL), any(DatabaseManager.Listener.class));
+        persistence.setMaxStorageSize(1000000L);
+
+        /* The database file is deleted instead of its rows, the maximum size is applied to the new database. */
+        persistence.deleteLogs("test/p1");
+        verify(mDatabaseManager).deleteDatabase();
+        verify(mDatabaseManager, never()).delete(anyString(), any());
+        verify(mDatabaseManager, times(2)).setMaxSize(1000000L);
+
+        /* Rows are deleted if the file cannot be deleted. */
+        when(mDatabaseManager.deleteDatabase()).thenReturn(false);
+        persistence.deleteLogs("test/p1");
+        verify(mDatabaseManager).delete(DatabasePersistence.COLUMN_GROUP, "test/p1");
+    }
+
+    @Test
+    public void applySyncModePerPriority() throws Exception {
+        DatabasePersistence persistence = createDatabasePersistenceInstance();
+        when(mDatabaseManager.getMaxSize()).thenReturn(1000000L);
+        when(mDatabaseManager.insert(any(String[].class), any(Object[].class))).thenReturn(1L);
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(any(Log.class))).thenReturn("{}");
+        persistence.setLogSerializer(logSerializer);
+
+        /* Nothing is changed by default. */
+        persistence.putLog(mock(Log.class), "test-p1", NORMAL);
+        verify(mDatabaseManager, never()).setSynchronous(anyInt());
+
+        /* Each priority uses its own setting, outside of the batch transaction. */
+        persistence.setSyncMode(CRITICAL, SyncMode.OFF);
+        persistence.putLog(mock(Log.class), "test-p1", CRITICAL);
+        verify(mDatabaseManager).setSynchronous(SyncMode.OFF);
+        persistence.putLogs(Collections.singletonList(mock(Log.class)), "test-p1", NORMAL);
+        InOrder inOrder = inOrder(mDatabaseManager);
+        inOrder.verify(mDatabaseManager).setSynchronous(SyncMode.DEFAULT);
+        inOrder.verify(mDatabaseManager).beginTransaction();
+
+        /* Write-ahead logging is delegated. */
+        persistence.setWriteAheadLoggingEnabled(true);
+        verify(mDatabaseManager).setWriteAheadLoggingEnabled(true);
+    }
+
+    @Test
+    public void reconcileDatabaseSizePeriodically() throws Exception {
+        DatabasePersistence persistence = createDatabasePersistenceInstance();
+        when(mDatabaseManager.getMaxSize()).thenReturn(1000000L);
+        when(mDatabaseManager.getUsedSize()).thenReturn(4096L);
+        when(mDatabaseManager.insert(any(String[].class), any(Object[].class))).thenReturn(1L);
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(any(Log.class))).thenReturn("{}");
+        persistence.setLogSerializer(logSerializer);
+
+        /* Used pages are counted after the first insert, then the size is estimated from inserted rows. */
+        int rowSize = 2 + DatabasePersistence.ROW_SIZE_OVERHEAD;
+        for (int i = 0; i < DatabasePersistence.SIZE_RECONCILIATION_INTERVAL; i++) {
+            persistence.putLog(mock(Log.class), "test-p1", NORMAL);
+        }
+        verify(mDatabaseManager).getUsedSize();
+        assertEquals(4096L + (DatabasePersistence.SIZE_RECONCILIATION_INTERVAL - 1) * rowSize, persistence.mDatabaseSize);
+
+        /* Used pages are counted again after enough changes. */
+        persistence.putLog(mock(Log.class), "test-p1", NORMAL);
+        verify(mDatabaseManager, times(2)).getUsedSize();
+        assertEquals(4096L, persistence.mDatabaseSize);
+
+        /* Deleting logs of unknown size requires counting again. */
+        when(mDatabaseManager.delete(DatabasePersistence.COLUMN_GROUP, "test-p1")).thenReturn(2);
+        persistence.deleteLogs("test-p1");
+        persistence.deleteLogsThatNotFitMaxSize();
+        verify(mDatabaseManager, times(3)).getUsedSize();
+        verify(mDatabaseManager).getMaxSize();
     }
 
     @Test(expected = PersistenceException.class)
@@ -603,13 +904,10 @@ public class DatabasePersistenceTest {
     public void putLargePayloadWhatDoNotFitMaxSizeFailed() throws Exception {
         mockStatic(AppCenterLog.class);
         DatabasePersistence persistence = createDatabasePersistenceInstance();
-        File mockLargePayloadFile = mock(File.class);
-        ContentValues mockContentValues = mock(ContentValues.class);
 
         /* Set a mock of database manager. */
         when(mDatabaseManager.getMaxSize()).thenReturn(PAYLOAD_MAX_SIZE + 2L);
-        when(mDatabaseManager.getCurrentSize()).thenReturn(2L);
-        when(mDatabaseManager.deleteTheOldestRecord(anySet(), anyString(), anyInt())).thenReturn(mockContentValues).thenReturn(null);
+        when(mDatabaseManager.getUsedSize()).thenReturn(DatabasePersistence.ROW_SIZE_OVERHEAD + 2L);
 
         /* Set a mock payload. */
         byte[] array = new byte[PAYLOAD_MAX_SIZE + 1];
@@ -620,11 +918,14 @@ public class DatabasePersistenceTest {
         when(logSerializer.serializeLog(any(Log.class))).thenReturn(payloadMock);
         persistence.setLogSerializer(logSerializer);
 
-        /* Setup mock for the firs successful try of deleting the oldest log record. */
-        when(mockContentValues.getAsLong(PRIMARY_KEY)).thenReturn(1L);
-        when(mockContentValues.getAsString(DatabasePersistence.COLUMN_GROUP)).thenReturn("mockGroup");
-        whenNew(File.class).withAnyArguments().thenReturn(mockLargePayloadFile);
-        when(mockLargePayloadFile.exists()).thenReturn(false);
+        /*
+         * Setup mock for the first successful try of deleting the oldest logs, there is nothing left the second time.
+         * Deleting the log did not free any database page, so storage is still full.
+         */
+        when(mDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), isNotNull(), any(String[].class), anyString()))
+                .thenReturn(new MockCursor(Collections.singletonList(new Object[]{1L, "mockGroup", 0L, null})))
+                .thenReturn(new MockCursor(Collections.<Object[]>emptyList()));
+        when(mDatabaseManager.delete(anyCollection())).thenReturn(1);
 
         /* Persist a log. */
         persistence.putLog(mock(Log.class), "test-p1", NORMAL);
@@ -632,32 +933,57 @@ public class DatabasePersistenceTest {
 
     private static class MockCursor extends CursorWrapper {
 
-        private final List<ContentValues> mList;
+        private final List<Object[]> mRows;
+
+        private final int mFailingIndex;
 
         private int mIndex = -1;
 
-        private MockCursor(List<ContentValues> list) {
+        private MockCursor(List<Object[]> rows) {
+            this(rows, -1);
+        }
+
+        private MockCursor(List<Object[]> rows, int failingIndex) {
             super(null);
-            mList = list;
+            mRows = rows;
+            mFailingIndex = failingIndex;
         }
 
         @Override
         public boolean moveToNext() {
-            return ++mIndex < mList.size();
+            if (++mIndex == mFailingIndex) {
+                throw new SQLiteException("Row too big to fit into CursorWindow");
+            }
+            return mIndex < mRows.size();
         }
 
         @Override
-        public void close() {
+        public boolean isNull(int columnIndex) {
+            return mRows.get(mIndex)[columnIndex] == null;
+        }
+
+        @Override
+        public long getLong(int columnIndex) {
+            return (Long) mRows.get(mIndex)[columnIndex];
         }
 
-        private void mockBuildValues(DatabaseManager databaseManager) {
-            when(databaseManager.buildValues(eq(this))).then(new Answer<ContentValues>() {
+        @Override
+        public int getInt(int columnIndex) {
+            return (Integer) mRows.get(mIndex)[columnIndex];
+        }
+
+        @Override
+        public byte[] getBlob(int columnIndex) {
+            return (byte[]) mRows.get(mIndex)[columnIndex];
+        }
 
-                @Override
-                public ContentValues answer(InvocationOnMock invocation) {
-                    return mList.get(mIndex);
-                }
-            });
+        @Override
+        public String getString(int columnIndex) {
+            return (String) mRows.get(mIndex)[columnIndex];
+        }
+
+        @Override
+        public void close() {
         }
     }
 }
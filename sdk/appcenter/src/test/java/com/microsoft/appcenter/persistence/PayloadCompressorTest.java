@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+public class PayloadCompressorTest {
+
+    private static final String LOG = "{\"type\":\"event\",\"timestamp\":\"2026-10-16T12:34:56.789Z\",\"sid\":\"7a9bfc3a-1a5c-4b3d-9b2e-1c2d3e4f5a6b\"," +
+            "\"device\":{\"sdkName\":\"appcenter.android\",\"sdkVersion\":\"5.0.2\",\"model\":\"Pixel 7\",\"oemName\":\"Google\",\"osName\":\"Android\"," +
+            "\"osVersion\":\"14\",\"osBuild\":\"UQ1A.240205.004\",\"osApiLevel\":34,\"locale\":\"en_US\",\"timeZoneOffset\":-420," +
+            "\"screenSize\":\"1080x2400\",\"appVersion\":\"1.2.3\",\"carrierName\":\"T-Mobile\",\"carrierCountry\":\"us\",\"appBuild\":\"123\"," +
+            "\"appNamespace\":\"com.example.app\"},\"id\":\"1b2c3d4e-5f60-7182-93a4-b5c6d7e8f901\",\"name\":\"Clicked\",\"properties\":{\"button\":\"ok\"}}";
+
+    @Test
+    public void roundTrip() throws DataFormatException {
+        PayloadCompressor compressor = new PayloadCompressor();
+        try {
+            assertEquals(LOG, compressor.decompress(compressor.compress(LOG)));
+            assertEquals("", compressor.decompress(compressor.compress("")));
+
+            /* Larger than the internal buffer, with non ASCII characters. */
+            StringBuilder payload = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                payload.append(LOG).append("\u00e9\u4e2d");
+            }
+            assertEquals(payload.toString(), compressor.decompress(compressor.compress(payload.toString())));
+        } finally {
+            compressor.close();
+        }
+    }
+
+    @Test
+    public void dictionaryImprovesCompression() {
+        PayloadCompressor compressor = new PayloadCompressor();
+        byte[] input = LOG.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater();
+        deflater.setInput(input);
+        deflater.finish();
+        int withoutDictionary = deflater.deflate(new byte[input.length * 2]);
+        deflater.end();
+        int withDictionary = compressor.compress(LOG).length;
+        compressor.close();
+        assertTrue(withDictionary < withoutDictionary);
+        assertTrue(withDictionary * 2 < input.length);
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void decompressTruncated() throws DataFormatException {
+        PayloadCompressor compressor = new PayloadCompressor();
+        byte[] data = compressor.compress(LOG);
+        compressor.decompress(Arrays.copyOf(data, data.length / 2));
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void decompressInvalid() throws DataFormatException {
+        new PayloadCompressor().decompress(LOG.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void reusableAfterFailure() throws DataFormatException {
+        PayloadCompressor compressor = new PayloadCompressor();
+        try {
+            compressor.decompress(new byte[]{1, 2, 3});
+        } catch (DataFormatException ignore) {
+        }
+        assertEquals(LOG, compressor.decompress(compressor.compress(LOG)));
+    }
+}
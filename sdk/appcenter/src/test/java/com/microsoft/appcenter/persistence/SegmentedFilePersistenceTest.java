@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import static com.microsoft.appcenter.Flags.CRITICAL;
+import static com.microsoft.appcenter.Flags.NORMAL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
+
+import org.json.JSONException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@SuppressWarnings("TryFinallyCanBeTryWithResources")
+public class SegmentedFilePersistenceTest {
+
+    private static final String GROUP = "test";
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mDirectory;
+
+    private LogSerializer mLogSerializer;
+
+    @Before
+    public void setUp() throws JSONException {
+        mDirectory = mTemporaryFolder.getRoot();
+        mLogSerializer = mock(LogSerializer.class);
+        when(mLogSerializer.serializeLog(any(Log.class))).thenReturn("{\"type\":\"mock\"}");
+        when(mLogSerializer.deserializeLog(anyString(), anyString())).thenReturn(mock(Log.class));
+    }
+
+    private SegmentedFilePersistence createPersistence() {
+        SegmentedFilePersistence persistence = new SegmentedFilePersistence(mock(Context.class), mDirectory);
+        persistence.setLogSerializer(mLogSerializer);
+        return persistence;
+    }
+
+    private static Log mockLog() {
+        Log log = mock(Log.class);
+        when(log.getType()).thenReturn("mock");
+        return log;
+    }
+
+    private File[] getSegmentFiles() {
+        File[] files = new File(mDirectory, GROUP).listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File file, String name) {
+                return name.endsWith(SegmentedFilePersistence.SEGMENT_FILE_EXTENSION);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static void deleteBatch(Persistence persistence, int count) {
+        String batchId = persistence.getLogs(GROUP, Collections.emptyList(), count, new ArrayList<>());
+        assertNotNull(batchId);
+        persistence.deleteLogs(GROUP, batchId);
+    }
+
+    @Test
+    public void recoveryTruncatesTornRecord() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        persistence.putLog(mockLog(), GROUP, NORMAL);
+        persistence.putLog(mockLog(), GROUP, NORMAL);
+        persistence.close();
+        File segment = getSegmentFiles()[0];
+        long validSize = segment.length();
+
+        /* Simulate a write interrupted after the header. */
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(validSize);
+            file.writeInt(100);
+            file.writeInt(42);
+            file.write(new byte[10]);
+        } finally {
+            file.close();
+        }
+        persistence = createPersistence();
+        try {
+            assertEquals(2, persistence.countLogs(GROUP));
+            assertEquals(validSize, segment.length());
+
+            /* New logs go to a new segment. */
+            persistence.putLog(mockLog(), GROUP, NORMAL);
+            assertEquals(2, getSegmentFiles().length);
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void recoveryTruncatesRecordWithInvalidChecksum() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        persistence.putLog(mockLog(), GROUP, NORMAL);
+        persistence.putLog(mockLog(), GROUP, NORMAL);
+        persistence.close();
+        File segment = getSegmentFiles()[0];
+        long size = segment.length();
+
+        /* Flip the last payload byte. */
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(size - 1);
+            byte last = file.readByte();
+            file.seek(size - 1);
+            file.writeByte(last ^ 0xFF);
+        } finally {
+            file.close();
+        }
+        persistence = createPersistence();
+        try {
+            assertEquals(1, persistence.countLogs(GROUP));
+            assertEquals(size / 2, segment.length());
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void recoveryDeletesEmptySegment() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        persistence.putLog(mockLog(), GROUP, NORMAL);
+        persistence.close();
+
+        /* Corrupt the only record. */
+        RandomAccessFile file = new RandomAccessFile(getSegmentFiles()[0], "rw");
+        try {
+            file.writeInt(-1);
+        } finally {
+            file.close();
+        }
+        persistence = createPersistence();
+        try {
+            assertEquals(0, persistence.countLogs(GROUP));
+            assertEquals(0, getSegmentFiles().length);
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void segmentDeletedWhenAllLogsDeleted() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        try {
+            persistence.putLog(mockLog(), GROUP, NORMAL);
+            persistence.putLog(mockLog(), GROUP, NORMAL);
+            File acknowledgments = new File(new File(mDirectory, GROUP), SegmentedFilePersistence.ACKNOWLEDGMENTS_FILE);
+
+            /* Deleting a part of the segment acknowledges the logs. */
+            deleteBatch(persistence, 1);
+            assertEquals(1, getSegmentFiles().length);
+            assertTrue(acknowledgments.exists());
+
+            /* Deleting the rest deletes the segment and the acknowledgments. */
+            deleteBatch(persistence, 1);
+            assertEquals(0, getSegmentFiles().length);
+            assertFalse(acknowledgments.exists());
+            assertEquals(0, persistence.mStoredSize);
+
+            /* A new segment is started. */
+            persistence.putLog(mockLog(), GROUP, NORMAL);
+            assertEquals(1, getSegmentFiles().length);
+            assertEquals(1, persistence.countLogs(GROUP));
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void acknowledgmentsSurviveRestart() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        persistence.putLog(mockLog(), GROUP, NORMAL);
+        persistence.putLog(mockLog(), GROUP, NORMAL);
+        persistence.putLog(mockLog(), GROUP, NORMAL);
+        deleteBatch(persistence, 2);
+        long storedSize = persistence.mStoredSize;
+        persistence.close();
+        persistence = createPersistence();
+        try {
+            assertEquals(1, persistence.countLogs(GROUP));
+            assertEquals(storedSize, persistence.mStoredSize);
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void segmentsRollOverWhenFull() throws Exception {
+        char[] payload = new char[SegmentedFilePersistence.SEGMENT_MAX_SIZE / 2];
+        Arrays.fill(payload, 'a');
+        when(mLogSerializer.serializeLog(any(Log.class))).thenReturn(new String(payload));
+        SegmentedFilePersistence persistence = createPersistence();
+        try {
+            for (int i = 0; i < 3; i++) {
+                persistence.putLog(mockLog(), GROUP, NORMAL);
+            }
+            assertEquals(2, getSegmentFiles().length);
+
+            /* Logs are read across segments. */
+            List<Log> logs = new ArrayList<>();
+            persistence.getLogs(GROUP, Collections.emptyList(), 10, logs);
+            assertEquals(3, logs.size());
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void evictOldestLowestPriorityLogsWhenFull() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        Persistence.Listener listener = mock(Persistence.Listener.class);
+        persistence.setListener(listener);
+        try {
+            persistence.putLog(mockLog(), GROUP, CRITICAL);
+            persistence.putLog(mockLog(), "other", NORMAL);
+            verify(listener).onLogSerialized(eq(GROUP), anyLong());
+            long recordSize = persistence.mStoredSize / 2;
+            assertTrue(persistence.setMaxStorageSize(recordSize * 2));
+
+            /* The oldest normal log is evicted, in any group. */
+            persistence.putLog(mockLog(), GROUP, NORMAL);
+            assertEquals(0, persistence.countLogs("other"));
+            assertEquals(2, persistence.countLogs(GROUP));
+            verify(listener).onLogsEvicted("other", 1);
+
+            /* A critical log evicts a normal log. */
+            persistence.putLog(mockLog(), GROUP, CRITICAL);
+            assertEquals(2, persistence.countLogs(GROUP));
+            verify(listener).onLogsEvicted(GROUP, 1);
+
+            /* A normal log cannot evict critical logs. */
+            try {
+                persistence.putLog(mockLog(), GROUP, NORMAL);
+                fail();
+            } catch (Persistence.PersistenceException ignore) {
+            }
+            assertEquals(2, persistence.countLogs(GROUP));
+
+            /* Cannot shrink below stored logs. */
+            assertFalse(persistence.setMaxStorageSize(recordSize));
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void logsBeingSentAreNotEvicted() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        Persistence.Listener listener = mock(Persistence.Listener.class);
+        persistence.setListener(listener);
+        try {
+            persistence.putLog(mockLog(), "other", NORMAL);
+            persistence.putLog(mockLog(), GROUP, NORMAL);
+            long recordSize = persistence.mStoredSize / 2;
+            assertTrue(persistence.setMaxStorageSize(recordSize * 2));
+            String batchId = persistence.getLogs("other", Collections.<String>emptyList(), 1, new ArrayList<Log>());
+            assertNotNull(batchId);
+
+            /* The oldest log is being sent, the next one is evicted instead. */
+            persistence.putLog(mockLog(), GROUP, NORMAL);
+            assertEquals(1, persistence.countLogs("other"));
+            assertEquals(1, persistence.countLogs(GROUP));
+            verify(listener).onLogsEvicted(GROUP, 1);
+            verify(listener, never()).onLogsEvicted(eq("other"), anyInt());
+
+            /* The log being sent is still deleted when its batch completes. */
+            persistence.deleteLogs("other", batchId);
+            assertEquals(0, persistence.countLogs("other"));
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void oneCollectorGroupsUseTheirOwnDirectory() throws Exception {
+        String oneGroup = GROUP + "/one";
+        SegmentedFilePersistence persistence = createPersistence();
+        Persistence.Listener listener = mock(Persistence.Listener.class);
+        persistence.setListener(listener);
+        try {
+            persistence.putLog(mockLog(), oneGroup, NORMAL);
+            persistence.putLog(mockLog(), GROUP, NORMAL);
+            assertTrue(new File(mDirectory, "test%2Fone").isDirectory());
+            assertFalse(new File(new File(mDirectory, GROUP), "one").exists());
+
+            /* Logs of the One Collector group can be evicted. */
+            long recordSize = persistence.mStoredSize / 2;
+            assertTrue(persistence.setMaxStorageSize(recordSize * 2));
+            persistence.putLog(mockLog(), GROUP, NORMAL);
+            verify(listener).onLogsEvicted(oneGroup, 1);
+            assertEquals(0, persistence.countLogs(oneGroup));
+            persistence.putLog(mockLog(), oneGroup, NORMAL);
+            verify(listener).onLogsEvicted(GROUP, 1);
+        } finally {
+            persistence.close();
+        }
+
+        /* Groups are found again after restart. */
+        persistence = createPersistence();
+        try {
+            assertEquals(1, persistence.countLogs(GROUP));
+            assertEquals(1, persistence.countLogs(oneGroup));
+            persistence.putLog(mockLog(), oneGroup, NORMAL);
+            List<Log> outputLogs = new ArrayList<>();
+            assertNotNull(persistence.getLogs(oneGroup, Collections.emptyList(), 10, outputLogs));
+            assertEquals(2, outputLogs.size());
+
+            /* Deleting the parent group keeps the One Collector group. */
+            persistence.deleteLogs(GROUP);
+            assertEquals(0, persistence.countLogs(GROUP));
+            assertTrue(new File(mDirectory, "test%2Fone").isDirectory());
+            assertEquals(2, persistence.countLogs(oneGroup));
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void groupNamesMapToDirectoryNames() {
+        assertEquals(GROUP, SegmentedFilePersistence.getDirectoryName(GROUP));
+        assertEquals("group_analytics%2Fone", SegmentedFilePersistence.getDirectoryName("group_analytics/one"));
+        assertEquals("group_analytics/one", SegmentedFilePersistence.getGroupName("group_analytics%2Fone"));
+        assertEquals(GROUP, SegmentedFilePersistence.getGroupName(GROUP));
+        assertNull(SegmentedFilePersistence.getGroupName("invalid%"));
+        assertNull(SegmentedFilePersistence.getGroupName("a/b"));
+    }
+
+    @Test(expected = Persistence.PersistenceException.class)
+    public void logLargerThanStorage() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        try {
+            assertTrue(persistence.setMaxStorageSize(10));
+            persistence.putLog(mockLog(), GROUP, NORMAL);
+        } finally {
+            persistence.close();
+        }
+    }
+}
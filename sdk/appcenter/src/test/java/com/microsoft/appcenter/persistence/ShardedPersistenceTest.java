@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import static com.microsoft.appcenter.Flags.CRITICAL;
+import static com.microsoft.appcenter.Flags.NORMAL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import com.microsoft.appcenter.Flags;
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ShardedPersistenceTest {
+
+    private final Map<String, DatabasePersistence> mCreatedShards = new HashMap<>();
+
+    private ShardedPersistence mPersistence;
+
+    @Before
+    public void setUp() {
+        mPersistence = new ShardedPersistence(mock(Context.class)) {
+
+            @NonNull
+            @Override
+            DatabasePersistence createShard(@NonNull String group) {
+                DatabasePersistence shard = mock(DatabasePersistence.class);
+                mCreatedShards.put(group, shard);
+                return shard;
+            }
+        };
+    }
+
+    @Test
+    public void operationsUseTheShardOfTheirGroup() throws Exception {
+        Log log = mock(Log.class);
+        mPersistence.putLog(log, "group1", NORMAL);
+        mPersistence.putLogs(Collections.singletonList(log), "group2", NORMAL);
+        DatabasePersistence shard1 = mCreatedShards.get("group1");
+        DatabasePersistence shard2 = mCreatedShards.get("group2");
+        verify(shard1).putLog(log, "group1", NORMAL);
+        verify(shard2).putLogs(Collections.singletonList(log), "group2", NORMAL);
+
+        /* Shards are created once. */
+        List<Log> logs = new ArrayList<>();
+        when(shard1.getLogs("group1", Collections.<String>emptyList(), 10, logs)).thenReturn("batch");
+        assertEquals("batch", mPersistence.getLogs("group1", Collections.<String>emptyList(), 10, logs));
+        when(shard1.countLogs("group1")).thenReturn(3);
+        assertEquals(3, mPersistence.countLogs("group1"));
+        mPersistence.releaseLogs("group1", "batch");
+        verify(shard1).releaseLogs("group1", "batch");
+        mPersistence.deleteLogs("group1", "batch");
+        verify(shard1).deleteLogs("group1", "batch");
+        mPersistence.deleteOldestLogs("group1", 2);
+        verify(shard1).deleteOldestLogs("group1", 2);
+        assertEquals(mPersistence.mShards.get("group1"), shard1);
+        assertEquals(2, mCreatedShards.size());
+
+        /* Deleting all logs of a group only touches its shard. */
+        mPersistence.deleteLogs("group2");
+        verify(shard2).deleteLogs("group2");
+        verify(shard1, never()).deleteLogs("group2");
+
+        /* Operations without group apply to all shards. */
+        when(shard1.deleteExpiredLogs()).thenReturn(1);
+        when(shard2.deleteExpiredLogs()).thenReturn(2);
+        assertEquals(3, mPersistence.deleteExpiredLogs());
+        mPersistence.clearPendingLogState();
+        verify(shard1).clearPendingLogState();
+        verify(shard2).clearPendingLogState();
+        mPersistence.checkpoint();
+        verify(shard1).checkpoint();
+        verify(shard2).checkpoint();
+        mPersistence.close();
+        verify(shard1).close();
+        verify(shard2).close();
+        assertTrue(mPersistence.mShards.isEmpty());
+    }
+
+    @Test
+    public void settingsApplyToExistingAndNewShards() {
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        Persistence.Listener listener = mock(Persistence.Listener.class);
+        mPersistence.setLogSerializer(logSerializer);
+        mPersistence.setListener(listener);
+        mPersistence.setPayloadCompressionEnabled(true);
+        mPersistence.setWriteAheadLoggingEnabled(true);
+        mPersistence.setSyncMode(NORMAL, SyncMode.OFF);
+        mPersistence.setLogTypeTimeToLive("event", 1000);
+        assertTrue(mPersistence.setMaxStorageSize(4096));
+        assertTrue(mCreatedShards.isEmpty());
+
+        /* Settings of a group create its shard. */
+        mPersistence.setTimeToLive("group1", 2000);
+        mPersistence.setGroupQuota("group1", 1024, EvictionPolicy.REJECT_NEW);
+        mPersistence.setGroupQuotaPercentage("group1", 10, EvictionPolicy.OLDEST_FIRST);
+        DatabasePersistence shard1 = mCreatedShards.get("group1");
+        verify(shard1).setLogSerializer(logSerializer);
+        verify(shard1).setListener(listener);
+        verify(shard1).setPayloadCompressionEnabled(true);
+        verify(shard1).setWriteAheadLoggingEnabled(true);
+        verify(shard1).setSyncMode(NORMAL, SyncMode.OFF);
+        verify(shard1).setLogTypeTimeToLive("event", 1000);
+        verify(shard1).setMaxStorageSize(4096);
+        verify(shard1).setTimeToLive("group1", 2000);
+        verify(shard1).setGroupQuota("group1", 1024, EvictionPolicy.REJECT_NEW);
+        verify(shard1).setGroupQuotaPercentage("group1", 10, EvictionPolicy.OLDEST_FIRST);
+
+        /* Changes are forwarded to existing shards. */
+        mPersistence.setPayloadCompressionEnabled(false);
+        verify(shard1).setPayloadCompressionEnabled(false);
+        mPersistence.setLogTypeTimeToLive("event", 0);
+        verify(shard1).setLogTypeTimeToLive("event", 0);
+        when(shard1.setMaxStorageSize(anyLong())).thenReturn(false);
+        assertFalse(mPersistence.setMaxStorageSize(2048));
+
+        /* Removed time to lives are not given to new shards. */
+        mPersistence.countLogs("group2");
+        verify(mCreatedShards.get("group2"), never()).setLogTypeTimeToLive("event", 1000);
+        verify(mCreatedShards.get("group2")).setMaxStorageSize(2048);
+    }
+
+    @Test
+    public void maxStorageSizeAppliesToAllShards() throws Exception {
+        final Map<DatabasePersistence, Long> sizes = new HashMap<>();
+        Answer<Long> getSize = new Answer<Long>() {
+
+            @Override
+            public Long answer(InvocationOnMock invocation) {
+                return sizes.get((DatabasePersistence) invocation.getMock());
+            }
+        };
+        Answer<Integer> evict = new Answer<Integer>() {
+
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                DatabasePersistence shard = (DatabasePersistence) invocation.getMock();
+                long size = sizes.get(shard);
+                if (size == 0) {
+                    return 0;
+                }
+                sizes.put(shard, Math.max(0, size - (Long) invocation.getArgument(0)));
+                return 1;
+            }
+        };
+        assertTrue(mPersistence.setMaxStorageSize(1000));
+        mPersistence.countLogs("group1");
+        mPersistence.countLogs("group2");
+        DatabasePersistence shard1 = mCreatedShards.get("group1");
+        DatabasePersistence shard2 = mCreatedShards.get("group2");
+        for (DatabasePersistence shard : mCreatedShards.values()) {
+            verify(shard).setMaxStorageSize(1000);
+            when(shard.getStoredSize(anyBoolean())).thenAnswer(getSize);
+            when(shard.evictOldestLogs(anyLong(), anyInt())).thenAnswer(evict);
+        }
+
+        /* Storing a log in a group evicts logs of the largest database when all of them are over the maximum size. */
+        sizes.put(shard1, 400L);
+        sizes.put(shard2, 700L);
+        mPersistence.putLog(mock(Log.class), "group1", NORMAL);
+        verify(shard2).evictOldestLogs(100, Flags.PERSISTENCE_NORMAL);
+        verify(shard1, never()).evictOldestLogs(anyLong(), anyInt());
+        assertEquals(Long.valueOf(600), sizes.get(shard2));
+
+        /* Critical logs can evict critical logs. */
+        sizes.put(shard1, 500L);
+        mPersistence.putLogs(Collections.singletonList(mock(Log.class)), "group1", CRITICAL);
+        verify(shard2).evictOldestLogs(100, Flags.PERSISTENCE_CRITICAL);
+
+        /* Shrinking the maximum size evicts from all databases and fails if logs cannot be evicted. */
+        assertFalse(mPersistence.setMaxStorageSize(200));
+        assertEquals(200, sizes.get(shard1) + sizes.get(shard2));
+        sizes.put(shard1, 300L);
+        sizes.put(shard2, 0L);
+        when(shard1.evictOldestLogs(anyLong(), anyInt())).thenReturn(0);
+        when(shard1.setMaxStorageSize(anyLong())).thenReturn(true);
+        when(shard2.setMaxStorageSize(anyLong())).thenReturn(true);
+        assertFalse(mPersistence.setMaxStorageSize(200));
+        sizes.put(shard1, 100L);
+        assertTrue(mPersistence.setMaxStorageSize(200));
+    }
+
+    @Test
+    public void shardNamesAreValidFileNames() {
+        assertEquals("group_analytics", DatabasePersistence.getShardName("group_analytics"));
+        assertEquals("group_analytics_one", DatabasePersistence.getShardName("group_analytics/one"));
+    }
+}
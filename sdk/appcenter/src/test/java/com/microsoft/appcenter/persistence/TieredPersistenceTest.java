@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import static com.microsoft.appcenter.Flags.CRITICAL;
+import static com.microsoft.appcenter.Flags.NORMAL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
+
+import org.json.JSONException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+public class TieredPersistenceTest {
+
+    private static final String GROUP = "test";
+
+    /**
+     * Serialized size of every log.
+     */
+    private static final int LOG_SIZE = 10;
+
+    private Persistence mDurablePersistence;
+
+    private TieredPersistence mPersistence;
+
+    @Before
+    public void setUp() throws JSONException {
+        mDurablePersistence = mock(Persistence.class);
+        when(mDurablePersistence.putLogs(anyList(), anyString(), anyInt())).thenReturn(new HashMap<Log, Persistence.PersistenceException>());
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(any(Log.class))).thenReturn("0123456789");
+        mPersistence = new TieredPersistence(mDurablePersistence, 3 * LOG_SIZE);
+        mPersistence.setLogSerializer(logSerializer);
+    }
+
+    @Test
+    public void logsSentFromMemoryAreNeverWritten() throws Exception {
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        assertTrue(mPersistence.putLog(log1, GROUP, NORMAL) < 0);
+        assertTrue(mPersistence.putLog(log2, GROUP, NORMAL) < 0);
+        assertEquals(2, mPersistence.countLogs(GROUP));
+
+        /* Durable storage is not read while empty. */
+        List<Log> logs = new ArrayList<>();
+        String batchId = mPersistence.getLogs(GROUP, Collections.<String>emptyList(), 10, logs);
+        assertNotNull(batchId);
+        assertEquals(Arrays.asList(log1, log2), logs);
+        assertEquals(2 * LOG_SIZE, mPersistence.getBatchByteSize(GROUP, batchId));
+        assertNull(mPersistence.getLogs(GROUP, Collections.<String>emptyList(), 10, new ArrayList<Log>()));
+        mPersistence.deleteLogs(GROUP, batchId);
+        assertEquals(0, mPersistence.countLogs(GROUP));
+        assertEquals(0, mPersistence.mMemorySize);
+
+        /* Checkpoint has nothing to write. */
+        mPersistence.checkpoint();
+        verify(mDurablePersistence, never()).putLog(any(Log.class), anyString(), anyInt());
+        verify(mDurablePersistence, never()).putLogs(anyList(), anyString(), anyInt());
+        verify(mDurablePersistence, never()).getLogs(anyString(), anyCollection(), anyInt(), anyList());
+        verify(mDurablePersistence).checkpoint();
+    }
+
+    @Test
+    public void criticalLogsAreWrittenDirectly() throws Exception {
+        Log log = mock(Log.class);
+        when(mDurablePersistence.putLog(log, GROUP, CRITICAL)).thenReturn(42L);
+        assertEquals(42L, mPersistence.putLog(log, GROUP, CRITICAL));
+        assertEquals(0, mPersistence.mMemorySize);
+    }
+
+    @Test
+    public void spillWhenFull() throws Exception {
+        Log log1 = mock(Log.class);
+        final Log log2 = mock(Log.class);
+        final Log log3 = mock(Log.class);
+        mPersistence.putLog(log1, GROUP, NORMAL);
+        mPersistence.putLog(log2, GROUP, NORMAL);
+        mPersistence.putLog(log3, GROUP, NORMAL);
+
+        /* Log being sent stays in memory. */
+        List<Log> logs = new ArrayList<>();
+        String batchId = mPersistence.getLogs(GROUP, Collections.<String>emptyList(), 1, logs);
+        assertEquals(Collections.singletonList(log1), logs);
+        Log log4 = mock(Log.class);
+        mPersistence.putLog(log4, GROUP, NORMAL);
+        verify(mDurablePersistence).putLogs(Arrays.asList(log2, log3), GROUP, NORMAL);
+        assertEquals(2 * LOG_SIZE, mPersistence.mMemorySize);
+
+        /* Durable logs are read before the logs in memory. */
+        when(mDurablePersistence.countLogs(GROUP)).thenReturn(2);
+        when(mDurablePersistence.getLogs(eq(GROUP), anyCollection(), eq(10), anyList())).then(new Answer<String>() {
+
+            @Override
+            public String answer(InvocationOnMock invocation) {
+                List<Log> outLogs = invocation.getArgument(3);
+                outLogs.add(log2);
+                outLogs.add(log3);
+                return "durable";
+            }
+        });
+        when(mDurablePersistence.getBatchByteSize(GROUP, "durable")).thenReturn(25L);
+        logs.clear();
+        String otherBatchId = mPersistence.getLogs(GROUP, Collections.<String>emptyList(), 10, logs);
+        assertNotNull(otherBatchId);
+        assertEquals(Arrays.asList(log2, log3, log4), logs);
+        assertEquals(25 + LOG_SIZE, mPersistence.getBatchByteSize(GROUP, otherBatchId));
+        mPersistence.deleteLogs(GROUP, otherBatchId);
+        verify(mDurablePersistence).deleteLogs(GROUP, "durable");
+
+        /* Batch only made of durable logs uses durable identifier. */
+        mPersistence.deleteLogs(GROUP, batchId);
+        mPersistence.releaseLogs(GROUP, "other");
+        verify(mDurablePersistence).releaseLogs(GROUP, "other");
+        assertEquals(0, mPersistence.mMemorySize);
+    }
+
+    @Test
+    public void checkpointKeepsLogsBeingSentAndCloseWritesAll() throws Exception {
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        mPersistence.putLog(log1, GROUP, NORMAL);
+        mPersistence.putLog(log2, GROUP, NORMAL);
+        mPersistence.getLogs(GROUP, Collections.<String>emptyList(), 1, new ArrayList<Log>());
+        mPersistence.checkpoint();
+        verify(mDurablePersistence).putLogs(Collections.singletonList(log2), GROUP, NORMAL);
+        mPersistence.close();
+        verify(mDurablePersistence).putLogs(Collections.singletonList(log1), GROUP, NORMAL);
+        verify(mDurablePersistence).close();
+    }
+
+    @Test
+    public void releasedLogsAreReturnedAgain() throws Exception {
+        Log log = mock(Log.class);
+        mPersistence.putLog(log, GROUP, NORMAL);
+        String batchId = mPersistence.getLogs(GROUP, Collections.<String>emptyList(), 10, new ArrayList<Log>());
+        assertNotNull(batchId);
+        mPersistence.releaseLogs(GROUP, batchId);
+        List<Log> logs = new ArrayList<>();
+        assertNotNull(mPersistence.getLogs(GROUP, Collections.<String>emptyList(), 10, logs));
+        assertEquals(Collections.singletonList(log), logs);
+        mPersistence.clearPendingLogState();
+        verify(mDurablePersistence).clearPendingLogState();
+        assertNotNull(mPersistence.getLogs(GROUP, Collections.<String>emptyList(), 10, new ArrayList<Log>()));
+    }
+
+    @Test
+    public void deleteGroupKeepsBatchesOfGroupsWithLongerNames() throws Exception {
+        String otherGroup = GROUP + "_critical";
+        Log log = mock(Log.class);
+        mPersistence.putLog(mock(Log.class), GROUP, NORMAL);
+        mPersistence.putLog(log, otherGroup, NORMAL);
+        mPersistence.getLogs(GROUP, Collections.<String>emptyList(), 10, new ArrayList<Log>());
+        String batchId = mPersistence.getLogs(otherGroup, Collections.<String>emptyList(), 10, new ArrayList<Log>());
+        assertNotNull(batchId);
+        mPersistence.deleteLogs(GROUP);
+
+        /* The batch of the other group is still known and its logs are sent again once released. */
+        mPersistence.releaseLogs(otherGroup, batchId);
+        verify(mDurablePersistence, never()).releaseLogs(otherGroup, batchId);
+        List<Log> logs = new ArrayList<>();
+        assertNotNull(mPersistence.getLogs(otherGroup, Collections.<String>emptyList(), 10, logs));
+        assertEquals(Collections.singletonList(log), logs);
+    }
+
+    @Test
+    public void deleteOldestLogsFromDurableThenMemory() throws Exception {
+        Persistence.Listener listener = mock(Persistence.Listener.class);
+        mPersistence.setListener(listener);
+        verify(mDurablePersistence).setListener(listener);
+        mPersistence.putLog(mock(Log.class), GROUP, NORMAL);
+        mPersistence.putLog(mock(Log.class), GROUP, NORMAL);
+        when(mDurablePersistence.deleteOldestLogs(GROUP, 2)).thenReturn(1);
+        assertEquals(2, mPersistence.deleteOldestLogs(GROUP, 2));
+        verify(listener).onLogsEvicted(GROUP, 1);
+        assertEquals(1, mPersistence.countLogs(GROUP));
+        mPersistence.deleteLogs(GROUP);
+        verify(mDurablePersistence).deleteLogs(GROUP);
+        assertEquals(0, mPersistence.countLogs(GROUP));
+    }
+}
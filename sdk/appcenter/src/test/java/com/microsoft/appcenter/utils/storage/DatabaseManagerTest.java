@@ -13,6 +13,7 @@ import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -37,6 +38,8 @@ import org.junit.runner.RunWith;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 
 @SuppressWarnings("unused")
@@ -66,6 +69,22 @@ public class DatabaseManagerTest {
         AppCenterLog.error(eq(AppCenter.LOG_TAG), anyString(), any(RuntimeException.class));
     }
 
+    @Test
+    public void insertFailed() {
+        DatabaseManager databaseManagerMock = getDatabaseManagerMock();
+        assertEquals(-1, databaseManagerMock.insert(new String[]{"column"}, new Object[]{1}));
+        verifyStatic(AppCenterLog.class);
+        AppCenterLog.error(eq(AppCenter.LOG_TAG), anyString(), any(RuntimeException.class));
+    }
+
+    @Test
+    public void setSynchronousFailed() {
+        DatabaseManager databaseManagerMock = getDatabaseManagerMock();
+        databaseManagerMock.setSynchronous(0);
+        verifyStatic(AppCenterLog.class);
+        AppCenterLog.error(eq(AppCenter.LOG_TAG), anyString(), any(RuntimeException.class));
+    }
+
     @Test
     public void deleteFailed() {
         DatabaseManager databaseManagerMock = getDatabaseManagerMock();
@@ -74,6 +93,37 @@ public class DatabaseManagerTest {
         AppCenterLog.error(eq(AppCenter.LOG_TAG), anyString(), any(RuntimeException.class));
     }
 
+    @Test
+    public void deleteIdentifiersFailed() {
+        DatabaseManager databaseManagerMock = getDatabaseManagerMock();
+        assertEquals(0, databaseManagerMock.delete(Arrays.asList(1L, 2L)));
+        verifyStatic(AppCenterLog.class);
+        AppCenterLog.error(eq(AppCenter.LOG_TAG), anyString(), any(RuntimeException.class));
+    }
+
+    @Test
+    public void deleteWhereFailed() {
+        DatabaseManager databaseManagerMock = getDatabaseManagerMock();
+        assertEquals(0, databaseManagerMock.deleteWhere("table", "oid > 1"));
+        verifyStatic(AppCenterLog.class);
+        AppCenterLog.error(eq(AppCenter.LOG_TAG), anyString(), any(RuntimeException.class));
+    }
+
+    @Test
+    public void deleteNoIdentifiers() {
+        DatabaseManager databaseManagerMock = getDatabaseManagerMock();
+        assertEquals(0, databaseManagerMock.delete(Collections.<Long>emptyList()));
+        verify(databaseManagerMock, never()).getDatabase();
+    }
+
+    @Test
+    public void identifiersWhereClause() {
+        assertEquals("oid IN (5)", DatabaseManager.getIdentifiersWhereClause(Collections.singletonList(5L)));
+        assertEquals("oid BETWEEN 1 AND 3", DatabaseManager.getIdentifiersWhereClause(Arrays.asList(3L, 1L, 2L)));
+        assertEquals("oid BETWEEN 1 AND 4 OR oid BETWEEN 1000 AND 1002 OR oid IN (7,9,10)",
+                DatabaseManager.getIdentifiersWhereClause(Arrays.asList(7L, 1L, 2L, 3L, 4L, 9L, 10L, 1000L, 1001L, 1002L)));
+    }
+
     @Test
     public void clearFailed() {
         DatabaseManager databaseManagerMock = getDatabaseManagerMock();
@@ -117,6 +167,14 @@ public class DatabaseManagerTest {
         AppCenterLog.error(eq(AppCenter.LOG_TAG), anyString(), any(RuntimeException.class));
     }
 
+    @Test
+    public void getUsedSizeFailed() {
+        DatabaseManager databaseManagerMock = getDatabaseManagerMock();
+        assertEquals(-1, databaseManagerMock.getUsedSize());
+        verifyStatic(AppCenterLog.class);
+        AppCenterLog.error(eq(AppCenter.LOG_TAG), anyString(), any(RuntimeException.class));
+    }
+
     @Test
     public void getDatabaseFailedThenCleanupFailedThenRetrySucceeded() {
 
@@ -187,7 +245,7 @@ public class DatabaseManagerTest {
 
         /* Setup behaviour of the SQL stuff. */
         whenNew(SQLiteQueryBuilder.class).withNoArguments().thenReturn(queryBuilderMock);
-        when(queryBuilderMock.query(any(SQLiteDatabase.class), any(String[].class), eq(null), any(String[].class), eq(null), eq(null), any(String.class))).thenReturn(cursorMock);
+        when(queryBuilderMock.query(any(SQLiteDatabase.class), any(String[].class), eq(null), any(String[].class), eq(null), eq(null), any(String.class), eq("1"))).thenReturn(cursorMock);
         when(helperMock.getWritableDatabase()).thenReturn(databaseMock);
 
         /* Setup behaviour of the cursor mock. */